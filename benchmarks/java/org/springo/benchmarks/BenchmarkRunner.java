@@ -0,0 +1,54 @@
+package org.springo.benchmarks;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the springo benchmarks with the GC profiler attached so both
+ * throughput and allocation rate ("gc.alloc.rate.norm" = bytes allocated
+ * per operation) are reported.
+ *
+ * Usage:
+ *
+ *   java -Dspringo.root=/path/to/springojs -cp <classpath> \
+ *     org.springo.benchmarks.BenchmarkRunner [include-regex] [results-dir]
+ *
+ * The include regex defaults to all springo benchmarks, and the results
+ * (JMH's JSON format) are written to benchmarks/results by default so
+ * runs can be compared across builds.
+ */
+public class BenchmarkRunner {
+
+ public static void main(String[] args) throws Exception {
+
+  String include = args.length > 0 ? args[0] : "org\\.springo\\.benchmarks\\..*";
+
+  File resultsDir = args.length > 1 ? new File(args[1]) :
+   new File(BenchmarkSupport.getSpringoRoot(), "benchmarks/results");
+  resultsDir.mkdirs();
+  String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+  File resultsFile = new File(resultsDir, "jmh-" + stamp + ".json");
+
+  Options options = new OptionsBuilder()
+   .include(include)
+   .addProfiler(GCProfiler.class)
+   .warmupIterations(Integer.getInteger("jmh.warmups", 5))
+   .measurementIterations(Integer.getInteger("jmh.iterations", 5))
+   .forks(Integer.getInteger("jmh.forks", 1))
+   .jvmArgsAppend("-D" + BenchmarkSupport.ROOT_PROPERTY + "=" + BenchmarkSupport.getSpringoRoot().getPath())
+   .resultFormat(ResultFormatType.JSON)
+   .result(resultsFile.getPath())
+   .build();
+
+  new Runner(options).run();
+
+  System.out.println("Benchmark results written to: " + resultsFile.getPath());
+ }
+}
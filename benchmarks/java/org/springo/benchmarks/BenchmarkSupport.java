@@ -0,0 +1,189 @@
+package org.springo.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockServletContext;
+import org.springo.RingoJsgiFilter;
+
+/**
+ * Shared fixtures for the Springo benchmarks.
+ *
+ * The benchmarks run against the real springo javascript modules and
+ * middleware (js/modules and js/middleware) plus the small benchmark
+ * apps found in benchmarks/js.  The springo checkout is located via the
+ * "springo.root" system property (defaulting to the current directory)
+ * so nothing needs to be fetched over the network to run them.
+ */
+public class BenchmarkSupport {
+
+ public static final String ROOT_PROPERTY = "springo.root";
+
+ private BenchmarkSupport() {}
+
+ public static File getSpringoRoot() {
+  return new File(System.getProperty(ROOT_PROPERTY, ".")).getAbsoluteFile();
+ }
+
+ /**
+  * The ringo home used by the benchmarks (the directory holding the
+  * benchmark apps).
+  */
+ public static String getRingoHome() {
+  return new File(getSpringoRoot(), "benchmarks/js").getAbsolutePath();
+ }
+
+ /**
+  * The module path, using absolute paths so the springo modules and
+  * middleware are found regardless of the working directory.
+  */
+ public static String getModulePath() {
+  File root = getSpringoRoot();
+  return getRingoHome() + "," +
+   new File(root, "js/modules").getAbsolutePath() + "," +
+   new File(root, "js/middleware").getAbsolutePath();
+ }
+
+ /**
+  * Create and initialize a RingoJsgiFilter running the named export
+  * of the benchmark "config" module as its stick app.
+  */
+ public static RingoJsgiFilter createFilter(String app) throws ServletException {
+  MockFilterConfig config = new MockFilterConfig(new MockServletContext(), "BenchmarkFilter");
+  config.addInitParameter("ringo-home", getRingoHome());
+  config.addInitParameter("module-path", getModulePath());
+  config.addInitParameter("config", "config");
+  config.addInitParameter("app", app);
+  config.addInitParameter("production", "true");
+  config.addInitParameter("optlevel", System.getProperty("scripting.optlevel", "9"));
+
+  RingoJsgiFilter filter = new RingoJsgiFilter();
+  filter.init(config);
+  return filter;
+ }
+
+ /**
+  * Build a JSON document of (roughly) the requested size in bytes.
+  * The document has a "users" array since that's what the springo
+  * middleware tests (and the benchmark transforms) expect.
+  */
+ public static String jsonOfSize(int size) {
+  StringBuilder sb = new StringBuilder(size + 64);
+  sb.append("{\"users\":[");
+  int i = 0;
+  while (sb.length() < size) {
+   if (i > 0) {
+    sb.append(',');
+   }
+   sb.append("{\"id\":").append(i)
+    .append(",\"name\":\"user").append(i)
+    .append("\",\"active\":").append(i % 2 == 0)
+    .append(",\"score\":").append(i * 1.5)
+    .append('}');
+   i++;
+  }
+  sb.append("],\"count\":").append(i).append('}');
+  return sb.toString();
+ }
+
+ public static byte[] utf8(String s) {
+  try {
+   return s.getBytes("UTF-8");
+  } catch (UnsupportedEncodingException e) {
+   throw new IllegalStateException(e);
+  }
+ }
+
+ /**
+  * A filter chain standing in for Spring MVC: it (optionally) drains
+  * the request body like a message converter would, then writes a
+  * canned JSON response.
+  */
+ public static class JsonFilterChain implements FilterChain {
+
+  private final byte[] responseBody;
+
+  public JsonFilterChain(byte[] responseBody) {
+   this.responseBody = responseBody;
+  }
+
+  public void doFilter(ServletRequest request, ServletResponse response)
+  throws IOException, ServletException {
+   InputStream in = request.getInputStream();
+   if (in != null) {
+    byte[] scratch = new byte[4096];
+    while (in.read(scratch) != -1) {
+     // drain the body
+    }
+   }
+   response.setContentType("application/json;charset=UTF-8");
+   response.getOutputStream().write(responseBody);
+  }
+ }
+
+ /**
+  * Minimal request wrapper offering the getBody()/setBody() methods
+  * the modifyrequestbody middleware expects.
+  */
+ public static class MutableBodyRequest extends HttpServletRequestWrapper {
+
+  private String body;
+
+  public MutableBodyRequest(HttpServletRequest request, String body) {
+   super(request);
+   this.body = body;
+  }
+
+  public String getBody() {
+   return body;
+  }
+
+  public void setBody(String body) {
+   this.body = body;
+  }
+
+  @Override
+  public ServletInputStream getInputStream() throws IOException {
+   final ByteArrayInputStream in = new ByteArrayInputStream(utf8(body));
+   return new ServletInputStream() {
+    @Override
+    public int read() throws IOException {
+     return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+     return in.read(b, off, len);
+    }
+
+    @Override
+    public boolean isFinished() {
+     return in.available() == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+     return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener listener) {
+     throw new IllegalStateException("The body's read synchronously");
+    }
+   };
+  }
+ }
+}
@@ -0,0 +1,75 @@
+package org.springo.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springo.BufferedResponseWrapper;
+
+/**
+ * Benchmarks the BufferedResponseWrapper as used by captureFilterChain
+ * and the response modifying middleware: buffering what "Spring" writes,
+ * reading it back with getBody() and replacing it with setBody().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BufferedResponseWrapperBenchmark {
+
+ @Param({"256", "8192", "262144"})
+ public int bodySize;
+
+ private byte[] bodyBytes;
+ private String bodyString;
+
+ @Setup
+ public void setup() {
+  bodyString = BenchmarkSupport.jsonOfSize(bodySize);
+  bodyBytes = BenchmarkSupport.utf8(bodyString);
+ }
+
+ /**
+  * Buffer a response written through the output stream (the way Spring's
+  * message converters write JSON).
+  */
+ @Benchmark
+ public BufferedResponseWrapper write() throws IOException {
+  BufferedResponseWrapper wrapper = new BufferedResponseWrapper(new MockHttpServletResponse());
+  wrapper.getOutputStream().write(bodyBytes);
+  return wrapper;
+ }
+
+ /**
+  * Buffer a response then read it back as a String (what javascript
+  * sees as "responseWrapper.body").
+  */
+ @Benchmark
+ public String captureAndGetBody() throws IOException {
+  BufferedResponseWrapper wrapper = new BufferedResponseWrapper(new MockHttpServletResponse());
+  wrapper.getOutputStream().write(bodyBytes);
+  return wrapper.getBody();
+ }
+
+ /**
+  * The full round trip of a response modifying middleware: capture,
+  * getBody(), setBody() then release the buffered body to the client.
+  */
+ @Benchmark
+ public MockHttpServletResponse captureGetAndSetBody() throws IOException {
+  MockHttpServletResponse response = new MockHttpServletResponse();
+  BufferedResponseWrapper wrapper = new BufferedResponseWrapper(response);
+  wrapper.getOutputStream().write(bodyBytes);
+  String body = wrapper.getBody();
+  wrapper.setBody(body);
+  wrapper.setBuffering(false);
+  return response;
+ }
+}
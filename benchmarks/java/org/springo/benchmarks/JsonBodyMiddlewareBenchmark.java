@@ -0,0 +1,75 @@
+package org.springo.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springo.RingoJsgiFilter;
+
+/**
+ * Benchmarks the JSON round trips done by the modifyresponsebody and
+ * modifyrequestbody middleware (capture/parse/modify/stringify) at a few
+ * payload sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JsonBodyMiddlewareBenchmark {
+
+ @Param({"256", "8192", "262144"})
+ public int bodySize;
+
+ private RingoJsgiFilter responseBodyFilter;
+ private RingoJsgiFilter requestBodyFilter;
+ private String json;
+ private byte[] jsonBytes;
+ private FilterChain jsonChain;
+ private FilterChain okChain;
+
+ @Setup
+ public void setup() throws ServletException {
+  responseBodyFilter = BenchmarkSupport.createFilter("responsebody");
+  requestBodyFilter = BenchmarkSupport.createFilter("requestbody");
+  json = BenchmarkSupport.jsonOfSize(bodySize);
+  jsonBytes = BenchmarkSupport.utf8(json);
+  jsonChain = new BenchmarkSupport.JsonFilterChain(jsonBytes);
+  okChain = new BenchmarkSupport.JsonFilterChain(BenchmarkSupport.utf8("{\"ok\":true}"));
+ }
+
+ @TearDown
+ public void tearDown() {
+  responseBodyFilter.destroy();
+  requestBodyFilter.destroy();
+ }
+
+ @Benchmark
+ public MockHttpServletResponse modifyResponseBody() throws IOException, ServletException {
+  MockHttpServletRequest request = new MockHttpServletRequest("GET", "/myapp/api/users");
+  MockHttpServletResponse response = new MockHttpServletResponse();
+  responseBodyFilter.doFilter(request, response, jsonChain);
+  return response;
+ }
+
+ @Benchmark
+ public MockHttpServletResponse modifyRequestBody() throws IOException, ServletException {
+  MockHttpServletRequest request = new MockHttpServletRequest("POST", "/myapp/api/users");
+  request.setContentType("application/json");
+  BenchmarkSupport.MutableBodyRequest wrapped = new BenchmarkSupport.MutableBodyRequest(request, json);
+  MockHttpServletResponse response = new MockHttpServletResponse();
+  requestBodyFilter.doFilter(wrapped, response, okChain);
+  return response;
+ }
+}
@@ -0,0 +1,69 @@
+package org.springo.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springo.RingoJsgiFilter;
+
+/**
+ * Benchmarks RingoJsgiFilter.doFilter end to end against mock servlet
+ * objects:
+ *
+ *   trivial - a stick app that answers every request itself.
+ *   passthrough - a stick app that only runs the filter chain (streaming
+ *       the "Spring" output straight through).
+ *
+ * This measures the fixed cost springo adds to every request (engine
+ * entry, JSGI request construction, stick dispatch).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RingoJsgiFilterBenchmark {
+
+ private RingoJsgiFilter trivialFilter;
+ private RingoJsgiFilter passthroughFilter;
+ private FilterChain chain;
+
+ @Setup
+ public void setup() throws ServletException {
+  trivialFilter = BenchmarkSupport.createFilter("trivial");
+  passthroughFilter = BenchmarkSupport.createFilter("passthrough");
+  chain = new BenchmarkSupport.JsonFilterChain(BenchmarkSupport.utf8("{\"ok\":true}"));
+ }
+
+ @TearDown
+ public void tearDown() {
+  trivialFilter.destroy();
+  passthroughFilter.destroy();
+ }
+
+ @Benchmark
+ public MockHttpServletResponse trivialApp() throws IOException, ServletException {
+  MockHttpServletRequest request = new MockHttpServletRequest("GET", "/myapp/api/ping");
+  MockHttpServletResponse response = new MockHttpServletResponse();
+  trivialFilter.doFilter(request, response, chain);
+  return response;
+ }
+
+ @Benchmark
+ public MockHttpServletResponse passthroughApp() throws IOException, ServletException {
+  MockHttpServletRequest request = new MockHttpServletRequest("GET", "/myapp/api/ping");
+  MockHttpServletResponse response = new MockHttpServletResponse();
+  passthroughFilter.doFilter(request, response, chain);
+  return response;
+ }
+}
@@ -0,0 +1,103 @@
+package org.springo.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springo.RingoModuleBridge;
+
+/**
+ * Benchmarks calling javascript module functions from java through the
+ * RingoModuleBridge with the different argument shapes the bridge treats
+ * differently (none, simple java types, Maps converted to javascript
+ * objects, and plain java beans).
+ *
+ * The bridge gets its own RhinoEngine over benchmarks/js (the functions
+ * called live in benchmarks/js/benchmodule.js).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RingoModuleBridgeBenchmark {
+
+ private RingoModuleBridge bridge;
+ private Map<String, Object> map;
+ private Person person;
+
+ @Setup
+ public void setup() throws Exception {
+  bridge = new RingoModuleBridge();
+  bridge.setRingoHome(BenchmarkSupport.getRingoHome());
+  bridge.setModulePath(BenchmarkSupport.getModulePath());
+  bridge.setOptlevel(Integer.getInteger("scripting.optlevel", 9));
+  bridge.setProduction(true);
+  bridge.setModule("benchmodule");
+  bridge.init();
+
+  map = new HashMap<String, Object>();
+  map.put("firstName", "Fred");
+  map.put("lastName", "Flintstone");
+  map.put("age", 42);
+
+  person = new Person("Wilma", "Flintstone", 40);
+
+  // load the module (and compile it) outside of the measurements:
+  bridge.invokeFunction("noArgs");
+ }
+
+ @Benchmark
+ public Object noArgs() throws Exception {
+  return bridge.invokeFunction("noArgs");
+ }
+
+ @Benchmark
+ public Object primitiveArgs() throws Exception {
+  return bridge.invokeFunction("primitiveArgs", "Fred", 42, true);
+ }
+
+ @Benchmark
+ public Object mapArg() throws Exception {
+  return bridge.invokeFunction("mapArg", map);
+ }
+
+ @Benchmark
+ public Object beanArg() throws Exception {
+  return bridge.invokeFunction("beanArg", person);
+ }
+
+ @Benchmark
+ public Object explicitModule() throws Exception {
+  return bridge.invokeMethod("benchmodule", "primitiveArgs", "Barney", 7, false);
+ }
+
+ public static class Person {
+  private final String firstName;
+  private final String lastName;
+  private final int age;
+
+  public Person(String firstName, String lastName, int age) {
+   this.firstName = firstName;
+   this.lastName = lastName;
+   this.age = age;
+  }
+
+  public String getFirstName() {
+   return firstName;
+  }
+
+  public String getLastName() {
+   return lastName;
+  }
+
+  public int getAge() {
+   return age;
+  }
+ }
+}
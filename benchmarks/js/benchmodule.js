@@ -0,0 +1,21 @@
+/**
+ * @fileOverview Functions invoked from java by RingoModuleBridgeBenchmark.
+ */
+
+exports.noArgs = function() {
+	return true;
+};
+
+exports.primitiveArgs = function(name, count, flag) {
+	return flag ? name.length + count : count;
+};
+
+// Maps arrive as javascript objects (see RingoModuleBridge.convertMapArgsToJson):
+exports.mapArg = function(person) {
+	return person.firstName + " " + person.lastName;
+};
+
+// Java beans are accessed using their bean properties:
+exports.beanArg = function(person) {
+	return person.firstName + " " + person.lastName;
+};
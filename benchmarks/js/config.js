@@ -0,0 +1,40 @@
+/**
+ * @fileOverview The stick apps used by the springo benchmarks.
+ *
+ * Each export is a separate app, selected with the filter's "app"
+ * init-param (see BenchmarkSupport.createFilter).
+ */
+
+var {Application} = require("stick");
+
+// answers every request itself (never touches the filter chain):
+var trivial = exports.trivial = new Application();
+trivial.configure("route");
+trivial.get("/*", function(request) {
+	return {
+		status: 200,
+		headers: {"Content-Type": "text/plain"},
+		body: ["ok"]
+	};
+});
+
+// streams the filter chain ("Spring") output straight through:
+var passthrough = exports.passthrough = new Application();
+passthrough.configure("runfilterchain");
+passthrough.runfilterchain.capture = false;
+
+// captures the JSON response and modifies it:
+var responsebody = exports.responsebody = new Application();
+responsebody.configure("jsonerror", "modifyresponsebody", "runfilterchain");
+responsebody.modifyresponsebody = function(json) {
+	json.users[0].name = "Fred";
+	json.modified = true;
+};
+
+// modifies the JSON request body before the filter chain sees it:
+var requestbody = exports.requestbody = new Application();
+requestbody.configure("jsonerror", "modifyrequestbody", "runfilterchain");
+requestbody.modifyrequestbody = function(json) {
+	json.users[0].name = "Fred";
+	return json;
+};
@@ -0,0 +1,365 @@
+package org.springo;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Samples the heap allocated (and the time taken) by the javascript
+ * handling of requests, aggregated per route, to show which routes are
+ * behind the GC pressure.
+ *
+ * For a sampled request RingoJsgiFilter reads the thread's allocated
+ * bytes (com.sun.management.ThreadMXBean.getThreadAllocatedBytes) before
+ * and after invoking the javascript, and runFilterChain/captureFilterChain
+ * do the same around running Spring, so the javascript's own share can
+ * be told apart from Spring's.
+ *
+ * Only a fraction of requests are sampled (each filter's own
+ * "allocation-sample-rate" init-param, e.g. 0.01 for 1%, default 0 i.e.
+ * off, passed to begin()) so the cost (a few reads of the thread's
+ * allocation counter and clock) stays bounded.  The stats are shared
+ * by all the filters.
+ *
+ * Routes are the request urls with the "id like" path segments (numbers,
+ * uuids, long hex strings) replaced by "{id}", and at most MAX_ROUTES are
+ * kept (the rest are counted under "(other)").
+ *
+ * The stats are available from getStats() (or springoutils.routeStats()
+ * in javascript) as maps which serialize to JSON.
+ */
+public class AllocationSampler {
+
+ public static final int MAX_ROUTES = 256;
+ public static final String OTHER_ROUTE = "(other)";
+
+ // log2 buckets: bucket i counts values in [2^(i-1), 2^i)
+ private static final int BUCKETS = 48;
+
+ private static Logger log = Logger.getLogger(AllocationSampler.class);
+
+ private static final com.sun.management.ThreadMXBean threadBean = getThreadBean();
+
+ private static final ConcurrentMap<String, RouteStats> routes = new ConcurrentHashMap<String, RouteStats>();
+
+ private static final ThreadLocal<Sample> current = new ThreadLocal<Sample>();
+
+ private AllocationSampler() {}
+
+ private static com.sun.management.ThreadMXBean getThreadBean() {
+  try {
+   java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+   if (bean instanceof com.sun.management.ThreadMXBean) {
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+    if (sunBean.isThreadAllocatedMemorySupported()) {
+     if (!sunBean.isThreadAllocatedMemoryEnabled()) {
+      sunBean.setThreadAllocatedMemoryEnabled(true);
+     }
+     return sunBean;
+    }
+   }
+  } catch (Throwable t) {
+   log.warn("Thread allocation accounting is not available: " + t);
+  }
+  return null;
+ }
+
+ /**
+  * Check a fraction of requests to sample (clamped to 0 to 1, and 0 if
+  * this JVM can't sample), for passing to begin().
+  */
+ public static double checkSampleRate(double rate) {
+  if (rate > 0 && threadBean == null) {
+   log.warn("Allocation sampling requested but this JVM doesn't support thread allocation accounting.");
+   return 0;
+  }
+  return Math.max(0, Math.min(rate, 1));
+ }
+
+ /**
+  * Start sampling a request (if it's chosen to be sampled).
+  *
+  * @param rate the fraction (0 to 1, see checkSampleRate()) of the
+  *   calling filter's requests to sample
+  * @return the sample to pass to end(), or null if not sampled
+  */
+ public static Sample begin(HttpServletRequest request, double rate) {
+  if (rate == 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) {
+   return null;
+  }
+  Sample sample = new Sample(request.getRequestURI(), current.get());
+  current.set(sample);
+  return sample;
+ }
+
+ /**
+  * Finish sampling a request and add it to its route's stats (null is
+  * ignored).
+  */
+ public static void end(Sample sample) {
+  if (sample == null) {
+   return;
+  }
+  long allocated = allocatedBytes() - sample.startBytes;
+  long nanos = System.nanoTime() - sample.startTime;
+  if (sample.previous != null) {
+   current.set(sample.previous);
+  } else {
+   current.remove();
+  }
+  getRouteStats(routeOf(sample.uri)).add(allocated, nanos, sample.chainBytes, sample.chainNanos);
+ }
+
+ /**
+  * The sample for the request being handled on this thread (if it's
+  * being sampled).
+  */
+ public static Sample current() {
+  return current.get();
+ }
+
+ /**
+  * Forget all the stats gathered so far.
+  */
+ public static void reset() {
+  routes.clear();
+ }
+
+ /**
+  * Get the stats per route (sorted by route), each a map with:
+  *
+  *   count - the number of sampled requests
+  *   allocatedBytes - total, mean, p50, p90, p99 and max bytes allocated per request
+  *   chainAllocatedBytes - total and mean bytes allocated while running Spring
+  *   scriptAllocatedBytes - total and mean bytes allocated outside of Spring
+  *   latencyMillis - mean, p50, p90, p99 and max time per request
+  *   chainMillis - mean time running Spring
+  *
+  * The percentiles are approximate (the upper bound of their power of 2
+  * histogram bucket).
+  */
+ public static Map<String, Map<String, Object>> getStats() {
+  Map<String, Map<String, Object>> stats = new TreeMap<String, Map<String, Object>>();
+  for (Map.Entry<String, RouteStats> entry : routes.entrySet()) {
+   stats.put(entry.getKey(), entry.getValue().toMap());
+  }
+  return stats;
+ }
+
+ static long allocatedBytes() {
+  return threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+ }
+
+ private static RouteStats getRouteStats(String route) {
+  RouteStats stats = routes.get(route);
+  if (stats == null) {
+   if (routes.size() >= MAX_ROUTES) {
+    route = OTHER_ROUTE;
+    stats = routes.get(route);
+   }
+   if (stats == null) {
+    stats = new RouteStats();
+    RouteStats existing = routes.putIfAbsent(route, stats);
+    if (existing != null) {
+     stats = existing;
+    }
+   }
+  }
+  return stats;
+ }
+
+ /**
+  * Normalize a request url to its route, i.e. with the "id like" path
+  * segments replaced by "{id}".
+  */
+ static String routeOf(String uri) {
+  if (uri == null) {
+   return OTHER_ROUTE;
+  }
+  StringBuilder route = null;
+  int start = 0;
+  while (start <= uri.length()) {
+   int end = uri.indexOf('/', start);
+   if (end == -1) {
+    end = uri.length();
+   }
+   if (isIdSegment(uri, start, end)) {
+    if (route == null) {
+     route = new StringBuilder(uri.length()).append(uri, 0, start);
+    }
+    route.append("{id}");
+   } else if (route != null) {
+    route.append(uri, start, end);
+   }
+   if (end < uri.length() && route != null) {
+    route.append('/');
+   }
+   start = end + 1;
+  }
+  return route == null ? uri : route.toString();
+ }
+
+ private static boolean isIdSegment(String uri, int start, int end) {
+  int length = end - start;
+  if (length == 0) {
+   return false;
+  }
+  boolean allDigits = true;
+  boolean allHex = true;
+  int digits = 0;
+  for (int i = start; i < end; i++) {
+   char ch = uri.charAt(i);
+   boolean digit = ch >= '0' && ch <= '9';
+   if (digit) {
+    digits++;
+   } else {
+    allDigits = false;
+   }
+   if (!digit && !((ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F') || ch == '-')) {
+    allHex = false;
+   }
+  }
+  return allDigits || (allHex && length >= 16 && digits > 0);
+ }
+
+ private static int bucket(long value) {
+  int bucket = 64 - Long.numberOfLeadingZeros(Math.max(value, 0));
+  return Math.min(bucket, BUCKETS - 1);
+ }
+
+ /**
+  * A request being sampled.
+  */
+ public static class Sample {
+  private final String uri;
+  private final Sample previous;
+  private final long startBytes;
+  private final long startTime;
+
+  private int chainDepth = 0;
+  private long chainStartBytes;
+  private long chainStartTime;
+  private long chainBytes = 0;
+  private long chainNanos = 0;
+
+  Sample(String uri, Sample previous) {
+   this.uri = uri;
+   this.previous = previous;
+   this.startTime = System.nanoTime();
+   this.startBytes = allocatedBytes();
+  }
+
+  /**
+   * Spring (the servlet filter chain) is about to run.
+   */
+  public void beginChain() {
+   if (chainDepth++ == 0) {
+    chainStartTime = System.nanoTime();
+    chainStartBytes = allocatedBytes();
+   }
+  }
+
+  /**
+   * Spring has finished.
+   */
+  public void endChain() {
+   if (--chainDepth == 0) {
+    chainBytes += allocatedBytes() - chainStartBytes;
+    chainNanos += System.nanoTime() - chainStartTime;
+   }
+  }
+ }
+
+ static class RouteStats {
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalBytes = new AtomicLong();
+  private final AtomicLong totalChainBytes = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong totalChainNanos = new AtomicLong();
+  private final AtomicLong maxBytes = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final AtomicLongArray bytesHistogram = new AtomicLongArray(BUCKETS);
+  private final AtomicLongArray microsHistogram = new AtomicLongArray(BUCKETS);
+
+  void add(long bytes, long nanos, long chainBytes, long chainNanos) {
+   count.incrementAndGet();
+   totalBytes.addAndGet(bytes);
+   totalChainBytes.addAndGet(chainBytes);
+   totalNanos.addAndGet(nanos);
+   totalChainNanos.addAndGet(chainNanos);
+   updateMax(maxBytes, bytes);
+   updateMax(maxNanos, nanos);
+   bytesHistogram.incrementAndGet(bucket(bytes));
+   microsHistogram.incrementAndGet(bucket(nanos / 1000));
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+   long current = max.get();
+   while (value > current && !max.compareAndSet(current, value)) {
+    current = max.get();
+   }
+  }
+
+  Map<String, Object> toMap() {
+   long n = Math.max(count.get(), 1);
+   Map<String, Object> map = new LinkedHashMap<String, Object>();
+   map.put("count", count.get());
+
+   Map<String, Object> bytes = new LinkedHashMap<String, Object>();
+   bytes.put("total", totalBytes.get());
+   bytes.put("mean", totalBytes.get() / n);
+   bytes.put("p50", percentile(bytesHistogram, 0.5));
+   bytes.put("p90", percentile(bytesHistogram, 0.9));
+   bytes.put("p99", percentile(bytesHistogram, 0.99));
+   bytes.put("max", maxBytes.get());
+   map.put("allocatedBytes", bytes);
+
+   Map<String, Object> chainBytes = new LinkedHashMap<String, Object>();
+   chainBytes.put("total", totalChainBytes.get());
+   chainBytes.put("mean", totalChainBytes.get() / n);
+   map.put("chainAllocatedBytes", chainBytes);
+
+   Map<String, Object> scriptBytes = new LinkedHashMap<String, Object>();
+   scriptBytes.put("total", totalBytes.get() - totalChainBytes.get());
+   scriptBytes.put("mean", (totalBytes.get() - totalChainBytes.get()) / n);
+   map.put("scriptAllocatedBytes", scriptBytes);
+
+   Map<String, Object> latency = new LinkedHashMap<String, Object>();
+   latency.put("mean", totalNanos.get() / n / 1000000.0);
+   latency.put("p50", percentile(microsHistogram, 0.5) / 1000.0);
+   latency.put("p90", percentile(microsHistogram, 0.9) / 1000.0);
+   latency.put("p99", percentile(microsHistogram, 0.99) / 1000.0);
+   latency.put("max", maxNanos.get() / 1000000.0);
+   map.put("latencyMillis", latency);
+
+   map.put("chainMillis", totalChainNanos.get() / n / 1000000.0);
+   return map;
+  }
+
+  private static long percentile(AtomicLongArray histogram, double fraction) {
+   long total = 0;
+   for (int i = 0; i < BUCKETS; i++) {
+    total += histogram.get(i);
+   }
+   long target = (long) Math.ceil(total * fraction);
+   long seen = 0;
+   for (int i = 0; i < BUCKETS; i++) {
+    seen += histogram.get(i);
+    if (seen >= target && seen > 0) {
+     return i == 0 ? 0 : (1L << i) - 1;
+    }
+   }
+   return 0;
+  }
+ }
+}
@@ -1,16 +1,35 @@
 package org.springo;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import javax.servlet.ServletContext;
 
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.web.context.ServletContextAware;
 
-public class ApplicationContextProvider implements ApplicationContextAware, ServletContextAware {
+public class ApplicationContextProvider implements ApplicationContextAware, ServletContextAware,
+		ApplicationListener<ContextRefreshedEvent> {
 	private static ApplicationContext appCtx = null;
 	private static ServletContext servletCtx = null;
 
+	// Beans already looked up (by bean name), and the bean names
+	// for the "get<BeanName>" getters used by springcontext.js
+	// (by getter name).  Both are dropped when the context refreshes.
+	private static final ConcurrentMap<String, Object> beanCache = new ConcurrentHashMap<String, Object>();
+	private static final ConcurrentMap<String, String> getterBeanNames = new ConcurrentHashMap<String, String>();
+
+	// Bumped on every context refresh so javascript holding on to
+	// bean handles (see springcontext.js) knows to look them up again.
+	private static volatile long generation = 0;
+
     public static ApplicationContext getApplicationContext() {
         return appCtx;
     }
@@ -19,6 +38,7 @@ public class ApplicationContextProvider implements ApplicationContextAware, Serv
 			throws BeansException {
 		// Assign the ApplicationContext into a static method
 		this.appCtx = ctx;
+		invalidateBeanCache();
 	}
 
 	public static ServletContext getServletContext() {
@@ -48,4 +68,96 @@ public class ApplicationContextProvider implements ApplicationContextAware, Serv
 	public static Object getBean(String name) {
 		return appCtx.getBean(name);
 	}
+
+	/**
+	 * Get the named bean, remembering it so later lookups skip the
+	 * ApplicationContext entirely (otherwise a BeansException is thrown).
+	 *
+	 * Note:  Only singletons are remembered - prototype (and other
+	 *   non-singleton scoped) beans are always fetched from Spring
+	 *   so each call still gets a new instance.
+	 *
+	 * The cached beans are dropped whenever the ApplicationContext is
+	 * refreshed (see onApplicationEvent).
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static Object getCachedBean(String name) {
+		Object bean = beanCache.get(name);
+		if (bean == null) {
+			bean = appCtx.getBean(name);
+			if (appCtx.isSingleton(name)) {
+				beanCache.put(name, bean);
+			}
+		}
+		return bean;
+	}
+
+	/**
+	 * Get (a copy of) the beans looked up so far by bean name, e.g. so an
+	 * EngineSnapshot can write references to them as bean names.
+	 *
+	 * @return
+	 */
+	public static Map<String, Object> getCachedBeans() {
+		return new HashMap<String, Object>(beanCache);
+	}
+
+	/**
+	 * Get the bean for a springcontext.js "getter method" name, e.g.
+	 * "getManagePlatformService" returns the "managePlatformService"
+	 * bean (otherwise a BeansException is thrown).
+	 *
+	 * @param getterName
+	 * @return
+	 */
+	public static Object getBeanForGetter(String getterName) {
+		return getCachedBean(getBeanNameForGetter(getterName));
+	}
+
+	/**
+	 * Get the bean name for a springcontext.js "getter method" name, e.g.
+	 * "managePlatformService" for "getManagePlatformService" (a
+	 * NoSuchBeanDefinitionException for a name that isn't "get" followed
+	 * by a bean name).
+	 *
+	 * @param getterName
+	 * @return
+	 */
+	public static String getBeanNameForGetter(String getterName) {
+		String beanName = getterBeanNames.get(getterName);
+		if (beanName == null) {
+			if (getterName.length() <= 3 || !getterName.startsWith("get")) {
+				throw new NoSuchBeanDefinitionException(getterName, "Not a bean getter (\"get\" followed by a bean name)");
+			}
+			beanName = Character.toLowerCase(getterName.charAt(3)) + getterName.substring(4);
+			getterBeanNames.put(getterName, beanName);
+		}
+		return beanName;
+	}
+
+	/**
+	 * The current "generation" of the bean cache.  This changes whenever
+	 * the ApplicationContext is refreshed, i.e. whenever bean handles
+	 * held on to (e.g. by javascript) should be looked up again.
+	 *
+	 * @return
+	 */
+	public static long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Drop the cached beans when the ApplicationContext is (re)refreshed.
+	 */
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		invalidateBeanCache();
+	}
+
+	private static synchronized void invalidateBeanCache() {
+		beanCache.clear();
+		getterBeanNames.clear();
+		generation++;
+	}
 }
@@ -0,0 +1,1308 @@
+package org.springo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.Principal;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.ReadListener;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.Part;
+
+/**
+ * Runs the sub-requests of a batch request (see the "batch" middleware)
+ * through Spring in parallel, on a bounded pool of threads, capturing
+ * each one's response.
+ *
+ * Each sub-request is forwarded (like forwardtospringdispatcher) with its
+ * own request and response:  the request has the sub-request's method,
+ * query parameters, body and headers (on top of the batch request's own
+ * headers, so e.g. cookies and credentials carry over) and a copy of the
+ * batch request's attributes, and the response captures everything Spring
+ * sets, so the sub-requests never read the batch request or response or
+ * each other's.
+ *
+ * The request wraps the batch request (the servlet spec only lets the
+ * container's own requests, or wrappers of them, be forwarded), but all
+ * its getters answer from the copies.  Only containers whose forwards of
+ * the same request can run at once (Tomcat, which wraps each forward
+ * separately) get the items in parallel:  others, such as Jetty, which
+ * forwards by changing its request itself, get them one at a time on the
+ * batch request's thread (where the item timeout isn't enforced).
+ *
+ * Items can depend on other items (by id), in which case they're run
+ * after them, and not at all (status 424) if one of them fails.  An item
+ * that takes longer than the timeout is abandoned (interrupted) with a
+ * status of 504.
+ *
+ */
+public class BatchDispatcher {
+
+ public static final int DEFAULT_THREADS = 8;
+ public static final int DEFAULT_MAX_ITEMS = 20;
+ public static final long DEFAULT_ITEM_TIMEOUT_MILLIS = 5000;
+
+ public static final int SC_FAILED_DEPENDENCY = 424;
+
+ private static SpringoLog log = SpringoLog.getLogger(BatchDispatcher.class);
+
+ private static int sharedThreads = DEFAULT_THREADS;
+ private static BatchDispatcher shared = null;
+ private static int sharedUsers = 0;
+
+ private final ThreadPoolExecutor executor;
+
+ /**
+  * A batch that can't be run (e.g. an item depends on an unknown item).
+  */
+ public static class BatchException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  public BatchException(String message) {
+   super(message);
+  }
+ }
+
+ /**
+  * @param threads the most sub-requests run at once (across all batches)
+  */
+ public BatchDispatcher(int threads) {
+  final AtomicInteger count = new AtomicInteger();
+  executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+   new ArrayBlockingQueue<Runnable>(threads * DEFAULT_MAX_ITEMS),
+   new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+     Thread thread = new Thread(runnable, "springo-batch-" + count.incrementAndGet());
+     thread.setDaemon(true);
+     return thread;
+    }
+   });
+  executor.allowCoreThreadTimeOut(true);
+ }
+
+ /**
+  * Set the size of the shared dispatcher's pool (before it's first used).
+  */
+ public static synchronized void setSharedThreads(int threads) {
+  sharedThreads = Math.max(1, threads);
+ }
+
+ /**
+  * The dispatcher shared by the batch middleware.
+  */
+ public static synchronized BatchDispatcher getShared() {
+  if (shared == null) {
+   shared = new BatchDispatcher(sharedThreads);
+  }
+  return shared;
+ }
+
+ /**
+  * Note a filter using the shared dispatcher (until it calls releaseShared()).
+  */
+ public static synchronized void retainShared() {
+  sharedUsers++;
+ }
+
+ /**
+  * Note a filter's done with the shared dispatcher, shutting down its
+  * pool once none are using it any more.
+  */
+ public static synchronized void releaseShared() {
+  if (sharedUsers > 0 && --sharedUsers == 0 && shared != null) {
+   shared.executor.shutdownNow();
+   shared = null;
+  }
+ }
+
+ /**
+  * Run a batch's items, each item's status, headers and body being set
+  * on it when this returns.
+  *
+  * @param request the batch request
+  * @param response the batch response (nothing's written to it)
+  * @param itemTimeoutMillis how long each item has to complete
+  * @throws BatchException if the items' ids or dependencies are invalid
+  */
+ public void dispatch(HttpServletRequest request, HttpServletResponse response, List<Item> items,
+  long itemTimeoutMillis) throws BatchException {
+
+  boolean parallel = supportsParallelForwards(request.getServletContext());
+
+  // Run the items in "waves", each wave being the items whose
+  // dependencies all ran in the waves before it:
+  for (List<Item> wave : waves(items)) {
+   List<Future<?>> futures = new ArrayList<Future<?>>(wave.size());
+   List<SubRequest> subRequests = new ArrayList<SubRequest>(wave.size());
+   for (final Item item : wave) {
+    Future<?> future = null;
+    String failed = item.failedDependency();
+    if (failed != null) {
+     item.fail(SC_FAILED_DEPENDENCY, "Dependency \"" + failed + "\" failed");
+    } else if (item.path == null) {
+     item.fail(HttpServletResponse.SC_NOT_FOUND, "Not a Spring url: " + item.url);
+    } else {
+     final SubRequest subRequest = new SubRequest(request, item);
+     final SubResponse subResponse = new SubResponse();
+     subRequests.add(subRequest);
+     if (parallel) {
+      try {
+       future = executor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+         forward(subRequest, subResponse, item);
+         return null;
+        }
+       });
+      } catch (RejectedExecutionException e) {
+       item.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many batched requests in progress");
+      }
+     } else {
+      forwardNow(subRequest, subResponse, item);
+     }
+    }
+    futures.add(future);
+   }
+
+   try {
+    await(wave, futures, itemTimeoutMillis);
+   } finally {
+    // (the batch request's done with once this returns, even by the
+    // items that timed out and are still running)
+    for (SubRequest subRequest : subRequests) {
+     subRequest.detach();
+    }
+   }
+  }
+ }
+
+ // Wait for a wave's items (until the timeout, failing those still running):
+ private void await(List<Item> wave, List<Future<?>> futures, long itemTimeoutMillis) {
+  long deadline = System.currentTimeMillis() + itemTimeoutMillis;
+  for (int i = 0; i < wave.size(); i++) {
+   Future<?> future = futures.get(i);
+   if (future == null) {
+    continue;
+   }
+   Item item = wave.get(i);
+   try {
+    future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+   } catch (TimeoutException e) {
+    future.cancel(true);
+    item.fail(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Timed out after " + itemTimeoutMillis + "ms");
+   } catch (ExecutionException e) {
+    Throwable cause = e.getCause() != null ? e.getCause() : e;
+    log.warn("Batched request " + item.method + " " + item.url + " failed", cause);
+    item.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, String.valueOf(cause.getMessage()));
+   } catch (InterruptedException e) {
+    future.cancel(true);
+    Thread.currentThread().interrupt();
+    item.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted");
+   }
+  }
+ }
+
+ private void forward(SubRequest subRequest, SubResponse subResponse, Item item) throws Exception {
+  RequestDispatcher dispatcher = SpringRoutes.getRequestDispatcher(subRequest, item.path);
+  if (dispatcher == null) {
+   item.fail(HttpServletResponse.SC_NOT_FOUND, "No dispatcher for: " + item.path);
+   return;
+  }
+  dispatcher.forward(subRequest, subResponse);
+  subResponse.complete(item);
+ }
+
+ // Forward an item on this thread (when they're run one at a time):
+ private void forwardNow(SubRequest subRequest, SubResponse subResponse, Item item) {
+  try {
+   forward(subRequest, subResponse, item);
+  } catch (Exception e) {
+   log.warn("Batched request " + item.method + " " + item.url + " failed", e);
+   item.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, String.valueOf(e.getMessage()));
+  }
+ }
+
+ /**
+  * Can the container forward (wrappers of) the same request on several
+  * threads at once?  Tomcat wraps each forward in a request of its own,
+  * while e.g. Jetty changes the request being forwarded itself.
+  */
+ static boolean supportsParallelForwards(ServletContext servletContext) {
+  String serverInfo = servletContext != null ? servletContext.getServerInfo() : null;
+  return serverInfo != null && serverInfo.startsWith("Apache Tomcat");
+ }
+
+ // Order the items by their dependencies (checking the ids are unique,
+ // the dependencies exist and there are no cycles):
+ static List<List<Item>> waves(List<Item> items) throws BatchException {
+  Map<String, Item> byId = new HashMap<String, Item>();
+  for (Item item : items) {
+   if (byId.put(item.id, item) != null) {
+    throw new BatchException("Duplicate id \"" + item.id + "\"");
+   }
+  }
+  for (Item item : items) {
+   item.dependencies.clear();
+   for (String id : item.dependsOn) {
+    Item dependency = byId.get(id);
+    if (dependency == null) {
+     throw new BatchException("\"" + item.id + "\" depends on unknown id \"" + id + "\"");
+    }
+    item.dependencies.add(dependency);
+   }
+  }
+
+  List<List<Item>> waves = new ArrayList<List<Item>>();
+  List<Item> remaining = new ArrayList<Item>(items);
+  Map<Item, Boolean> scheduled = new HashMap<Item, Boolean>();
+  while (!remaining.isEmpty()) {
+   List<Item> wave = new ArrayList<Item>();
+   for (Item item : remaining) {
+    boolean ready = true;
+    for (Item dependency : item.dependencies) {
+     if (!scheduled.containsKey(dependency)) {
+      ready = false;
+      break;
+     }
+    }
+    if (ready) {
+     wave.add(item);
+    }
+   }
+   if (wave.isEmpty()) {
+    throw new BatchException("Circular dependency between \"" + remaining.get(0).id + "\" and the items it depends on");
+   }
+   for (Item item : wave) {
+    scheduled.put(item, Boolean.TRUE);
+   }
+   remaining.removeAll(wave);
+   waves.add(wave);
+  }
+  return waves;
+ }
+
+ /**
+  * A sub-request of a batch, and once run, its response.
+  */
+ public static class Item {
+  private final String id;
+  private final String method;
+  private final String url;
+  private final String path;
+  private final String queryString;
+  private final Map<String, String> headers = new LinkedHashMap<String, String>();
+  private byte[] body = null;
+  private final List<String> dependsOn = new ArrayList<String>();
+  private final List<Item> dependencies = new ArrayList<Item>();
+
+  private volatile int status = 0;
+  private volatile String error = null;
+  private volatile String contentType = null;
+  private volatile Map<String, List<String>> responseHeaders = Collections.emptyMap();
+  private volatile byte[] responseBody = new byte[0];
+
+  /**
+   * @param id identifies the item in the batch's response (and to the
+   *   items depending on it)
+   * @param method the http method
+   * @param url the url as requested by the client (e.g. "/myapp/api/users?active=true")
+   * @param path the Spring path it maps to (without the query string),
+   *   null if it doesn't map to Spring (see SpringRoutes)
+   */
+  public Item(String id, String method, String url, String path) {
+   this.id = id;
+   this.method = method == null ? "GET" : method.toUpperCase(Locale.ENGLISH);
+   this.url = url;
+   int query = url.indexOf('?');
+   this.queryString = query == -1 ? null : url.substring(query + 1);
+   this.path = path == null ? null : (path.indexOf('?') == -1 ? path : path.substring(0, path.indexOf('?')));
+  }
+
+  public void setHeader(String name, String value) {
+   headers.put(name.toLowerCase(Locale.ENGLISH), value);
+  }
+
+  public void setBody(byte[] body) {
+   this.body = body;
+  }
+
+  public void setBody(String body) throws UnsupportedEncodingException {
+   this.body = body.getBytes("UTF-8");
+  }
+
+  public void addDependency(String id) {
+   dependsOn.add(id);
+  }
+
+  public String getId() {
+   return id;
+  }
+
+  public String getMethod() {
+   return method;
+  }
+
+  public String getUrl() {
+   return url;
+  }
+
+  public int getStatus() {
+   return status;
+  }
+
+  public boolean isSuccessful() {
+   return status >= 200 && status < 400;
+  }
+
+  /**
+   * Why the item failed without a response from Spring (null if it got one).
+   */
+  public String getError() {
+   return error;
+  }
+
+  public String getContentType() {
+   return contentType;
+  }
+
+  public Map<String, List<String>> getResponseHeaders() {
+   return responseHeaders;
+  }
+
+  public byte[] getResponseBody() {
+   return responseBody;
+  }
+
+  public String getResponseBodyString() throws UnsupportedEncodingException {
+   return new String(responseBody, "UTF-8");
+  }
+
+  // (whichever of fail/succeed comes first wins, e.g. a late response
+  // from an item that's timed out is ignored)
+  synchronized void fail(int status, String error) {
+   if (this.status == 0) {
+    this.status = status;
+    this.error = error;
+   }
+  }
+
+  synchronized void succeed(int status, String contentType, Map<String, List<String>> headers, byte[] body) {
+   if (this.status == 0) {
+    this.contentType = contentType;
+    this.responseHeaders = headers;
+    this.responseBody = body;
+    this.status = status;
+   }
+  }
+
+  String failedDependency() {
+   for (Item dependency : dependencies) {
+    if (!dependency.isSuccessful()) {
+     return dependency.id;
+    }
+   }
+   return null;
+  }
+ }
+
+ /**
+  * The request Spring sees for an item.
+  *
+  * It wraps the batch request, as the container requires of a request
+  * being forwarded, but everything's copied from the batch request (on the
+  * request's thread) when it's created and every getter answers from the
+  * copies:  so parallel forwards don't all read (or modify) the same
+  * wrappers, and a worker still running after its item has timed out
+  * never reads the batch request once the container has recycled it.
+  */
+ static class SubRequest extends HttpServletRequestWrapper {
+  // (attributes that belong to the batch request itself, e.g. Spring's
+  // WebAsyncManager or the body a handoff has parsed, aren't copied)
+  private static final String[] REQUEST_ATTRIBUTE_PREFIXES = {
+   "javax.servlet.", "org.apache.", "org.springframework.", "org.springo."
+  };
+
+  private final Item item;
+  private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+  private final Map<String, String[]> parameters;
+  private String characterEncoding = "UTF-8";
+
+  private final ServletContext servletContext;
+  private final String contextPath;
+  private final String requestURI;
+  private final String protocol;
+  private final String scheme;
+  private final String serverName;
+  private final int serverPort;
+  private final boolean secure;
+  private final String remoteAddr;
+  private final String remoteHost;
+  private final int remotePort;
+  private final String localName;
+  private final String localAddr;
+  private final int localPort;
+  private final List<Locale> locales;
+  private final Cookie[] cookies;
+  private final String authType;
+  private final String remoteUser;
+  private final Principal userPrincipal;
+  private final HttpSession session;
+  private final String requestedSessionId;
+  private final boolean requestedSessionIdValid;
+  private final boolean requestedSessionIdFromCookie;
+  private final boolean requestedSessionIdFromURL;
+
+  // Only for isUserInRole() (the roles can't be copied), and only until
+  // the batch is done with the item (see detach()):
+  private HttpServletRequest batchRequest;
+
+  SubRequest(HttpServletRequest request, Item item) {
+   super(request);
+   this.item = item;
+   this.batchRequest = request;
+
+   for (Enumeration<String> names = request.getHeaderNames(); names != null && names.hasMoreElements();) {
+    String name = names.nextElement();
+    String lower = name.toLowerCase(Locale.ENGLISH);
+    if (lower.equals("content-length") || lower.equals("content-type")) {
+     continue; // (those of the batch itself)
+    }
+    headers.put(lower, Collections.list(request.getHeaders(name)));
+   }
+   for (Map.Entry<String, String> header : item.headers.entrySet()) {
+    headers.put(header.getKey(), Collections.singletonList(header.getValue()));
+   }
+   for (Enumeration<String> names = request.getAttributeNames(); names.hasMoreElements();) {
+    String name = names.nextElement();
+    if (!isRequestAttribute(name)) {
+     attributes.put(name, request.getAttribute(name));
+    }
+   }
+   parameters = parseQuery(item.queryString);
+
+   servletContext = request.getServletContext();
+   contextPath = request.getContextPath();
+   int query = item.url.indexOf('?');
+   requestURI = query == -1 ? item.url : item.url.substring(0, query);
+   protocol = request.getProtocol();
+   scheme = request.getScheme();
+   serverName = request.getServerName();
+   serverPort = request.getServerPort();
+   secure = request.isSecure();
+   remoteAddr = request.getRemoteAddr();
+   remoteHost = request.getRemoteHost();
+   remotePort = request.getRemotePort();
+   localName = request.getLocalName();
+   localAddr = request.getLocalAddr();
+   localPort = request.getLocalPort();
+   locales = Collections.list(request.getLocales());
+   cookies = request.getCookies() == null ? null : request.getCookies().clone();
+   authType = request.getAuthType();
+   remoteUser = request.getRemoteUser();
+   userPrincipal = request.getUserPrincipal();
+   session = request.getSession(false);
+   requestedSessionId = request.getRequestedSessionId();
+   requestedSessionIdValid = request.isRequestedSessionIdValid();
+   requestedSessionIdFromCookie = request.isRequestedSessionIdFromCookie();
+   requestedSessionIdFromURL = request.isRequestedSessionIdFromURL();
+  }
+
+  private static boolean isRequestAttribute(String name) {
+   for (String prefix : REQUEST_ATTRIBUTE_PREFIXES) {
+    if (name.startsWith(prefix)) {
+     return true;
+    }
+   }
+   return false;
+  }
+
+  /**
+   * Stop reading anything from the batch request (called before the
+   * batch's dispatch returns, even if the item's still running).
+   */
+  synchronized void detach() {
+   batchRequest = null;
+  }
+
+  private static Map<String, String[]> parseQuery(String query) {
+   Map<String, List<String>> lists = new LinkedHashMap<String, List<String>>();
+   if (query != null) {
+    for (String pair : query.split("&")) {
+     if (pair.length() == 0) {
+      continue;
+     }
+     int equals = pair.indexOf('=');
+     String name = decode(equals == -1 ? pair : pair.substring(0, equals));
+     String value = equals == -1 ? "" : decode(pair.substring(equals + 1));
+     List<String> values = lists.get(name);
+     if (values == null) {
+      values = new ArrayList<String>(1);
+      lists.put(name, values);
+     }
+     values.add(value);
+    }
+   }
+   Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+   for (Map.Entry<String, List<String>> entry : lists.entrySet()) {
+    parameters.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+   }
+   return Collections.unmodifiableMap(parameters);
+  }
+
+  private static String decode(String s) {
+   try {
+    return URLDecoder.decode(s, "UTF-8");
+   } catch (Exception e) {
+    return s;
+   }
+  }
+
+  @Override
+  public String getMethod() {
+   return item.method;
+  }
+
+  @Override
+  public String getRequestURI() {
+   return requestURI;
+  }
+
+  @Override
+  public StringBuffer getRequestURL() {
+   StringBuffer url = new StringBuffer(scheme).append("://").append(serverName);
+   if (!(("http".equals(scheme) && serverPort == 80) || ("https".equals(scheme) && serverPort == 443))) {
+    url.append(':').append(serverPort);
+   }
+   return url.append(requestURI);
+  }
+
+  @Override
+  public String getContextPath() {
+   return contextPath;
+  }
+
+  @Override
+  public String getServletPath() {
+   return item.path;
+  }
+
+  @Override
+  public String getPathInfo() {
+   return null;
+  }
+
+  @Override
+  public String getPathTranslated() {
+   return null;
+  }
+
+  @Override
+  public String getQueryString() {
+   return item.queryString;
+  }
+
+  @Override
+  public String getParameter(String name) {
+   String[] values = parameters.get(name);
+   return values == null ? null : values[0];
+  }
+
+  @Override
+  public Map<String, String[]> getParameterMap() {
+   return parameters;
+  }
+
+  @Override
+  public Enumeration<String> getParameterNames() {
+   return Collections.enumeration(parameters.keySet());
+  }
+
+  @Override
+  public String[] getParameterValues(String name) {
+   return parameters.get(name);
+  }
+
+  @Override
+  public String getHeader(String name) {
+   List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+   return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  @Override
+  public Enumeration<String> getHeaders(String name) {
+   List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+   return Collections.enumeration(values == null ? Collections.<String>emptyList() : values);
+  }
+
+  @Override
+  public Enumeration<String> getHeaderNames() {
+   return Collections.enumeration(headers.keySet());
+  }
+
+  @Override
+  public int getIntHeader(String name) {
+   String value = getHeader(name);
+   return value == null ? -1 : Integer.parseInt(value);
+  }
+
+  @Override
+  public long getDateHeader(String name) {
+   String value = getHeader(name);
+   if (value == null) {
+    return -1;
+   }
+   try {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.parse(value).getTime();
+   } catch (Exception e) {
+    throw new IllegalArgumentException("Not a date header: " + name + ": " + value);
+   }
+  }
+
+  @Override
+  public Cookie[] getCookies() {
+   return cookies;
+  }
+
+  @Override
+  public String getContentType() {
+   return getHeader("content-type");
+  }
+
+  @Override
+  public int getContentLength() {
+   return item.body == null ? -1 : item.body.length;
+  }
+
+  @Override
+  public long getContentLengthLong() {
+   return getContentLength();
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+   return characterEncoding;
+  }
+
+  @Override
+  public void setCharacterEncoding(String encoding) {
+   characterEncoding = encoding;
+  }
+
+  @Override
+  public ServletInputStream getInputStream() {
+   final ByteArrayInputStream in = new ByteArrayInputStream(item.body == null ? new byte[0] : item.body);
+   return new ServletInputStream() {
+    @Override
+    public int read() {
+     return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+     return in.read(b, off, len);
+    }
+
+    @Override
+    public boolean isFinished() {
+     return in.available() == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+     return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener listener) {
+     throw new IllegalStateException("Batched requests are read synchronously");
+    }
+   };
+  }
+
+  @Override
+  public BufferedReader getReader() throws UnsupportedEncodingException {
+   return new BufferedReader(new InputStreamReader(getInputStream(), characterEncoding));
+  }
+
+  @Override
+  public Collection<Part> getParts() throws ServletException {
+   throw new ServletException("Batched requests can't be multipart");
+  }
+
+  @Override
+  public Part getPart(String name) throws ServletException {
+   throw new ServletException("Batched requests can't be multipart");
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+   synchronized (attributes) {
+    return attributes.get(name);
+   }
+  }
+
+  @Override
+  public Enumeration<String> getAttributeNames() {
+   synchronized (attributes) {
+    return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+   }
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+   synchronized (attributes) {
+    if (value == null) {
+     attributes.remove(name);
+    } else {
+     attributes.put(name, value);
+    }
+   }
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+   synchronized (attributes) {
+    attributes.remove(name);
+   }
+  }
+
+  @Override
+  public String getProtocol() {
+   return protocol;
+  }
+
+  @Override
+  public String getScheme() {
+   return scheme;
+  }
+
+  @Override
+  public String getServerName() {
+   return serverName;
+  }
+
+  @Override
+  public int getServerPort() {
+   return serverPort;
+  }
+
+  @Override
+  public boolean isSecure() {
+   return secure;
+  }
+
+  @Override
+  public String getRemoteAddr() {
+   return remoteAddr;
+  }
+
+  @Override
+  public String getRemoteHost() {
+   return remoteHost;
+  }
+
+  @Override
+  public int getRemotePort() {
+   return remotePort;
+  }
+
+  @Override
+  public String getLocalName() {
+   return localName;
+  }
+
+  @Override
+  public String getLocalAddr() {
+   return localAddr;
+  }
+
+  @Override
+  public int getLocalPort() {
+   return localPort;
+  }
+
+  @Override
+  public Locale getLocale() {
+   return locales.isEmpty() ? Locale.getDefault() : locales.get(0);
+  }
+
+  @Override
+  public Enumeration<Locale> getLocales() {
+   return Collections.enumeration(locales.isEmpty() ? Collections.singletonList(Locale.getDefault()) : locales);
+  }
+
+  @Override
+  public ServletContext getServletContext() {
+   return servletContext;
+  }
+
+  @Override
+  public RequestDispatcher getRequestDispatcher(String path) {
+   if (!path.startsWith("/")) {
+    path = item.path.substring(0, item.path.lastIndexOf('/') + 1) + path;
+   }
+   return servletContext.getRequestDispatcher(path);
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public String getRealPath(String path) {
+   return servletContext.getRealPath(path);
+  }
+
+  @Override
+  public DispatcherType getDispatcherType() {
+   return DispatcherType.REQUEST;
+  }
+
+  @Override
+  public String getAuthType() {
+   return authType;
+  }
+
+  @Override
+  public String getRemoteUser() {
+   return remoteUser;
+  }
+
+  @Override
+  public Principal getUserPrincipal() {
+   return userPrincipal;
+  }
+
+  @Override
+  public synchronized boolean isUserInRole(String role) {
+   return batchRequest != null && batchRequest.isUserInRole(role);
+  }
+
+  @Override
+  public boolean authenticate(HttpServletResponse response) throws ServletException {
+   throw new ServletException("Batched requests can't authenticate");
+  }
+
+  @Override
+  public void login(String username, String password) throws ServletException {
+   throw new ServletException("Batched requests can't log in");
+  }
+
+  @Override
+  public void logout() throws ServletException {
+   throw new ServletException("Batched requests can't log out");
+  }
+
+  @Override
+  public HttpSession getSession() {
+   return getSession(true);
+  }
+
+  @Override
+  public HttpSession getSession(boolean create) {
+   if (session == null && create) {
+    throw new IllegalStateException("Batched requests can't create a session");
+   }
+   return session;
+  }
+
+  @Override
+  public String changeSessionId() {
+   throw new IllegalStateException("Batched requests can't change the session id");
+  }
+
+  @Override
+  public String getRequestedSessionId() {
+   return requestedSessionId;
+  }
+
+  @Override
+  public boolean isRequestedSessionIdValid() {
+   return requestedSessionIdValid;
+  }
+
+  @Override
+  public boolean isRequestedSessionIdFromCookie() {
+   return requestedSessionIdFromCookie;
+  }
+
+  @Override
+  public boolean isRequestedSessionIdFromURL() {
+   return requestedSessionIdFromURL;
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public boolean isRequestedSessionIdFromUrl() {
+   return requestedSessionIdFromURL;
+  }
+
+  @Override
+  public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) throws ServletException {
+   throw new ServletException("Batched requests can't be upgraded");
+  }
+
+  @Override
+  public boolean isAsyncSupported() {
+   return false;
+  }
+
+  @Override
+  public boolean isAsyncStarted() {
+   return false;
+  }
+
+  @Override
+  public AsyncContext getAsyncContext() {
+   throw new IllegalStateException("Batched requests can't be async");
+  }
+
+  @Override
+  public AsyncContext startAsync() {
+   throw new IllegalStateException("Batched requests can't be async");
+  }
+
+  @Override
+  public AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+   throw new IllegalStateException("Batched requests can't be async");
+  }
+ }
+
+ /**
+  * Captures the response Spring generates for an item (nothing is
+  * passed through to the batch's response, which like the batch request
+  * it doesn't wrap).
+  */
+ static class SubResponse implements HttpServletResponse {
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+  // (header names are case insensitive)
+  private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+  private int status = HttpServletResponse.SC_OK;
+  private String contentType = null;
+  private String characterEncoding = "UTF-8";
+  private Locale locale = Locale.getDefault();
+  private ServletOutputStream outputStream = null;
+  private PrintWriter writer = null;
+  private boolean committed = false;
+
+  synchronized void complete(Item item) {
+   if (writer != null) {
+    writer.flush();
+   }
+   item.succeed(status, contentType, headers, body.toByteArray());
+  }
+
+  @Override
+  public synchronized ServletOutputStream getOutputStream() {
+   if (writer != null) {
+    throw new IllegalStateException("getWriter() has already been called");
+   }
+   if (outputStream == null) {
+    outputStream = new ServletOutputStream() {
+     @Override
+     public void write(int b) {
+      body.write(b);
+     }
+
+     @Override
+     public void write(byte[] b, int off, int len) {
+      body.write(b, off, len);
+     }
+
+     @Override
+     public boolean isReady() {
+      return true;
+     }
+
+     @Override
+     public void setWriteListener(WriteListener listener) {
+      throw new IllegalStateException("Batched responses are written synchronously");
+     }
+    };
+   }
+   return outputStream;
+  }
+
+  @Override
+  public synchronized PrintWriter getWriter() throws UnsupportedEncodingException {
+   if (outputStream != null) {
+    throw new IllegalStateException("getOutputStream() has already been called");
+   }
+   if (writer == null) {
+    writer = new PrintWriter(new OutputStreamWriter(body, characterEncoding));
+   }
+   return writer;
+  }
+
+  @Override
+  public void setStatus(int sc) {
+   status = sc;
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public void setStatus(int sc, String msg) {
+   status = sc;
+  }
+
+  @Override
+  public int getStatus() {
+   return status;
+  }
+
+  @Override
+  public void sendError(int sc) {
+   sendError(sc, null);
+  }
+
+  @Override
+  public synchronized void sendError(int sc, String msg) {
+   status = sc;
+   body.reset();
+   if (msg != null) {
+    try {
+     body.write(msg.getBytes("UTF-8"));
+    } catch (IOException e) {
+     // (can't happen writing to memory)
+    }
+   }
+   committed = true;
+  }
+
+  @Override
+  public void sendRedirect(String location) {
+   status = HttpServletResponse.SC_FOUND;
+   setHeader("Location", location);
+   committed = true;
+  }
+
+  @Override
+  public boolean containsHeader(String name) {
+   return headers.containsKey(name);
+  }
+
+  @Override
+  public String getHeader(String name) {
+   List<String> values = headers.get(name);
+   return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  @Override
+  public List<String> getHeaders(String name) {
+   List<String> values = headers.get(name);
+   return values == null ? Collections.<String>emptyList() : values;
+  }
+
+  @Override
+  public List<String> getHeaderNames() {
+   return new ArrayList<String>(headers.keySet());
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+   if ("Content-Type".equalsIgnoreCase(name)) {
+    setContentType(value);
+    return;
+   }
+   List<String> values = new ArrayList<String>(1);
+   values.add(value);
+   headers.put(name, values);
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+   List<String> values = headers.get(name);
+   if (values == null) {
+    setHeader(name, value);
+   } else {
+    values.add(value);
+   }
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+   setHeader(name, String.valueOf(value));
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+   addHeader(name, String.valueOf(value));
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+   setHeader(name, formatDate(date));
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+   addHeader(name, formatDate(date));
+  }
+
+  private static String formatDate(long date) {
+   SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+   format.setTimeZone(TimeZone.getTimeZone("GMT"));
+   return format.format(new Date(date));
+  }
+
+  // (the session id's in a cookie, if there is one)
+  @Override
+  public String encodeURL(String url) {
+   return url;
+  }
+
+  @Override
+  public String encodeRedirectURL(String url) {
+   return url;
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public String encodeUrl(String url) {
+   return url;
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public String encodeRedirectUrl(String url) {
+   return url;
+  }
+
+  @Override
+  public void addCookie(Cookie cookie) {
+   addHeader("Set-Cookie", cookie.getName() + "=" + cookie.getValue());
+  }
+
+  @Override
+  public void setContentType(String type) {
+   contentType = type;
+   if (type != null) {
+    int charset = type.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+    if (charset != -1) {
+     characterEncoding = type.substring(charset + 8).trim();
+    }
+   }
+  }
+
+  @Override
+  public String getContentType() {
+   return contentType;
+  }
+
+  @Override
+  public void setCharacterEncoding(String encoding) {
+   characterEncoding = encoding;
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+   return characterEncoding;
+  }
+
+  @Override
+  public void setContentLength(int len) {
+   // (the length's that of what's captured)
+  }
+
+  @Override
+  public void setContentLengthLong(long len) {
+  }
+
+  @Override
+  public void setLocale(Locale locale) {
+   this.locale = locale;
+  }
+
+  @Override
+  public Locale getLocale() {
+   return locale;
+  }
+
+  @Override
+  public void setBufferSize(int size) {
+  }
+
+  @Override
+  public int getBufferSize() {
+   return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public synchronized void flushBuffer() {
+   if (writer != null) {
+    writer.flush();
+   }
+   committed = true;
+  }
+
+  @Override
+  public boolean isCommitted() {
+   return committed;
+  }
+
+  @Override
+  public synchronized void reset() {
+   if (committed) {
+    throw new IllegalStateException("Response already committed");
+   }
+   resetBuffer();
+   status = HttpServletResponse.SC_OK;
+   headers.clear();
+   contentType = null;
+  }
+
+  @Override
+  public synchronized void resetBuffer() {
+   if (committed) {
+    throw new IllegalStateException("Response already committed");
+   }
+   if (writer != null) {
+    writer.flush();
+   }
+   body.reset();
+  }
+ }
+}
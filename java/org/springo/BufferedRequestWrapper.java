@@ -0,0 +1,588 @@
+package org.springo;
+
+/*
+ * BufferedRequestWrapper.java
+ *
+ * This class wraps a servlet request so the javascript interceptor can
+ * modify it (its body, parameters and headers) before it's passed on to
+ * Spring, e.g. by the modifyrequestbody, modifyrequestparams and
+ * modifyservletrequest middleware.
+ *
+ * It's meant to cost next to nothing on requests that don't use it:
+ *
+ *   - the body is only read (once, into bytes) when first asked for (by
+ *     getBody(), getBodyBytes() etc.), and getInputStream()/getReader()
+ *     then replay those bytes without copying them.  Until then they pass
+ *     the container's own stream straight through, so a servlet reading a
+ *     large upload isn't made to buffer it.
+ *   - the body's only buffered up to maxBodyBytes (the filter's
+ *     "max-request-body-bytes" init-param), a longer one failing with an
+ *     IOException rather than filling the heap.
+ *   - parameter and header overrides are kept in small maps consulted
+ *     before the wrapped request's, rather than copying its parameters
+ *     or headers.
+ *
+ * Once the body of a url encoded form has been read here the container
+ * can't parse it for the parameters any more, so from then on they're
+ * parsed from the buffered body (and the query string) instead.  Multipart
+ * requests aren't wrapped by the filter at all, their parts being the
+ * container's to parse.
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+public class BufferedRequestWrapper extends HttpServletRequestWrapper {
+
+ // The body (null until it's read), only the first bodyLength bytes of
+ // which are the body (e.g. a pooled buffer from NonBlockingBodyReader):
+ private byte[] body = null;
+ private int bodyLength = 0;
+
+ // The start of a body too long for getBodyBytes(maxBytes), the rest of
+ // which is still to be read from the wrapped request:
+ private byte[] head = null;
+
+ // A value handed off to Spring in place of the body (see SpringoHandoff),
+ // only serialized to be the body if something reads it after all:
+ private Object bodyValue = null;
+
+ // The parameters parsed from a url encoded form's buffered body (null
+ // until they're needed):
+ private Map<String, String[]> formParameters = null;
+
+ // The overrides (null until something's overridden):
+ private Map<String, String[]> parameterOverrides = null;
+ private Map<String, String> headerOverrides = null;
+
+ // The most of the body that's read into memory:
+ private final int maxBodyBytes;
+
+ // Has the container's stream been handed out as is (so the body can't
+ // be buffered any more)?
+ private boolean streamed = false;
+
+ /**
+  * Wrap a request whose body hasn't been read (it's read when first
+  * asked for), buffering bodies of up to the default max.
+  */
+ public BufferedRequestWrapper(HttpServletRequest request) {
+  this(request, NonBlockingBodyReader.DEFAULT_MAX_BODY_BYTES);
+ }
+
+ /**
+  * Wrap a request whose body hasn't been read (it's read when first
+  * asked for).
+  *
+  * @param maxBodyBytes the longest body that's buffered
+  */
+ public BufferedRequestWrapper(HttpServletRequest request, int maxBodyBytes) {
+  super(request);
+  this.maxBodyBytes = maxBodyBytes;
+ }
+
+ /**
+  * Wrap a request whose body has already been read (e.g. by
+  * NonBlockingBodyReader).
+  *
+  * @param body the buffer holding the body (not copied)
+  * @param length the length of the body in the buffer
+  */
+ public BufferedRequestWrapper(HttpServletRequest request, byte[] body, int length) {
+  super(request);
+  this.body = body;
+  this.bodyLength = length;
+  this.maxBodyBytes = NonBlockingBodyReader.DEFAULT_MAX_BODY_BYTES;
+ }
+
+ private void readBody() throws IOException {
+  if (bodyValue != null) {
+   serializeBodyValue();
+  }
+  if (body != null) {
+   return;
+  }
+  if (streamed) {
+   throw new IllegalStateException("The body's already been read with getInputStream() or getReader()");
+  }
+  int contentLength = super.getContentLength();
+  if (contentLength > maxBodyBytes) {
+   throw tooLarge();
+  }
+  ByteArrayOutputStream out = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 1024) {
+   // (hand over the buffer rather than copying it)
+   @Override
+   public synchronized byte[] toByteArray() {
+    return buf;
+   }
+  };
+  if (head != null) {
+   out.write(head);
+   head = null;
+  }
+  InputStream in = super.getInputStream();
+  byte[] chunk = new byte[8192];
+  int read;
+  while ((read = in.read(chunk)) != -1) {
+   out.write(chunk, 0, read);
+   if (out.size() > maxBodyBytes) {
+    throw tooLarge();
+   }
+  }
+  bodyLength = out.size();
+  body = out.toByteArray();
+ }
+
+ private IOException tooLarge() {
+  return new IOException("The request body is too large to buffer (over " + maxBodyBytes + " bytes)");
+ }
+
+ /**
+  * Get the body as a String (in the request's character encoding).
+  */
+ public String getBody() throws IOException {
+  readBody();
+  return new String(body, 0, bodyLength, getCharacterEncodingOrDefault());
+ }
+
+ /**
+  * Get (a copy of) the body's bytes.
+  */
+ public byte[] getBodyBytes() throws IOException {
+  readBody();
+  byte[] copy = new byte[bodyLength];
+  System.arraycopy(body, 0, copy, 0, bodyLength);
+  return copy;
+ }
+
+ /**
+  * Get (a copy of) the body's bytes if it's no longer than maxBytes, null
+  * if it's longer.  A body not read yet is only read as far as maxBytes + 1
+  * bytes, the rest of a longer one being left for getInputStream() to
+  * stream (after the bytes read here) rather than buffered.  (Also null
+  * if the body's already been streamed.)
+  */
+ public byte[] getBodyBytes(int maxBytes) throws IOException {
+  if (head != null || streamed) {
+   return null;
+  }
+  if (body != null || bodyValue != null) {
+   return getContentLength() <= maxBytes ? getBodyBytes() : null;
+  }
+  int contentLength = super.getContentLength();
+  if (contentLength > maxBytes) {
+   return null;
+  }
+  byte[] bytes = new byte[(contentLength >= 0 ? contentLength : maxBytes) + 1];
+  InputStream in = super.getInputStream();
+  int length = 0;
+  int read;
+  while (length < bytes.length && (read = in.read(bytes, length, bytes.length - length)) != -1) {
+   length += read;
+  }
+  if (length > maxBytes) {
+   head = bytes;
+   return null;
+  }
+  body = bytes;
+  bodyLength = length;
+  return getBodyBytes();
+ }
+
+ /**
+  * Is the request's body a form (url encoded or multipart), which the
+  * container parses for its parameters?
+  */
+ public static boolean hasFormBody(HttpServletRequest request) {
+  String contentType = request.getContentType();
+  if (contentType == null) {
+   return false;
+  }
+  contentType = contentType.toLowerCase(Locale.ENGLISH);
+  return contentType.startsWith("application/x-www-form-urlencoded") || contentType.startsWith("multipart/");
+ }
+
+ /**
+  * Is the request's body multipart (e.g. a file upload)?
+  */
+ public static boolean hasMultipartBody(HttpServletRequest request) {
+  String contentType = request.getContentType();
+  return contentType != null && contentType.toLowerCase(Locale.ENGLISH).startsWith("multipart/");
+ }
+
+ /**
+  * Read the body without copying it (e.g. to parse it as JSON).
+  */
+ public InputStream getBodyInputStream() throws IOException {
+  readBody();
+  return new ByteArrayInputStream(body, 0, bodyLength);
+ }
+
+ public void setBody(String body) throws UnsupportedEncodingException {
+  setBodyBytes(body.getBytes(getCharacterEncodingOrDefault()));
+ }
+
+ public void setBodyBytes(byte[] body) {
+  this.body = body;
+  this.bodyLength = body.length;
+  this.bodyValue = null;
+  this.head = null;
+  this.formParameters = null;
+ }
+
+ /**
+  * Set the body to a value handed off to Spring (see SpringoHandoff):
+  * java Maps, Lists, Strings, numbers and booleans, only serialized as JSON
+  * if the body's read after all (e.g. by a controller Springo can't hand
+  * the value to).
+  */
+ public void setBodyValue(Object value) {
+  this.bodyValue = value;
+ }
+
+ /**
+  * The value handed off as the body (null if there isn't one, or it's
+  * been serialized or replaced since).
+  */
+ public Object getBodyValue() {
+  return bodyValue;
+ }
+
+ private void serializeBodyValue() {
+  try {
+   setBodyBytes(JsonCodec.toBytes(bodyValue, 0));
+  } catch (IOException e) {
+   throw new IllegalStateException("Could not serialize the handed off body", e);
+  } catch (JsonCodec.JsonException e) {
+   throw new IllegalStateException("Could not serialize the handed off body", e);
+  }
+ }
+
+ /**
+  * Override a parameter (a null value removes it).
+  */
+ public void setParameter(String name, String value) {
+  setParameterValues(name, value == null ? null : new String[] { value });
+ }
+
+ public void setParameterValues(String name, String[] values) {
+  if (parameterOverrides == null) {
+   parameterOverrides = new LinkedHashMap<String, String[]>(4);
+  }
+  parameterOverrides.put(name, values);
+ }
+
+ /**
+  * Override a header (a null value removes it).
+  */
+ public void setHeader(String name, String value) {
+  if (headerOverrides == null) {
+   headerOverrides = new LinkedHashMap<String, String>(4);
+  }
+  headerOverrides.put(name.toLowerCase(Locale.ENGLISH), value);
+ }
+
+ // The parameters (before the overrides):  the container's, unless the
+ // body's a url encoded form that's been read here.
+ private Map<String, String[]> getRequestParameterMap() {
+  if (body == null || !hasFormBody(this) || hasMultipartBody(this)) {
+   return super.getParameterMap();
+  }
+  if (formParameters == null) {
+   Map<String, List<String>> parsed = new LinkedHashMap<String, List<String>>();
+   try {
+    String encoding = getCharacterEncodingOrDefault();
+    parseForm(getQueryString(), encoding, parsed);
+    parseForm(new String(body, 0, bodyLength, "ISO-8859-1"), encoding, parsed);
+   } catch (UnsupportedEncodingException e) {
+    throw new IllegalStateException(e);
+   }
+   Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+   for (Map.Entry<String, List<String>> entry : parsed.entrySet()) {
+    parameters.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+   }
+   formParameters = Collections.unmodifiableMap(parameters);
+  }
+  return formParameters;
+ }
+
+ // (the pairs are percent encoded ascii, decoded in the request's encoding)
+ private static void parseForm(String form, String encoding, Map<String, List<String>> parsed)
+  throws UnsupportedEncodingException {
+  if (form == null || form.length() == 0) {
+   return;
+  }
+  for (String pair : form.split("&")) {
+   if (pair.length() == 0) {
+    continue;
+   }
+   int equals = pair.indexOf('=');
+   String name;
+   String value;
+   try {
+    name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), encoding);
+    value = (equals < 0) ? "" : URLDecoder.decode(pair.substring(equals + 1), encoding);
+   } catch (IllegalArgumentException e) {
+    continue; // (a malformed escape, skipped as the container would)
+   }
+   List<String> values = parsed.get(name);
+   if (values == null) {
+    values = new ArrayList<String>(1);
+    parsed.put(name, values);
+   }
+   values.add(value);
+  }
+ }
+
+ @Override
+ public String getParameter(String name) {
+  if (parameterOverrides != null && parameterOverrides.containsKey(name)) {
+   String[] values = parameterOverrides.get(name);
+   return (values == null || values.length == 0) ? null : values[0];
+  }
+  if (body == null) {
+   return super.getParameter(name);
+  }
+  String[] values = getRequestParameterMap().get(name);
+  return (values == null || values.length == 0) ? null : values[0];
+ }
+
+ @Override
+ public String[] getParameterValues(String name) {
+  if (parameterOverrides != null && parameterOverrides.containsKey(name)) {
+   return parameterOverrides.get(name);
+  }
+  if (body == null) {
+   return super.getParameterValues(name);
+  }
+  return getRequestParameterMap().get(name);
+ }
+
+ @Override
+ public Enumeration<String> getParameterNames() {
+  if (parameterOverrides == null && body == null) {
+   return super.getParameterNames();
+  }
+  return Collections.enumeration(getParameterMap().keySet());
+ }
+
+ @Override
+ public Map<String, String[]> getParameterMap() {
+  if (parameterOverrides == null) {
+   return getRequestParameterMap();
+  }
+  // (only merged when both the parameters are overridden and the whole map's asked for)
+  Map<String, String[]> merged = new LinkedHashMap<String, String[]>(getRequestParameterMap());
+  for (Map.Entry<String, String[]> override : parameterOverrides.entrySet()) {
+   if (override.getValue() == null) {
+    merged.remove(override.getKey());
+   } else {
+    merged.put(override.getKey(), override.getValue());
+   }
+  }
+  return Collections.unmodifiableMap(merged);
+ }
+
+ @Override
+ public String getHeader(String name) {
+  String lower = name.toLowerCase(Locale.ENGLISH);
+  if (headerOverrides != null && headerOverrides.containsKey(lower)) {
+   return headerOverrides.get(lower);
+  }
+  return super.getHeader(name);
+ }
+
+ @Override
+ public Enumeration<String> getHeaders(String name) {
+  String lower = name.toLowerCase(Locale.ENGLISH);
+  if (headerOverrides != null && headerOverrides.containsKey(lower)) {
+   String value = headerOverrides.get(lower);
+   return Collections.enumeration(value == null ? Collections.<String>emptySet() : Collections.singleton(value));
+  }
+  return super.getHeaders(name);
+ }
+
+ @Override
+ public Enumeration<String> getHeaderNames() {
+  if (headerOverrides == null) {
+   return super.getHeaderNames();
+  }
+  Set<String> names = new LinkedHashSet<String>();
+  for (Enumeration<String> e = super.getHeaderNames(); e != null && e.hasMoreElements();) {
+   String name = e.nextElement();
+   if (!headerOverrides.containsKey(name.toLowerCase(Locale.ENGLISH))) {
+    names.add(name);
+   }
+  }
+  for (Map.Entry<String, String> override : headerOverrides.entrySet()) {
+   if (override.getValue() != null) {
+    names.add(override.getKey());
+   }
+  }
+  return Collections.enumeration(names);
+ }
+
+ @Override
+ public int getIntHeader(String name) {
+  if (headerOverrides != null && headerOverrides.containsKey(name.toLowerCase(Locale.ENGLISH))) {
+   String value = getHeader(name);
+   return value == null ? -1 : Integer.parseInt(value);
+  }
+  return super.getIntHeader(name);
+ }
+
+ @Override
+ public long getDateHeader(String name) {
+  if (headerOverrides != null && headerOverrides.containsKey(name.toLowerCase(Locale.ENGLISH))) {
+   String value = getHeader(name);
+   if (value == null) {
+    return -1;
+   }
+   try {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.parse(value).getTime();
+   } catch (Exception e) {
+    throw new IllegalArgumentException("Not a date header: " + name + ": " + value);
+   }
+  }
+  return super.getDateHeader(name);
+ }
+
+ @Override
+ public int getContentLength() {
+  if (bodyValue != null) {
+   serializeBodyValue();
+  }
+  return body != null ? bodyLength : super.getContentLength();
+ }
+
+ @Override
+ public long getContentLengthLong() {
+  if (bodyValue != null) {
+   serializeBodyValue();
+  }
+  return body != null ? bodyLength : super.getContentLengthLong();
+ }
+
+ @Override
+ public ServletInputStream getInputStream() throws IOException {
+  if (head != null && bodyValue == null) {
+   // (a body too long to buffer for getBodyBytes(maxBytes))
+   final InputStream in = new SequenceInputStream(new ByteArrayInputStream(head), super.getInputStream());
+   head = null;
+   return new ServletInputStream() {
+    private boolean finished = false;
+
+    @Override
+    public int read() throws IOException {
+     int b = in.read();
+     finished = (b == -1);
+     return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+     int read = in.read(b, off, len);
+     finished = (read == -1);
+     return read;
+    }
+
+    @Override
+    public boolean isFinished() {
+     return finished;
+    }
+
+    @Override
+    public boolean isReady() {
+     return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener listener) {
+     throw new IllegalStateException("The body's read synchronously");
+    }
+   };
+  }
+  if (body == null && bodyValue == null) {
+   // (nothing's asked for the body, so it's not buffered)
+   streamed = true;
+   return super.getInputStream();
+  }
+  readBody();
+  final ByteArrayInputStream in = new ByteArrayInputStream(body, 0, bodyLength);
+  return new ServletInputStream() {
+   @Override
+   public int read() {
+    return in.read();
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) {
+    return in.read(b, off, len);
+   }
+
+   @Override
+   public int available() {
+    return in.available();
+   }
+
+   @Override
+   public boolean isFinished() {
+    return in.available() == 0;
+   }
+
+   @Override
+   public boolean isReady() {
+    return true;
+   }
+
+   @Override
+   public void setReadListener(ReadListener listener) {
+    try {
+     listener.onDataAvailable();
+     listener.onAllDataRead();
+    } catch (IOException e) {
+     listener.onError(e);
+    }
+   }
+  };
+ }
+
+ @Override
+ public BufferedReader getReader() throws IOException {
+  if (body == null && bodyValue == null && head == null) {
+   streamed = true;
+   return super.getReader();
+  }
+  return new BufferedReader(new InputStreamReader(getInputStream(), getCharacterEncodingOrDefault()));
+ }
+
+ private String getCharacterEncodingOrDefault() {
+  String encoding = getCharacterEncoding();
+  return encoding != null ? encoding : "UTF-8";
+ }
+}
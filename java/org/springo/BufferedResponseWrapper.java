@@ -13,9 +13,11 @@ package org.springo;
  * methods are getting called, e.g. during request processing in Spring).
  */
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.CharArrayWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.Locale;
@@ -25,11 +27,9 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
-import org.apache.log4j.Logger;
-
 public class BufferedResponseWrapper extends HttpServletResponseWrapper {
 
- private static Logger log = Logger.getLogger(BufferedResponseWrapper.class);
+ private static SpringoLog log = SpringoLog.getLogger(BufferedResponseWrapper.class);
 
  // Are we buffering the response?
  // (otherwise let things through to the wrapped ServletResponse)
@@ -39,7 +39,7 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
  private String overriddenHttpStatusMsg = "";
 
  // When rendering JSPs, etc. Spring makes use of:
- ByteArrayOutputStream bufferedStream = new ByteArrayOutputStream();
+ BodyBuffer bufferedStream = new BodyBuffer();
 
  // But Velocity does character writes:
  CharArrayWriter bufferedChars = null;
@@ -158,6 +158,35 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
   out.print(body);
  }
 
+ /**
+  * Get the buffered response body as a stream of (UTF-8) bytes.
+  *
+  * Unlike getBody() this doesn't copy the buffered bytes or decode them
+  * into a String (e.g. the "springojson" module parses JSON responses
+  * straight from this stream).
+  *
+  * @return
+  */
+ public InputStream getBodyInputStream() {
+  return bufferedStream.toInputStream();
+ }
+
+ /**
+  * Set the response body to be returned to the client as bytes.
+  *
+  * This is the byte oriented version of setBody() (see above).
+  * @param body
+  * @throws IOException
+  */
+ public void setBodyBytes(byte[] body) throws IOException {
+  // Clear what used to be in the buffer.
+  bufferedStream.reset();
+  if (bufferedChars != null) {
+   bufferedChars.reset();
+  }
+  getOutputStream().write(body);
+ }
+
  /**
   * Flush the buffer to the output stream.
   *
@@ -363,7 +392,18 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
     s.append("'");
    }
 
-   log.debug(s);
+   log.debug(s.toString());
+  }
+ }
+
+ /**
+  * The buffer for the response body, which lets the buffered bytes
+  * be read back without copying them.
+  */
+ static class BodyBuffer extends ByteArrayOutputStream {
+
+  InputStream toInputStream() {
+   return new ByteArrayInputStream(buf, 0, count);
   }
  }
 
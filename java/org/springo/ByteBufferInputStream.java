@@ -0,0 +1,51 @@
+package org.springo;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream reading (a duplicate of) a ByteBuffer, e.g. a module
+ * in a memory mapped module archive (see PackedRepository).
+ */
+class ByteBufferInputStream extends InputStream {
+
+ private final ByteBuffer buffer;
+
+ /**
+  * @param buffer the bytes to read (from its position to its limit).  The
+  *   buffer itself isn't changed.
+  */
+ ByteBufferInputStream(ByteBuffer buffer) {
+  this.buffer = buffer.duplicate();
+ }
+
+ @Override
+ public int read() {
+  return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+ }
+
+ @Override
+ public int read(byte[] b, int off, int len) {
+  if (len == 0) {
+   return 0;
+  }
+  if (!buffer.hasRemaining()) {
+   return -1;
+  }
+  len = Math.min(len, buffer.remaining());
+  buffer.get(b, off, len);
+  return len;
+ }
+
+ @Override
+ public long skip(long n) {
+  int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+  buffer.position(buffer.position() + skipped);
+  return skipped;
+ }
+
+ @Override
+ public int available() {
+  return buffer.remaining();
+ }
+}
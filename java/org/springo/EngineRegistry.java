@@ -0,0 +1,539 @@
+package org.springo;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.ringojs.engine.RhinoEngine;
+import org.ringojs.util.StringUtils;
+
+/**
+ * Shares RhinoEngines between the RingoJsgiFilters and RingoModuleBridges
+ * configured with the same ringo home, module path and engine settings,
+ * rather than each building (and holding the compiled modules of) its
+ * own.
+ *
+ * Engines are reference counted:  each filter/bridge acquire()s the
+ * engine for its Key once and release()s it when it's done with it (the
+ * engine is dropped when the last holder releases it).
+ *
+ * When new javascript is deployed each holder calls refresh() with the
+ * "deployment stamp" (the modification time of the file/dir watched for
+ * deployments) and the engine is rebuilt once, by whichever holder gets
+ * there first, the others getting the rebuilt engine.
+ *
+ * Filters also register here by filter-name, so a RingoModuleBridge can
+ * borrow the engine of a particular filter (see getFilter) instead of
+ * whichever filter initialized last.
+ *
+ * Every rebuild (or release) of an engine bumps the registry's
+ * generation, so holders caching an engine can cheaply check whether
+ * they need to pick up the new one (see getGeneration).  The engines
+ * replaced are "retired" and watched with weak references:  one that
+ * hasn't been garbage collected within the retired engine deadline is
+ * reported as leaked (old engines hold all the modules and classes
+ * generated for the javascript so every deploy would grow the heap),
+ * along with which registered EngineHolders still reference it.
+ */
+public class EngineRegistry {
+
+ // The stamp used by holders that don't watch for deployments:
+ public static final long NO_STAMP = -1;
+
+ // How long (ms) retired engines have to be garbage collected by, by default:
+ public static final long DEFAULT_RETIRED_ENGINE_DEADLINE = 5 * 60 * 1000;
+
+ private static Logger log = Logger.getLogger(EngineRegistry.class);
+
+ /**
+  * Builds the engine for a Key (when it's first acquired and when it's
+  * rebuilt for a new deployment).
+  */
+ public interface EngineFactory {
+  RhinoEngine createEngine() throws Exception;
+ }
+
+ private static final Map<Key, SharedEngine> engines = new LinkedHashMap<Key, SharedEngine>();
+
+ private static final Map<String, RingoJsgiFilter> filters = new LinkedHashMap<String, RingoJsgiFilter>();
+ private static RingoJsgiFilter lastFilter = null;
+
+ // Bumped whenever an engine is rebuilt or dropped:
+ private static final AtomicLong generation = new AtomicLong();
+
+ // The retired engines not yet garbage collected (guarded by itself):
+ private static final List<RetiredEngine> retired = new ArrayList<RetiredEngine>();
+ private static final ReferenceQueue<RhinoEngine> collected = new ReferenceQueue<RhinoEngine>();
+ private static final AtomicLong retiredCount = new AtomicLong();
+ private static final AtomicLong reclaimedCount = new AtomicLong();
+ private static final AtomicLong leakedCount = new AtomicLong();
+ private static volatile long retiredEngineDeadline = DEFAULT_RETIRED_ENGINE_DEADLINE;
+ private static volatile String leakHeapDumpDir = null;
+ private static Timer retiredEngineTimer = null; // (guarded by retired)
+
+ private static final Set<EngineHolder> holders =
+  Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<EngineHolder, Boolean>()));
+
+ /**
+  * Something that caches an engine (e.g. the filter and the module
+  * bridge), registered with addHolder so leaked engines can be traced
+  * back to what still references them.
+  */
+ public interface EngineHolder {
+  boolean holdsEngine(RhinoEngine engine);
+ }
+
+ private EngineRegistry() {}
+
+ /**
+  * Get (building if need be) the engine for a key, adding a reference
+  * to it.  Each acquire() should be matched with a release().
+  *
+  * @param stamp the holder's deployment stamp (or NO_STAMP)
+  */
+ public static RhinoEngine acquire(Key key, long stamp, EngineFactory factory) throws Exception {
+  SharedEngine shared;
+  synchronized (engines) {
+   shared = engines.get(key);
+   if (shared == null) {
+    shared = new SharedEngine(key);
+    engines.put(key, shared);
+   }
+   shared.refCount++;
+  }
+  try {
+   return shared.get(stamp, factory);
+  } catch (Exception e) {
+   release(key);
+   throw e;
+  }
+ }
+
+ /**
+  * Get the engine for a key (already acquired) for a deployment,
+  * rebuilding it if it was built for an older deployment.
+  */
+ public static RhinoEngine refresh(Key key, long stamp, EngineFactory factory) throws Exception {
+  SharedEngine shared;
+  synchronized (engines) {
+   shared = engines.get(key);
+  }
+  if (shared == null) {
+   throw new IllegalStateException("Refreshing an engine that wasn't acquired: " + key);
+  }
+  return shared.get(stamp, factory);
+ }
+
+ /**
+  * Remove a reference to the engine for a key (dropping it when there
+  * are no references left).
+  */
+ public static void release(Key key) {
+  SharedEngine dropped = null;
+  synchronized (engines) {
+   SharedEngine shared = engines.get(key);
+   if (shared != null && --shared.refCount <= 0) {
+    engines.remove(key);
+    dropped = shared;
+   }
+  }
+  if (dropped != null) {
+   log.info("Released the RhinoEngine for " + key);
+   RhinoEngine engine = dropped.engine;
+   if (engine != null) {
+    generation.incrementAndGet();
+    retire(engine, key + " (released)");
+   }
+  }
+ }
+
+ /**
+  * The registry's generation, which changes whenever an engine is
+  * rebuilt (e.g. for a deployment) or dropped.  Holders caching an
+  * engine compare this with the generation they cached it at.
+  */
+ public static long getGeneration() {
+  return generation.get();
+ }
+
+ /**
+  * Get the current engine for a key (null if none).
+  */
+ public static RhinoEngine getEngine(Key key) {
+  synchronized (engines) {
+   SharedEngine shared = engines.get(key);
+   return shared == null ? null : shared.engine;
+  }
+ }
+
+ /**
+  * Report the engines and their footprints, a map for each with:
+  *
+  *   key - the engine's configuration
+  *   references - the number of filters/bridges holding it
+  *   builds - how many times it's been (re)built
+  *   stamp - the deployment it was built for
+  *   builtAt - when it was last built
+  *   buildMillis - how long it took to build
+  *   buildAllocatedBytes - the heap allocated building it (an upper
+  *     bound on its footprint when first built, before modules are
+  *     required lazily)
+  */
+ public static List<Map<String, Object>> getFootprints() {
+  List<Map<String, Object>> footprints = new ArrayList<Map<String, Object>>();
+  synchronized (engines) {
+   for (SharedEngine shared : engines.values()) {
+    Map<String, Object> footprint = new LinkedHashMap<String, Object>();
+    footprint.put("key", shared.key.toString());
+    footprint.put("references", shared.refCount);
+    footprint.put("builds", shared.builds);
+    footprint.put("stamp", shared.stamp);
+    footprint.put("builtAt", shared.builtAt);
+    footprint.put("buildMillis", shared.buildMillis);
+    footprint.put("buildAllocatedBytes", shared.buildAllocatedBytes);
+    footprints.add(footprint);
+   }
+  }
+  return footprints;
+ }
+
+ /**
+  * Register something caching engines (held weakly) for the leaked
+  * engine reports.
+  */
+ public static void addHolder(EngineHolder holder) {
+  holders.add(holder);
+ }
+
+ public static void removeHolder(EngineHolder holder) {
+  holders.remove(holder);
+ }
+
+ /**
+  * How long (ms) after being retired an engine should have been garbage
+  * collected by before it's reported as leaked (the same for all the
+  * filters, see the "springo.retired-engine-deadline" context-param).
+  */
+ public static void setRetiredEngineDeadline(long millis) {
+  retiredEngineDeadline = millis;
+ }
+
+ public static long getRetiredEngineDeadline() {
+  return retiredEngineDeadline;
+ }
+
+ /**
+  * Write a heap dump into this directory when a leaked engine is found
+  * (null for none), to see the full path of references keeping it (see
+  * the "springo.leaked-engine-heap-dump-dir" context-param).
+  */
+ public static void setLeakHeapDumpDir(String dir) {
+  leakHeapDumpDir = dir;
+ }
+
+ /**
+  * Watch an engine that's been replaced (or dropped) until it's garbage
+  * collected.
+  */
+ static void retire(RhinoEngine engine, String description) {
+  retiredCount.incrementAndGet();
+  // (the caches of its javascript objects would keep it around)
+  SpringoCache.engineReplaced(engine);
+  synchronized (retired) {
+   retired.add(new RetiredEngine(engine, description, collected));
+   if (retiredEngineTimer == null) {
+    // (only runs while there are retired engines to watch)
+    retiredEngineTimer = new Timer("springo-retired-engines", true);
+    long period = Math.max(1000, Math.min(retiredEngineDeadline / 4, 60 * 1000));
+    retiredEngineTimer.schedule(new TimerTask() {
+     public void run() {
+      checkRetired();
+     }
+    }, period, period);
+   }
+  }
+ }
+
+ /**
+  * Forget the retired engines that have been garbage collected and report
+  * those still around past the deadline (called periodically while there
+  * are retired engines).
+  */
+ public static void checkRetired() {
+  Reference<? extends RhinoEngine> ref;
+  while ((ref = collected.poll()) != null) {
+   RetiredEngine engine = (RetiredEngine) ref;
+   synchronized (retired) {
+    retired.remove(engine);
+   }
+   reclaimedCount.incrementAndGet();
+   log.info("The retired RhinoEngine for " + engine.description + " was garbage collected after " +
+    (System.currentTimeMillis() - engine.retiredAt) + "ms" + (engine.reported ? " (it had been reported as leaked)" : ""));
+  }
+
+  List<RetiredEngine> overdue = new ArrayList<RetiredEngine>();
+  long now = System.currentTimeMillis();
+  synchronized (retired) {
+   for (RetiredEngine engine : retired) {
+    if (!engine.reported && now - engine.retiredAt > retiredEngineDeadline) {
+     engine.reported = true;
+     overdue.add(engine);
+    }
+   }
+   if (retired.isEmpty() && retiredEngineTimer != null) {
+    retiredEngineTimer.cancel();
+    retiredEngineTimer = null;
+   }
+  }
+
+  for (RetiredEngine engine : overdue) {
+   RhinoEngine leaked = engine.get();
+   if (leaked == null) {
+    continue; // (collected since we polled)
+   }
+   leakedCount.incrementAndGet();
+   engine.holders = findHolders(leaked);
+   leaked = null;
+   log.warn("The retired RhinoEngine for " + engine.description + " has not been garbage collected " +
+    (now - engine.retiredAt) + "ms after it was replaced - it's held by: " +
+    (engine.holders.isEmpty() ? "no registered holder (look for threads still running its javascript, or take a heap dump)" : engine.holders));
+   dumpHeap();
+  }
+ }
+
+ private static List<String> findHolders(RhinoEngine engine) {
+  List<String> found = new ArrayList<String>();
+  synchronized (holders) {
+   for (EngineHolder holder : holders) {
+    if (holder.holdsEngine(engine)) {
+     found.add(holder.toString());
+    }
+   }
+  }
+  return found;
+ }
+
+ private static void dumpHeap() {
+  String dir = leakHeapDumpDir;
+  if (dir == null) {
+   return;
+  }
+  File file = new File(dir, "springo-leaked-engine-" + System.currentTimeMillis() + ".hprof");
+  try {
+   com.sun.management.HotSpotDiagnosticMXBean diagnostics =
+    ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+   diagnostics.dumpHeap(file.getPath(), true);
+   log.warn("Wrote a heap dump showing the leaked RhinoEngine to " + file);
+  } catch (Exception e) {
+   log.error("Could not write a heap dump to " + file + ": " + e.getMessage());
+  }
+ }
+
+ /**
+  * Report the engines retired but not yet garbage collected, a map for
+  * each with:
+  *
+  *   engine - the configuration of the engine
+  *   retiredAt - when it was replaced (or dropped)
+  *   ageMillis - how long ago that was
+  *   leaked - if it's been reported for outliving the deadline
+  *   holders - the registered holders still referencing it (when leaked)
+  *
+  * Plus a totals map with the retired, reclaimed and leaked counts.
+  */
+ public static Map<String, Object> getRetiredEngines() {
+  List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+  long now = System.currentTimeMillis();
+  synchronized (retired) {
+   for (RetiredEngine engine : retired) {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("engine", engine.description);
+    map.put("retiredAt", engine.retiredAt);
+    map.put("ageMillis", now - engine.retiredAt);
+    map.put("leaked", engine.reported);
+    map.put("holders", engine.holders);
+    list.add(map);
+   }
+  }
+  Map<String, Object> report = new LinkedHashMap<String, Object>();
+  report.put("retired", retiredCount.get());
+  report.put("reclaimed", reclaimedCount.get());
+  report.put("leaked", leakedCount.get());
+  report.put("pending", list);
+  return report;
+ }
+
+ /**
+  * Register a filter by its filter-name (for getFilter).
+  */
+ public static void registerFilter(String name, RingoJsgiFilter filter) {
+  synchronized (filters) {
+   filters.put(name, filter);
+   lastFilter = filter;
+  }
+ }
+
+ public static void unregisterFilter(String name, RingoJsgiFilter filter) {
+  synchronized (filters) {
+   if (filters.get(name) == filter) {
+    filters.remove(name);
+   }
+   if (lastFilter == filter) {
+    lastFilter = filters.isEmpty() ? null : new ArrayList<RingoJsgiFilter>(filters.values()).get(filters.size() - 1);
+   }
+  }
+ }
+
+ /**
+  * Get a filter by filter-name, or (with a null name) the filter that
+  * initialized last.
+  */
+ public static RingoJsgiFilter getFilter(String name) {
+  synchronized (filters) {
+   return name == null ? lastFilter : filters.get(name);
+  }
+ }
+
+ /**
+  * The (normalized) configuration an engine is shared by.
+  */
+ public static final class Key {
+  private final String home;
+  private final String modulePath;
+  private final int optlevel;
+  private final boolean debug;
+  private final boolean production;
+  private final boolean verbose;
+  private final boolean legacyMode;
+
+  /**
+   * @param home the (canonical) ringo home, or the module archive
+   * @param modulePath the comma separated module path
+   */
+  public Key(String home, String modulePath, int optlevel, boolean debug,
+   boolean production, boolean verbose, boolean legacyMode) {
+   this.home = home;
+   this.modulePath = normalizePath(modulePath);
+   this.optlevel = optlevel;
+   this.debug = debug;
+   this.production = production;
+   this.verbose = verbose;
+   this.legacyMode = legacyMode;
+  }
+
+  private static String normalizePath(String modulePath) {
+   StringBuilder sb = new StringBuilder();
+   for (String path : StringUtils.split(modulePath, ",")) {
+    path = path.trim();
+    while (path.length() > 1 && path.endsWith("/")) {
+     path = path.substring(0, path.length() - 1);
+    }
+    if (path.length() > 0) {
+     if (sb.length() > 0) {
+      sb.append(',');
+     }
+     sb.append(path);
+    }
+   }
+   return sb.toString();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+   if (!(obj instanceof Key)) {
+    return false;
+   }
+   Key other = (Key) obj;
+   return home.equals(other.home) && modulePath.equals(other.modulePath) &&
+    optlevel == other.optlevel && debug == other.debug && production == other.production &&
+    verbose == other.verbose && legacyMode == other.legacyMode;
+  }
+
+  @Override
+  public int hashCode() {
+   int hash = home.hashCode();
+   hash = 31 * hash + modulePath.hashCode();
+   hash = 31 * hash + optlevel;
+   hash = 31 * hash + (debug ? 1 : 0) + (production ? 2 : 0) + (verbose ? 4 : 0) + (legacyMode ? 8 : 0);
+   return hash;
+  }
+
+  @Override
+  public String toString() {
+   return home + " [" + modulePath + "] optlevel=" + optlevel +
+    (debug ? " debug" : "") + (production ? " production" : "") +
+    (verbose ? " verbose" : "") + (legacyMode ? " legacy" : "");
+  }
+ }
+
+ private static class RetiredEngine extends WeakReference<RhinoEngine> {
+  final String description;
+  final long retiredAt = System.currentTimeMillis();
+  volatile boolean reported = false;
+  volatile List<String> holders = Collections.emptyList();
+
+  RetiredEngine(RhinoEngine engine, String description, ReferenceQueue<RhinoEngine> queue) {
+   super(engine, queue);
+   this.description = description;
+  }
+ }
+
+ private static class SharedEngine {
+  final Key key;
+  volatile RhinoEngine engine = null;
+  long stamp = NO_STAMP;
+  int refCount = 0; // (guarded by the engines lock)
+  int builds = 0;
+  long builtAt = 0;
+  long buildMillis = 0;
+  long buildAllocatedBytes = 0;
+
+  SharedEngine(Key key) {
+   this.key = key;
+  }
+
+  synchronized RhinoEngine get(long newStamp, EngineFactory factory) throws Exception {
+   if (engine != null) {
+    if (stamp == NO_STAMP) {
+     // (built by a holder that doesn't watch for deployments)
+     stamp = newStamp;
+    }
+    if (newStamp == NO_STAMP || newStamp <= stamp) {
+     return engine;
+    }
+   }
+
+   long start = System.currentTimeMillis();
+   long startBytes = AllocationSampler.allocatedBytes();
+   RhinoEngine rebuilt = factory.createEngine();
+   buildAllocatedBytes = AllocationSampler.allocatedBytes() - startBytes;
+   buildMillis = System.currentTimeMillis() - start;
+   builtAt = System.currentTimeMillis();
+   builds++;
+   stamp = newStamp;
+   RhinoEngine replaced = engine;
+   engine = rebuilt;
+   if (replaced != null) {
+    // (after the new engine's in place so holders that see the new
+    // generation get the new engine)
+    generation.incrementAndGet();
+    retire(replaced, key + " (build " + (builds - 1) + ")");
+   }
+   log.info((builds == 1 ? "Built" : "Rebuilt") + " the RhinoEngine for " + key + " in " + buildMillis + "ms");
+   return rebuilt;
+  }
+ }
+}
@@ -0,0 +1,328 @@
+package org.springo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.apache.log4j.Logger;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.serialize.ScriptableInputStream;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+import org.ringojs.engine.RhinoEngine;
+import org.ringojs.repository.Repository;
+import org.ringojs.repository.Resource;
+import org.ringojs.repository.Trackable;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * A snapshot of the app's module (and everything reachable from it: the
+ * modules it required, its config objects, the stick app etc.) once it's
+ * been evaluated, so a restart can restore it rather than evaluating every
+ * module's top level code again (see the filter's "engine-snapshot"
+ * init-param).
+ *
+ * The module scope is written with Rhino's scriptable serialization, which
+ * writes the standard objects and the engine's global scope by name (so
+ * they're the new engine's on restore), and anything Spring provided is
+ * written as a symbolic stub:  the beans looked up through
+ * ApplicationContextProvider (e.g. by springcontext.inject) by bean name,
+ * the ApplicationContext and ServletContext, and the engine and ringo's
+ * resources/repositories by path.  The stubs are resolved again on restore,
+ * so the restored javascript gets the current beans.
+ *
+ * A snapshot is only restored when the hash of the javascript it was taken
+ * from (every resource of the engine's repositories) still matches,
+ * otherwise the module's loaded normally and a new snapshot's written.
+ *
+ * Limitations:
+ *
+ *   - Rhino can only serialize interpreted functions, so snapshots are only
+ *     taken and restored for engines at optlevel -1 (e.g. the interpreted
+ *     tier of tiered compilation).
+ *   - Anything else that isn't serializable (e.g. a java object that isn't
+ *     a Spring bean kept in a module variable) means no snapshot is written
+ *     (the class is logged).
+ *   - The restored modules aren't in ringo's module cache, so a module
+ *     first required after startup (e.g. inside a function) gets its own
+ *     instance rather than the snapshot's.
+ */
+public class EngineSnapshot {
+
+ private static final String MAGIC = "springo-engine-snapshot";
+ private static final int VERSION = 1;
+
+ private static Logger log = Logger.getLogger(EngineSnapshot.class);
+
+ private final File file;
+
+ public EngineSnapshot(String path) {
+  this.file = new File(path);
+ }
+
+ public File getFile() {
+  return file;
+ }
+
+ /**
+  * Can the engine's modules be snapshot (i.e. is it interpreted)?
+  */
+ public static boolean isSupported(RhinoEngine engine) {
+  return engine.getConfig().getOptLevel() == -1;
+ }
+
+ /**
+  * Restore the module from the snapshot.
+  *
+  * @return the restored module scope, or null if there's no snapshot, it's
+  *   for different javascript, or it can't be restored
+  */
+ public Scriptable restore(RhinoEngine engine, String moduleName) {
+  if (!file.isFile() || !isSupported(engine)) {
+   return null;
+  }
+  long start = System.currentTimeMillis();
+  engine.getContextFactory().enterContext();
+  try {
+   DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+   try {
+    if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+     log.info("Ignoring the engine snapshot " + file + " (not a snapshot, or from a different version)");
+     return null;
+    }
+    String hash = in.readUTF();
+    String module = in.readUTF();
+    if (!module.equals(moduleName) || !hash.equals(contentHash(engine))) {
+     log.info("Ignoring the engine snapshot " + file + " (taken from different javascript)");
+     return null;
+    }
+    Scriptable moduleScope = (Scriptable) new SnapshotInputStream(in, engine).readObject();
+    log.info("Restored the \"" + moduleName + "\" module from the engine snapshot " + file +
+     " in " + (System.currentTimeMillis() - start) + "ms");
+    return moduleScope;
+   } finally {
+    in.close();
+   }
+  } catch (Exception e) {
+   log.warn("Could not restore the engine snapshot " + file + " (loading the modules instead): " + e);
+   return null;
+  } finally {
+   Context.exit();
+  }
+ }
+
+ /**
+  * Write a snapshot of the (evaluated) module scope.
+  *
+  * @return whether the snapshot was written
+  */
+ public boolean save(RhinoEngine engine, String moduleName, Scriptable moduleScope) {
+  if (!isSupported(engine)) {
+   log.info("Not writing an engine snapshot (only interpreted engines, optlevel -1, can be)");
+   return false;
+  }
+  long start = System.currentTimeMillis();
+  File tmp = new File(file.getPath() + ".tmp");
+  engine.getContextFactory().enterContext();
+  try {
+   DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+   try {
+    out.writeUTF(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(contentHash(engine));
+    out.writeUTF(moduleName);
+    SnapshotOutputStream objects = new SnapshotOutputStream(out, engine);
+    objects.writeObject(moduleScope);
+    objects.flush();
+   } finally {
+    out.close();
+   }
+   // (replaced atomically so a restart never reads half a snapshot)
+   if (!tmp.renameTo(file)) {
+    file.delete();
+    if (!tmp.renameTo(file)) {
+     throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+   }
+   log.info("Wrote the engine snapshot " + file + " (" + file.length() + " bytes) in " +
+    (System.currentTimeMillis() - start) + "ms");
+   return true;
+  } catch (Exception e) {
+   log.warn("Could not write the engine snapshot " + file + ": " + e);
+   tmp.delete();
+   return false;
+  } finally {
+   Context.exit();
+  }
+ }
+
+ /**
+  * Get the module's exported function (e.g. the stick app) from a
+  * restored module scope (null if there's no such function).
+  */
+ public static Object getExport(Scriptable moduleScope, String name) {
+  Object exports = ScriptableObject.getProperty(moduleScope, "exports");
+  if (!(exports instanceof Scriptable)) {
+   return null;
+  }
+  Object value = ScriptableObject.getProperty((Scriptable) exports, name);
+  return (value == Scriptable.NOT_FOUND) ? null : value;
+ }
+
+ /**
+  * Hash the javascript (every resource of the engine's repositories).
+  */
+ static String contentHash(RhinoEngine engine) throws Exception {
+  MessageDigest digest = MessageDigest.getInstance("SHA-1");
+  digest.update(("optlevel:" + engine.getConfig().getOptLevel()).getBytes("UTF-8"));
+  byte[] buffer = new byte[8192];
+  for (Repository repository : engine.getConfig().getRepositories()) {
+   List<Resource> resources = new ArrayList<Resource>(Arrays.asList(repository.getResources(true)));
+   Collections.sort(resources, new Comparator<Resource>() {
+    public int compare(Resource a, Resource b) {
+     return a.getRelativePath().compareTo(b.getRelativePath());
+    }
+   });
+   for (Resource resource : resources) {
+    digest.update(resource.getRelativePath().getBytes("UTF-8"));
+    InputStream in = resource.getInputStream();
+    try {
+     int read;
+     while ((read = in.read(buffer)) != -1) {
+      digest.update(buffer, 0, read);
+     }
+    } finally {
+     in.close();
+    }
+   }
+  }
+  StringBuilder hex = new StringBuilder();
+  for (byte b : digest.digest()) {
+   hex.append(String.format("%02x", b));
+  }
+  return hex.toString();
+ }
+
+ /**
+  * Writes what Spring (and ringo) provided as stubs.
+  */
+ private static class SnapshotOutputStream extends ScriptableOutputStream {
+  private final RhinoEngine engine;
+  private final Map<Object, String> beanNames = new IdentityHashMap<Object, String>();
+
+  SnapshotOutputStream(DataOutputStream out, RhinoEngine engine) throws IOException {
+   super(out, engine.getScope());
+   this.engine = engine;
+   for (Map.Entry<String, Object> bean : ApplicationContextProvider.getCachedBeans().entrySet()) {
+    beanNames.put(bean.getValue(), bean.getKey());
+   }
+  }
+
+  @Override
+  protected Object replaceObject(Object obj) throws IOException {
+   String beanName = beanNames.get(obj);
+   if (beanName != null) {
+    return new Stub(Stub.BEAN, beanName);
+   } else if (obj instanceof ApplicationContext) {
+    return new Stub(Stub.APPLICATION_CONTEXT, null);
+   } else if (obj instanceof ServletContext) {
+    return new Stub(Stub.SERVLET_CONTEXT, null);
+   } else if (obj == engine) {
+    return new Stub(Stub.ENGINE, null);
+   } else if (obj instanceof Resource) {
+    return new Stub(Stub.RESOURCE, ((Trackable) obj).getRelativePath());
+   } else if (obj instanceof Repository) {
+    return new Stub(Stub.REPOSITORY, ((Trackable) obj).getRelativePath());
+   }
+   return super.replaceObject(obj);
+  }
+ }
+
+ /**
+  * Resolves the stubs against the restoring engine and current beans.
+  */
+ private static class SnapshotInputStream extends ScriptableInputStream {
+  private final RhinoEngine engine;
+
+  SnapshotInputStream(InputStream in, RhinoEngine engine) throws IOException {
+   super(in, engine.getScope());
+   this.engine = engine;
+  }
+
+  @Override
+  protected Object resolveObject(Object obj) throws IOException {
+   if (obj instanceof Stub) {
+    return ((Stub) obj).resolve(engine);
+   }
+   return super.resolveObject(obj);
+  }
+ }
+
+ private static class Stub implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  static final int BEAN = 0;
+  static final int APPLICATION_CONTEXT = 1;
+  static final int SERVLET_CONTEXT = 2;
+  static final int ENGINE = 3;
+  static final int RESOURCE = 4;
+  static final int REPOSITORY = 5;
+
+  private final int kind;
+  private final String name;
+
+  Stub(int kind, String name) {
+   this.kind = kind;
+   this.name = name;
+  }
+
+  Object resolve(RhinoEngine engine) throws IOException {
+   switch (kind) {
+    case BEAN:
+     return ApplicationContextProvider.getCachedBean(name);
+    case APPLICATION_CONTEXT:
+     return ApplicationContextProvider.getApplicationContext();
+    case SERVLET_CONTEXT:
+     return ApplicationContextProvider.getServletContext();
+    case ENGINE:
+     return engine;
+    case RESOURCE:
+     for (Repository repository : engine.getConfig().getRepositories()) {
+      Resource resource = repository.getResource(name);
+      if (resource.exists()) {
+       return resource;
+      }
+     }
+     throw new IOException("No such resource in the engine's repositories: " + name);
+    case REPOSITORY:
+     for (Repository repository : engine.getConfig().getRepositories()) {
+      Repository child = name.length() == 0 ? repository : repository.getChildRepository(name);
+      if (child.exists()) {
+       return child;
+      }
+     }
+     throw new IOException("No such repository in the engine's repositories: " + name);
+    default:
+     throw new IOException("Unknown engine snapshot stub: " + kind);
+   }
+  }
+ }
+}
@@ -0,0 +1,287 @@
+package org.springo;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * A javascript view of an object a Spring controller returned (see
+ * SpringoHandoff), so a response transform can read and modify it without
+ * Spring first serializing it to JSON and javascript parsing that back.
+ *
+ * The view's properties are the bean's (or Map's) and are only converted
+ * to javascript when read:  nested beans and Maps become views themselves,
+ * Collections and arrays javascript arrays, and other values what they'd
+ * be as JSON.  Properties can be assigned and deleted like any javascript
+ * object's, and when the view is serialized (see JsonCodec) the properties
+ * never read are written straight from the java objects.
+ *
+ * What a bean's properties are, and how the values are converted and
+ * written, is up to the view's Mapper:  SpringoHandoff uses the app's own
+ * Jackson ObjectMapper (so @JsonIgnore, @JsonProperty, the naming strategy
+ * and date format apply), and without Jackson the beans' properties are
+ * their getters (as Introspector finds them), Dates are written as their
+ * epoch millis and enums as their names (see GETTERS).
+ */
+public class HandoffView extends LazyObject {
+
+ private static final long serialVersionUID = 1L;
+
+ private static final Map<Class<?>, Property[]> beanProperties = new ConcurrentHashMap<Class<?>, Property[]>();
+ private static final Property[] NOT_A_BEAN = new Property[0];
+
+ /**
+  * How the handed off java values are seen by javascript and written as
+  * JSON.
+  */
+ interface Mapper {
+  /**
+   * The properties of a bean class (null if its values aren't written as
+   * beans).
+   */
+  Property[] getProperties(Class<?> type);
+
+  /**
+   * Convert a value that's not a bean, Map, Collection or array to what
+   * it'd be as JSON (a String, Number, Boolean, null, or Maps and Lists
+   * of them).
+   */
+  Object toSimple(Object value);
+
+  /**
+   * The value as UTF-8 JSON (null to have JsonCodec write it, as a bean by
+   * getProperties and otherwise by toSimple).
+   */
+  byte[] toJson(Object value) throws IOException;
+ }
+
+ /**
+  * The beans' properties are their getters, Dates their epoch millis (as
+  * Jackson writes them by default) and enums their names.
+  */
+ static final Mapper GETTERS = new Mapper() {
+  public Property[] getProperties(Class<?> type) {
+   return HandoffView.getProperties(type);
+  }
+
+  public Object toSimple(Object value) {
+   if (value instanceof Date) {
+    return ((Date) value).getTime();
+   }
+   if (value instanceof Enum) {
+    return ((Enum<?>) value).name();
+   }
+   return value == null ? null : value.toString();
+  }
+
+  public byte[] toJson(Object value) {
+   return null;
+  }
+ };
+
+ /**
+  * A bean property (its name and how to get its value).
+  */
+ abstract static class Property {
+  final String name;
+
+  Property(String name) {
+   this.name = name;
+  }
+
+  abstract Object get(Object bean);
+
+  /**
+   * Is the property left out with this value (e.g. a null Jackson's
+   * configured not to write)?
+   */
+  boolean isOmitted(Object value) {
+   return false;
+  }
+ }
+
+ private static final class GetterProperty extends Property {
+  private final Method getter;
+
+  GetterProperty(String name, Method getter) {
+   super(name);
+   this.getter = getter;
+  }
+
+  @Override
+  Object get(Object bean) {
+   try {
+    return getter.invoke(bean);
+   } catch (IllegalAccessException e) {
+    throw new IllegalStateException(e);
+   } catch (InvocationTargetException e) {
+    Throwable cause = e.getCause();
+    throw (cause instanceof RuntimeException) ? (RuntimeException) cause : new IllegalStateException(cause);
+   }
+  }
+ }
+
+ // The java values of the properties not converted yet:
+ private final Map<String, Object> values;
+ private final String[] names;
+ private final Mapper mapper;
+
+ private HandoffView(Scriptable scope, String[] names, Map<String, Object> values, Mapper mapper) {
+  super(scope, names);
+  this.names = names;
+  this.values = values;
+  this.mapper = mapper;
+ }
+
+ /**
+  * Make a javascript view of a java value (beans and Maps get a view,
+  * see toJavascript()).
+  *
+  * @param scope any javascript object from the scope the view is for
+  * @param mapper how the value's seen and written (e.g. GETTERS)
+  */
+ static Object wrap(Scriptable scope, Object value, Mapper mapper) {
+  return toJavascript(ScriptableObject.getTopLevelScope(scope), value, mapper);
+ }
+
+ @Override
+ public String getClassName() {
+  return "Object";
+ }
+
+ @Override
+ protected Object create(String name) {
+  return toJavascript(getParentScope(), values.remove(name), mapper);
+ }
+
+ @Override
+ protected int attributes(String name) {
+  return EMPTY;
+ }
+
+ /**
+  * The properties in order (those added by javascript after the bean's).
+  */
+ Collection<String> getNames() {
+  Object[] ids = getIdsWithoutMaterializing();
+  if (ids.length == 0) {
+   return Arrays.asList(names);
+  }
+  Set<String> all = new LinkedHashSet<String>(Arrays.asList(names));
+  for (Object id : ids) {
+   all.add(id.toString());
+  }
+  return all;
+ }
+
+ /**
+  * Is the property still the unconverted java value (see getJavaValue)?
+  */
+ boolean isUnread(String name) {
+  return isPending(name);
+ }
+
+ Object getJavaValue(String name) {
+  return values.get(name);
+ }
+
+ Mapper getMapper() {
+  return mapper;
+ }
+
+ static Object toJavascript(Scriptable scope, Object value, Mapper mapper) {
+  if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean) {
+   return value;
+  }
+  if (value instanceof CharSequence || value instanceof Character) {
+   return value.toString();
+  }
+  if (value instanceof Map) {
+   Map<String, Object> values = new LinkedHashMap<String, Object>();
+   for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+    values.put(String.valueOf(entry.getKey()), entry.getValue());
+   }
+   return new HandoffView(scope, values.keySet().toArray(new String[values.size()]), values, mapper);
+  }
+  if (value instanceof Collection || value.getClass().isArray()) {
+   Object[] elements;
+   if (value instanceof Collection) {
+    elements = ((Collection<?>) value).toArray();
+   } else {
+    elements = new Object[Array.getLength(value)];
+    for (int i = 0; i < elements.length; i++) {
+     elements[i] = Array.get(value, i);
+    }
+   }
+   for (int i = 0; i < elements.length; i++) {
+    elements[i] = toJavascript(scope, elements[i], mapper);
+   }
+   return Context.getCurrentContext().newArray(scope, elements);
+  }
+  Property[] properties = mapper.getProperties(value.getClass());
+  if (properties == null) {
+   // (e.g. a Date, or something Jackson writes its own way, converted to
+   // plain values so there's nothing left for the mapper to do)
+   return toJavascript(scope, mapper.toSimple(value), GETTERS);
+  }
+  Map<String, Object> values = new LinkedHashMap<String, Object>();
+  for (Property property : properties) {
+   Object propertyValue = property.get(value);
+   if (!property.isOmitted(propertyValue)) {
+    values.put(property.name, propertyValue);
+   }
+  }
+  return new HandoffView(scope, values.keySet().toArray(new String[values.size()]), values, mapper);
+ }
+
+ /**
+  * The properties of a bean class (null if it's not a bean:  a java.*
+  * class, or one without any getters).
+  */
+ static Property[] getProperties(Class<?> type) {
+  Property[] properties = beanProperties.get(type);
+  if (properties == null) {
+   properties = NOT_A_BEAN;
+   String name = type.getName();
+   if (!name.startsWith("java.") && !name.startsWith("javax.") && !type.isPrimitive()) {
+    try {
+     List<Property> found = new ArrayList<Property>();
+     for (PropertyDescriptor descriptor : Introspector.getBeanInfo(type, Object.class).getPropertyDescriptors()) {
+      Method getter = descriptor.getReadMethod();
+      if (getter != null) {
+       getter.setAccessible(true);
+       found.add(new GetterProperty(descriptor.getName(), getter));
+      }
+     }
+     if (!found.isEmpty()) {
+      properties = found.toArray(new Property[found.size()]);
+     }
+    } catch (IntrospectionException e) {
+     // (not a bean)
+    } catch (SecurityException e) {
+     // (not one we can read)
+    }
+   }
+   beanProperties.put(type, properties);
+  }
+  return properties == NOT_A_BEAN ? null : properties;
+ }
+}
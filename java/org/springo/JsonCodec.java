@@ -0,0 +1,977 @@
+package org.springo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeGenerator;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+/**
+ * A streaming JSON parser and writer for springo javascript (see the
+ * "springojson" module).
+ *
+ * The parser reads UTF-8 bytes (e.g. a request body or a buffered
+ * response body) straight into Rhino objects and arrays, without first
+ * building a java String of the whole document.
+ *
+ * The writer serializes javascript values straight to UTF-8 bytes,
+ * optionally pretty printed, following the same rules as JSON.stringify
+ * (functions and undefined are skipped in objects and become null in
+ * arrays, toJSON() is honored, NaN and Infinity become null, etc.).
+ * Java Maps, Collections and arrays are written too, and the java values
+ * of a HandoffView as its Mapper has them (e.g. by the app's Jackson
+ * ObjectMapper), but otherwise a java object is written as its toString().
+ */
+public class JsonCodec {
+
+ private static final int MAX_DEPTH = 512;
+
+ // The writers' buffers, reused rather than allocated per document:
+ private static final int BUFFER_SIZE = 8192;
+ private static final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(64);
+
+ private JsonCodec() {}
+
+ /**
+  * Thrown for malformed JSON (and for values that can't be written as
+  * JSON e.g. cyclic structures).
+  */
+ public static class JsonException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  public JsonException(String message) {
+   super(message);
+  }
+ }
+
+ /**
+  * Parse JSON from a String, a java byte[] (UTF-8) or an InputStream
+  * (UTF-8) into javascript objects and arrays.
+  *
+  * @param scope any javascript object from the scope the result is for
+  * @param source the JSON
+  * @return the parsed javascript value
+  */
+ public static Object parse(Scriptable scope, Object source) throws IOException, JsonException {
+  if (source instanceof Wrapper) {
+   source = ((Wrapper) source).unwrap();
+  }
+
+  Reader reader;
+  if (source instanceof CharSequence) {
+   reader = new StringReader(source.toString());
+  } else if (source instanceof byte[]) {
+   reader = new InputStreamReader(new ByteArrayInputStream((byte[]) source), "UTF-8");
+  } else if (source instanceof InputStream) {
+   reader = new InputStreamReader((InputStream) source, "UTF-8");
+  } else {
+   throw new JsonException("Cannot parse JSON from " + (source == null ? "null" : source.getClass().getName()));
+  }
+
+  Context cx = Context.getCurrentContext();
+  if (cx == null) {
+   throw new IllegalStateException("JSON can only be parsed into javascript objects from javascript");
+  }
+  return new Parser(cx, ScriptableObject.getTopLevelScope(scope), reader).parseDocument();
+ }
+
+ /**
+  * Serialize a javascript value to UTF-8 JSON bytes.
+  *
+  * @param value the value to serialize
+  * @param indent the number of spaces to indent by (0 for compact output)
+  */
+ public static byte[] toBytes(Object value, int indent) throws IOException, JsonException {
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  write(value, out, indent);
+  return out.toByteArray();
+ }
+
+ /**
+  * Serialize a javascript value to a JSON String.
+  *
+  * @param value the value to serialize
+  * @param indent the number of spaces to indent by (0 for compact output)
+  */
+ public static String stringify(Object value, int indent) throws IOException, JsonException {
+  try {
+   return new String(toBytes(value, indent), "UTF-8");
+  } catch (UnsupportedEncodingException e) {
+   throw new IllegalStateException(e);
+  }
+ }
+
+ /**
+  * Serialize a javascript value as UTF-8 JSON to the given stream.
+  *
+  * Note:  the stream is not flushed or closed.
+  *
+  * @param value the value to serialize
+  * @param out the stream to write to
+  * @param indent the number of spaces to indent by (0 for compact output)
+  */
+ public static void write(Object value, OutputStream out, int indent) throws IOException, JsonException {
+  JsonWriter writer = new JsonWriter(out, indent, 0);
+  try {
+   writer.writeValue(value);
+   writer.flushBuffer();
+  } finally {
+   writer.release();
+  }
+ }
+
+ /**
+  * Serialize a javascript value as UTF-8 JSON to the given stream (e.g. a
+  * ServletOutputStream) incrementally, flushing the stream as it goes so
+  * a large response is sent as it's written rather than buffered.
+  *
+  * The value can also be an iterator (a javascript generator, an object
+  * with an ES6 style next() returning {done, value}, or a java Iterator)
+  * which is written as an array of the values it produces, so the whole
+  * array never has to exist at once.
+  *
+  * Note:  once bytes have been flushed a failure can only truncate the
+  *   output, the stream is left to the caller (it's not closed).
+  *
+  * @param value the value (or iterator) to serialize
+  * @param out the stream to write to
+  * @param indent the number of spaces to indent by (0 for compact output)
+  * @param flushBytes flush the stream after (about) this many bytes
+  *   (0 to only flush at the end)
+  */
+ public static void stream(Object value, OutputStream out, int indent, int flushBytes) throws IOException, JsonException {
+  JsonWriter writer = new JsonWriter(out, indent, flushBytes);
+  try {
+   if (value instanceof Wrapper) {
+    value = ((Wrapper) value).unwrap();
+   }
+   if (value instanceof Iterator) {
+    writer.writeIterator((Iterator<?>) value);
+   } else if (isScriptableIterator(value)) {
+    writer.writeScriptableIterator((Scriptable) value);
+   } else {
+    writer.writeValue(value);
+   }
+   writer.flushBuffer();
+   out.flush();
+  } finally {
+   writer.release();
+  }
+ }
+
+ // (a generator, or an object with a next() function, that's not an array)
+ private static boolean isScriptableIterator(Object value) {
+  if (!(value instanceof Scriptable) || value instanceof NativeArray) {
+   return false;
+  }
+  return value instanceof NativeGenerator ||
+   ScriptableObject.getProperty((Scriptable) value, "next") instanceof Function;
+ }
+
+ private static byte[] acquireBuffer() {
+  byte[] buf = bufferPool.poll();
+  return buf != null ? buf : new byte[BUFFER_SIZE];
+ }
+
+ private static void releaseBuffer(byte[] buf) {
+  bufferPool.offer(buf);
+ }
+
+ /**
+  * The parser, a simple recursive descent parser reading characters
+  * through its own buffer.
+  */
+ private static class Parser {
+
+  private final Context cx;
+  private final Scriptable scope;
+  private final Reader reader;
+  private final char[] buf = new char[4096];
+  private int pos = 0;
+  private int limit = 0;
+  private long offset = 0; // (of buf[0], for error messages)
+  private int depth = 0;
+  private final StringBuilder sb = new StringBuilder();
+
+  Parser(Context cx, Scriptable scope, Reader reader) {
+   this.cx = cx;
+   this.scope = scope;
+   this.reader = reader;
+  }
+
+  Object parseDocument() throws IOException, JsonException {
+   Object value = readValue(skipWhitespace());
+   int c = skipWhitespace();
+   if (c != -1) {
+    throw error("Unexpected character '" + (char) c + "' after the JSON value");
+   }
+   return value;
+  }
+
+  private boolean fill() throws IOException {
+   if (limit == -1) {
+    return false;
+   }
+   offset += limit;
+   pos = 0;
+   limit = reader.read(buf, 0, buf.length);
+   while (limit == 0) {
+    limit = reader.read(buf, 0, buf.length);
+   }
+   return limit > 0;
+  }
+
+  private int next() throws IOException {
+   if (pos >= limit && !fill()) {
+    return -1;
+   }
+   return buf[pos++];
+  }
+
+  private int skipWhitespace() throws IOException {
+   int c;
+   do {
+    c = next();
+   } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+   return c;
+  }
+
+  private Object readValue(int c) throws IOException, JsonException {
+   switch (c) {
+    case '{':
+     return readObject();
+    case '[':
+     return readArray();
+    case '"':
+     return readString();
+    case 't':
+     expect("rue");
+     return Boolean.TRUE;
+    case 'f':
+     expect("alse");
+     return Boolean.FALSE;
+    case 'n':
+     expect("ull");
+     return null;
+    case -1:
+     throw error("Unexpected end of input");
+    default:
+     if (c == '-' || (c >= '0' && c <= '9')) {
+      return readNumber(c);
+     }
+     throw error("Unexpected character '" + (char) c + "'");
+   }
+  }
+
+  private void expect(String rest) throws IOException, JsonException {
+   for (int i = 0; i < rest.length(); i++) {
+    if (next() != rest.charAt(i)) {
+     throw error("Unexpected token");
+    }
+   }
+  }
+
+  private Scriptable readObject() throws IOException, JsonException {
+   if (++depth > MAX_DEPTH) {
+    throw error("JSON nested too deeply");
+   }
+   Scriptable obj = cx.newObject(scope);
+   int c = skipWhitespace();
+   if (c != '}') {
+    while (true) {
+     if (c != '"') {
+      throw error("Expected a property name");
+     }
+     String name = readString();
+     if (skipWhitespace() != ':') {
+      throw error("Expected ':' after property name");
+     }
+     Object value = readValue(skipWhitespace());
+     int index = arrayIndex(name);
+     if (index >= 0) {
+      obj.put(index, obj, value);
+     } else {
+      obj.put(name, obj, value);
+     }
+     c = skipWhitespace();
+     if (c == '}') {
+      break;
+     }
+     if (c != ',') {
+      throw error("Expected ',' or '}'");
+     }
+     c = skipWhitespace();
+    }
+   }
+   depth--;
+   return obj;
+  }
+
+  private Scriptable readArray() throws IOException, JsonException {
+   if (++depth > MAX_DEPTH) {
+    throw error("JSON nested too deeply");
+   }
+   List<Object> elements = new ArrayList<Object>();
+   int c = skipWhitespace();
+   if (c != ']') {
+    while (true) {
+     elements.add(readValue(c));
+     c = skipWhitespace();
+     if (c == ']') {
+      break;
+     }
+     if (c != ',') {
+      throw error("Expected ',' or ']'");
+     }
+     c = skipWhitespace();
+    }
+   }
+   depth--;
+   return cx.newArray(scope, elements.toArray());
+  }
+
+  private String readString() throws IOException, JsonException {
+   sb.setLength(0);
+   while (true) {
+    // copy runs of plain characters straight from the buffer:
+    int start = pos;
+    while (pos < limit) {
+     char ch = buf[pos];
+     if (ch == '"' || ch == '\\' || ch < 0x20) {
+      break;
+     }
+     pos++;
+    }
+    sb.append(buf, start, pos - start);
+
+    int c = next();
+    if (c == '"') {
+     return sb.toString();
+    } else if (c == '\\') {
+     readEscape();
+    } else if (c == -1) {
+     throw error("Unterminated string");
+    } else if (c < 0x20) {
+     throw error("Control character in string");
+    } else {
+     // (the buffer ran out mid string)
+     sb.append((char) c);
+    }
+   }
+  }
+
+  private void readEscape() throws IOException, JsonException {
+   int c = next();
+   switch (c) {
+    case '"':
+    case '\\':
+    case '/':
+     sb.append((char) c);
+     break;
+    case 'b':
+     sb.append('\b');
+     break;
+    case 'f':
+     sb.append('\f');
+     break;
+    case 'n':
+     sb.append('\n');
+     break;
+    case 'r':
+     sb.append('\r');
+     break;
+    case 't':
+     sb.append('\t');
+     break;
+    case 'u':
+     int code = 0;
+     for (int i = 0; i < 4; i++) {
+      int digit = Character.digit(next(), 16);
+      if (digit < 0) {
+       throw error("Invalid unicode escape");
+      }
+      code = (code << 4) + digit;
+     }
+     sb.append((char) code);
+     break;
+    default:
+     throw error("Invalid escape");
+   }
+  }
+
+  private Object readNumber(int c) throws IOException, JsonException {
+   sb.setLength(0);
+   if (c == '-') {
+    sb.append('-');
+    c = next();
+   }
+   if (c == '0') {
+    sb.append('0');
+    c = peekOrEnd();
+   } else if (c >= '1' && c <= '9') {
+    c = readDigits(c);
+   } else {
+    throw error("Invalid number");
+   }
+   if (c == '.') {
+    sb.append('.');
+    pos++;
+    c = next();
+    if (c < '0' || c > '9') {
+     throw error("Invalid number");
+    }
+    c = readDigits(c);
+   }
+   if (c == 'e' || c == 'E') {
+    sb.append('e');
+    pos++;
+    c = next();
+    if (c == '+' || c == '-') {
+     sb.append((char) c);
+     c = next();
+    }
+    if (c < '0' || c > '9') {
+     throw error("Invalid number");
+    }
+    readDigits(c);
+   }
+   return Double.valueOf(sb.toString());
+  }
+
+  // Append c and the digits following it, returning (without consuming)
+  // the first character after the digits:
+  private int readDigits(int c) throws IOException {
+   sb.append((char) c);
+   while (true) {
+    c = peekOrEnd();
+    if (c < '0' || c > '9') {
+     return c;
+    }
+    sb.append((char) c);
+    pos++;
+   }
+  }
+
+  private int peekOrEnd() throws IOException {
+   if (pos >= limit && !fill()) {
+    return -1;
+   }
+   return buf[pos];
+  }
+
+  private int arrayIndex(String name) {
+   int len = name.length();
+   if (len == 0 || len > 9 || (len > 1 && name.charAt(0) == '0')) {
+    return -1;
+   }
+   int index = 0;
+   for (int i = 0; i < len; i++) {
+    char ch = name.charAt(i);
+    if (ch < '0' || ch > '9') {
+     return -1;
+    }
+    index = index * 10 + (ch - '0');
+   }
+   return index;
+  }
+
+  private JsonException error(String message) {
+   return new JsonException(message + " at position " + (offset + pos));
+  }
+ }
+
+ /**
+  * The writer, encoding straight to UTF-8 through its own byte buffer.
+  */
+ static class JsonWriter {
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  private final OutputStream out;
+  private final int indent;
+  private final int flushBytes;
+  private byte[] buf = acquireBuffer();
+  private int count = 0;
+  private long unflushed = 0;
+  private int level = 0;
+  private final IdentityHashMap<Object, Object> stack = new IdentityHashMap<Object, Object>();
+  // The Mapper of the HandoffView whose java values are being written
+  // (null otherwise, when beans and Dates are just their toString()):
+  private HandoffView.Mapper handoffMapper = null;
+
+  JsonWriter(OutputStream out, int indent, int flushBytes) {
+   this.out = out;
+   this.indent = indent < 0 ? 0 : indent;
+   this.flushBytes = flushBytes;
+  }
+
+  void flushBuffer() throws IOException {
+   if (count > 0) {
+    out.write(buf, 0, count);
+    unflushed += count;
+    count = 0;
+    if (flushBytes > 0 && unflushed >= flushBytes) {
+     out.flush();
+     unflushed = 0;
+    }
+   }
+  }
+
+  /**
+   * Return the buffer to the pool (the writer can't be used after).
+   */
+  void release() {
+   if (buf != null) {
+    releaseBuffer(buf);
+    buf = null;
+   }
+  }
+
+  private void writeByte(int b) throws IOException {
+   if (count == buf.length) {
+    flushBuffer();
+   }
+   buf[count++] = (byte) b;
+  }
+
+  private void writeAscii(String s) throws IOException {
+   for (int i = 0; i < s.length(); i++) {
+    writeByte(s.charAt(i));
+   }
+  }
+
+  private void newline() throws IOException {
+   if (indent > 0) {
+    writeByte('\n');
+    for (int i = level * indent; i > 0; i--) {
+     writeByte(' ');
+    }
+   }
+  }
+
+  /**
+   * Is this value skipped when it's an object property?
+   */
+  private boolean isSkipped(Object value) {
+   return value == Undefined.instance || value instanceof Function;
+  }
+
+  void writeValue(Object value) throws IOException, JsonException {
+   if (value instanceof Scriptable && !(value instanceof Wrapper)) {
+    value = callToJSON((Scriptable) value);
+   }
+   if (value instanceof Wrapper) {
+    value = ((Wrapper) value).unwrap();
+   }
+
+   if (value == null || isSkipped(value)) {
+    writeAscii("null");
+   } else if (value instanceof CharSequence) {
+    writeString(value.toString());
+   } else if (value instanceof Boolean) {
+    writeAscii(((Boolean) value).booleanValue() ? "true" : "false");
+   } else if (value instanceof Number) {
+    writeNumber((Number) value);
+   } else if (value instanceof Character) {
+    writeString(value.toString());
+   } else if (value instanceof HandoffView) {
+    enter(value);
+    writeHandoffView((HandoffView) value);
+    exit(value);
+   } else if (value instanceof Scriptable) {
+    Scriptable obj = (Scriptable) value;
+    enter(obj);
+    if (obj instanceof NativeArray || "Array".equals(obj.getClassName())) {
+     writeScriptableArray(obj);
+    } else {
+     writeScriptableObject(obj);
+    }
+    exit(obj);
+   } else if (value instanceof Map) {
+    enter(value);
+    writeMap((Map<?, ?>) value);
+    exit(value);
+   } else if (value instanceof Collection) {
+    enter(value);
+    writeIterator(((Collection<?>) value).iterator());
+    exit(value);
+   } else if (value.getClass().isArray()) {
+    enter(value);
+    writeJavaArray(value);
+    exit(value);
+   } else if (handoffMapper != null) {
+    HandoffView.Property[] properties = handoffMapper.getProperties(value.getClass());
+    if (properties != null) {
+     enter(value);
+     writeBean(value, properties);
+     exit(value);
+    } else {
+     writeValue(handoffMapper.toSimple(value));
+    }
+   } else {
+    writeString(value.toString());
+   }
+  }
+
+  // (as JSON.stringify, e.g. a Date's is its ISO string)
+  static Object callToJSON(Scriptable obj) {
+   Object toJSON = ScriptableObject.getProperty(obj, "toJSON");
+   if (toJSON instanceof Function) {
+    Context cx = Context.getCurrentContext();
+    if (cx != null) {
+     Function fn = (Function) toJSON;
+     return fn.call(cx, ScriptableObject.getTopLevelScope(obj), obj, new Object[] { "" });
+    }
+   }
+   return obj;
+  }
+
+  private void enter(Object value) throws JsonException {
+   if (stack.put(value, value) != null) {
+    throw new JsonException("Cyclic structure cannot be converted to JSON");
+   }
+   if (stack.size() > MAX_DEPTH) {
+    throw new JsonException("Structure nested too deeply to convert to JSON");
+   }
+  }
+
+  private void exit(Object value) {
+   stack.remove(value);
+  }
+
+  private void writeScriptableArray(Scriptable arr) throws IOException, JsonException {
+   long length = (arr instanceof NativeArray) ? ((NativeArray) arr).getLength() :
+    (long) ScriptRuntime.toNumber(ScriptableObject.getProperty(arr, "length"));
+   writeByte('[');
+   if (length > 0) {
+    level++;
+    for (int i = 0; i < length; i++) {
+     if (i > 0) {
+      writeByte(',');
+     }
+     newline();
+     Object element = ScriptableObject.getProperty(arr, i);
+     writeValue(element == Scriptable.NOT_FOUND ? null : element);
+    }
+    level--;
+    newline();
+   }
+   writeByte(']');
+  }
+
+  private void writeScriptableObject(Scriptable obj) throws IOException, JsonException {
+   writeByte('{');
+   boolean first = true;
+   level++;
+   for (Object id: obj.getIds()) {
+    Object value = (id instanceof Integer) ?
+     ScriptableObject.getProperty(obj, ((Integer) id).intValue()) :
+     ScriptableObject.getProperty(obj, id.toString());
+    if (value == Scriptable.NOT_FOUND || isSkipped(value)) {
+     continue;
+    }
+    first = writeName(id.toString(), first);
+    writeValue(value);
+   }
+   level--;
+   if (!first) {
+    newline();
+   }
+   writeByte('}');
+  }
+
+  // (the properties javascript never read are written from the java values)
+  private void writeHandoffView(HandoffView view) throws IOException, JsonException {
+   writeByte('{');
+   boolean first = true;
+   level++;
+   for (String name : view.getNames()) {
+    if (view.isUnread(name)) {
+     first = writeName(name, first);
+     writeJavaValue(view.getJavaValue(name), view.getMapper());
+     continue;
+    }
+    Object value = ScriptableObject.getProperty(view, name);
+    if (value == Scriptable.NOT_FOUND || isSkipped(value)) {
+     continue;
+    }
+    first = writeName(name, first);
+    writeValue(value);
+   }
+   level--;
+   if (!first) {
+    newline();
+   }
+   writeByte('}');
+  }
+
+  // (a HandoffView's java value, as its mapper has it)
+  private void writeJavaValue(Object value, HandoffView.Mapper mapper) throws IOException, JsonException {
+   byte[] json = mapper.toJson(value);
+   if (json != null) {
+    for (byte b : json) {
+     writeByte(b);
+    }
+    return;
+   }
+   HandoffView.Mapper outer = handoffMapper;
+   handoffMapper = mapper;
+   try {
+    writeValue(value);
+   } finally {
+    handoffMapper = outer;
+   }
+  }
+
+  private void writeBean(Object bean, HandoffView.Property[] properties) throws IOException, JsonException {
+   writeByte('{');
+   boolean first = true;
+   level++;
+   for (HandoffView.Property property : properties) {
+    Object value = property.get(bean);
+    if (property.isOmitted(value)) {
+     continue;
+    }
+    first = writeName(property.name, first);
+    writeValue(value);
+   }
+   level--;
+   if (!first) {
+    newline();
+   }
+   writeByte('}');
+  }
+
+  private void writeMap(Map<?, ?> map) throws IOException, JsonException {
+   writeByte('{');
+   boolean first = true;
+   level++;
+   for (Map.Entry<?, ?> entry: map.entrySet()) {
+    Object value = entry.getValue();
+    if (isSkipped(value)) {
+     continue;
+    }
+    first = writeName(String.valueOf(entry.getKey()), first);
+    writeValue(value);
+   }
+   level--;
+   if (!first) {
+    newline();
+   }
+   writeByte('}');
+  }
+
+  private boolean writeName(String name, boolean first) throws IOException {
+   if (!first) {
+    writeByte(',');
+   }
+   newline();
+   writeString(name);
+   writeByte(':');
+   if (indent > 0) {
+    writeByte(' ');
+   }
+   return false;
+  }
+
+  /**
+   * Write the values a javascript iterator produces as an array:  a
+   * (javascript 1.7) generator until it throws StopIteration, otherwise
+   * an ES6 style iterator until next() returns {done: true}.
+   */
+  void writeScriptableIterator(Scriptable it) throws IOException, JsonException {
+   Context cx = Context.getCurrentContext();
+   if (cx == null) {
+    throw new IllegalStateException("Javascript iterators can only be written from javascript");
+   }
+   Scriptable scope = ScriptableObject.getTopLevelScope(it);
+   boolean generator = it instanceof NativeGenerator;
+   writeByte('[');
+   boolean first = true;
+   level++;
+   while (true) {
+    Object next = ScriptableObject.getProperty(it, "next");
+    if (!(next instanceof Function)) {
+     throw new JsonException("Not an iterator (it has no next function)");
+    }
+    Object item;
+    try {
+     item = ((Function) next).call(cx, scope, it, ScriptRuntime.emptyArgs);
+    } catch (JavaScriptException e) {
+     if (isStopIteration(e.getValue())) {
+      break;
+     }
+     throw e;
+    }
+    if (!generator && item instanceof Scriptable) {
+     Scriptable result = (Scriptable) item;
+     if (ScriptRuntime.toBoolean(ScriptableObject.getProperty(result, "done"))) {
+      break;
+     }
+     item = ScriptableObject.getProperty(result, "value");
+     if (item == Scriptable.NOT_FOUND) {
+      item = null;
+     }
+    }
+    if (!first) {
+     writeByte(',');
+    }
+    first = false;
+    newline();
+    writeValue(item);
+   }
+   level--;
+   if (!first) {
+    newline();
+   }
+   writeByte(']');
+  }
+
+  private boolean isStopIteration(Object value) {
+   return value instanceof Scriptable && "StopIteration".equals(((Scriptable) value).getClassName());
+  }
+
+  void writeIterator(Iterator<?> it) throws IOException, JsonException {
+   writeByte('[');
+   boolean first = true;
+   level++;
+   while (it.hasNext()) {
+    if (!first) {
+     writeByte(',');
+    }
+    first = false;
+    newline();
+    writeValue(it.next());
+   }
+   level--;
+   if (!first) {
+    newline();
+   }
+   writeByte(']');
+  }
+
+  private void writeJavaArray(Object array) throws IOException, JsonException {
+   int length = Array.getLength(array);
+   writeByte('[');
+   level++;
+   for (int i = 0; i < length; i++) {
+    if (i > 0) {
+     writeByte(',');
+    }
+    newline();
+    writeValue(Array.get(array, i));
+   }
+   level--;
+   if (length > 0) {
+    newline();
+   }
+   writeByte(']');
+  }
+
+  private void writeNumber(Number n) throws IOException {
+   if (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte) {
+    writeAscii(Long.toString(n.longValue()));
+    return;
+   }
+   double d = n.doubleValue();
+   if (Double.isNaN(d) || Double.isInfinite(d)) {
+    writeAscii("null");
+   } else if (d == (long) d && Math.abs(d) < 9007199254740992.0) {
+    // (avoid the "-0" and "1.0" forms for integral values)
+    writeAscii(Long.toString((long) d));
+   } else {
+    writeAscii(ScriptRuntime.numberToString(d, 10));
+   }
+  }
+
+  private void writeString(String s) throws IOException {
+   writeByte('"');
+   int len = s.length();
+   for (int i = 0; i < len; i++) {
+    char ch = s.charAt(i);
+    if (ch < 0x80) {
+     switch (ch) {
+      case '"':
+       writeByte('\\');
+       writeByte('"');
+       break;
+      case '\\':
+       writeByte('\\');
+       writeByte('\\');
+       break;
+      case '\n':
+       writeByte('\\');
+       writeByte('n');
+       break;
+      case '\r':
+       writeByte('\\');
+       writeByte('r');
+       break;
+      case '\t':
+       writeByte('\\');
+       writeByte('t');
+       break;
+      case '\b':
+       writeByte('\\');
+       writeByte('b');
+       break;
+      case '\f':
+       writeByte('\\');
+       writeByte('f');
+       break;
+      default:
+       if (ch < 0x20) {
+        writeByte('\\');
+        writeByte('u');
+        writeByte('0');
+        writeByte('0');
+        writeByte(HEX[ch >> 4]);
+        writeByte(HEX[ch & 0xf]);
+       } else {
+        writeByte(ch);
+       }
+     }
+    } else if (ch < 0x800) {
+     writeByte(0xc0 | (ch >> 6));
+     writeByte(0x80 | (ch & 0x3f));
+    } else if (Character.isHighSurrogate(ch) && i + 1 < len &&
+     Character.isLowSurrogate(s.charAt(i + 1))) {
+     int cp = Character.toCodePoint(ch, s.charAt(++i));
+     writeByte(0xf0 | (cp >> 18));
+     writeByte(0x80 | ((cp >> 12) & 0x3f));
+     writeByte(0x80 | ((cp >> 6) & 0x3f));
+     writeByte(0x80 | (cp & 0x3f));
+    } else {
+     writeByte(0xe0 | (ch >> 12));
+     writeByte(0x80 | ((ch >> 6) & 0x3f));
+     writeByte(0x80 | (ch & 0x3f));
+    }
+   }
+   writeByte('"');
+  }
+ }
+}
@@ -0,0 +1,217 @@
+package org.springo;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.ringojs.engine.RhinoEngine;
+import org.ringojs.jsgi.JsgiRequest;
+
+/**
+ * The JSGI request passed to the javascript when the filter's "lazy-request"
+ * init-param is set, in place of ringo's JsgiRequest.
+ *
+ * JsgiRequest builds the request's env (wrapping the servlet request and
+ * response), copies all the headers and so on for every request, and the
+ * filter then adds env.filter, before anything knows whether the javascript
+ * will look at them - which for requests that just fall through or are
+ * forwarded to Spring it mostly doesn't.  Here each property (and each
+ * property of env) is a lazy slot which is only materialized (as an
+ * ordinary property) the first time it's read, enumerated or described.
+ *
+ * The properties are those of JsgiRequest (method, scriptName, pathInfo,
+ * queryString, host, port, scheme, remoteAddress, version, headers, jsgi,
+ * input - an io Stream of the request body - and env with servletRequest,
+ * servletResponse, servlet and filter), and the prototype's the filter's
+ * JsgiRequest prototype, so stick, ringo's handleRequest and the
+ * springoutils helpers see the same request.  Properties can be assigned
+ * or defined before they're read (e.g. request.env.servletResponse =
+ * wrapper), which just drops the lazy slot.
+ */
+public class LazyJsgiRequest extends LazyObject {
+
+ private static final long serialVersionUID = 1L;
+
+ private static final String[] PROPERTIES = {
+  "method", "scriptName", "pathInfo", "queryString", "host", "port", "scheme",
+  "remoteAddress", "version", "headers", "jsgi", "input", "env"
+ };
+
+ private final transient HttpServletRequest request;
+ private final transient HttpServletResponse response;
+ private final transient Object filter;
+ private final transient RhinoEngine engine;
+
+ /**
+  * @param prototype the JsgiRequest prototype (whose own properties are
+  *   all shadowed by the lazy ones)
+  * @param engine the engine the request's run in (for the io module)
+  */
+ public LazyJsgiRequest(HttpServletRequest request, HttpServletResponse response,
+  Object filter, JsgiRequest prototype, RhinoEngine engine, Scriptable scope) {
+  super(scope, PROPERTIES);
+  setPrototype(prototype);
+  this.request = request;
+  this.response = response;
+  this.filter = filter;
+  this.engine = engine;
+ }
+
+ @Override
+ public String getClassName() {
+  return "JsgiRequest";
+ }
+
+ @Override
+ protected int attributes(String name) {
+  return (name.equals("env") || name.equals("headers") || name.equals("jsgi")) ? PERMANENT : EMPTY;
+ }
+
+ @Override
+ protected Object create(String name) {
+  Scriptable scope = getParentScope();
+  if (name.equals("method")) {
+   return checkString(request.getMethod());
+  } else if (name.equals("scriptName")) {
+   // (JSGI requires this to be empty or start with a slash)
+   String scriptName = checkString(request.getContextPath() + request.getServletPath());
+   return scriptName.equals("/") ? "" : scriptName;
+  } else if (name.equals("pathInfo")) {
+   String pathInfo = request.getPathInfo();
+   // (as JsgiRequest, Tomcat gives "/" even when the uri doesn't end with one)
+   if ("/".equals(pathInfo) && !request.getRequestURI().endsWith("/")) {
+    pathInfo = "";
+   }
+   return checkString(pathInfo);
+  } else if (name.equals("queryString")) {
+   return checkString(request.getQueryString());
+  } else if (name.equals("host")) {
+   return checkString(request.getServerName());
+  } else if (name.equals("port")) {
+   return Integer.valueOf(request.getServerPort());
+  } else if (name.equals("scheme")) {
+   return checkString(request.getScheme());
+  } else if (name.equals("remoteAddress")) {
+   return checkString(request.getRemoteAddr());
+  } else if (name.equals("version")) {
+   return httpVersion(scope);
+  } else if (name.equals("headers")) {
+   return headers(scope);
+  } else if (name.equals("jsgi")) {
+   Scriptable jsgi = Context.getCurrentContext().newObject(scope);
+   jsgi.put("version", jsgi, Context.getCurrentContext().newArray(scope,
+    new Object[] { Integer.valueOf(0), Integer.valueOf(3) }));
+   jsgi.put("multithread", jsgi, Boolean.TRUE);
+   jsgi.put("multiprocess", jsgi, Boolean.FALSE);
+   jsgi.put("async", jsgi, Boolean.TRUE);
+   jsgi.put("runOnce", jsgi, Boolean.FALSE);
+   jsgi.put("cgi", jsgi, Boolean.FALSE);
+   return jsgi;
+  } else if (name.equals("input")) {
+   return input(scope);
+  } else if (name.equals("env")) {
+   return new Env(this, scope);
+  }
+  return NOT_FOUND;
+ }
+
+ private Scriptable headers(Scriptable scope) {
+  Scriptable headers = Context.getCurrentContext().newObject(scope);
+  for (Enumeration<String> names = request.getHeaderNames(); names != null && names.hasMoreElements();) {
+   String header = names.nextElement();
+   StringBuilder value = new StringBuilder();
+   for (Enumeration<String> values = request.getHeaders(header); values.hasMoreElements();) {
+    if (value.length() > 0) {
+     value.append(", ");
+    }
+    value.append(values.nextElement());
+   }
+   headers.put(header.toLowerCase(Locale.ENGLISH), headers, value.toString());
+  }
+  return headers;
+ }
+
+ // (as ringo's jsgi connector, an io Stream of the servlet request's input)
+ private Object input(Scriptable scope) {
+  Context cx = Context.getCurrentContext();
+  try {
+   Scriptable io = engine.loadModule(cx, "io", null);
+   Object exports = ScriptableObject.getProperty(io, "exports");
+   Object stream = (exports instanceof Scriptable) ? ScriptableObject.getProperty((Scriptable) exports, "Stream") : NOT_FOUND;
+   if (!(stream instanceof Function)) {
+    throw Context.reportRuntimeError("The io module has no Stream constructor");
+   }
+   return ((Function) stream).construct(cx, scope, new Object[] { Context.javaToJS(request.getInputStream(), scope) });
+  } catch (IOException e) {
+   throw Context.throwAsScriptRuntimeEx(e);
+  }
+ }
+
+ private Scriptable httpVersion(Scriptable scope) {
+  String protocol = request.getProtocol();
+  Object[] version = { Integer.valueOf(1), Integer.valueOf(0) };
+  if (protocol != null) {
+   int slash = protocol.indexOf('/');
+   int dot = protocol.indexOf('.', slash + 1);
+   if (slash > -1 && dot > -1) {
+    try {
+     version[0] = Integer.valueOf(protocol.substring(slash + 1, dot));
+     version[1] = Integer.valueOf(protocol.substring(dot + 1));
+    } catch (NumberFormatException e) {
+     // (keep 1.0)
+    }
+   }
+  }
+  return Context.getCurrentContext().newArray(scope, version);
+ }
+
+ private static String checkString(String str) {
+  return str == null ? "" : str;
+ }
+
+ /**
+  * The request's env, its servlet request/response (and the filter)
+  * wrapped for javascript only once they're read.
+  */
+ static class Env extends LazyObject {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String[] PROPERTIES = { "servletRequest", "servletResponse", "servlet", "filter" };
+
+  private final transient LazyJsgiRequest jsgiRequest;
+
+  Env(LazyJsgiRequest jsgiRequest, Scriptable scope) {
+   super(scope, PROPERTIES);
+   this.jsgiRequest = jsgiRequest;
+  }
+
+  @Override
+  protected int attributes(String name) {
+   return PERMANENT;
+  }
+
+  @Override
+  protected Object create(String name) {
+   Scriptable scope = getParentScope();
+   if (name.equals("servletRequest")) {
+    return Context.javaToJS(jsgiRequest.request, scope);
+   } else if (name.equals("servletResponse")) {
+    return Context.javaToJS(jsgiRequest.response, scope);
+   } else if (name.equals("servlet")) {
+    // (there's no JsgiServlet, for consistency's sake there's "filter" instead)
+    return null;
+   } else if (name.equals("filter")) {
+    return Context.javaToJS(jsgiRequest.filter, scope);
+   }
+   return NOT_FOUND;
+  }
+ }
+}
@@ -0,0 +1,126 @@
+package org.springo;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * A javascript object whose properties are created on first access (see
+ * LazyJsgiRequest).
+ */
+abstract class LazyObject extends ScriptableObject {
+
+ private static final long serialVersionUID = 1L;
+
+ // The lazy slots not materialized yet (null once they all are):
+ private Set<String> pending;
+
+ LazyObject(Scriptable scope, String[] names) {
+  setParentScope(scope);
+  setPrototype(ScriptableObject.getObjectPrototype(scope));
+  pending = new LinkedHashSet<String>(Arrays.asList(names));
+ }
+
+ /**
+  * Create a lazy property's value (or NOT_FOUND).
+  */
+ protected abstract Object create(String name);
+
+ /**
+  * The attributes to define a lazy property with.
+  */
+ protected abstract int attributes(String name);
+
+ boolean isPending(String name) {
+  return pending != null && pending.contains(name);
+ }
+
+ // (the slot's no longer lazy, e.g. it's being assigned)
+ private void forget(String name) {
+  if (pending != null && pending.remove(name) && pending.isEmpty()) {
+   pending = null;
+  }
+ }
+
+ private void materialize(String name) {
+  if (isPending(name)) {
+   forget(name);
+   Object value = create(name);
+   if (value != NOT_FOUND) {
+    defineProperty(name, value, attributes(name));
+   }
+  }
+ }
+
+ private void materializeAll() {
+  while (pending != null) {
+   materialize(pending.iterator().next());
+  }
+ }
+
+ /**
+  * The properties defined so far (not creating the lazy ones).
+  */
+ Object[] getIdsWithoutMaterializing() {
+  return super.getIds();
+ }
+
+ @Override
+ public Object get(String name, Scriptable start) {
+  materialize(name);
+  return super.get(name, start);
+ }
+
+ @Override
+ public boolean has(String name, Scriptable start) {
+  // (materialized, since a lazy property can turn out not to exist)
+  materialize(name);
+  return super.has(name, start);
+ }
+
+ @Override
+ public void put(String name, Scriptable start, Object value) {
+  if (start == this) {
+   forget(name);
+  }
+  super.put(name, start, value);
+ }
+
+ @Override
+ public void delete(String name) {
+  forget(name);
+  super.delete(name);
+ }
+
+ @Override
+ public Object[] getIds() {
+  materializeAll();
+  return super.getIds();
+ }
+
+ @Override
+ public Object[] getAllIds() {
+  materializeAll();
+  return super.getAllIds();
+ }
+
+ @Override
+ public void defineOwnProperty(Context cx, Object id, ScriptableObject desc) {
+  if (id instanceof String) {
+   forget((String) id);
+  }
+  super.defineOwnProperty(cx, id, desc);
+ }
+
+ @Override
+ protected ScriptableObject getOwnPropertyDescriptor(Context cx, Object id) {
+  if (id instanceof String) {
+   materialize((String) id);
+  }
+  return super.getOwnPropertyDescriptor(cx, id);
+ }
+}
@@ -0,0 +1,206 @@
+package org.springo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Packs a ringo home (and any other module directories) into a single
+ * module archive for PackedRepository, so loading the modules means one
+ * open and mmap rather than a stat/open/read per module.
+ *
+ * Usage (e.g. from deploy tooling):
+ *
+ *   java -cp <classpath> org.springo.ModuleArchiveWriter <archive> <dir> [<prefix>=<dir> ...]
+ *
+ * A plain <dir> is packed at the root of the archive, <prefix>=<dir>
+ * under prefix (e.g. "modules=js/modules").
+ *
+ * The archive is written to a temporary file next to <archive> and then
+ * renamed over it, so a deploy is a single atomic file swap: a running
+ * RingoJsgiFilter (configured with the "module-archive" init-param)
+ * sees the archive's modification time change and rebuilds its engine
+ * from the new archive.
+ *
+ * The format (all numbers big endian) is:
+ *
+ *   "SPMA" version(int)
+ *   the files' contents, one after another
+ *   the index: per file path(modified UTF-8) offset(long) length(int)
+ *     lastModified(long) crc32(int)
+ *   entryCount(int) indexOffset(long) "SPMA"
+ */
+public class ModuleArchiveWriter {
+
+ public static final int MAGIC = 0x53504D41; // "SPMA"
+ public static final int VERSION = 1;
+ public static final int HEADER_LENGTH = 8;
+ public static final int TRAILER_LENGTH = 16;
+
+ private final List<Source> sources = new ArrayList<Source>();
+
+ private static class Source {
+  final String prefix;
+  final File dir;
+
+  Source(String prefix, File dir) {
+   this.prefix = prefix;
+   this.dir = dir;
+  }
+ }
+
+ private static class PendingEntry {
+  final String path;
+  final File file;
+
+  PendingEntry(String path, File file) {
+   this.path = path;
+   this.file = file;
+  }
+ }
+
+ /**
+  * Add a directory to pack (under prefix, "" for the root).
+  */
+ public void add(String prefix, File dir) {
+  if (!dir.isDirectory()) {
+   throw new IllegalArgumentException("Not a directory: " + dir);
+  }
+  if (prefix.length() > 0 && !prefix.endsWith("/")) {
+   prefix = prefix + "/";
+  }
+  sources.add(new Source(prefix, dir));
+ }
+
+ /**
+  * Write the archive (atomically replacing any existing one).
+  *
+  * @return the number of files packed
+  */
+ public int write(File archive) throws IOException {
+  List<PendingEntry> pending = new ArrayList<PendingEntry>();
+  for (Source source : sources) {
+   collect(source.prefix, source.dir, pending);
+  }
+
+  File dir = archive.getAbsoluteFile().getParentFile();
+  File temp = File.createTempFile("." + archive.getName() + ".", ".tmp", dir);
+  boolean written = false;
+  try {
+   FileOutputStream fileOut = new FileOutputStream(temp);
+   DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+   try {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+
+    long[] offsets = new long[pending.size()];
+    int[] lengths = new int[pending.size()];
+    int[] crcs = new int[pending.size()];
+    long[] lastModifieds = new long[pending.size()];
+    byte[] buffer = new byte[65536];
+    long offset = HEADER_LENGTH;
+    for (int i = 0; i < pending.size(); i++) {
+     File file = pending.get(i).file;
+     lastModifieds[i] = file.lastModified();
+     CRC32 crc = new CRC32();
+     long length = 0;
+     InputStream in = new FileInputStream(file);
+     try {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+       out.write(buffer, 0, read);
+       crc.update(buffer, 0, read);
+       length += read;
+      }
+     } finally {
+      in.close();
+     }
+     if (length > Integer.MAX_VALUE) {
+      throw new IOException("File too large for a module archive: " + file);
+     }
+     offsets[i] = offset;
+     lengths[i] = (int) length;
+     crcs[i] = (int) crc.getValue();
+     offset += length;
+    }
+
+    long indexOffset = offset;
+    for (int i = 0; i < pending.size(); i++) {
+     out.writeUTF(pending.get(i).path);
+     out.writeLong(offsets[i]);
+     out.writeInt(lengths[i]);
+     out.writeLong(lastModifieds[i]);
+     out.writeInt(crcs[i]);
+    }
+
+    out.writeInt(pending.size());
+    out.writeLong(indexOffset);
+    out.writeInt(MAGIC);
+    out.flush();
+    fileOut.getFD().sync();
+   } finally {
+    out.close();
+   }
+
+   try {
+    Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+   } catch (AtomicMoveNotSupportedException e) {
+    Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+   }
+   written = true;
+  } finally {
+   if (!written) {
+    temp.delete();
+   }
+  }
+  return pending.size();
+ }
+
+ private void collect(String prefix, File dir, List<PendingEntry> pending) {
+  File[] files = dir.listFiles();
+  if (files == null) {
+   return;
+  }
+  Arrays.sort(files);
+  for (File file : files) {
+   if (file.getName().startsWith(".")) {
+    continue; // (.svn, .git, editor backups etc.)
+   }
+   if (file.isDirectory()) {
+    collect(prefix + file.getName() + "/", file, pending);
+   } else if (file.isFile()) {
+    pending.add(new PendingEntry(prefix + file.getName(), file));
+   }
+  }
+ }
+
+ public static void main(String[] args) throws IOException {
+  if (args.length < 2) {
+   System.err.println("Usage: ModuleArchiveWriter <archive> <dir> [<prefix>=<dir> ...]");
+   System.exit(1);
+  }
+  ModuleArchiveWriter writer = new ModuleArchiveWriter();
+  for (int i = 1; i < args.length; i++) {
+   int equals = args[i].indexOf('=');
+   if (equals == -1) {
+    writer.add("", new File(args[i]));
+   } else {
+    writer.add(args[i].substring(0, equals), new File(args[i].substring(equals + 1)));
+   }
+  }
+  File archive = new File(args[0]);
+  int count = writer.write(archive);
+  System.out.println("Packed " + count + " files into " + archive.getPath());
+ }
+}
@@ -0,0 +1,294 @@
+package org.springo;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reads request bodies with Servlet 3.1 non-blocking I/O before any
+ * javascript runs, so a slow upload (e.g. from a mobile client) doesn't
+ * tie up a container thread the way reading servletRequest.body in the
+ * modifyrequestbody middleware would.
+ *
+ * RingoJsgiFilter hands requests with a body to start(), which puts the
+ * request in async mode and reads the body as it arrives (on whichever
+ * container thread the ReadListener is called on) into a pooled buffer.
+ * Once the whole body's arrived it's moved out of the pooled buffer
+ * (into one sized to fit, so the pooled one's straight back in the pool)
+ * and the request is dispatched (an ASYNC dispatch) back through the
+ * filter, which wraps it in a BufferedRequestWrapper (see wrap()) so the
+ * javascript and Spring read the buffered body.
+ *
+ * Bodies bigger than the limit are rejected with a 413, before reading
+ * anything if the Content-Length says so.
+ *
+ * Note:  the filter needs <async-supported>true</async-supported> and
+ *   <dispatcher>ASYNC</dispatcher> in its filter-mapping.  Form posts
+ *   are left alone (the container needs to parse them itself).
+ *
+ * Note:  the request goes through the filters after this one (including
+ *   Spring's, e.g. security filters) on the ASYNC dispatch, so any of
+ *   them not mapped with <dispatcher>ASYNC</dispatcher> are skipped for
+ *   the requests whose bodies were read.  Map them for ASYNC too (or
+ *   limit the reading with "nonblocking-body-read-paths").
+ */
+public class NonBlockingBodyReader {
+
+ // The request attribute holding the body once it's been read:
+ public static final String BODY_ATTRIBUTE = "org.springo.NonBlockingBodyReader.body";
+
+ public static final int DEFAULT_MAX_BODY_BYTES = 10 * 1024 * 1024;
+ public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+ // Buffers of this size are pooled (bodies that don't fit grow into
+ // unpooled buffers):
+ static final int POOLED_BUFFER_SIZE = 64 * 1024;
+ private static final int MAX_POOLED_BUFFERS = 64;
+
+ private static SpringoLog log = SpringoLog.getLogger(NonBlockingBodyReader.class);
+
+ private final int maxBodyBytes;
+ private final long timeoutMillis;
+ private final String[] pathPrefixes;
+
+ private final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<byte[]>(MAX_POOLED_BUFFERS);
+
+ /**
+  * @param maxBodyBytes the largest body accepted
+  * @param timeoutMillis how long to wait for the whole body
+  * @param pathPrefixes only read the bodies of requests to these urls
+  *   (null or empty for all requests)
+  */
+ public NonBlockingBodyReader(int maxBodyBytes, long timeoutMillis, String[] pathPrefixes) {
+  this.maxBodyBytes = maxBodyBytes;
+  this.timeoutMillis = timeoutMillis;
+  this.pathPrefixes = (pathPrefixes == null) ? new String[0] : pathPrefixes;
+ }
+
+ /**
+  * Should this request's body be read before running the javascript?
+  */
+ public boolean shouldRead(HttpServletRequest request) {
+  if (request.getDispatcherType() != DispatcherType.REQUEST || !request.isAsyncSupported() ||
+   request.getAttribute(BODY_ATTRIBUTE) != null) {
+   return false;
+  }
+  long contentLength = request.getContentLengthLong();
+  if (contentLength == 0 || (contentLength == -1 && request.getHeader("Transfer-Encoding") == null)) {
+   return false;
+  }
+  String contentType = request.getContentType();
+  if (contentType != null) {
+   contentType = contentType.toLowerCase();
+   if (contentType.startsWith("application/x-www-form-urlencoded") || contentType.startsWith("multipart/")) {
+    return false;
+   }
+  }
+  if (pathPrefixes.length == 0) {
+   return true;
+  }
+  String uri = request.getRequestURI();
+  for (String prefix : pathPrefixes) {
+   if (uri.startsWith(prefix)) {
+    return true;
+   }
+  }
+  return false;
+ }
+
+ /**
+  * Start reading the request's body (the filter should return
+  * immediately after calling this).
+  */
+ public void start(HttpServletRequest request, HttpServletResponse response) throws IOException {
+  long contentLength = request.getContentLengthLong();
+  if (contentLength > maxBodyBytes) {
+   reject(response);
+   return;
+  }
+
+  AsyncContext asyncContext = request.startAsync(request, response);
+  asyncContext.setTimeout(timeoutMillis);
+  BodyListener listener = new BodyListener(asyncContext, request.getInputStream(),
+   contentLength > 0 ? (int) contentLength : 0);
+  asyncContext.addListener(listener);
+  request.getInputStream().setReadListener(listener);
+ }
+
+ /**
+  * Wrap a request (dispatched back once its body was read) so the body
+  * is read from the buffer (without copying it, the buffer isn't pooled).
+  *
+  * @return the wrapped request, or null if the request's body wasn't read
+  */
+ public static BufferedRequestWrapper wrap(ServletRequest request) {
+  Object body = request.getAttribute(BODY_ATTRIBUTE);
+  if (body instanceof Body && request instanceof HttpServletRequest) {
+   return new BufferedRequestWrapper((HttpServletRequest) request, ((Body) body).buffer, ((Body) body).length);
+  }
+  return null;
+ }
+
+ /**
+  * Drop the request's body (once the request's done).
+  */
+ public void release(ServletRequest request) {
+  if (request.getAttribute(BODY_ATTRIBUTE) != null) {
+   request.removeAttribute(BODY_ATTRIBUTE);
+  }
+ }
+
+ private void reject(HttpServletResponse response) throws IOException {
+  if (!response.isCommitted()) {
+   // the rest of the body's not going to be read:
+   response.setHeader("Connection", "close");
+   response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+    "Request body larger than " + maxBodyBytes + " bytes");
+  }
+ }
+
+ // (never a buffer bigger than the largest body accepted)
+ byte[] borrowBuffer(int size) {
+  if (size <= POOLED_BUFFER_SIZE && POOLED_BUFFER_SIZE <= maxBodyBytes) {
+   byte[] buffer = pool.poll();
+   return (buffer != null) ? buffer : new byte[POOLED_BUFFER_SIZE];
+  }
+  return new byte[Math.max(1, Math.min(size > 0 ? size : POOLED_BUFFER_SIZE, maxBodyBytes))];
+ }
+
+ void returnBuffer(byte[] buffer) {
+  if (buffer.length == POOLED_BUFFER_SIZE) {
+   pool.offer(buffer);
+  }
+ }
+
+ /**
+  * A buffered request body.
+  */
+ static class Body {
+  byte[] buffer;
+  int length = 0;
+
+  Body(byte[] buffer) {
+   this.buffer = buffer;
+  }
+
+  byte[] toByteArray() {
+   byte[] bytes = new byte[length];
+   System.arraycopy(buffer, 0, bytes, 0, length);
+   return bytes;
+  }
+
+  // Move the body out of a pooled buffer (returning that to the pool),
+  // so the request can keep it however long it likes:
+  void unpool(NonBlockingBodyReader reader) {
+   if (buffer != null && buffer.length == POOLED_BUFFER_SIZE) {
+    byte[] pooled = buffer;
+    buffer = toByteArray();
+    reader.returnBuffer(pooled);
+   }
+  }
+
+  void release(NonBlockingBodyReader reader) {
+   if (buffer != null) {
+    reader.returnBuffer(buffer);
+    buffer = null;
+   }
+  }
+ }
+
+ private class BodyListener implements ReadListener, AsyncListener {
+  private final AsyncContext asyncContext;
+  private final ServletInputStream input;
+  private final Body body;
+  private final AtomicBoolean done = new AtomicBoolean(false);
+
+  BodyListener(AsyncContext asyncContext, ServletInputStream input, int expectedLength) {
+   this.asyncContext = asyncContext;
+   this.input = input;
+   this.body = new Body(borrowBuffer(expectedLength));
+  }
+
+  public void onDataAvailable() throws IOException {
+   while (input.isReady() && !input.isFinished()) {
+    if (body.length == body.buffer.length) {
+     if (body.length >= maxBodyBytes) {
+      // (a body of exactly the limit's fine, a byte more isn't)
+      if (input.read() != -1) {
+       fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      }
+      return;
+     }
+     byte[] bigger = new byte[(int) Math.min((long) body.buffer.length * 2, maxBodyBytes)];
+     System.arraycopy(body.buffer, 0, bigger, 0, body.length);
+     returnBuffer(body.buffer);
+     body.buffer = bigger;
+    }
+    int read = input.read(body.buffer, body.length, body.buffer.length - body.length);
+    if (read == -1) {
+     break;
+    }
+    body.length += read;
+    if (body.length > maxBodyBytes) {
+     fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+     return;
+    }
+   }
+  }
+
+  public void onAllDataRead() throws IOException {
+   if (done.compareAndSet(false, true)) {
+    body.unpool(NonBlockingBodyReader.this);
+    asyncContext.getRequest().setAttribute(BODY_ATTRIBUTE, body);
+    asyncContext.dispatch();
+   }
+  }
+
+  public void onError(Throwable t) {
+   log.warn("Failed reading request body: " + t);
+   fail(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  public void onTimeout(AsyncEvent event) throws IOException {
+   fail(HttpServletResponse.SC_REQUEST_TIMEOUT);
+  }
+
+  public void onComplete(AsyncEvent event) throws IOException {}
+
+  public void onError(AsyncEvent event) throws IOException {
+   onError(event.getThrowable());
+  }
+
+  public void onStartAsync(AsyncEvent event) throws IOException {}
+
+  private void fail(int status) {
+   if (done.compareAndSet(false, true)) {
+    body.release(NonBlockingBodyReader.this);
+    try {
+     HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+     if (status == HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE) {
+      reject(response);
+     } else if (!response.isCommitted()) {
+      response.setHeader("Connection", "close");
+      response.sendError(status);
+     }
+    } catch (IOException e) {
+     log.warn("Failed sending error response: " + e);
+    } finally {
+     asyncContext.complete();
+    }
+   }
+  }
+ }
+}
@@ -0,0 +1,368 @@
+package org.springo;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ringojs.repository.AbstractRepository;
+import org.ringojs.repository.AbstractResource;
+import org.ringojs.repository.Repository;
+import org.ringojs.repository.Resource;
+import org.ringojs.util.StringUtils;
+
+/**
+ * A ringo Repository reading all its modules from a single module archive
+ * (as written by ModuleArchiveWriter), e.g. the ringo home configured
+ * with RingoJsgiFilter's "module-archive" init-param.
+ *
+ * The archive is memory mapped and its index read once when the
+ * repository is created, so loading a module is a hash lookup and a copy
+ * out of the mapped file rather than a stat, open and read each.
+ *
+ * This is modeled on ringo's ZipRepository:  the root repository is the
+ * archive itself and the directories in it are child repositories.
+ *
+ * The archive is never modified in place (ModuleArchiveWriter renames a
+ * new archive over the old one) so the mapping stays valid (and the
+ * modules unchanged) for as long as it's in use.  A new archive is picked
+ * up by creating a new PackedRepository, which RingoJsgiFilter does when
+ * it rebuilds its engine.
+ */
+public class PackedRepository extends AbstractRepository {
+
+ private static final String SEPARATOR = "/";
+
+ private final Archive archive;
+
+ // the path of this directory within the archive ("" for the root, else ending in "/")
+ private final String entryPath;
+
+ private final Map<String, PackedResource> packedResources = new ConcurrentHashMap<String, PackedResource>();
+
+ public PackedRepository(String path) throws IOException {
+  this(new File(path));
+ }
+
+ public PackedRepository(File file) throws IOException {
+  this.archive = new Archive(file.getAbsoluteFile());
+  this.entryPath = "";
+  this.parent = null;
+  this.name = archive.file.getName();
+  this.path = archive.file.getPath() + '/';
+ }
+
+ protected PackedRepository(Archive archive, PackedRepository parent, String entryPath) {
+  this.archive = archive;
+  this.parent = parent;
+  this.entryPath = entryPath;
+  String[] pathArray = StringUtils.split(entryPath, SEPARATOR);
+  this.name = pathArray[pathArray.length - 1];
+  this.path = parent.getPath() + name + '/';
+ }
+
+ /**
+  * The archive's modification time (i.e. when it was deployed).
+  */
+ public long lastModified() {
+  return archive.lastModified;
+ }
+
+ public boolean exists() {
+  return entryPath.length() == 0 || archive.directories.containsKey(entryPath);
+ }
+
+ public void create() {
+  throw new UnsupportedOperationException("create() not implemented for PackedRepository");
+ }
+
+ public long getChecksum() {
+  return archive.lastModified;
+ }
+
+ public URL getUrl() throws MalformedURLException {
+  return archive.urlFor(entryPath);
+ }
+
+ @Override
+ protected AbstractRepository createChildRepository(String name) throws IOException {
+  String childPath = entryPath + name + SEPARATOR;
+  if (!archive.directories.containsKey(childPath)) {
+   return null;
+  }
+  return new PackedRepository(archive, this, childPath);
+ }
+
+ @Override
+ protected Resource lookupResource(String name) throws IOException {
+  PackedResource resource = packedResources.get(name);
+  if (resource == null) {
+   resource = new PackedResource(archive, this, entryPath + name);
+   packedResources.put(name, resource);
+  }
+  return resource;
+ }
+
+ @Override
+ protected void getResources(List<Resource> list, boolean recursive) throws IOException {
+  Directory directory = archive.directories.get(entryPath);
+  if (directory == null) {
+   return;
+  }
+  for (String file : directory.files) {
+   list.add(lookupResource(file));
+  }
+  if (recursive) {
+   for (String dir : directory.directories) {
+    AbstractRepository child = lookupRepository(dir);
+    if (child != null) {
+     child.getResources(list, true);
+    }
+   }
+  }
+ }
+
+ public Repository[] getRepositories() throws IOException {
+  Directory directory = archive.directories.get(entryPath);
+  if (directory == null) {
+   return new Repository[0];
+  }
+  List<Repository> list = new ArrayList<Repository>(directory.directories.size());
+  for (String dir : directory.directories) {
+   Repository child = lookupRepository(dir);
+   if (child != null) {
+    list.add(child);
+   }
+  }
+  return list.toArray(new Repository[list.size()]);
+ }
+
+ @Override
+ public int hashCode() {
+  return 17 + (37 * archive.file.hashCode()) + (37 * entryPath.hashCode());
+ }
+
+ @Override
+ public boolean equals(Object obj) {
+  if (!(obj instanceof PackedRepository)) {
+   return false;
+  }
+  PackedRepository other = (PackedRepository) obj;
+  return archive == other.archive && entryPath.equals(other.entryPath);
+ }
+
+ @Override
+ public String toString() {
+  return "PackedRepository[" + path + "]";
+ }
+
+ /**
+  * A module in the archive.
+  */
+ public static class PackedResource extends AbstractResource {
+
+  private final Archive archive;
+  private final String entryPath;
+  private final Entry entry;
+
+  protected PackedResource(Archive archive, PackedRepository repository, String entryPath) {
+   this.archive = archive;
+   this.repository = repository;
+   this.entryPath = entryPath;
+   this.entry = archive.entries.get(entryPath);
+   int lastSlash = entryPath.lastIndexOf('/');
+   this.name = lastSlash < 0 ? entryPath : entryPath.substring(lastSlash + 1);
+   this.path = repository.getPath() + name;
+   setBaseNameFromName(name);
+  }
+
+  public long lastModified() {
+   return entry == null ? 0 : entry.lastModified;
+  }
+
+  public boolean exists() {
+   return entry != null;
+  }
+
+  public long getLength() {
+   return entry == null ? 0 : entry.length;
+  }
+
+  public InputStream getInputStream() throws IOException {
+   if (entry == null) {
+    throw new IOException("No such module in " + archive.file + ": " + entryPath);
+   }
+   return stripShebang(new ByteBufferInputStream(archive.slice(entry)));
+  }
+
+  public URL getUrl() throws MalformedURLException {
+   return archive.urlFor(entryPath);
+  }
+
+  public long getChecksum() {
+   return entry == null ? 0 : (entry.lastModified ^ ((long) entry.crc << 32));
+  }
+
+  @Override
+  public int hashCode() {
+   return 17 + archive.file.hashCode() + 37 * entryPath.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+   if (!(obj instanceof PackedResource)) {
+    return false;
+   }
+   PackedResource other = (PackedResource) obj;
+   return archive == other.archive && entryPath.equals(other.entryPath);
+  }
+
+  @Override
+  public String toString() {
+   return "PackedResource[" + path + "]";
+  }
+ }
+
+ static class Entry {
+  final long offset;
+  final int length;
+  final long lastModified;
+  final int crc;
+
+  Entry(long offset, int length, long lastModified, int crc) {
+   this.offset = offset;
+   this.length = length;
+   this.lastModified = lastModified;
+   this.crc = crc;
+  }
+ }
+
+ static class Directory {
+  final TreeSet<String> files = new TreeSet<String>();
+  final TreeSet<String> directories = new TreeSet<String>();
+ }
+
+ /**
+  * The memory mapped archive and its index.
+  */
+ static class Archive {
+  final File file;
+  final long lastModified;
+  final MappedByteBuffer buffer;
+  final Map<String, Entry> entries;
+  final Map<String, Directory> directories = new HashMap<String, Directory>();
+  private final URLStreamHandler urlHandler;
+
+  Archive(File file) throws IOException {
+   this.file = file;
+   this.lastModified = file.lastModified();
+
+   RandomAccessFile raf = new RandomAccessFile(file, "r");
+   try {
+    FileChannel channel = raf.getChannel();
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE) {
+     throw new IOException("Module archive too large to map: " + file);
+    }
+    if (size < ModuleArchiveWriter.HEADER_LENGTH + ModuleArchiveWriter.TRAILER_LENGTH) {
+     throw new IOException("Not a module archive: " + file);
+    }
+    // (the mapping stays valid after the channel's closed)
+    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+   } finally {
+    raf.close();
+   }
+
+   int trailer = buffer.limit() - ModuleArchiveWriter.TRAILER_LENGTH;
+   if (buffer.getInt(0) != ModuleArchiveWriter.MAGIC || buffer.getInt(trailer + 12) != ModuleArchiveWriter.MAGIC) {
+    throw new IOException("Not a module archive: " + file);
+   }
+   if (buffer.getInt(4) != ModuleArchiveWriter.VERSION) {
+    throw new IOException("Unsupported module archive version " + buffer.getInt(4) + ": " + file);
+   }
+   int count = buffer.getInt(trailer);
+   long indexOffset = buffer.getLong(trailer + 4);
+
+   entries = new HashMap<String, Entry>(count * 2);
+   directories.put("", new Directory());
+   ByteBuffer index = buffer.duplicate();
+   index.position((int) indexOffset);
+   index.limit(trailer);
+   DataInputStream in = new DataInputStream(new ByteBufferInputStream(index));
+   for (int i = 0; i < count; i++) {
+    String path = in.readUTF();
+    Entry entry = new Entry(in.readLong(), in.readInt(), in.readLong(), in.readInt());
+    if (entry.offset < ModuleArchiveWriter.HEADER_LENGTH || entry.offset + entry.length > indexOffset) {
+     throw new IOException("Corrupt module archive (bad entry \"" + path + "\"): " + file);
+    }
+    entries.put(path, entry);
+    addToDirectory(path);
+   }
+
+   urlHandler = new URLStreamHandler() {
+    @Override
+    protected URLConnection openConnection(final URL url) throws IOException {
+     final String entryPath = url.getRef() == null ? "" : url.getRef();
+     return new URLConnection(url) {
+      @Override
+      public void connect() {}
+
+      @Override
+      public InputStream getInputStream() throws IOException {
+       Entry entry = entries.get(entryPath);
+       if (entry == null) {
+        throw new IOException("No such module in " + Archive.this.file + ": " + entryPath);
+       }
+       return new ByteBufferInputStream(slice(entry));
+      }
+     };
+    }
+   };
+  }
+
+  private void addToDirectory(String path) {
+   int slash = path.lastIndexOf('/');
+   String dir = slash < 0 ? "" : path.substring(0, slash + 1);
+   directoryFor(dir).files.add(path.substring(slash + 1));
+  }
+
+  private Directory directoryFor(String dir) {
+   Directory directory = directories.get(dir);
+   if (directory == null) {
+    directory = new Directory();
+    directories.put(dir, directory);
+    // and make sure its parent lists it:
+    int slash = dir.lastIndexOf('/', dir.length() - 2);
+    String parentDir = slash < 0 ? "" : dir.substring(0, slash + 1);
+    directoryFor(parentDir).directories.add(dir.substring(slash + 1, dir.length() - 1));
+   }
+   return directory;
+  }
+
+  ByteBuffer slice(Entry entry) {
+   ByteBuffer slice = buffer.duplicate();
+   slice.position((int) entry.offset);
+   slice.limit((int) entry.offset + entry.length);
+   return slice;
+  }
+
+  // e.g. springo-archive:/path/to/app.sma#modules/foo.js
+  URL urlFor(String entryPath) throws MalformedURLException {
+   return new URL("springo-archive", null, -1, file.getPath() + "#" + entryPath, urlHandler);
+  }
+ }
+}
@@ -0,0 +1,585 @@
+package org.springo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * An in-process cache of final responses in front of the javascript
+ * (opted into with the "response-cache-max-bytes" filter init-param).
+ *
+ * GET requests are looked up before the RhinoEngine is entered at all,
+ * and on a miss the response is captured (as it's written through to the
+ * client) and stored if its headers say it may be:
+ *
+ *   - Cache-Control s-maxage or max-age, or else Expires, give how long
+ *     the response is fresh for.  Responses with Cache-Control no-store,
+ *     no-cache or private, a Set-Cookie header, or "Vary: *" aren't stored.
+ *   - Vary'ing request headers are part of the lookup (up to
+ *     MAX_VARIANTS variants are kept per url).
+ *   - Cache-Control stale-while-revalidate (or the filter's
+ *     "response-cache-stale-seconds" default) lets a stale response be
+ *     served while a single request (whichever gets there first)
+ *     regenerates it.
+ *   - Requests with "Cache-Control: no-cache" (or "Pragma: no-cache") or
+ *     an Authorization header skip the lookup.
+ *
+ * The cache is bounded by the total bytes of the cached bodies and
+ * headers (least recently used responses are evicted first), and it's
+ * cleared whenever the RhinoEngine is rebuilt (i.e. new javascript was
+ * deployed).  Hit/miss counts are available from getStats().
+ */
+public class ResponseCache {
+
+ public static final int MAX_VARIANTS = 8;
+
+ // The request attribute marking the request regenerating a stale response:
+ private static final String REVALIDATING_ATTRIBUTE = "org.springo.ResponseCache.revalidating";
+
+ private final long maxBytes;
+ private final int maxEntryBytes;
+ private final long defaultStaleMillis;
+
+ // url -> variants, in least recently used order:
+ private final LinkedHashMap<String, Variants> entries = new LinkedHashMap<String, Variants>(256, 0.75f, true);
+ private long totalBytes = 0;
+
+ private final AtomicLong hits = new AtomicLong();
+ private final AtomicLong staleHits = new AtomicLong();
+ private final AtomicLong misses = new AtomicLong();
+ private final AtomicLong revalidations = new AtomicLong();
+ private final AtomicLong stores = new AtomicLong();
+ private final AtomicLong uncacheable = new AtomicLong();
+ private final AtomicLong evictions = new AtomicLong();
+ private final AtomicLong invalidations = new AtomicLong();
+
+ /**
+  * @param maxBytes the most (body and header) bytes to cache
+  * @param maxEntryBytes the largest single response to cache
+  * @param defaultStaleMillis how long responses without their own
+  *   stale-while-revalidate may be served stale (while revalidating)
+  */
+ public ResponseCache(long maxBytes, int maxEntryBytes, long defaultStaleMillis) {
+  this.maxBytes = maxBytes;
+  this.maxEntryBytes = maxEntryBytes;
+  this.defaultStaleMillis = defaultStaleMillis;
+ }
+
+ /**
+  * Is this a request the cache deals with at all?
+  */
+ public boolean isCacheable(HttpServletRequest request) {
+  return "GET".equals(request.getMethod()) && request.getHeader("Authorization") == null;
+ }
+
+ /**
+  * Serve the request from the cache if possible.
+  *
+  * @return true if the response was served, false if the request
+  *   should be handled as normal (and passed to store() afterwards)
+  */
+ public boolean serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+  if (isNoCache(request)) {
+   misses.incrementAndGet();
+   return false;
+  }
+
+  String key = keyOf(request);
+  Entry entry = null;
+  synchronized (entries) {
+   Variants variants = entries.get(key);
+   if (variants != null) {
+    entry = variants.find(request);
+   }
+  }
+
+  long now = System.currentTimeMillis();
+  if (entry == null || now >= entry.staleUntil) {
+   misses.incrementAndGet();
+   return false;
+  }
+
+  if (now >= entry.freshUntil) {
+   // stale: let one request regenerate it while the rest get the stale copy
+   if (entry.revalidating.compareAndSet(false, true)) {
+    revalidations.incrementAndGet();
+    request.setAttribute(REVALIDATING_ATTRIBUTE, entry);
+    return false;
+   }
+   staleHits.incrementAndGet();
+  } else {
+   hits.incrementAndGet();
+  }
+
+  entry.writeTo(response, now);
+  return true;
+ }
+
+ /**
+  * Wrap the response of a request that wasn't served from the cache to
+  * capture it for store().
+  */
+ public CachingResponseWrapper wrap(HttpServletResponse response) {
+  return new CachingResponseWrapper(response, maxEntryBytes);
+ }
+
+ /**
+  * Store the captured response (if it's cacheable).
+  */
+ public void store(HttpServletRequest request, CachingResponseWrapper response) {
+  try {
+   response.flushCapture();
+   Entry entry = response.toEntry(request, defaultStaleMillis);
+   if (entry == null) {
+    uncacheable.incrementAndGet();
+    return;
+   }
+   stores.incrementAndGet();
+   String key = keyOf(request);
+   synchronized (entries) {
+    Variants variants = entries.get(key);
+    if (variants == null) {
+     variants = new Variants();
+     entries.put(key, variants);
+    }
+    totalBytes += variants.put(entry);
+    evict();
+   }
+  } catch (IOException e) {
+   uncacheable.incrementAndGet();
+  } finally {
+   abandon(request);
+  }
+ }
+
+ /**
+  * Let another request revalidate the stale response this request was
+  * regenerating (if any), e.g. when it failed.  Does nothing after store().
+  */
+ public void abandon(HttpServletRequest request) {
+  Entry revalidating = (Entry) request.getAttribute(REVALIDATING_ATTRIBUTE);
+  if (revalidating != null) {
+   revalidating.revalidating.set(false);
+   request.removeAttribute(REVALIDATING_ATTRIBUTE);
+  }
+ }
+
+ /**
+  * Remove everything (e.g. when new javascript has been deployed).
+  */
+ public void clear() {
+  synchronized (entries) {
+   entries.clear();
+   totalBytes = 0;
+  }
+  invalidations.incrementAndGet();
+ }
+
+ /**
+  * The cache's metrics: hits, staleHits, misses, revalidations, stores,
+  * uncacheable, evictions, invalidations, entries and bytes.
+  */
+ public Map<String, Object> getStats() {
+  Map<String, Object> stats = new LinkedHashMap<String, Object>();
+  stats.put("hits", hits.get());
+  stats.put("staleHits", staleHits.get());
+  stats.put("misses", misses.get());
+  stats.put("revalidations", revalidations.get());
+  stats.put("stores", stores.get());
+  stats.put("uncacheable", uncacheable.get());
+  stats.put("evictions", evictions.get());
+  stats.put("invalidations", invalidations.get());
+  synchronized (entries) {
+   stats.put("entries", entries.size());
+   stats.put("bytes", totalBytes);
+  }
+  stats.put("maxBytes", maxBytes);
+  return stats;
+ }
+
+ // (called holding the entries lock)
+ private void evict() {
+  Iterator<Variants> lru = entries.values().iterator();
+  while (totalBytes > maxBytes && lru.hasNext()) {
+   Variants variants = lru.next();
+   totalBytes -= variants.bytes;
+   lru.remove();
+   evictions.incrementAndGet();
+  }
+ }
+
+ private static String keyOf(HttpServletRequest request) {
+  String query = request.getQueryString();
+  return query == null ? request.getRequestURI() : request.getRequestURI() + "?" + query;
+ }
+
+ private static boolean isNoCache(HttpServletRequest request) {
+  String cacheControl = request.getHeader("Cache-Control");
+  if (cacheControl != null) {
+   String lower = cacheControl.toLowerCase();
+   if (lower.contains("no-cache") || lower.contains("no-store") || lower.contains("max-age=0")) {
+    return true;
+   }
+  }
+  String pragma = request.getHeader("Pragma");
+  return pragma != null && pragma.toLowerCase().contains("no-cache");
+ }
+
+ /**
+  * Get a Cache-Control directive's (seconds) value, -1 if not present.
+  */
+ static long directiveSeconds(String cacheControl, String directive) {
+  int i = cacheControl.indexOf(directive + "=");
+  while (i > 0 && cacheControl.charAt(i - 1) != ',' && cacheControl.charAt(i - 1) != ' ') {
+   i = cacheControl.indexOf(directive + "=", i + 1);
+  }
+  if (i == -1) {
+   return -1;
+  }
+  int start = i + directive.length() + 1;
+  int end = start;
+  while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+   end++;
+  }
+  try {
+   return Long.parseLong(cacheControl.substring(start, end));
+  } catch (NumberFormatException e) {
+   return -1;
+  }
+ }
+
+ /**
+  * The cached variants (by Vary'ing request headers) of a url.
+  */
+ private static class Variants {
+  private final List<Entry> list = new ArrayList<Entry>(1);
+  long bytes = 0;
+
+  Entry find(HttpServletRequest request) {
+   for (int i = 0; i < list.size(); i++) {
+    Entry entry = list.get(i);
+    if (entry.matches(request)) {
+     return entry;
+    }
+   }
+   return null;
+  }
+
+  // returns the change in size
+  long put(Entry entry) {
+   long before = bytes;
+   for (Iterator<Entry> i = list.iterator(); i.hasNext();) {
+    Entry existing = i.next();
+    if (existing.sameVariant(entry)) {
+     bytes -= existing.size;
+     i.remove();
+    }
+   }
+   if (list.size() >= MAX_VARIANTS) {
+    bytes -= list.remove(0).size;
+   }
+   list.add(entry);
+   bytes += entry.size;
+   return bytes - before;
+  }
+ }
+
+ /**
+  * A cached response.
+  */
+ static class Entry {
+  final int status;
+  final String contentType;
+  final List<String[]> headers;
+  final byte[] body;
+  final String[] varyNames;
+  final String[] varyValues;
+  final long storedAt;
+  final long freshUntil;
+  final long staleUntil;
+  final long size;
+  final AtomicBoolean revalidating = new AtomicBoolean(false);
+
+  Entry(int status, String contentType, List<String[]> headers, byte[] body,
+   String[] varyNames, String[] varyValues, long storedAt, long freshUntil, long staleUntil) {
+   this.status = status;
+   this.contentType = contentType;
+   this.headers = headers;
+   this.body = body;
+   this.varyNames = varyNames;
+   this.varyValues = varyValues;
+   this.storedAt = storedAt;
+   this.freshUntil = freshUntil;
+   this.staleUntil = staleUntil;
+   long headerBytes = 64;
+   for (String[] header : headers) {
+    headerBytes += 2 * (header[0].length() + header[1].length()) + 32;
+   }
+   this.size = body.length + headerBytes;
+  }
+
+  boolean matches(HttpServletRequest request) {
+   for (int i = 0; i < varyNames.length; i++) {
+    String value = request.getHeader(varyNames[i]);
+    if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+     return false;
+    }
+   }
+   return true;
+  }
+
+  boolean sameVariant(Entry other) {
+   if (varyNames.length != other.varyNames.length) {
+    return false;
+   }
+   for (int i = 0; i < varyNames.length; i++) {
+    if (!varyNames[i].equalsIgnoreCase(other.varyNames[i]) ||
+     (varyValues[i] == null ? other.varyValues[i] != null : !varyValues[i].equals(other.varyValues[i]))) {
+     return false;
+    }
+   }
+   return true;
+  }
+
+  void writeTo(HttpServletResponse response, long now) throws IOException {
+   response.setStatus(status);
+   for (String[] header : headers) {
+    response.addHeader(header[0], header[1]);
+   }
+   if (contentType != null) {
+    response.setContentType(contentType);
+   }
+   response.setHeader("Age", String.valueOf(Math.max(0, (now - storedAt) / 1000)));
+   response.setContentLength(body.length);
+   response.getOutputStream().write(body);
+  }
+ }
+
+ /**
+  * Passes the response through to the client while keeping a copy (of
+  * up to maxEntryBytes of the body) for the cache.
+  */
+ public static class CachingResponseWrapper extends HttpServletResponseWrapper {
+
+  // Headers not worth storing (the container sets them again):
+  private static final Collection<String> SKIPPED_HEADERS = new HashSet<String>(
+   Arrays.asList("date", "age", "content-length", "content-type", "transfer-encoding", "connection", "keep-alive"));
+
+  private final int maxEntryBytes;
+  private final ByteArrayOutputStream copy = new ByteArrayOutputStream(1024);
+  private boolean overflowed = false;
+  private TeeOutputStream stream = null;
+  private PrintWriter writer = null;
+
+  CachingResponseWrapper(HttpServletResponse response, int maxEntryBytes) {
+   super(response);
+   this.maxEntryBytes = maxEntryBytes;
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+   if (stream == null) {
+    stream = new TeeOutputStream(super.getOutputStream());
+   }
+   return stream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+   if (writer == null) {
+    String encoding = getCharacterEncoding();
+    writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), encoding != null ? encoding : "ISO-8859-1"));
+   }
+   return writer;
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+   if (writer != null) {
+    writer.flush();
+   }
+   super.flushBuffer();
+  }
+
+  @Override
+  public void reset() {
+   super.reset();
+   resetCopy();
+  }
+
+  @Override
+  public void resetBuffer() {
+   super.resetBuffer();
+   resetCopy();
+  }
+
+  private void resetCopy() {
+   copy.reset();
+   overflowed = false;
+  }
+
+  void flushCapture() throws IOException {
+   if (writer != null) {
+    writer.flush();
+   }
+  }
+
+  /**
+   * Make the cache entry for this response, or null if it can't (or
+   * mustn't) be cached.
+   */
+  Entry toEntry(HttpServletRequest request, long defaultStaleMillis) {
+   int status = getStatus();
+   if (overflowed || !(status == 200 || status == 203 || status == 301 || status == 404 || status == 410) ||
+    containsHeader("Set-Cookie")) {
+    return null;
+   }
+
+   long now = System.currentTimeMillis();
+   long maxAgeMillis = -1;
+   long staleMillis = defaultStaleMillis;
+   String cacheControl = getHeader("Cache-Control");
+   if (cacheControl != null) {
+    String lower = cacheControl.toLowerCase();
+    if (lower.contains("no-store") || lower.contains("no-cache") || lower.contains("private")) {
+     return null;
+    }
+    long seconds = directiveSeconds(lower, "s-maxage");
+    if (seconds < 0) {
+     seconds = directiveSeconds(lower, "max-age");
+    }
+    if (seconds >= 0) {
+     maxAgeMillis = seconds * 1000;
+    }
+    long stale = directiveSeconds(lower, "stale-while-revalidate");
+    if (stale >= 0) {
+     staleMillis = stale * 1000;
+    }
+   }
+   if (maxAgeMillis < 0 && containsHeader("Expires")) {
+    try {
+     maxAgeMillis = parseDate(getHeader("Expires")) - now;
+    } catch (IllegalArgumentException e) {
+     maxAgeMillis = 0; // (an invalid Expires means already expired)
+    }
+   }
+   if (maxAgeMillis <= 0) {
+    return null;
+   }
+
+   List<String> varyNames = new ArrayList<String>();
+   for (String vary : getHeaders("Vary")) {
+    for (String name : vary.split(",")) {
+     name = name.trim();
+     if ("*".equals(name)) {
+      return null;
+     }
+     if (name.length() > 0) {
+      varyNames.add(name);
+     }
+    }
+   }
+   String[] names = varyNames.toArray(new String[varyNames.size()]);
+   String[] values = new String[names.length];
+   for (int i = 0; i < names.length; i++) {
+    values[i] = request.getHeader(names[i]);
+   }
+
+   List<String[]> headers = new ArrayList<String[]>();
+   for (String name : getHeaderNames()) {
+    if (!SKIPPED_HEADERS.contains(name.toLowerCase())) {
+     for (String value : getHeaders(name)) {
+      headers.add(new String[] { name, value });
+     }
+    }
+   }
+
+   return new Entry(status, getContentType(), Collections.unmodifiableList(headers), copy.toByteArray(),
+    names, values, now, now + maxAgeMillis, now + maxAgeMillis + staleMillis);
+  }
+
+  private static long parseDate(String value) {
+   SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+   format.setTimeZone(TimeZone.getTimeZone("GMT"));
+   try {
+    return format.parse(value).getTime();
+   } catch (ParseException e) {
+    throw new IllegalArgumentException(e);
+   }
+  }
+
+  private void capture(byte[] b, int off, int len) {
+   if (overflowed) {
+    return;
+   }
+   if (copy.size() + len > maxEntryBytes) {
+    overflowed = true;
+    copy.reset();
+    return;
+   }
+   copy.write(b, off, len);
+  }
+
+  private class TeeOutputStream extends ServletOutputStream {
+   private final ServletOutputStream out;
+
+   TeeOutputStream(ServletOutputStream out) {
+    this.out = out;
+   }
+
+   @Override
+   public void write(int b) throws IOException {
+    out.write(b);
+    capture(new byte[] { (byte) b }, 0, 1);
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    capture(b, off, len);
+   }
+
+   @Override
+   public void flush() throws IOException {
+    out.flush();
+   }
+
+   @Override
+   public void close() throws IOException {
+    out.close();
+   }
+
+   @Override
+   public boolean isReady() {
+    return out.isReady();
+   }
+
+   @Override
+   public void setWriteListener(WriteListener listener) {
+    out.setWriteListener(listener);
+   }
+  }
+ }
+}
@@ -35,6 +35,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import java.lang.reflect.Field;
 
@@ -50,6 +52,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.JavaScriptException;
 import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.Scriptable;
@@ -68,20 +71,61 @@ import org.ringojs.util.StringUtils;
 
 import org.springo.BufferedResponseWrapper;
 
-public class RingoJsgiFilter implements Filter {
+public class RingoJsgiFilter implements Filter, EngineRegistry.EngineHolder {
 
  private String module = null;
  private Object function = null;
- private RhinoEngine engine = null;
- private JsgiRequest requestProto = null;
+
+ // The engine requests are run on, with its ContextFactory, request
+ // prototype and app (replaced together, see RunningEngine):
+ private volatile RunningEngine current = null;
+
+ // Starts the javascript interpreted and promotes it to a compiled engine
+ // once it's hot, if enabled with the "tiered-compilation" init-param:
+ private TieredCompilation tiered = null;
+
+ // Restores the app's module from a snapshot (rather than evaluating it)
+ // on startup, if enabled with the "engine-snapshot" init-param:
+ private EngineSnapshot snapshot = null;
+
+ // Passes the javascript a LazyJsgiRequest (materializing the request's
+ // properties as they're read) if enabled with the "lazy-request" init-param:
+ private boolean lazyRequest = false;
+
+ // The limits on this filter's requests:
+ private volatile ScriptWatchdog watchdog = new ScriptWatchdog(0, 0);
+
+ // Reads request bodies (non-blocking) before the javascript runs,
+ // if enabled with the "nonblocking-body-read" init-param:
+ private NonBlockingBodyReader bodyReader = null;
+
+ // The requests wrapped in a BufferedRequestWrapper up front (so the
+ // javascript can modify them), null for none (see the "buffered-request-paths"
+ // init-param, and bufferRequest() for the middleware wrapping them as needed),
+ // and the longest body the wrappers read into memory:
+ private String[] bufferedRequestPaths = null;
+ private int maxRequestBodyBytes = NonBlockingBodyReader.DEFAULT_MAX_BODY_BYTES;
+
+ // Caches final responses in front of the javascript, if enabled with
+ // the "response-cache-max-bytes" init-param:
+ private ResponseCache responseCache = null;
+
+ // The fraction of this filter's requests whose heap allocation is
+ // sampled (see AllocationSampler and the "allocation-sample-rate" init-param):
+ private double allocationSampleRate = 0;
+
+ // Records a sample of the requests for replaying (see TrafficRecorder):
+ private TrafficRecorder trafficRecorder = null;
 
  private FilterConfig filterConfig = null;
 
- // This allows the RingoModuleBridge to use the same
- // RhinoEngine the filter does, as configured in web.xml
+ // The last initialized filter (kept for compatibility, the
+ // RingoModuleBridge now finds filters by name in the EngineRegistry)
  public static RingoJsgiFilter instance = null;
 
  private static Logger log = Logger.getLogger(RingoJsgiFilter.class);
+ // (for the request path, see SpringoLog)
+ private static SpringoLog requestLog = SpringoLog.getLogger(RingoJsgiFilter.class);
 
  private static boolean ringoEnabled = true;
 
@@ -91,8 +135,44 @@ public class RingoJsgiFilter implements Filter {
 
  private long triggerReloadsFileLastModified = -1;
 
+ // Our engine's configuration in the EngineRegistry:
+ private EngineRegistry.Key engineKey = null;
+
  public final static String JSGI_INTERCEPTED_FILTER_CHAIN = "ringo.javax.servlet.filter.chain";
 
+ /**
+  * An engine along with what's needed to run javascript on it:  the
+  * ContextFactory to enter (the one enforcing the ScriptWatchdog limits,
+  * if enabled), and for the filter's requests the JsgiRequest prototype
+  * and the app (the function restored from the engine snapshot, or its
+  * name).
+  *
+  * A reload or tiered compilation's promotion replaces all of these at
+  * once, so a request (or bridge call) reads the RunningEngine once and
+  * uses only it, never one engine's Context with another's scope.
+  */
+ public static final class RunningEngine {
+  private final RhinoEngine engine;
+  private final ContextFactory contextFactory;
+  private final JsgiRequest requestProto;
+  private final Object app;
+
+  RunningEngine(RhinoEngine engine, ContextFactory contextFactory, JsgiRequest requestProto, Object app) {
+   this.engine = engine;
+   this.contextFactory = (contextFactory != null) ? contextFactory : engine.getContextFactory();
+   this.requestProto = requestProto;
+   this.app = app;
+  }
+
+  public RhinoEngine getEngine() {
+   return engine;
+  }
+
+  public ContextFactory getContextFactory() {
+   return contextFactory;
+  }
+ }
+
  /**
   * Initialize using our custom config which allows the "ringo-home"
   * to optionally be overridden via "-Dscripting.home=X" and/or
@@ -108,8 +188,94 @@ public class RingoJsgiFilter implements Filter {
 
   this.filterConfig = config;
 
+  // The request path's logging (see SpringoLog and the "springolog" module),
+  // whose buffer and loggers are shared by all the filters so are set up
+  // from context-params:
+  SpringoLog.setBufferSize(getContextIntParameter(config, "log-buffer-size", SpringoLog.DEFAULT_BUFFER_SIZE));
+  SpringoLog.setSampleRates(getContextParameter(config, "log-sample-rates"));
+  SpringoLog.setRateLimits(getContextParameter(config, "log-rate-limits"));
+  SpringoLog.retainShared();
+
+  // Sample the heap allocated by this fraction of requests (see AllocationSampler):
+  allocationSampleRate = AllocationSampler.checkSampleRate(getDoubleParameter(config, "allocation-sample-rate", 0));
+
+  long responseCacheMaxBytes = getLongParameter(config, "response-cache-max-bytes", 0);
+  if (responseCacheMaxBytes > 0) {
+   responseCache = new ResponseCache(responseCacheMaxBytes,
+    getIntParameter(config, "response-cache-max-entry-bytes", (int) Math.min(responseCacheMaxBytes / 16, 1024 * 1024)),
+    getLongParameter(config, "response-cache-stale-seconds", 0) * 1000);
+  }
+
+  String trafficFile = config.getInitParameter("traffic-record-file");
+  if (trafficFile != null) {
+   try {
+    trafficRecorder = new TrafficRecorder(trafficFile,
+     getDoubleParameter(config, "traffic-sample-rate", TrafficRecorder.DEFAULT_SAMPLE_RATE),
+     getIntParameter(config, "traffic-max-body-bytes", TrafficRecorder.DEFAULT_MAX_BODY_BYTES),
+     getLongParameter(config, "traffic-max-file-bytes", TrafficRecorder.DEFAULT_MAX_FILE_BYTES),
+     getStringParameter(config, "traffic-omit-headers", TrafficRecorder.DEFAULT_OMIT_HEADERS),
+     config.getInitParameter("traffic-omit-body-paths"));
+   } catch (IOException e) {
+    log.error("Could not record traffic to " + trafficFile + ": " + e.getMessage());
+   }
+  }
+
+  String bufferedPaths = config.getInitParameter("buffered-request-paths");
+  if (bufferedPaths != null && !bufferedPaths.trim().equals("none")) {
+   bufferedRequestPaths = StringUtils.split(bufferedPaths.replace(" ", ""), ",");
+  }
+  maxRequestBodyBytes = getIntParameter(config, "max-request-body-bytes", NonBlockingBodyReader.DEFAULT_MAX_BODY_BYTES);
+
+  if (getBooleanParameter(config, "nonblocking-body-read", false)) {
+   String paths = config.getInitParameter("nonblocking-body-read-paths");
+   String[] prefixes = (paths == null) ? null : StringUtils.split(paths.replace(" ", ""), ",");
+   bodyReader = new NonBlockingBodyReader(maxRequestBodyBytes,
+    getLongParameter(config, "body-read-timeout", NonBlockingBodyReader.DEFAULT_TIMEOUT_MILLIS),
+    prefixes);
+  }
+
+  // Watch the engines replaced by reloads until they're garbage collected
+  // (reporting any still around after this long as leaked), which the
+  // registry does for all the filters so it's set from context-params:
+  EngineRegistry.setRetiredEngineDeadline(getContextLongParameter(config, "retired-engine-deadline",
+   EngineRegistry.DEFAULT_RETIRED_ENGINE_DEADLINE / 1000) * 1000);
+  EngineRegistry.setLeakHeapDumpDir(getContextParameter(config, "leaked-engine-heap-dump-dir"));
+  EngineRegistry.addHolder(this);
+
+  // The most sub-requests of batch requests (see the "batch" middleware)
+  // run through Spring at once (by all the filters, which share the pool):
+  BatchDispatcher.setSharedThreads(getContextIntParameter(config, "batch-threads", BatchDispatcher.DEFAULT_THREADS));
+  BatchDispatcher.retainShared();
+  // (the caches are dropped once the last filter's destroyed)
+  SpringoCache.retainAll();
+
+  lazyRequest = getBooleanParameter(config, "lazy-request", false);
+
+  if (config.getInitParameter("engine-snapshot") != null) {
+   snapshot = new EngineSnapshot(config.getInitParameter("engine-snapshot"));
+  }
+
+  // Reference datasets shared by the engines (see SharedDataStore and
+  // the "springodata" module), e.g. "products=/data/products.tsv", checked
+  // for changes as often as the (JVM wide) context-param says:
+  SharedDataStore.setRefreshMillis(getContextLongParameter(config, "data-store-refresh-seconds",
+   SharedDataStore.DEFAULT_REFRESH_MILLIS / 1000) * 1000);
+  if (config.getInitParameter("data-store") != null) {
+   try {
+    SharedDataStore.register(config.getInitParameter("data-store"));
+   } catch (IOException e) {
+    log.error("Could not load the data store's datasets: " + e.getMessage());
+   }
+  }
+
+  if (getBooleanParameter(config, "tiered-compilation", false)) {
+   tiered = new TieredCompilation(
+    getIntParameter(config, "tiered-optlevel", TieredCompilation.DEFAULT_OPTIMIZED_OPTLEVEL),
+    getLongParameter(config, "tiered-compile-threshold", TieredCompilation.DEFAULT_THRESHOLD));
+  }
+
   if (getLoadRingoOnStartup(config)) {
-   this.engine = createEngine(config, false);
+   createEngine(config, false);
   }
  }
 
@@ -128,6 +294,31 @@ public class RingoJsgiFilter implements Filter {
  }
 
 
+ private Repository getArchiveRepository(String moduleArchive) {
+  try {
+   Repository home = new PackedRepository(moduleArchive);
+   log.info("Loading javascript modules from the module archive: " + moduleArchive);
+   return home;
+  } catch (Exception e) {
+   log.error("Could not open the module archive \"" + moduleArchive + "\" (falling back to RINGO_HOME): " + e.getMessage());
+   return null;
+  }
+ }
+
+ // The module archive can be given with the "module-archive" init-param
+ // or the "scripting.moduleArchive" system property:
+ private String getModuleArchive(FilterConfig config) {
+  String moduleArchive = System.getProperty("scripting.moduleArchive");
+  if (moduleArchive == null) {
+   moduleArchive = config.getInitParameter("module-archive");
+  }
+  if (moduleArchive != null && !(new File(moduleArchive)).isFile()) {
+   log.error("No such module archive \"" + moduleArchive + "\" (using RINGO_HOME instead)");
+   return null;
+  }
+  return moduleArchive;
+ }
+
  /**
   * Create/recreate the RhinoEngine.
   *
@@ -143,54 +334,51 @@ public class RingoJsgiFilter implements Filter {
   * It seems in that approach the file descriptors remain pointed at the
   * old files even after the soft link has changed to the new files.
   *
+  * The engine's swapped in (along with its ContextFactory, request
+  * prototype and app, see RunningEngine) before this returns.
+  *
   * @return
   */
  public synchronized RhinoEngine createEngine(FilterConfig config, boolean onlyIfChanged) throws ServletException {
+  return createEngine(config, onlyIfChanged, (tiered != null) ? tiered.getOptLevel() : getOptLevel(config));
+ }
+
+ private synchronized RhinoEngine createEngine(FilterConfig config, boolean onlyIfChanged, int optlevel) throws ServletException {
 
   RhinoEngine theEngine = null;
+  SpringoContextFactory contextFactory = null;
 
-  if (onlyIfChanged && this.engine != null && !triggerReloadsFileHasChanged()) {
+  RunningEngine running = current;
+  if (onlyIfChanged && running != null && !triggerReloadsFileHasChanged()) {
    // nothing's changed - this was probably a second thread that saw a change
    // while a prior thread was already creating the engine.
-   return this.engine;
+   return running.engine;
   }
 
   log.info("Loading the Ringo/Rhino Engine...");
 
-  String ringoHome = getRingoHome(config);
+  // The modules can be packed into a single archive (see ModuleArchiveWriter)
+  // in which case there's no ringo home directory to resolve:
+  String moduleArchive = getModuleArchive(config);
+  String ringoHome = (moduleArchive != null) ? moduleArchive : getRingoHome(config);
   String modulePath = getStringParameter(config, "module-path", "app");
   module = getStringParameter(config, "config", "config");
 
   function = getStringParameter(config, "app", "app");
-  int optlevel = getOptLevel(config);
   boolean debug = getDebug(config);
   boolean production = getBooleanParameter(config, "production", false);
   boolean verbose = getBooleanParameter(config, "verbose", false);
   boolean legacyMode = getBooleanParameter(config, "legacy-mode", false);
 
-  Repository home = getHomeRepository(ringoHome, config.getServletContext());
-
   try {
-   // Use ',' as platform agnostic path separator
-   String[] paths = StringUtils.split(modulePath, ",");
-   RingoConfiguration ringoConfig = new RingoConfiguration(home, paths, "modules");
-   ringoConfig.setDebug(debug);
-   ringoConfig.setVerbose(verbose);
-   ringoConfig.setParentProtoProperties(legacyMode);
-   ringoConfig.setStrictVars(!legacyMode && !production);
-   ringoConfig.setReloading(!production);
-   ringoConfig.setOptLevel(optlevel);
-   theEngine = new RhinoEngine(ringoConfig, null);
-
-   instance = this; // Save aside the last initialized filter (with a RhinoEngine!)
-
    // They can define the path to a file we watch to know when new javascript is deployed:
    this.triggerReloadsFilePath = getTriggerReloadsFilePath(config);
    if (this.triggerReloadsFilePath == null) {
     // But by default we look to the parent directory of the RINGO_HOME directory.
     // (in production for us this is a soft link which points to the latest
-    // deployment of our scripts):
-    this.triggerReloadsFilePath = ringoHome + "/..";
+    // deployment of our scripts), or the module archive itself (which
+    // ModuleArchiveWriter replaces atomically):
+    this.triggerReloadsFilePath = (moduleArchive != null) ? moduleArchive : ringoHome + "/..";
    }
 
    if (this.triggerReloadsFilePath != null) {
@@ -205,6 +393,30 @@ public class RingoJsgiFilter implements Filter {
      triggerReloadsFilePath = null;
     }
    }
+
+   // Filters (and bridges) configured with the same ringo home, module
+   // path and settings share one engine (see EngineRegistry), which is
+   // rebuilt once per deployment (the trigger file's modification time):
+   EngineRegistry.Key key = new EngineRegistry.Key(
+    (moduleArchive != null) ? "archive:" + moduleArchive : ringoHome,
+    modulePath, optlevel, debug, production, verbose, legacyMode);
+   long stamp = getDeploymentStamp();
+   EngineRegistry.EngineFactory factory = new RingoEngineFactory(config, moduleArchive, modulePath,
+    optlevel, debug, production, verbose, legacyMode);
+   if (key.equals(engineKey)) {
+    theEngine = EngineRegistry.refresh(key, stamp, factory);
+   } else {
+    theEngine = EngineRegistry.acquire(key, stamp, factory);
+    if (engineKey != null) {
+     EngineRegistry.release(engineKey);
+    }
+    engineKey = key;
+   }
+
+   contextFactory = configureWatchdog(config, theEngine);
+
+   instance = this; // Save aside the last initialized filter (with a RhinoEngine!)
+   EngineRegistry.registerFilter(config.getFilterName(), this);
   } catch (Exception e) {
    // Then disable javascript interception completely:
    log.error("Disabling javascript interceptions (ringo failed to initialize): " + e.getMessage());
@@ -213,16 +425,68 @@ public class RingoJsgiFilter implements Filter {
    ringoEnabled = false;
   }
 
+  if (theEngine == null) {
+   return null;
+  }
+
+  Object app = null;
+  if (snapshot != null && ringoEnabled && optlevel == TieredCompilation.INTERPRETED_OPTLEVEL) {
+   app = restoreOrSnapshot(theEngine, contextFactory);
+  }
+  current = new RunningEngine(theEngine, contextFactory, newRequestProto(theEngine),
+   (app != null) ? app : function);
+
+  return theEngine;
+ }
+
+ // The deployment the engine is built for (in the EngineRegistry's terms):
+ private long getDeploymentStamp() {
+  return (triggerReloadsFilePath != null) ? this.triggerReloadsFileLastModified : EngineRegistry.NO_STAMP;
+ }
+
+ // The prototype of the JsgiRequests for an engine's requests:
+ private static JsgiRequest newRequestProto(RhinoEngine theEngine) throws ServletException {
   Context cx = theEngine.getContextFactory().enterContext();
   try {
-   requestProto = new JsgiRequest(cx, theEngine.getScope());
+   return new JsgiRequest(cx, theEngine.getScope());
   } catch (NoSuchMethodException nsm) {
    throw new ServletException(nsm);
   } finally {
    Context.exit();
   }
+ }
 
-  return theEngine;
+ /**
+  * Restore the app's module from the snapshot, or if there isn't one (for
+  * this javascript) load the module now and write a snapshot of it for
+  * the next start.
+  *
+  * Both are done in a Context of the ContextFactory the requests run in
+  * (the snapshot's own enterContext calls join it), so with the
+  * ScriptWatchdog enabled the app's functions are set up for instruction
+  * counting like those loaded by a request.
+  *
+  * @param contextFactory the watchdog's ContextFactory (null if it's off)
+  * @return the restored app function (null if it wasn't restored)
+  */
+ private Object restoreOrSnapshot(RhinoEngine theEngine, ContextFactory contextFactory) {
+  Context cx = ((contextFactory != null) ? contextFactory : theEngine.getContextFactory()).enterContext();
+  Scriptable moduleScope;
+  try {
+   moduleScope = snapshot.restore(theEngine, module);
+   Object app = (moduleScope != null) ? EngineSnapshot.getExport(moduleScope, String.valueOf(function)) : null;
+   if (app != null) {
+    return app;
+   }
+   moduleScope = theEngine.loadModule(cx, module, null);
+  } catch (Exception e) {
+   log.error("Could not load the \"" + module + "\" module to snapshot it: " + e.getMessage());
+   return null;
+  } finally {
+   Context.exit();
+  }
+  snapshot.save(theEngine, module, moduleScope);
+  return null;
  }
 
  public void doFilter(ServletRequest request, ServletResponse response,
@@ -235,46 +499,135 @@ public class RingoJsgiFilter implements Filter {
    return;
   }
 
+  if (bodyReader != null) {
+   // Read the body without blocking first (the request comes back
+   // through here as an ASYNC dispatch once it's been read):
+   if (bodyReader.shouldRead((HttpServletRequest) request)) {
+    bodyReader.start((HttpServletRequest) request, (HttpServletResponse) response);
+    return;
+   }
+  }
+  request = wrapRequest(request);
+
+  TrafficRecorder.Record recording = null;
+  long recordingStart = 0;
+  if (trafficRecorder != null && request instanceof HttpServletRequest && trafficRecorder.shouldRecord()) {
+   if (!(request instanceof BufferedRequestWrapper) && trafficRecorder.shouldRecordBody((HttpServletRequest) request)) {
+    // (so its body can be recorded)
+    request = new BufferedRequestWrapper((HttpServletRequest) request, maxRequestBodyBytes);
+   }
+   recording = trafficRecorder.start((HttpServletRequest) request);
+   recordingStart = System.nanoTime();
+  }
+
   // Let Ringo know about the filter chain:
   // this is used if the ringo code uses "runFilterChain" to delegate processing on to Spring MVC
   request.setAttribute(JSGI_INTERCEPTED_FILTER_CHAIN, chain);
 
-  if (this.engine == null || triggerReloadsFileHasChanged()) {
-   if (this.engine != null) {
+  RunningEngine running = current;
+  if (running == null || triggerReloadsFileHasChanged()) {
+   if (running != null) {
     log.info("Invalidating all cached javascript files");
+    if (tiered != null) {
+     // (new javascript starts out interpreted again)
+     tiered.reset();
+    }
    }
    RhinoEngine newEngine = createEngine(this.filterConfig, true);
    if (newEngine != null) {
-    // Replace the former engine
-    this.engine = newEngine;
+    // (createEngine has replaced the former engine)
+    if (responseCache != null && (running == null || newEngine != running.engine)) {
+     // (the new javascript may well respond differently)
+     responseCache.clear();
+    }
    } else {
     log.error("Trigger-Reload file/dir changed but failed to recreate the RhinoEngine.");
     log.error("The changed javascript files will not be visible without a server restart due to this error.");
    }
   }
 
+  try {
+   HttpServletRequest httpRequest = (HttpServletRequest) request;
+   if (responseCache != null && responseCache.isCacheable(httpRequest)) {
+    // Serve it without entering the engine at all if we can:
+    if (responseCache.serve(httpRequest, (HttpServletResponse) response)) {
+     return;
+    }
+    ResponseCache.CachingResponseWrapper cachingResponse = responseCache.wrap((HttpServletResponse) response);
+    try {
+     invokeRingo(request, cachingResponse, chain);
+     responseCache.store(httpRequest, cachingResponse);
+    } finally {
+     responseCache.abandon(httpRequest);
+    }
+   } else {
+    invokeRingo(request, response, chain);
+   }
+  } finally {
+   if (recording != null) {
+    trafficRecorder.finish(recording, ((HttpServletResponse) response).getStatus(),
+     System.nanoTime() - recordingStart);
+   }
+  }
+ }
+
+ // Run the javascript for a request:
+ private void invokeRingo(ServletRequest request, ServletResponse response,
+  FilterChain chain) throws IOException, ServletException {
+
   long startTime = System.currentTimeMillis();
   if (ringoEnabled) {
 
-   Context cx = engine.getContextFactory().enterContext();
+   SpringoEvents.RequestEvent requestEvent = SpringoEvents.beginRequest((HttpServletRequest) request);
+   AllocationSampler.Sample allocationSample = AllocationSampler.begin((HttpServletRequest) request, allocationSampleRate);
+   SpringoEvents.EngineEntryEvent entryEvent = SpringoEvents.beginEngineEntry((HttpServletRequest) request);
+   // (read once:  a promotion may swap in another engine meanwhile, and
+   // this request stays on this one)
+   RunningEngine running = current;
+   RhinoEngine engine = running.engine;
+   Context cx = running.contextFactory.enterContext();
+   String uri = ((HttpServletRequest) request).getRequestURI();
+   ScriptWatchdog.Budget budget = ScriptWatchdog.begin(cx, uri, watchdog.getLimits(uri));
    try {
     // Note the final argument below is supposed to be the JsgiServlet which is normally made
     // available in javascript as "request.servlet" but for us is simply null.
-    JsgiRequest req = new JsgiRequest(cx, (HttpServletRequest) request, (HttpServletResponse) response,
-     requestProto, engine.getScope(), null);
+    Scriptable req;
+    if (lazyRequest) {
+     // (its env, headers etc. are only built if the javascript reads them)
+     req = new LazyJsgiRequest((HttpServletRequest) request, (HttpServletResponse) response,
+      this, running.requestProto, engine, engine.getScope());
+    } else {
+     req = new JsgiRequest(cx, (HttpServletRequest) request, (HttpServletResponse) response,
+      running.requestProto, engine.getScope(), null);
 
-    // For consistency's sake, add "filter" since there's no "servlet":
-    Scriptable env = (Scriptable) ScriptableObject.getProperty(req, "env");
-    ScriptableObject.defineProperty(env, "filter", Context.javaToJS(this, req), ScriptableObject.PERMANENT);
+     // For consistency's sake, add "filter" since there's no "servlet":
+     Scriptable env = (Scriptable) ScriptableObject.getProperty(req, "env");
+     ScriptableObject.defineProperty(env, "filter", Context.javaToJS(this, req), ScriptableObject.PERMANENT);
+    }
+    SpringoEvents.end(entryEvent);
+
+    if (tiered != null && tiered.countInvocation(module, String.valueOf(function))) {
+     promoteEngine();
+    }
 
-    engine.invoke("ringo/jsgi", "handleRequest", module, function, req);
+    // (handleRequest takes the app function itself as well as its name)
+    engine.invoke("ringo/jsgi", "handleRequest", module, running.app, req);
 
     long endTime = System.currentTimeMillis();
     //* log.debug("Time to process " + ((HttpServletRequest)request).getRequestURI() +
     //*			" (via javascript): " + (endTime - startTime) + " milliseconds");
+   } catch (ScriptWatchdog.LimitExceeded e) {
+    requestLog.warn(e.getMessage());
+    if (!response.isCommitted()) {
+     response.reset();
+     ((HttpServletResponse) response).sendError(e.getStatus(), e.getMessage());
+    }
    } catch (Exception e) {
     if (isUnhandledRequestException(e)) {
-     log.warn("Ringo threw unhandled request - running the servlet chain.");
+     requestLog.warn("Ringo threw unhandled request - running the servlet chain.");
+     if (requestEvent != null) {
+      requestEvent.unhandled = true;
+     }
      chain.doFilter(request, response);
     } else {
      try {
@@ -287,9 +640,145 @@ public class RingoJsgiFilter implements Filter {
      }
     }
    } finally {
+    ScriptWatchdog.end(cx, budget);
     Context.exit();
+    SpringoEvents.end(requestEvent);
+    AllocationSampler.end(allocationSample);
+    if (bodyReader != null) {
+     bodyReader.release(request);
+    }
+   }
+  }
+ }
+
+ /**
+  * Build an engine compiling the javascript at the tiered optlevel in the
+  * background, and once its modules are loaded swap it in (requests in
+  * progress finish on the interpreted engine).
+  *
+  * The engine's built without touching the filter (its engine, request
+  * prototype, watchdog etc. are only replaced, together, when it's swapped
+  * in), and it's dropped if new javascript was deployed in the meantime.
+  */
+ private void promoteEngine() {
+  final RhinoEngine interpreted;
+  final long stamp;
+  synchronized (this) {
+   interpreted = current.engine;
+   stamp = getDeploymentStamp();
+  }
+  tiered.promote(new Callable<Boolean>() {
+   public Boolean call() throws Exception {
+    int optlevel = tiered.getOptimizedOptLevel();
+    String moduleArchive = getModuleArchive(filterConfig);
+    String modulePath = getStringParameter(filterConfig, "module-path", "app");
+    boolean debug = getDebug(filterConfig);
+    boolean production = getBooleanParameter(filterConfig, "production", false);
+    boolean verbose = getBooleanParameter(filterConfig, "verbose", false);
+    boolean legacyMode = getBooleanParameter(filterConfig, "legacy-mode", false);
+    EngineRegistry.Key key = new EngineRegistry.Key(
+     (moduleArchive != null) ? "archive:" + moduleArchive : getRingoHome(filterConfig),
+     modulePath, optlevel, debug, production, verbose, legacyMode);
+    RhinoEngine optimized = EngineRegistry.acquire(key, stamp, new RingoEngineFactory(filterConfig,
+     moduleArchive, modulePath, optlevel, debug, production, verbose, legacyMode));
+    boolean swapped = false;
+    try {
+     RunningEngine promoted = new RunningEngine(optimized, newWatchdogContextFactory(filterConfig, optimized),
+      newRequestProto(optimized), function);
+     // Load (i.e. compile) the app's modules before any request needs them,
+     // in the ContextFactory the requests run in (Rhino only compiles the
+     // instruction counting the ScriptWatchdog needs into scripts compiled
+     // in a Context with an observer threshold):
+     Context cx = promoted.contextFactory.enterContext();
+     try {
+      optimized.loadModule(cx, module, null);
+     } finally {
+      Context.exit();
+     }
+     swapped = swapInPromoted(interpreted, stamp, key, promoted);
+    } finally {
+     if (!swapped) {
+      EngineRegistry.release(key);
+     }
+    }
+    return swapped;
+   }
+  });
+ }
+
+ // Replace the interpreted engine with the optimized one (unless it's
+ // already been replaced by a reload):
+ private synchronized boolean swapInPromoted(RhinoEngine interpreted, long stamp, EngineRegistry.Key key,
+  RunningEngine promoted) {
+  if (current == null || current.engine != interpreted || getDeploymentStamp() != stamp || triggerReloadsFileHasChanged()) {
+   log.info("Dropping the optimized engine (new javascript was deployed while it was being built)");
+   return false;
+  }
+  EngineRegistry.Key replacedKey = engineKey;
+  engineKey = key;
+  current = promoted;
+  if (replacedKey != null) {
+   EngineRegistry.release(replacedKey);
+  }
+  return true;
+ }
+
+ /**
+  * Count an invocation of a module function for tiered compilation (the
+  * RingoModuleBridge's calls when borrowing our engine).
+  */
+ public void countInvocation(String moduleName, String functionName) {
+  if (tiered != null && tiered.countInvocation(moduleName, functionName)) {
+   promoteEngine();
+  }
+ }
+
+ /**
+  * Get the tiered compilation stats (null if it's not enabled).
+  */
+ public Map<String, Object> getTieredCompilationStats() {
+  return (tiered != null) ? tiered.getStats() : null;
+ }
+
+ /**
+  * Wrap the request in a BufferedRequestWrapper (which the request
+  * modifying middleware need) if it's one of the bufferedRequestPaths
+  * and not multipart, or its body's already been read by the
+  * NonBlockingBodyReader.  Otherwise it's left for the middleware to wrap
+  * if they need to (see bufferRequest()).
+  */
+ private ServletRequest wrapRequest(ServletRequest request) {
+  BufferedRequestWrapper alreadyRead = NonBlockingBodyReader.wrap(request);
+  if (alreadyRead != null) {
+   return alreadyRead;
+  }
+  if (request instanceof BufferedRequestWrapper || !(request instanceof HttpServletRequest)) {
+   return request; // (e.g. forwarded back through the filter)
+  }
+  HttpServletRequest httpRequest = (HttpServletRequest) request;
+  if (bufferedRequestPaths == null || BufferedRequestWrapper.hasMultipartBody(httpRequest)) {
+   return request; // (a multipart's parts are the container's to parse, they can't be buffered)
+  }
+  String uri = httpRequest.getRequestURI();
+  for (String prefix : bufferedRequestPaths) {
+   if (uri.startsWith(prefix)) {
+    return new BufferedRequestWrapper(httpRequest, maxRequestBodyBytes);
    }
   }
+  return request;
+ }
+
+ /**
+  * Get the request as a BufferedRequestWrapper, wrapping it if it isn't
+  * one already (for the request modifying middleware, which pass the
+  * wrapper on as the request's env.servletRequest, see the springoutils
+  * module's bufferRequest()).
+  */
+ public BufferedRequestWrapper bufferRequest(ServletRequest request) {
+  if (request instanceof BufferedRequestWrapper) {
+   return (BufferedRequestWrapper) request;
+  }
+  return new BufferedRequestWrapper((HttpServletRequest) request, maxRequestBodyBytes);
  }
 
  private boolean isUnhandledRequestException(Exception e) {
@@ -320,7 +809,19 @@ public class RingoJsgiFilter implements Filter {
  throws IOException, ServletException {
 
   FilterChain chain = (FilterChain) request.getAttribute(JSGI_INTERCEPTED_FILTER_CHAIN);
-  chain.doFilter(request, response);
+  SpringoEvents.FilterChainEvent event = SpringoEvents.beginFilterChain((HttpServletRequest) request, false);
+  AllocationSampler.Sample sample = AllocationSampler.current();
+  if (sample != null) {
+   sample.beginChain();
+  }
+  try {
+   chain.doFilter(request, response);
+  } finally {
+   if (sample != null) {
+    sample.endChain();
+   }
+   SpringoEvents.end(event);
+  }
  }
 
  /**
@@ -342,7 +843,19 @@ public class RingoJsgiFilter implements Filter {
 
   BufferedResponseWrapper responseWrapper = new BufferedResponseWrapper((HttpServletResponse) response);
 
-  chain.doFilter(request, responseWrapper);
+  SpringoEvents.FilterChainEvent event = SpringoEvents.beginFilterChain((HttpServletRequest) request, true);
+  AllocationSampler.Sample sample = AllocationSampler.current();
+  if (sample != null) {
+   sample.beginChain();
+  }
+  try {
+   chain.doFilter(request, responseWrapper);
+  } finally {
+   if (sample != null) {
+    sample.endChain();
+   }
+   SpringoEvents.end(event);
+  }
 
   // now let response wrapper send to the output stream
   // (i.e. if the caller continues to use it for generating the real response):
@@ -351,7 +864,91 @@ public class RingoJsgiFilter implements Filter {
   return responseWrapper;
  }
 
- public void destroy() {}
+ public void destroy() {
+  EngineRegistry.unregisterFilter(filterConfig.getFilterName(), this);
+  EngineRegistry.removeHolder(this);
+  BatchDispatcher.releaseShared();
+  SpringoCache.releaseAll();
+  SpringoLog.releaseShared();
+  if (trafficRecorder != null) {
+   trafficRecorder.close();
+  }
+  if (tiered != null) {
+   tiered.shutdown();
+  }
+  if (instance == this) {
+   instance = null;
+  }
+  if (engineKey != null) {
+   EngineRegistry.release(engineKey);
+   engineKey = null;
+  }
+ }
+
+ public boolean holdsEngine(RhinoEngine engine) {
+  RunningEngine running = current;
+  return running != null && running.engine == engine;
+ }
+
+ @Override
+ public String toString() {
+  return "RingoJsgiFilter[" + (filterConfig != null ? filterConfig.getFilterName() : "") + "]";
+ }
+
+ /**
+  * Builds our engine when EngineRegistry doesn't already have one for
+  * our configuration.
+  */
+ private class RingoEngineFactory implements EngineRegistry.EngineFactory {
+  private final FilterConfig config;
+  private final String moduleArchive;
+  private final String modulePath;
+  private final int optlevel;
+  private final boolean debug;
+  private final boolean production;
+  private final boolean verbose;
+  private final boolean legacyMode;
+
+  RingoEngineFactory(FilterConfig config, String moduleArchive, String modulePath, int optlevel,
+   boolean debug, boolean production, boolean verbose, boolean legacyMode) {
+   this.config = config;
+   this.moduleArchive = moduleArchive;
+   this.modulePath = modulePath;
+   this.optlevel = optlevel;
+   this.debug = debug;
+   this.production = production;
+   this.verbose = verbose;
+   this.legacyMode = legacyMode;
+  }
+
+  public RhinoEngine createEngine() throws Exception {
+   Repository home = (moduleArchive != null) ? getArchiveRepository(moduleArchive) : null;
+   if (home == null) {
+    home = getHomeRepository(getRingoHome(config), config.getServletContext());
+   }
+
+   // Use ',' as platform agnostic path separator
+   String[] paths = StringUtils.split(modulePath, ",");
+   RingoConfiguration ringoConfig = new RingoConfiguration(home, paths, "modules");
+   ringoConfig.setDebug(debug);
+   ringoConfig.setVerbose(verbose);
+   ringoConfig.setParentProtoProperties(legacyMode);
+   ringoConfig.setStrictVars(!legacyMode && !production);
+   ringoConfig.setReloading(!production);
+   ringoConfig.setOptLevel(optlevel);
+   return new RhinoEngine(ringoConfig, null);
+  }
+ }
+
+ // (so the same home reached by different paths shares an engine, as
+ // getRingoHome does for the filter)
+ static String canonicalPath(String path) {
+  try {
+   return new File(path).getCanonicalPath();
+  } catch (IOException e) {
+   return new File(path).getAbsolutePath();
+  }
+ }
 
  // Has the "trigger reloads" file changed since the last time ringo was loaded?
  private boolean triggerReloadsFileHasChanged() {
@@ -372,12 +969,112 @@ public class RingoJsgiFilter implements Filter {
   return triggerFileChanged;
  }
 
+ /**
+  * Set up the ScriptWatchdog from the init-params (returning the
+  * ContextFactory enforcing its limits for the engine, null if it's off):
+  *
+  *   script-instruction-limit - the default instruction budget for a request.
+  *   script-time-limit - the default time limit for a request (in ms).
+  *   script-route-limits - overrides by url prefix, e.g.
+  *     "/myapp/api/reports/=0:30000, /myapp/api/ping=1000000:500"
+  *     (prefix=instructions:millis, 0 meaning unlimited).
+  *   script-watchdog - "on" to enable the watchdog without setting any
+  *     limits here (i.e. when they're set from javascript with
+  *     springoutils.limitScripts).
+  *   script-check-interval - how often (in instructions) to check the
+  *     limits, default 100000.
+  *
+  * With none of these set the watchdog's off (and scripts are compiled
+  * without the instruction counting code).
+  */
+ private SpringoContextFactory configureWatchdog(FilterConfig config, RhinoEngine theEngine) {
+  long instructionLimit = getLongParameter(config, "script-instruction-limit", 0);
+  long timeLimit = getLongParameter(config, "script-time-limit", 0);
+  String routeLimits = config.getInitParameter("script-route-limits");
+
+  // (a new one each time, so a reload drops the route limits the old
+  // javascript set):
+  ScriptWatchdog limits = new ScriptWatchdog(instructionLimit, timeLimit);
+  if (routeLimits != null) {
+   try {
+    limits.setRouteLimits(routeLimits);
+   } catch (IllegalArgumentException e) {
+    log.error("Invalid value for parameter \"script-route-limits\": " + e.getMessage());
+   }
+  }
+  watchdog = limits;
+
+  SpringoContextFactory contextFactory = newWatchdogContextFactory(config, theEngine);
+  if (contextFactory != null) {
+   log.info("Script watchdog enabled: " + limits.getDefaultLimits() + " (checked every " +
+    getIntParameter(config, "script-check-interval", SpringoContextFactory.DEFAULT_OBSERVER_THRESHOLD) + " instructions)");
+  }
+  return contextFactory;
+ }
+
+ // The ContextFactory enforcing the ScriptWatchdog limits for an engine
+ // (null if the watchdog's off):
+ private SpringoContextFactory newWatchdogContextFactory(FilterConfig config, RhinoEngine theEngine) {
+  long instructionLimit = getLongParameter(config, "script-instruction-limit", 0);
+  long timeLimit = getLongParameter(config, "script-time-limit", 0);
+  boolean enabled = getBooleanParameter(config, "script-watchdog",
+   instructionLimit > 0 || timeLimit > 0 || config.getInitParameter("script-route-limits") != null);
+  if (!enabled) {
+   return null;
+  }
+  int checkInterval = getIntParameter(config, "script-check-interval", SpringoContextFactory.DEFAULT_OBSERVER_THRESHOLD);
+  return new SpringoContextFactory(theEngine, checkInterval);
+ }
+
+ /**
+  * Return the ContextFactory javascript should be run in (the one
+  * enforcing the ScriptWatchdog limits if enabled).
+  *
+  * Note:  to run javascript use getRunningEngine() instead, which gives
+  *   the factory along with the engine it's for.
+  */
+ public ContextFactory getContextFactory() {
+  return current.contextFactory;
+ }
+
+ /**
+  * Return the engine with the ContextFactory to run javascript on it in
+  * (null if the engine's not been created yet).
+  */
+ public RunningEngine getRunningEngine() {
+  return current;
+ }
+
+ /**
+  * Return the limits on this filter's requests (see ScriptWatchdog).
+  */
+ public ScriptWatchdog getScriptWatchdog() {
+  return watchdog;
+ }
+
+ /**
+  * Return the front response cache (null unless enabled with the
+  * "response-cache-max-bytes" init-param).
+  */
+ public ResponseCache getResponseCache() {
+  return responseCache;
+ }
+
+ /**
+  * Return the traffic recorder (null unless enabled with the
+  * "traffic-record-file" init-param).
+  */
+ public TrafficRecorder getTrafficRecorder() {
+  return trafficRecorder;
+ }
+
  /**
   * Return the RhinoEngine being used by the RingoJsgiFilter.
   * @return
   */
  public RhinoEngine getServletRhinoEngine() {
-  return this.engine;
+  RunningEngine running = current;
+  return (running != null) ? running.engine : null;
  }
 
  private String getRingoHome(FilterConfig config) {
@@ -514,7 +1211,8 @@ public class RingoJsgiFilter implements Filter {
   // The "scripting.optlevel" system property can be used esp.
   // on developer PCs to set the Ringo/Rhino optimization level.
   // (note the profiler middleware requires the optimization
-  // level to be -1)
+  // level to be -1, whereas the JFR events in SpringoEvents
+  // work at any optimization level)
   String optlevelStr = System.getProperty("scripting.optlevel");
   if (optlevelStr != null) {
    log.info("\"scripting.optlevel\" system property: " + optlevelStr);
@@ -629,6 +1327,67 @@ public class RingoJsgiFilter implements Filter {
   return defaultValue;
  }
 
+ protected long getLongParameter(FilterConfig config, String name, long defaultValue) {
+  String value = config.getInitParameter(name);
+  if (value != null) {
+   try {
+    return Long.parseLong(value.trim());
+   } catch (NumberFormatException nfx) {
+    log.error("Invalid value for parameter \"" + name + "\": " + value);
+   }
+  }
+  return defaultValue;
+ }
+
+ protected double getDoubleParameter(FilterConfig config, String name, double defaultValue) {
+  String value = config.getInitParameter(name);
+  if (value != null) {
+   try {
+    return Double.parseDouble(value.trim());
+   } catch (NumberFormatException nfx) {
+    log.error("Invalid value for parameter \"" + name + "\": " + value);
+   }
+  }
+  return defaultValue;
+ }
+
+ /**
+  * Get a setting shared by all the filters (e.g. the size of a JVM wide
+  * pool), which is the "springo."-prefixed context-param rather than an
+  * init-param, so it's the same whichever filter initializes first.
+  */
+ protected String getContextParameter(FilterConfig config, String name) {
+  if (config.getInitParameter(name) != null) {
+   log.warn("Ignoring the \"" + name + "\" init-param of " + config.getFilterName() +
+    " (it's shared by all the filters, see the \"springo." + name + "\" context-param)");
+  }
+  return config.getServletContext().getInitParameter("springo." + name);
+ }
+
+ protected int getContextIntParameter(FilterConfig config, String name, int defaultValue) {
+  String value = getContextParameter(config, name);
+  if (value != null) {
+   try {
+    return Integer.parseInt(value.trim());
+   } catch (NumberFormatException nfx) {
+    log.error("Invalid value for context-param \"springo." + name + "\": " + value);
+   }
+  }
+  return defaultValue;
+ }
+
+ protected long getContextLongParameter(FilterConfig config, String name, long defaultValue) {
+  String value = getContextParameter(config, name);
+  if (value != null) {
+   try {
+    return Long.parseLong(value.trim());
+   } catch (NumberFormatException nfx) {
+    log.error("Invalid value for context-param \"springo." + name + "\": " + value);
+   }
+  }
+  return defaultValue;
+ }
+
  protected boolean getBooleanParameter(FilterConfig config, String name, boolean defaultValue) {
   String value = config.getInitParameter(name);
   if (value != null) {
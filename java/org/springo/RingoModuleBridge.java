@@ -6,6 +6,7 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
@@ -50,7 +51,7 @@ import org.ringojs.wrappers.ScriptableMap;
  *
  * @author darrencruse (https://github.com/darrencruse)
  */
-public class RingoModuleBridge {
+public class RingoModuleBridge implements EngineRegistry.EngineHolder {
 
  private static final Log logger = LogFactory.getLog(RingoModuleBridge.class);
 
@@ -59,6 +60,10 @@ public class RingoModuleBridge {
  private boolean specifiedBorrowRhinoEngine = false;
  private boolean borrowRhinoEngine = true;
 
+ // The filter-name (in web.xml) of the RingoJsgiFilter to borrow the
+ // engine from, null meaning whichever filter initialized last:
+ private String filterName = null;
+
  // configuration properties
  // (override defaults below in spring context xml file)
  private boolean specifiedRingoHome = false;
@@ -73,21 +78,65 @@ public class RingoModuleBridge {
  private boolean verbose = false;
  private boolean legacyMode = false;
 
+ // Limits on the javascript a call can run (see ScriptWatchdog), 0
+ // means use the RingoJsgiFilter's defaults (if any, the filter named by
+ // filterName or else the last initialized), with our own engine too.
+ // Note calls made while the filter's handling a request count against
+ // that request.
+ private long scriptInstructionLimit = 0;
+ private long scriptTimeLimit = 0;
+
  // They have the choice of configuring different RingoModuleBridge's
  // for different modules (in which case they configure the modules
  // name using Spring, or simply passing the module name when they
  // invoke module function's.
  private String module = null;
 
- RhinoEngine engine = null;
+ private static final ScriptWatchdog.Limits UNLIMITED = new ScriptWatchdog.Limits(0, 0);
+
+ // Our engine and the ContextFactory to enter for it (kept together, see
+ // RingoJsgiFilter.RunningEngine):
+ volatile RingoJsgiFilter.RunningEngine running = null;
+
+ // Our own engine's configuration in the EngineRegistry (null when borrowing),
+ // and the registry's generation when we got it:
+ private EngineRegistry.Key engineKey = null;
+ private volatile long engineGeneration = -1;
 
- public RingoModuleBridge() {}
+ // The filter we're borrowing the engine of (null when not borrowing):
+ private volatile RingoJsgiFilter borrowedFilter = null;
+
+ public RingoModuleBridge() {
+  EngineRegistry.addHolder(this);
+ }
 
  public void init() throws Exception {
-  if (engine != null) {
+  if (running != null) {
    logger.debug("Reinitializing RhinoEngine on next request of the RingoModuleBridge...");
   }
-  engine = null;
+  destroy();
+ }
+
+ /**
+  * Release our own engine (bridges configured the same way share one
+  * and it's dropped when the last of them is destroyed).
+  */
+ public synchronized void destroy() {
+  running = null;
+  if (engineKey != null) {
+   EngineRegistry.release(engineKey);
+   engineKey = null;
+  }
+ }
+
+ public boolean holdsEngine(RhinoEngine engine) {
+  RingoJsgiFilter.RunningEngine current = running;
+  return current != null && current.getEngine() == engine;
+ }
+
+ @Override
+ public String toString() {
+  return "RingoModuleBridge[" + (module != null ? module : "") + "]";
  }
 
  /**
@@ -103,14 +152,14 @@ public class RingoModuleBridge {
 	* the RingoModuleBridge that attempt to access state variables set via the
 	* Ringo filter javascript.
   *
+  * The engine comes with the ContextFactory to enter for it, both from the
+  * one snapshot (a borrowed filter's engine can be swapped by a reload or
+  * promotion at any moment).
+  *
   * @return
   * @throws Exception
   */
- private RhinoEngine getRhinoEngine() throws Exception {
-
-  if (engine != null) {
-   return engine; // it's already been initialized.
-  }
+ private RingoJsgiFilter.RunningEngine getRhinoEngine() throws Exception {
 
   // If in spring they specify "borrowRhinoEngine" that we use what's configured
   // in web.xml, otherwise if in spring they specify ringoHome they must want their
@@ -118,35 +167,86 @@ public class RingoModuleBridge {
   boolean borrowEngine = (specifiedBorrowRhinoEngine ? borrowRhinoEngine :
    (specifiedRingoHome ? false : true));
   if (borrowEngine) {
-   JsgiFilter ringoFilter = JsgiFilter.instance;
+   // We don't hold on to the filter's engine, so when it reloads (new
+   // javascript was deployed) we pick up the new one and the old one
+   // can be garbage collected:
+   RingoJsgiFilter ringoFilter = EngineRegistry.getFilter(filterName);
+   borrowedFilter = ringoFilter;
+   RingoJsgiFilter.RunningEngine borrowed = null;
    if (ringoFilter != null) {
-    engine = ringoFilter.getServletRhinoEngine();
+    borrowed = ringoFilter.getRunningEngine();
+   } else if (filterName != null) {
+    logger.error("The RingoModuleBridge is configured for use of the RingoJsgiFilter \"" + filterName + "\"'s engine but no such filter has initialized!");
    } else {
-    logger.error("The RingoModuleBridge is configured for use of the JsgiFilter's engine but JsgiFilter has not initialized!");
+    logger.error("The RingoModuleBridge is configured for use of the RingoJsgiFilter's engine but RingoJsgiFilter has not initialized!");
+   }
+   running = borrowed;
+   return borrowed;
+  }
+
+  long generation = EngineRegistry.getGeneration();
+  RingoJsgiFilter.RunningEngine own = running;
+  if (own != null && generation == engineGeneration) {
+   return own; // it's already been initialized (and not rebuilt since).
+  }
+
+  synchronized (this) {
+   if (engineKey != null) {
+    // A filter sharing our engine has rebuilt it for a deployment:
+    RhinoEngine current = EngineRegistry.getEngine(engineKey);
+    if (current != null) {
+     if (running == null || current != running.getEngine()) {
+      logger.info("Picking up the rebuilt RhinoEngine for " + engineKey);
+      running = new RingoJsgiFilter.RunningEngine(current, getOwnContextFactory(current), null, null);
+     }
+     engineGeneration = generation;
+     return running;
+    }
    }
-  } else {
+
    try {
-    String homeDir = getRingoHome();
-    Repository homeRepo = new FileRepository(homeDir);
-    //logger.debug("Using file repository for ringo home \"" + homeDir + " (" + homeRepo + ")");
-
-    // Use ',' as platform agnostic path separator
-    String[] paths = StringUtils.split(modulePath, ",");
-    RingoConfiguration ringoConfig = new RingoConfiguration(homeRepo, paths, "modules");
-    ringoConfig.setDebug(debug);
-    ringoConfig.setVerbose(verbose);
-    ringoConfig.setParentProtoProperties(legacyMode);
-    ringoConfig.setStrictVars(!legacyMode && !production);
-    ringoConfig.setReloading(!production);
-    ringoConfig.setOptLevel(optlevel);
-    engine = new RhinoEngine(ringoConfig, null);
+    final String homeDir = getRingoHome();
+
+    // Bridges (and filters) configured with the same home, module path
+    // and settings share one engine (see EngineRegistry):
+    EngineRegistry.Key key = new EngineRegistry.Key(RingoJsgiFilter.canonicalPath(homeDir),
+     modulePath, optlevel, debug, production, verbose, legacyMode);
+    RhinoEngine theEngine = EngineRegistry.acquire(key, EngineRegistry.NO_STAMP, new EngineRegistry.EngineFactory() {
+     public RhinoEngine createEngine() throws Exception {
+      Repository homeRepo = new FileRepository(homeDir);
+      //logger.debug("Using file repository for ringo home \"" + homeDir + " (" + homeRepo + ")");
+
+      // Use ',' as platform agnostic path separator
+      String[] paths = StringUtils.split(modulePath, ",");
+      RingoConfiguration ringoConfig = new RingoConfiguration(homeRepo, paths, "modules");
+      ringoConfig.setDebug(debug);
+      ringoConfig.setVerbose(verbose);
+      ringoConfig.setParentProtoProperties(legacyMode);
+      ringoConfig.setStrictVars(!legacyMode && !production);
+      ringoConfig.setReloading(!production);
+      ringoConfig.setOptLevel(optlevel);
+      return new RhinoEngine(ringoConfig, null);
+     }
+    });
+    if (engineKey != null) {
+     EngineRegistry.release(engineKey);
+    }
+    engineKey = key;
+    running = new RingoJsgiFilter.RunningEngine(theEngine, getOwnContextFactory(theEngine), null, null);
+    engineGeneration = generation;
    } catch (Exception x) {
     logger.error("Failed to initialize RhinoEngine");
     throw new Exception(x);
    }
   }
 
-  return engine;
+  return running;
+ }
+
+ private ContextFactory getOwnContextFactory(RhinoEngine theEngine) {
+  return !getScriptLimits().isUnlimited() ?
+   new SpringoContextFactory(theEngine, SpringoContextFactory.DEFAULT_OBSERVER_THRESHOLD) :
+   theEngine.getContextFactory();
  }
 
  /**
@@ -165,9 +265,21 @@ public class RingoModuleBridge {
 
   Object result = null;
 
-  RhinoEngine theEngine = getRhinoEngine();
+  // (the engine and its ContextFactory, read together once)
+  RingoJsgiFilter.RunningEngine running = getRhinoEngine();
+  if (running == null) {
+   throw new Exception("No RhinoEngine to invoke \"" + moduleName + "." + functionName + "\" with");
+  }
+  RhinoEngine theEngine = running.getEngine();
+
+  RingoJsgiFilter ringoFilter = borrowedFilter;
+  if (ringoFilter != null) {
+   // (counts towards the filter's tiered compilation, if enabled)
+   ringoFilter.countInvocation(moduleName, functionName);
+  }
 
-  Context cx = theEngine.getContextFactory().enterContext();
+  Context cx = running.getContextFactory().enterContext();
+  ScriptWatchdog.Budget budget = ScriptWatchdog.begin(cx, "bridge:" + moduleName + "." + functionName, getScriptLimits());
   try {
    // Load the specified module.
    // Note:  Ringo's RhinoEngine returns previously loaded modules from cache.
@@ -200,12 +312,24 @@ public class RingoModuleBridge {
    // We found the function invoke it with Ringo's RhinoEngine:
    result = theEngine.invoke(parent, functionName, args);
   } finally {
+   ScriptWatchdog.end(cx, budget);
    Context.exit();
   }
 
   return result;
  }
 
+ private ScriptWatchdog.Limits getScriptLimits() {
+  if (scriptInstructionLimit > 0 || scriptTimeLimit > 0) {
+   return new ScriptWatchdog.Limits(scriptInstructionLimit, scriptTimeLimit);
+  }
+  RingoJsgiFilter ringoFilter = borrowedFilter;
+  if (ringoFilter == null) {
+   ringoFilter = EngineRegistry.getFilter(filterName);
+  }
+  return ringoFilter != null ? ringoFilter.getScriptWatchdog().getDefaultLimits() : UNLIMITED;
+ }
+
  protected void convertMapArgsToJson(Scriptable scope, Object[] args) {
   if (args != null) {
    for (int i = 0; i < args.length; i++) {
@@ -253,6 +377,18 @@ public class RingoModuleBridge {
   this.borrowRhinoEngine = useJsgiServletEngine; // and this is what they want
  }
 
+ public String getFilterName() {
+  return filterName;
+ }
+
+ /**
+  * Borrow the engine of the RingoJsgiFilter with this filter-name (for
+  * webapps with more than one RingoJsgiFilter).
+  */
+ public void setFilterName(String filterName) {
+  this.filterName = filterName;
+ }
+
  public void setRingoHome(String ringoHome) {
   this.specifiedRingoHome = true;
   this.ringoHome = ringoHome;
@@ -306,6 +442,22 @@ public class RingoModuleBridge {
   this.legacyMode = legacyMode;
  }
 
+ public long getScriptInstructionLimit() {
+  return scriptInstructionLimit;
+ }
+
+ public void setScriptInstructionLimit(long scriptInstructionLimit) {
+  this.scriptInstructionLimit = scriptInstructionLimit;
+ }
+
+ public long getScriptTimeLimit() {
+  return scriptTimeLimit;
+ }
+
+ public void setScriptTimeLimit(long scriptTimeLimit) {
+  this.scriptTimeLimit = scriptTimeLimit;
+ }
+
  public String getModule() {
   return module;
  }
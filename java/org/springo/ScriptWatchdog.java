@@ -0,0 +1,322 @@
+package org.springo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Context;
+
+/**
+ * Bounds how much javascript a single request (or RingoModuleBridge call)
+ * can run, so a javascript bug that loops forever (or a pathological
+ * regex) can't pin a container thread for good.
+ *
+ * Two limits are enforced:
+ *
+ *   - an instruction budget: the number of Rhino "instructions" (as
+ *     counted by Rhino's instruction observer) the request may run.
+ *
+ *   - a wall clock deadline: how long the javascript may run (including
+ *     any time spent in java called from javascript, e.g. Spring via
+ *     runFilterChain, though that's only noticed once javascript runs
+ *     again).
+ *
+ * The limits are checked from SpringoContextFactory.observeInstructionCount
+ * (every SpringoContextFactory.DEFAULT_OBSERVER_THRESHOLD instructions or
+ * so) which is cheap enough to leave on in production: an addition, a
+ * comparison and a System.nanoTime() call.
+ *
+ * When a limit is exceeded a LimitExceeded error is thrown.  Being a
+ * java.lang.Error javascript can't catch it (though finally blocks run),
+ * and RingoJsgiFilter turns it into a 503 (deadline exceeded) or 500
+ * (instruction budget exceeded).
+ *
+ * Each RingoJsgiFilter has its own ScriptWatchdog holding its limits:  the
+ * defaults come from the filter's init-params, and can be overridden for
+ * requests whose url starts with a given prefix (see setRouteLimits, or
+ * springoutils.limitScripts in javascript).  The budget of the request
+ * running on a Context (see begin) and the abort counts are kept here
+ * statically.
+ */
+public class ScriptWatchdog {
+
+ /**
+  * Which limit was exceeded.
+  */
+ public static enum Limit {
+  INSTRUCTIONS(500), TIME(503);
+
+  private final int status;
+
+  Limit(int status) {
+   this.status = status;
+  }
+
+  /**
+   * The http status to respond with.
+   */
+  public int getStatus() {
+   return status;
+  }
+ }
+
+ /**
+  * An instruction budget and time limit (0 means no limit).
+  */
+ public static class Limits {
+  private final long instructions;
+  private final long millis;
+
+  public Limits(long instructions, long millis) {
+   this.instructions = Math.max(instructions, 0);
+   this.millis = Math.max(millis, 0);
+  }
+
+  public long getInstructions() {
+   return instructions;
+  }
+
+  public long getMillis() {
+   return millis;
+  }
+
+  public boolean isUnlimited() {
+   return instructions == 0 && millis == 0;
+  }
+
+  @Override
+  public String toString() {
+   return (instructions == 0 ? "unlimited" : String.valueOf(instructions)) + " instructions, " +
+    (millis == 0 ? "unlimited" : millis + "ms");
+  }
+ }
+
+ /**
+  * Thrown (from within the running javascript) when a request exceeds
+  * one of its limits.
+  */
+ public static class LimitExceeded extends Error {
+  private static final long serialVersionUID = 1L;
+
+  private final Limit limit;
+  private final String route;
+
+  LimitExceeded(Limit limit, String route, String message) {
+   super(message);
+   this.limit = limit;
+   this.route = route;
+  }
+
+  public Limit getLimit() {
+   return limit;
+  }
+
+  /**
+   * The request url (or "bridge:" and the module/function for a
+   * RingoModuleBridge call).
+   */
+  public String getRoute() {
+   return route;
+  }
+
+  public int getStatus() {
+   return limit.getStatus();
+  }
+ }
+
+ /**
+  * The running budget for the request on a Context.
+  */
+ public static class Budget {
+  private final String route;
+  private final long instructionLimit;
+  private final long startTime;
+  private final long deadline;
+  private long instructions = 0;
+
+  Budget(String route, Limits limits) {
+   this.route = route;
+   this.instructionLimit = limits.getInstructions();
+   this.startTime = System.nanoTime();
+   this.deadline = limits.getMillis() == 0 ? 0 : startTime + limits.getMillis() * 1000000L;
+  }
+ }
+
+ private static final RouteLimits[] NO_ROUTE_LIMITS = new RouteLimits[0];
+
+ private static final Object BUDGET_KEY = new Object();
+
+ private volatile Limits defaultLimits;
+
+ // Longest prefix first (replaced, never modified):
+ private volatile RouteLimits[] routeLimits = NO_ROUTE_LIMITS;
+
+ private static final AtomicLong instructionLimitAborts = new AtomicLong();
+ private static final AtomicLong timeLimitAborts = new AtomicLong();
+
+ /**
+  * Create a watchdog with these default limits (0 meaning unlimited) and
+  * no route specific overrides.
+  */
+ public ScriptWatchdog(long instructions, long millis) {
+  defaultLimits = new Limits(instructions, millis);
+ }
+
+ /**
+  * Set the limits for requests without a route specific override.
+  */
+ public void setDefaultLimits(long instructions, long millis) {
+  defaultLimits = new Limits(instructions, millis);
+ }
+
+ public Limits getDefaultLimits() {
+  return defaultLimits;
+ }
+
+ /**
+  * Override the limits for requests whose url starts with "prefix"
+  * (the longest matching prefix wins).
+  */
+ public synchronized void setRouteLimits(String prefix, long instructions, long millis) {
+  List<RouteLimits> updated = new ArrayList<RouteLimits>();
+  for (RouteLimits existing : routeLimits) {
+   if (!existing.prefix.equals(prefix)) {
+    updated.add(existing);
+   }
+  }
+  updated.add(new RouteLimits(prefix, new Limits(instructions, millis)));
+  Collections.sort(updated, new Comparator<RouteLimits>() {
+   public int compare(RouteLimits a, RouteLimits b) {
+    return b.prefix.length() - a.prefix.length();
+   }
+  });
+  routeLimits = updated.toArray(NO_ROUTE_LIMITS);
+ }
+
+ /**
+  * Remove all the route specific overrides.
+  */
+ public synchronized void clearRouteLimits() {
+  routeLimits = NO_ROUTE_LIMITS;
+ }
+
+ /**
+  * Parse and set route overrides in the form used by the filter's
+  * "script-route-limits" init-param, i.e. a comma separated list of
+  * prefix=instructions:millis, e.g.:
+  *
+  *   /myapp/api/reports/=0:30000, /myapp/api/ping=1000000:500
+  */
+ public void setRouteLimits(String spec) {
+  for (String entry : spec.split(",")) {
+   entry = entry.trim();
+   if (entry.length() == 0) {
+    continue;
+   }
+   int equals = entry.lastIndexOf('=');
+   int colon = entry.lastIndexOf(':');
+   if (equals <= 0 || colon < equals) {
+    throw new IllegalArgumentException("Invalid script route limit (expected prefix=instructions:millis): " + entry);
+   }
+   setRouteLimits(entry.substring(0, equals).trim(),
+    Long.parseLong(entry.substring(equals + 1, colon).trim()),
+    Long.parseLong(entry.substring(colon + 1).trim()));
+  }
+ }
+
+ /**
+  * Get the limits for a request url.
+  */
+ public Limits getLimits(String uri) {
+  RouteLimits[] current = routeLimits;
+  if (uri != null) {
+   for (int i = 0; i < current.length; i++) {
+    if (uri.startsWith(current[i].prefix)) {
+     return current[i].limits;
+    }
+   }
+  }
+  return defaultLimits;
+ }
+
+ /**
+  * Start limiting the javascript run on a Context.
+  *
+  * Returns null (and does nothing) if the limits are unlimited or if a
+  * budget's already running on the Context (e.g. for a RingoModuleBridge
+  * call made from java called by the filter's javascript, which counts
+  * against the request's budget).
+  *
+  * @param route the url (or other description) reported if a limit is exceeded
+  */
+ public static Budget begin(Context cx, String route, Limits limits) {
+  if (limits.isUnlimited() || cx.getThreadLocal(BUDGET_KEY) != null) {
+   return null;
+  }
+  Budget budget = new Budget(route, limits);
+  cx.putThreadLocal(BUDGET_KEY, budget);
+  return budget;
+ }
+
+ /**
+  * Stop limiting the javascript run on a Context (null is ignored).
+  */
+ public static void end(Context cx, Budget budget) {
+  if (budget != null && cx.getThreadLocal(BUDGET_KEY) == budget) {
+   cx.removeThreadLocal(BUDGET_KEY);
+  }
+ }
+
+ /**
+  * Called by SpringoContextFactory as Rhino counts instructions.
+  */
+ static void observe(Context cx, int instructionCount) {
+  Budget budget = (Budget) cx.getThreadLocal(BUDGET_KEY);
+  if (budget == null) {
+   return;
+  }
+  budget.instructions += instructionCount;
+  if (budget.instructionLimit != 0 && budget.instructions > budget.instructionLimit) {
+   instructionLimitAborts.incrementAndGet();
+   throw exceeded(budget, Limit.INSTRUCTIONS);
+  }
+  if (budget.deadline != 0 && System.nanoTime() - budget.deadline > 0) {
+   timeLimitAborts.incrementAndGet();
+   throw exceeded(budget, Limit.TIME);
+  }
+ }
+
+ private static LimitExceeded exceeded(Budget budget, Limit limit) {
+  long elapsedMillis = (System.nanoTime() - budget.startTime) / 1000000L;
+  SpringoEvents.commitScriptLimit(budget.route, limit.name(), budget.instructions, elapsedMillis);
+  return new LimitExceeded(limit, budget.route,
+   "Script " + (limit == Limit.TIME ? "time limit" : "instruction budget") + " exceeded for " + budget.route +
+   " (" + budget.instructions + " instructions in " + elapsedMillis + "ms)");
+ }
+
+ /**
+  * The number of requests aborted for exceeding their instruction budget.
+  */
+ public static long getInstructionLimitAborts() {
+  return instructionLimitAborts.get();
+ }
+
+ /**
+  * The number of requests aborted for exceeding their time limit.
+  */
+ public static long getTimeLimitAborts() {
+  return timeLimitAborts.get();
+ }
+
+ private static class RouteLimits {
+  final String prefix;
+  final Limits limits;
+
+  RouteLimits(String prefix, Limits limits) {
+   this.prefix = prefix;
+   this.limits = limits;
+  }
+ }
+}
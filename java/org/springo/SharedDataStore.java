@@ -0,0 +1,555 @@
+package org.springo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.ringojs.util.StringUtils;
+
+/**
+ * Read-only reference datasets (product catalogs, code lists etc.) shared
+ * by all the engines, and kept across reloads, rather than each engine
+ * building them into module level javascript objects.
+ *
+ * A dataset is a tab separated file:  a header line naming the columns
+ * then a line per row, the first column being the key, e.g.
+ *
+ *   sku	name	price:number
+ *   A100	Widget	9.99
+ *
+ * (a ":number" suffix on a column name makes its values numbers, the rest
+ * are strings.  Values can't contain tabs or newlines.)
+ *
+ * The file is memory mapped, so the data lives outside the java heap (and
+ * in the OS page cache, shared by everything reading it), and the only
+ * thing built on the heap is a compact open addressing index of the rows'
+ * offsets (8 bytes a row).  Looking a key up compares it against the key
+ * bytes in the mapped file, and a row's values are only decoded when the
+ * javascript reads them (see Row).
+ *
+ * Datasets are refreshed independently of script deploys:  when a file's
+ * modification time changes (checked at most every refresh interval, on
+ * lookup) it's loaded again and swapped in (rows already looked up keep
+ * reading the old file's mapping).  Replace a file by writing a new one and
+ * renaming it over the old one, as changing a mapped file in place changes
+ * the data under the readers.
+ *
+ * Javascript uses the "springodata" module.
+ */
+public class SharedDataStore {
+
+ public static final long DEFAULT_REFRESH_MILLIS = 60 * 1000;
+
+ private static final Charset UTF8 = Charset.forName("UTF-8");
+
+ private static Logger log = Logger.getLogger(SharedDataStore.class);
+
+ private static final ConcurrentMap<String, Registration> datasets = new ConcurrentHashMap<String, Registration>();
+
+ private static volatile long refreshMillis = DEFAULT_REFRESH_MILLIS;
+
+ private SharedDataStore() {}
+
+ /**
+  * How often (ms) to check whether the datasets' files have changed (the
+  * same for all the filters, see the "springo.data-store-refresh-seconds"
+  * context-param).
+  */
+ public static void setRefreshMillis(long millis) {
+  refreshMillis = millis;
+ }
+
+ /**
+  * Register (and load) datasets from a spec like
+  * "products=/data/products.tsv, countries=/data/countries.tsv" (e.g. the
+  * filter's "data-store" init-param).
+  */
+ public static void register(String spec) throws IOException {
+  for (String entry : StringUtils.split(spec, ",")) {
+   entry = entry.trim();
+   int equals = entry.indexOf('=');
+   if (equals <= 0) {
+    throw new IllegalArgumentException("Expected name=path in the data store spec: " + entry);
+   }
+   register(entry.substring(0, equals).trim(), entry.substring(equals + 1).trim());
+  }
+ }
+
+ /**
+  * Register (and load) a dataset.  Registering the same name and file
+  * again is a no-op (e.g. from module code run by each engine).
+  */
+ public static Dataset register(String name, String path) throws IOException {
+  File file = new File(path).getAbsoluteFile();
+  Registration existing = datasets.get(name);
+  if (existing != null && existing.file.equals(file)) {
+   return get(name);
+  }
+  Registration registration = new Registration(file, new Dataset(name, file));
+  datasets.put(name, registration);
+  log.info("Loaded dataset \"" + name + "\" (" + registration.dataset.size() + " rows) from " + file);
+  return registration.dataset;
+ }
+
+ /**
+  * Get a dataset (reloading it first if its file has changed).
+  *
+  * @throws IllegalArgumentException if there's no such dataset
+  */
+ public static Dataset get(String name) {
+  Registration registration = datasets.get(name);
+  if (registration == null) {
+   throw new IllegalArgumentException("No such dataset: " + name);
+  }
+  return registration.current();
+ }
+
+ public static boolean has(String name) {
+  return datasets.containsKey(name);
+ }
+
+ public static void unregister(String name) {
+  datasets.remove(name);
+ }
+
+ /**
+  * Report the datasets:  their file, rows, columns, when they were
+  * loaded, the bytes mapped and the (heap) bytes of their index.
+  */
+ public static Map<String, Map<String, Object>> getStats() {
+  Map<String, Map<String, Object>> stats = new LinkedHashMap<String, Map<String, Object>>();
+  for (Map.Entry<String, Registration> entry : datasets.entrySet()) {
+   Dataset dataset = entry.getValue().dataset;
+   Map<String, Object> map = new LinkedHashMap<String, Object>();
+   map.put("file", dataset.file.getPath());
+   map.put("rows", dataset.size());
+   map.put("columns", dataset.columns.clone());
+   map.put("loadedAt", dataset.loadedAt);
+   map.put("loadMillis", dataset.loadMillis);
+   map.put("mappedBytes", dataset.buffer.limit());
+   map.put("indexBytes", 4L * dataset.index.length);
+   map.put("duplicateKeys", dataset.duplicates);
+   map.put("reloads", entry.getValue().reloads);
+   stats.put(entry.getKey(), map);
+  }
+  return stats;
+ }
+
+ private static class Registration {
+  final File file;
+  volatile Dataset dataset;
+  volatile long checkedAt = System.currentTimeMillis();
+  int reloads = 0;
+
+  Registration(File file, Dataset dataset) {
+   this.file = file;
+   this.dataset = dataset;
+  }
+
+  Dataset current() {
+   long now = System.currentTimeMillis();
+   if (now - checkedAt >= refreshMillis) {
+    refresh(now);
+   }
+   return dataset;
+  }
+
+  private synchronized void refresh(long now) {
+   if (now - checkedAt < refreshMillis) {
+    return; // (another thread just did)
+   }
+   checkedAt = now;
+   long lastModified = file.lastModified();
+   if (lastModified != 0 && lastModified != dataset.lastModified) {
+    try {
+     Dataset reloaded = new Dataset(dataset.name, file);
+     dataset = reloaded;
+     reloads++;
+     log.info("Reloaded dataset \"" + reloaded.name + "\" (" + reloaded.size() + " rows) from " + file);
+    } catch (IOException e) {
+     log.error("Failed to reload dataset \"" + dataset.name + "\" from " + file + " (keeping the old data): " + e.getMessage());
+    }
+   }
+  }
+ }
+
+ /**
+  * A loaded (mapped) dataset.
+  */
+ public static class Dataset {
+  private final String name;
+  private final File file;
+  private final long lastModified;
+  private final long loadedAt = System.currentTimeMillis();
+  private final long loadMillis;
+  private final MappedByteBuffer buffer;
+  private final String[] columns;
+  private final boolean[] numeric;
+  private final Map<String, Integer> columnIndexes = new LinkedHashMap<String, Integer>();
+  // open addressing table of (row offset + 1), 0 meaning empty:
+  private final int[] index;
+  private final int mask;
+  private final int rows;
+  private final int duplicates;
+
+  Dataset(String name, File file) throws IOException {
+   long start = System.currentTimeMillis();
+   this.name = name;
+   this.file = file;
+   this.lastModified = file.lastModified();
+
+   RandomAccessFile raf = new RandomAccessFile(file, "r");
+   try {
+    FileChannel channel = raf.getChannel();
+    if (channel.size() > Integer.MAX_VALUE) {
+     throw new IOException("Dataset too large to map: " + file);
+    }
+    // (the mapping stays valid after the channel's closed)
+    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+   } finally {
+    raf.close();
+   }
+
+   int limit = buffer.limit();
+   int headerEnd = lineEnd(0);
+   if (limit == 0) {
+    throw new IOException("Empty dataset: " + file);
+   }
+   String[] header = decode(0, headerEnd).split("\t");
+   columns = new String[header.length];
+   numeric = new boolean[header.length];
+   for (int i = 0; i < header.length; i++) {
+    String column = header[i].trim();
+    if (column.endsWith(":number")) {
+     column = column.substring(0, column.length() - ":number".length());
+     numeric[i] = true;
+    }
+    columns[i] = column;
+    columnIndexes.put(column, i);
+   }
+
+   // Find the rows:
+   List<Integer> offsets = new ArrayList<Integer>();
+   int position = nextLine(headerEnd);
+   while (position < limit) {
+    int end = lineEnd(position);
+    if (end > position) {
+     offsets.add(position);
+    }
+    position = nextLine(end);
+   }
+
+   // And index them by key:
+   int capacity = Integer.highestOneBit(Math.max(2, offsets.size() * 2 - 1)) << 1;
+   index = new int[capacity];
+   mask = capacity - 1;
+   int count = 0;
+   int dups = 0;
+   for (int offset : offsets) {
+    int keyEnd = fieldEnd(offset);
+    int slot = hash(offset, keyEnd) & mask;
+    boolean duplicate = false;
+    while (index[slot] != 0) {
+     int other = index[slot] - 1;
+     if (keyEquals(other, offset, keyEnd - offset)) {
+      duplicate = true; // (the first row with a key wins)
+      break;
+     }
+     slot = (slot + 1) & mask;
+    }
+    if (duplicate) {
+     dups++;
+    } else {
+     index[slot] = offset + 1;
+     count++;
+    }
+   }
+   rows = count;
+   duplicates = dups;
+   loadMillis = System.currentTimeMillis() - start;
+  }
+
+  public String getName() {
+   return name;
+  }
+
+  public int size() {
+   return rows;
+  }
+
+  public String[] getColumns() {
+   return columns.clone();
+  }
+
+  public long getLastModified() {
+   return lastModified;
+  }
+
+  /**
+   * Look up a row by key (null if there's none).
+   */
+  public Row get(String key) {
+   int offset = find(key);
+   return offset == -1 ? null : new Row(this, offset);
+  }
+
+  /**
+   * Look up a row by key as a read-only javascript object (null if
+   * there's none).
+   */
+  public Row get(Scriptable scope, String key) {
+   Row row = get(key);
+   if (row != null) {
+    row.setParentScope(scope);
+    row.setPrototype(ScriptableObject.getObjectPrototype(scope));
+   }
+   return row;
+  }
+
+  public boolean has(String key) {
+   return find(key) != -1;
+  }
+
+  /**
+   * Get a single value (without creating a Row), null if there's no such
+   * row or column.
+   */
+  public Object getValue(String key, String column) {
+   Integer col = columnIndexes.get(column);
+   int offset = find(key);
+   return (col == null || offset == -1) ? null : value(offset, col);
+  }
+
+  /**
+   * Get the keys (in file order) - note this decodes every key.
+   */
+  public List<String> keys() {
+   List<String> keys = new ArrayList<String>(rows);
+   int position = nextLine(lineEnd(0));
+   int limit = buffer.limit();
+   while (position < limit) {
+    int end = lineEnd(position);
+    if (end > position) {
+     String key = decode(position, fieldEnd(position));
+     if (find(key) == position) {
+      keys.add(key);
+     }
+    }
+    position = nextLine(end);
+   }
+   return keys;
+  }
+
+  private int find(String key) {
+   byte[] bytes = key.getBytes(UTF8);
+   int hash = 0x811c9dc5;
+   for (byte b : bytes) {
+    hash = (hash ^ (b & 0xff)) * 0x01000193;
+   }
+   int slot = hash & mask;
+   while (index[slot] != 0) {
+    int offset = index[slot] - 1;
+    if (keyEquals(offset, bytes)) {
+     return offset;
+    }
+    slot = (slot + 1) & mask;
+   }
+   return -1;
+  }
+
+  // (FNV-1a, the same as find's over the key's bytes)
+  private int hash(int start, int end) {
+   int hash = 0x811c9dc5;
+   for (int i = start; i < end; i++) {
+    hash = (hash ^ (buffer.get(i) & 0xff)) * 0x01000193;
+   }
+   return hash;
+  }
+
+  private boolean keyEquals(int offset, byte[] key) {
+   int end = fieldEnd(offset);
+   if (end - offset != key.length) {
+    return false;
+   }
+   for (int i = 0; i < key.length; i++) {
+    if (buffer.get(offset + i) != key[i]) {
+     return false;
+    }
+   }
+   return true;
+  }
+
+  private boolean keyEquals(int offset, int otherOffset, int length) {
+   if (fieldEnd(offset) - offset != length) {
+    return false;
+   }
+   for (int i = 0; i < length; i++) {
+    if (buffer.get(offset + i) != buffer.get(otherOffset + i)) {
+     return false;
+    }
+   }
+   return true;
+  }
+
+  // the end of the line starting at position (excluding any \r)
+  private int lineEnd(int position) {
+   int limit = buffer.limit();
+   int i = position;
+   while (i < limit && buffer.get(i) != '\n') {
+    i++;
+   }
+   return (i > position && buffer.get(i - 1) == '\r') ? i - 1 : i;
+  }
+
+  private int nextLine(int lineEnd) {
+   int limit = buffer.limit();
+   int i = lineEnd;
+   while (i < limit && buffer.get(i) != '\n') {
+    i++; // (skip a \r)
+   }
+   return i + 1;
+  }
+
+  // the end of the field starting at position
+  private int fieldEnd(int position) {
+   int limit = buffer.limit();
+   int i = position;
+   byte b;
+   while (i < limit && (b = buffer.get(i)) != '\t' && b != '\n' && b != '\r') {
+    i++;
+   }
+   return i;
+  }
+
+  private String decode(int start, int end) {
+   byte[] bytes = new byte[end - start];
+   for (int i = 0; i < bytes.length; i++) {
+    bytes[i] = buffer.get(start + i);
+   }
+   return new String(bytes, UTF8);
+  }
+
+  Object value(int rowOffset, int column) {
+   int start = rowOffset;
+   for (int i = 0; i < column; i++) {
+    int end = fieldEnd(start);
+    if (end >= buffer.limit() || buffer.get(end) != '\t') {
+     return null; // (a short row)
+    }
+    start = end + 1;
+   }
+   String value = decode(start, fieldEnd(start));
+   if (numeric[column]) {
+    if (value.length() == 0) {
+     return null;
+    }
+    try {
+     return Double.valueOf(value);
+    } catch (NumberFormatException e) {
+     return value;
+    }
+   }
+   return value;
+  }
+ }
+
+ /**
+  * A row of a dataset, read as a read-only javascript object whose
+  * values are only decoded (once) when they're read.
+  */
+ public static class Row extends ScriptableObject {
+  private static final long serialVersionUID = 1L;
+  private static final Object NOT_DECODED = new Object();
+
+  private final transient Dataset dataset;
+  private final int offset;
+  private final Object[] values;
+
+  Row(Dataset dataset, int offset) {
+   this.dataset = dataset;
+   this.offset = offset;
+   this.values = new Object[dataset.columns.length];
+   Arrays.fill(values, NOT_DECODED);
+  }
+
+  @Override
+  public String getClassName() {
+   return "Row";
+  }
+
+  /**
+   * Get a value by column index.
+   */
+  public Object get(int column) {
+   if (column < 0 || column >= values.length) {
+    return null;
+   }
+   Object value = values[column];
+   if (value == NOT_DECODED) {
+    value = dataset.value(offset, column);
+    values[column] = value;
+   }
+   return value;
+  }
+
+  /**
+   * Get a value by column name.
+   */
+  public Object getValue(String column) {
+   Integer col = dataset.columnIndexes.get(column);
+   return col == null ? null : get(col);
+  }
+
+  @Override
+  public Object get(String name, Scriptable start) {
+   Integer col = dataset.columnIndexes.get(name);
+   if (col == null) {
+    return super.get(name, start);
+   }
+   return get(col);
+  }
+
+  @Override
+  public boolean has(String name, Scriptable start) {
+   return dataset.columnIndexes.containsKey(name) || super.has(name, start);
+  }
+
+  @Override
+  public Object[] getIds() {
+   return dataset.columns.clone();
+  }
+
+  @Override
+  public void put(String name, Scriptable start, Object value) {
+   // (read-only)
+  }
+
+  @Override
+  public void put(int index, Scriptable start, Object value) {
+   // (read-only)
+  }
+
+  @Override
+  public void delete(String name) {
+   // (read-only)
+  }
+
+  @Override
+  public Object getDefaultValue(Class<?> hint) {
+   return "[Row " + get(0) + "]";
+  }
+ }
+}
@@ -0,0 +1,317 @@
+package org.springo;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The table of url rewrite rules used when forwarding requests from
+ * javascript on to Spring (see springoutils.forwardtospringdispatcher
+ * and capturefromspringdispatcher, and the forwardtospringdispatcher,
+ * forwardunhandledrequest and captureunhandledrequest middleware).
+ *
+ * Each distinct "from"/"to" rule is compiled once (the first time it's
+ * used, normally as the app is configured) and shared from then on:
+ *
+ *   - Regex rules are compiled to java Patterns, with the literal text
+ *     the pattern requires (e.g. "/api/" for the default rule) checked
+ *     with a simple String search before running the regex at all.
+ *
+ *   - Prefix rules (a String "from") are a simple startsWith check with
+ *     the target path built by concatenation.
+ *
+ * The RequestDispatchers for the target paths are cached too (the most
+ * recently used ones).
+ */
+public class SpringRoutes {
+
+ // The default rule used by the springo forwarding helpers:
+ public static final String DEFAULT_FROM = "\\/.*\\/api\\/";
+ public static final String DEFAULT_TO = "/_api/";
+
+ // RequestDispatchers are cached for (at most) this many target paths,
+ // the least recently used being dropped.  Target paths including ids etc.
+ // (e.g. /_api/users/1234) would otherwise grow the cache without bound.
+ private static final int MAX_CACHED_DISPATCHERS = 1024;
+
+ private static final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+ private static final Map<String, RequestDispatcher> dispatchers = Collections.synchronizedMap(
+  new LinkedHashMap<String, RequestDispatcher>(64, 0.75f, true) {
+   private static final long serialVersionUID = 1L;
+
+   @Override
+   protected boolean removeEldestEntry(Map.Entry<String, RequestDispatcher> eldest) {
+    return size() > MAX_CACHED_DISPATCHERS;
+   }
+  });
+
+ private SpringRoutes() {}
+
+ /**
+  * Get the (compiled) rule forwarding urls matching the javascript regex
+  * "from" to urls with the match replaced by "to" (the equivalent of
+  * javascript's url.replace(from, to)).
+  *
+  * @param from the regex source (i.e. javascript's RegExp.source)
+  * @param ignoreCase true if the regex had the "i" flag
+  * @param to the replacement string
+  */
+ public static Route regexRoute(String from, boolean ignoreCase, String to) {
+  String key = "regex:" + (ignoreCase ? "i:" : ":") + from + " -> " + to;
+  Route route = routes.get(key);
+  if (route == null) {
+   route = new RegexRoute(from, ignoreCase, to);
+   Route existing = routes.putIfAbsent(key, route);
+   if (existing != null) {
+    route = existing;
+   }
+  }
+  return route;
+ }
+
+ /**
+  * Get the (compiled) rule forwarding urls starting with "from" to
+  * urls with that prefix replaced by "to".
+  */
+ public static Route prefixRoute(String from, String to) {
+  String key = "prefix:" + from + " -> " + to;
+  Route route = routes.get(key);
+  if (route == null) {
+   route = new PrefixRoute(from, to);
+   Route existing = routes.putIfAbsent(key, route);
+   if (existing != null) {
+    route = existing;
+   }
+  }
+  return route;
+ }
+
+ /**
+  * The rule used when no "from"/"to" is specified.
+  */
+ public static Route defaultRoute() {
+  return regexRoute(DEFAULT_FROM, false, DEFAULT_TO);
+ }
+
+ /**
+  * Get the (cached) RequestDispatcher for a target path.
+  *
+  * Note:  the target paths are the request url with the matching part
+  *   replaced (and the rules normally replace the context path along with
+  *   the rest of the prefix) so they're used relative to the context root.
+  */
+ public static RequestDispatcher getRequestDispatcher(ServletRequest request, String path) {
+  ServletContext servletContext = request.getServletContext();
+  if (servletContext == null || !path.startsWith("/")) {
+   // (relative to the request, so not cached)
+   return request.getRequestDispatcher(path);
+  }
+  RequestDispatcher dispatcher = dispatchers.get(path);
+  if (dispatcher == null) {
+   dispatcher = servletContext.getRequestDispatcher(path);
+   if (dispatcher != null) {
+    dispatchers.put(path, dispatcher);
+   }
+  }
+  return dispatcher;
+ }
+
+ /**
+  * Has capturing of Spring's output been turned off for this request via
+  * the "springcapture" url parameter (i.e. "springcapture=false", "no"
+  * or "none")?
+  *
+  * This looks only at the query string, so (unlike request.params in
+  * javascript) it never forces the request parameters or a form body to
+  * be parsed.
+  */
+ public static boolean isCaptureDisabled(HttpServletRequest request) {
+  String query = request.getQueryString();
+  if (query == null) {
+   return false;
+  }
+  int i = query.indexOf("springcapture=");
+  while (i != -1) {
+   if (i == 0 || query.charAt(i - 1) == '&') {
+    int start = i + "springcapture=".length();
+    int end = query.indexOf('&', start);
+    String value = (end == -1) ? query.substring(start) : query.substring(start, end);
+    return "false".equals(value) || "no".equals(value) || "none".equals(value);
+   }
+   i = query.indexOf("springcapture=", i + 1);
+  }
+  return false;
+ }
+
+ /**
+  * A compiled forwarding rule.
+  */
+ public static abstract class Route {
+
+  /**
+   * Get the path to forward the request url to, or null if the url
+   * doesn't match this rule.
+   */
+  public abstract String getTargetPath(String uri);
+ }
+
+ static class PrefixRoute extends Route {
+
+  private final String from;
+  private final String to;
+
+  PrefixRoute(String from, String to) {
+   this.from = from;
+   this.to = to;
+  }
+
+  @Override
+  public String getTargetPath(String uri) {
+   if (uri == null || !uri.startsWith(from)) {
+    return null;
+   }
+   return to.concat(uri.substring(from.length()));
+  }
+
+  @Override
+  public String toString() {
+   return "prefix " + from + " -> " + to;
+  }
+ }
+
+ static class RegexRoute extends Route {
+
+  private final Pattern pattern;
+  private final String requiredLiteral;
+  private final String replacement;
+  private final String description;
+
+  RegexRoute(String from, boolean ignoreCase, String to) {
+   this.pattern = Pattern.compile(from, ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
+   this.requiredLiteral = ignoreCase ? null : requiredLiteral(from);
+   this.replacement = toJavaReplacement(to);
+   this.description = "/" + from + "/" + (ignoreCase ? "i" : "") + " -> " + to;
+  }
+
+  @Override
+  public String getTargetPath(String uri) {
+   if (uri == null || (requiredLiteral != null && uri.indexOf(requiredLiteral) == -1)) {
+    return null;
+   }
+   Matcher matcher = pattern.matcher(uri);
+   if (!matcher.find()) {
+    return null;
+   }
+   StringBuffer sb = new StringBuffer(uri.length() + 16);
+   matcher.appendReplacement(sb, replacement);
+   matcher.appendTail(sb);
+   return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+   return description;
+  }
+
+  /**
+   * Find the longest run of literal text the regex requires, or null
+   * if we can't tell (e.g. the regex uses alternation, inline flags or
+   * escapes like \\uXXXX).
+   */
+  static String requiredLiteral(String regex) {
+   if (regex.indexOf('|') != -1) {
+    return null;
+   }
+   String longest = "";
+   StringBuilder run = new StringBuilder();
+   int depth = 0;
+   for (int i = 0; i < regex.length(); i++) {
+    char ch = regex.charAt(i);
+    char literal = 0;
+    if (ch == '\\' && i + 1 < regex.length()) {
+     char escaped = regex.charAt(++i);
+     if (!Character.isLetterOrDigit(escaped)) {
+      literal = escaped;
+     } else if ("dDwWsSbBnrtfv".indexOf(escaped) == -1) {
+      // (e.g. \\uXXXX, \\xNN or a backreference, the text after which isn't literal)
+      return null;
+     }
+    } else if (ch == '(' && i + 2 < regex.length() && regex.charAt(i + 1) == '?' &&
+     (Character.isLetter(regex.charAt(i + 2)) || regex.charAt(i + 2) == '-')) {
+     // (inline flags, e.g. (?i), change what the literal text matches)
+     return null;
+    } else if (ch == '(' || ch == '[') {
+     depth++;
+    } else if (ch == ')' || ch == ']') {
+     depth--;
+    } else if (ch == '?' || ch == '*' || ch == '{') {
+     // the previous character was optional (or repeated a variable number of times)
+     if (run.length() > 0) {
+      run.setLength(run.length() - 1);
+     }
+     if (ch == '{') {
+      int close = regex.indexOf('}', i);
+      i = (close == -1) ? regex.length() : close;
+     }
+    } else if (".^$+".indexOf(ch) == -1) {
+     literal = ch;
+    }
+
+    // (a run ends at anything that isn't literal, including a '+' since
+    // what follows needn't come straight after the character it repeats)
+    if (literal != 0 && depth == 0) {
+     run.append(literal);
+    } else {
+     if (run.length() > longest.length()) {
+      longest = run.toString();
+     }
+     run.setLength(0);
+    }
+   }
+   if (run.length() > longest.length()) {
+    longest = run.toString();
+   }
+   return longest.length() > 0 ? longest : null;
+  }
+
+  /**
+   * Convert a javascript replacement string ($1, $& and $$) to its
+   * java equivalent.
+   */
+  static String toJavaReplacement(String to) {
+   StringBuilder sb = new StringBuilder(to.length());
+   for (int i = 0; i < to.length(); i++) {
+    char ch = to.charAt(i);
+    if (ch == '$' && i + 1 < to.length()) {
+     char next = to.charAt(i + 1);
+     if (next == '&') {
+      sb.append("$0");
+      i++;
+      continue;
+     } else if (next == '$') {
+      sb.append("\\$");
+      i++;
+      continue;
+     } else if (Character.isDigit(next)) {
+      sb.append(ch);
+      continue;
+     }
+    }
+    if (ch == '\\' || ch == '$') {
+     sb.append('\\');
+    }
+    sb.append(ch);
+   }
+   return sb.toString();
+  }
+ }
+}
@@ -0,0 +1,861 @@
+package org.springo;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Wrapper;
+import org.ringojs.engine.RhinoEngine;
+
+/**
+ * A bounded, concurrent cache for springo javascript (see the "springocache"
+ * module) and java, in place of caches hand rolled in module level objects
+ * (unbounded, unsynchronized and invisible to monitoring).
+ *
+ *   - it's bounded by entries and/or (estimated) bytes, evicting in the
+ *     style of W-TinyLFU:  new entries go into a small LRU "window", and
+ *     when one leaves the window it only displaces the least recently used
+ *     entry of the main cache if it's been used more often (going by a
+ *     small frequency sketch), so one-off lookups don't flush popular
+ *     entries.
+ *   - entries can expire (a default TTL, or per entry).
+ *   - get(key, loader) runs the loader once per missing key however many
+ *     threads ask for it at once (single-flight), the others waiting for
+ *     its value.
+ *   - its stats are reported by getStats() and through JMX (as
+ *     "org.springo:type=SpringoCache,name=...").
+ *
+ * Reads don't block:  the lookup's a ConcurrentHashMap and the recency and
+ * frequency bookkeeping is skipped when another thread holds the lock
+ * (so under contention the eviction order is approximate).
+ *
+ * Caches are named and registered (module code creating a cache again on
+ * each engine load gets the existing one).  A cache either survives engine
+ * reloads or is cleared by them (clearOnReload) - caches of javascript
+ * objects should be cleared, since their values would otherwise keep the
+ * old engine from being garbage collected.  Such a cache is cleared when
+ * an engine whose javascript created it is retired (see EngineRegistry),
+ * and loads started before it was cleared don't cache their values.
+ *
+ * The caches live until the last filter using them is destroyed (see
+ * retainAll and releaseAll), when they're dropped and unregistered from
+ * JMX so they don't keep the webapp's classes around.
+ */
+public class SpringoCache<K, V> implements SpringoCacheMXBean {
+
+ private static Logger log = Logger.getLogger(SpringoCache.class);
+
+ private static final ConcurrentMap<String, SpringoCache<?, ?>> caches = new ConcurrentHashMap<String, SpringoCache<?, ?>>();
+
+ private static int users = 0; // (guarded by the class)
+
+ /**
+  * Loads a missing value (returning null caches nothing).
+  */
+ public interface Loader<K, V> {
+  V load(K key) throws Exception;
+ }
+
+ /**
+  * Estimates the bytes of an entry (for caches bounded by bytes).
+  */
+ public interface Weigher {
+  long weigh(Object key, Object value);
+ }
+
+ public static final Weigher ESTIMATED_BYTES = new Weigher() {
+  public long weigh(Object key, Object value) {
+   return 64 + estimateBytes(key) + estimateBytes(value);
+  }
+ };
+
+ /**
+  * Get the named cache, creating it if there isn't one (if there is, the
+  * settings are ignored).
+  *
+  * @param maxEntries the most entries (0 for no limit)
+  * @param maxBytes the most (estimated) bytes (0 for no limit)
+  * @param ttlMillis how long entries live by default (0 for no limit)
+  * @param clearOnReload whether the cache's cleared by engine reloads
+  * @param weigher estimates the entries' bytes (null for ESTIMATED_BYTES)
+  * @param scope any javascript object from the engine creating the cache
+  *   (null from java, when a clearOnReload cache's cleared by any engine
+  *   being retired)
+  */
+ @SuppressWarnings("unchecked")
+ public static <K, V> SpringoCache<K, V> create(String name, long maxEntries, long maxBytes, long ttlMillis,
+  boolean clearOnReload, Weigher weigher, Scriptable scope) {
+  SpringoCache<?, ?> cache = caches.get(name);
+  if (cache == null) {
+   SpringoCache<K, V> created = new SpringoCache<K, V>(name, maxEntries, maxBytes, ttlMillis, clearOnReload, weigher);
+   cache = caches.putIfAbsent(name, created);
+   if (cache == null) {
+    created.registerMBean();
+    cache = created;
+   }
+  }
+  if (scope != null) {
+   cache.addOwner(ScriptableObject.getTopLevelScope(scope));
+  }
+  return (SpringoCache<K, V>) cache;
+ }
+
+ public static <K, V> SpringoCache<K, V> create(String name, long maxEntries, long maxBytes, long ttlMillis,
+  boolean clearOnReload, Weigher weigher) {
+  return create(name, maxEntries, maxBytes, ttlMillis, clearOnReload, weigher, null);
+ }
+
+ public static <K, V> SpringoCache<K, V> create(String name, long maxEntries, long maxBytes, long ttlMillis,
+  boolean clearOnReload) {
+  return create(name, maxEntries, maxBytes, ttlMillis, clearOnReload, null, null);
+ }
+
+ /**
+  * Get a cache by name (null if there's none).
+  */
+ @SuppressWarnings("unchecked")
+ public static <K, V> SpringoCache<K, V> get(String name) {
+  return (SpringoCache<K, V>) caches.get(name);
+ }
+
+ /**
+  * Remove a cache (clearing it and unregistering it from JMX).
+  */
+ public static void remove(String name) {
+  SpringoCache<?, ?> cache = caches.remove(name);
+  if (cache != null) {
+   cache.clear();
+   cache.unregisterMBean();
+  }
+ }
+
+ /**
+  * An engine was retired (replaced by a rebuilt one, or dropped):  clear
+  * the caches that don't survive reloads and were created by its
+  * javascript (or from java).
+  */
+ public static void engineReplaced(RhinoEngine replaced) {
+  Scriptable global = replaced.getScope();
+  for (SpringoCache<?, ?> cache : caches.values()) {
+   if (cache.clearOnReload && cache.removeOwner(global)) {
+    cache.clear();
+   }
+  }
+ }
+
+ /**
+  * Note a filter using the caches (until it calls releaseAll()).
+  */
+ public static synchronized void retainAll() {
+  users++;
+ }
+
+ /**
+  * Note a filter's done with the caches, dropping them all (and their
+  * MBeans) once none are using them any more.
+  */
+ public static synchronized void releaseAll() {
+  if (users > 0 && --users == 0) {
+   for (String name : new ArrayList<String>(caches.keySet())) {
+    remove(name);
+   }
+  }
+ }
+
+ /**
+  * Report every cache's stats by name.
+  */
+ public static Map<String, Map<String, Object>> getAllStats() {
+  Map<String, Map<String, Object>> stats = new LinkedHashMap<String, Map<String, Object>>();
+  for (SpringoCache<?, ?> cache : caches.values()) {
+   stats.put(cache.name, cache.getStats());
+  }
+  return stats;
+ }
+
+ private final String name;
+ private final long maxEntries;
+ private final long maxBytes;
+ private final long ttlMillis;
+ private final boolean clearOnReload;
+ private final Weigher weigher;
+
+ private final ConcurrentHashMap<K, Entry<K, V>> map = new ConcurrentHashMap<K, Entry<K, V>>();
+ private final ConcurrentHashMap<K, Loading<V>> loading = new ConcurrentHashMap<K, Loading<V>>();
+
+ // Bumped when the cache's cleared, so loads started before don't cache
+ // their (e.g. old engine's) values:
+ private final AtomicLong generation = new AtomicLong();
+
+ // The top level scopes of the javascript that created the cache (weakly,
+ // they're only compared with retired engines'):
+ private final List<WeakReference<Scriptable>> owners = new ArrayList<WeakReference<Scriptable>>();
+
+ // Guards the queues, the sketch and the weights:
+ private final ReentrantLock lock = new ReentrantLock();
+ private final Queue<K, V> window = new Queue<K, V>();
+ private final Queue<K, V> main = new Queue<K, V>();
+ private final FrequencySketch sketch;
+ private long weightedBytes = 0;
+
+ private final AtomicLong hits = new AtomicLong();
+ private final AtomicLong misses = new AtomicLong();
+ private final AtomicLong loads = new AtomicLong();
+ private final AtomicLong loadFailures = new AtomicLong();
+ private final AtomicLong loadWaits = new AtomicLong();
+ private final AtomicLong loadNanos = new AtomicLong();
+ private final AtomicLong evictions = new AtomicLong();
+ private final AtomicLong expirations = new AtomicLong();
+
+ private ObjectName objectName = null;
+
+ private SpringoCache(String name, long maxEntries, long maxBytes, long ttlMillis, boolean clearOnReload, Weigher weigher) {
+  this.name = name;
+  this.maxEntries = maxEntries;
+  this.maxBytes = maxBytes;
+  this.ttlMillis = ttlMillis;
+  this.clearOnReload = clearOnReload;
+  this.weigher = (weigher != null) ? weigher : ESTIMATED_BYTES;
+  this.sketch = new FrequencySketch(4 * (maxEntries > 0 ? maxEntries : 4096));
+ }
+
+ /**
+  * Get a value (null if it's not cached or has expired).
+  */
+ public V getIfPresent(K key) {
+  Entry<K, V> entry = map.get(key);
+  if (entry == null) {
+   misses.incrementAndGet();
+   // (keys asked for often are more likely to be admitted once loaded)
+   if (lock.tryLock()) {
+    try {
+     sketch.increment(key.hashCode());
+    } finally {
+     lock.unlock();
+    }
+   }
+   return null;
+  }
+  if (entry.isExpired(System.currentTimeMillis())) {
+   lock.lock();
+   try {
+    if (map.get(key) == entry) {
+     removeEntry(entry);
+     expirations.incrementAndGet();
+    }
+   } finally {
+    lock.unlock();
+   }
+   misses.incrementAndGet();
+   return null;
+  }
+  hits.incrementAndGet();
+  // (skipped rather than waited for when another thread has the lock)
+  if (lock.tryLock()) {
+   try {
+    sketch.increment(entry.hash);
+    if (entry.queue != null) {
+     entry.queue.moveToHead(entry);
+    }
+   } finally {
+    lock.unlock();
+   }
+  }
+  return entry.value;
+ }
+
+ /**
+  * Get a value, loading it if it's missing (if other threads are already
+  * loading it they wait for that load rather than loading it again).
+  *
+  * @param ttlMillis how long the loaded value lives (-1 for the cache's
+  *   default)
+  */
+ public V get(final K key, final Loader<K, V> loader, final long ttlMillis) throws Exception {
+  V value = getIfPresent(key);
+  if (value != null) {
+   return value;
+  }
+
+  final long loadGeneration = generation.get();
+  Loading<V> load = new Loading<V>(new Callable<V>() {
+   public V call() throws Exception {
+    V loaded = loader.load(key);
+    if (loaded != null) {
+     put(key, loaded, ttlMillis, loadGeneration);
+    }
+    return loaded;
+   }
+  });
+  Loading<V> inflight = loading.putIfAbsent(key, load);
+  if (inflight == null) {
+   long start = System.nanoTime();
+   try {
+    load.run();
+   } finally {
+    loading.remove(key, load);
+    loadNanos.addAndGet(System.nanoTime() - start);
+   }
+   loads.incrementAndGet();
+  } else if (inflight.owner == Thread.currentThread()) {
+   throw new IllegalStateException("Recursive load of \"" + key + "\" in cache \"" + name + "\"");
+  } else {
+   loadWaits.incrementAndGet();
+   load = inflight;
+  }
+
+  try {
+   return load.get();
+  } catch (ExecutionException e) {
+   if (inflight == null) {
+    loadFailures.incrementAndGet();
+   }
+   Throwable cause = e.getCause();
+   if (cause instanceof Exception) {
+    throw (Exception) cause;
+   }
+   throw e;
+  }
+ }
+
+ public V get(K key, Loader<K, V> loader) throws Exception {
+  return get(key, loader, -1);
+ }
+
+ /**
+  * Cache a value.
+  *
+  * @param ttlMillis how long it lives (-1 for the cache's default, 0 for
+  *   no limit)
+  */
+ public void put(K key, V value, long ttlMillis) {
+  put(key, value, ttlMillis, -1);
+ }
+
+ // (a loaded value's only cached if the cache wasn't cleared during the load)
+ private void put(K key, V value, long ttlMillis, long loadGeneration) {
+  if (value == null) {
+   remove(key);
+   return;
+  }
+  long ttl = (ttlMillis < 0) ? this.ttlMillis : ttlMillis;
+  Entry<K, V> entry = new Entry<K, V>(key, value, weigher.weigh(key, value),
+   ttl > 0 ? System.currentTimeMillis() + ttl : 0);
+  lock.lock();
+  try {
+   if (loadGeneration >= 0 && generation.get() != loadGeneration) {
+    return;
+   }
+   Entry<K, V> old = map.put(key, entry);
+   if (old != null) {
+    unlink(old);
+   }
+   window.addHead(entry);
+   weightedBytes += entry.weight;
+   sketch.increment(entry.hash);
+   evict();
+  } finally {
+   lock.unlock();
+  }
+ }
+
+ public void put(K key, V value) {
+  put(key, value, -1);
+ }
+
+ public void remove(K key) {
+  lock.lock();
+  try {
+   Entry<K, V> entry = map.get(key);
+   if (entry != null) {
+    removeEntry(entry);
+   }
+  } finally {
+   lock.unlock();
+  }
+ }
+
+ public void clear() {
+  lock.lock();
+  try {
+   generation.incrementAndGet();
+   // (later gets load afresh rather than waiting for a stale load)
+   loading.clear();
+   map.clear();
+   window.clear();
+   main.clear();
+   weightedBytes = 0;
+  } finally {
+   lock.unlock();
+  }
+ }
+
+ /**
+  * Remove the expired entries (they're otherwise removed as they're
+  * found).
+  */
+ public void cleanUp() {
+  long now = System.currentTimeMillis();
+  lock.lock();
+  try {
+   for (Entry<K, V> entry : new ArrayList<Entry<K, V>>(map.values())) {
+    if (entry.isExpired(now) && map.get(entry.key) == entry) {
+     removeEntry(entry);
+     expirations.incrementAndGet();
+    }
+   }
+  } finally {
+   lock.unlock();
+  }
+ }
+
+ private void addOwner(Scriptable scope) {
+  synchronized (owners) {
+   for (Iterator<WeakReference<Scriptable>> it = owners.iterator(); it.hasNext();) {
+    Scriptable owner = it.next().get();
+    if (owner == scope) {
+     return;
+    } else if (owner == null) {
+     it.remove();
+    }
+   }
+   owners.add(new WeakReference<Scriptable>(scope));
+  }
+ }
+
+ // Was the cache created by javascript in this engine's global scope (a
+ // module's scope has the global as its prototype), or from java?
+ private boolean removeOwner(Scriptable global) {
+  synchronized (owners) {
+   if (owners.isEmpty()) {
+    return true;
+   }
+   boolean owned = false;
+   for (Iterator<WeakReference<Scriptable>> it = owners.iterator(); it.hasNext();) {
+    Scriptable owner = it.next().get();
+    if (owner == null) {
+     it.remove();
+    } else if (isWithin(owner, global)) {
+     it.remove();
+     owned = true;
+    }
+   }
+   return owned;
+  }
+ }
+
+ private static boolean isWithin(Scriptable scope, Scriptable global) {
+  for (Scriptable s = scope; s != null; s = s.getPrototype()) {
+   if (s == global) {
+    return true;
+   }
+  }
+  return false;
+ }
+
+ private void removeEntry(Entry<K, V> entry) {
+  map.remove(entry.key, entry);
+  unlink(entry);
+ }
+
+ private void unlink(Entry<K, V> entry) {
+  if (entry.queue != null) {
+   entry.queue.unlink(entry);
+   weightedBytes -= entry.weight;
+  }
+ }
+
+ private boolean overCapacity() {
+  return (maxEntries > 0 && window.size + main.size > maxEntries) ||
+   (maxBytes > 0 && weightedBytes > maxBytes);
+ }
+
+ // The window is about 1% of the cache:
+ private boolean windowFull() {
+  return (maxEntries > 0 && window.size > Math.max(1, maxEntries / 100)) ||
+   (maxBytes > 0 && window.weight > maxBytes / 100);
+ }
+
+ private void evict() {
+  // What leaves the window only displaces the main cache's least recently
+  // used entry if it's been used more often (otherwise it's dropped):
+  while (windowFull() && window.tail != null) {
+   Entry<K, V> candidate = window.tail;
+   window.unlink(candidate);
+   if (!overCapacity() || main.tail == null) {
+    main.addHead(candidate);
+    continue;
+   }
+   Entry<K, V> victim = main.tail;
+   if (sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+    evict(victim);
+    main.addHead(candidate);
+   } else {
+    weightedBytes -= candidate.weight;
+    map.remove(candidate.key, candidate);
+    evictions.incrementAndGet();
+   }
+  }
+  while (overCapacity()) {
+   Entry<K, V> victim = (main.tail != null) ? main.tail : window.tail;
+   if (victim == null) {
+    break;
+   }
+   evict(victim);
+  }
+ }
+
+ private void evict(Entry<K, V> victim) {
+  removeEntry(victim);
+  evictions.incrementAndGet();
+ }
+
+ private void registerMBean() {
+  try {
+   MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+   objectName = new ObjectName("org.springo:type=SpringoCache,name=" + ObjectName.quote(name));
+   if (server.isRegistered(objectName)) {
+    // (e.g. left by a webapp that was redeployed)
+    server.unregisterMBean(objectName);
+   }
+   server.registerMBean(this, objectName);
+  } catch (Exception e) {
+   log.warn("Could not register the \"" + name + "\" cache with JMX: " + e.getMessage());
+   objectName = null;
+  }
+ }
+
+ private void unregisterMBean() {
+  if (objectName != null) {
+   try {
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+   } catch (Exception e) {
+    log.warn("Could not unregister the \"" + name + "\" cache from JMX: " + e.getMessage());
+   }
+   objectName = null;
+  }
+ }
+
+ public String getName() {
+  return name;
+ }
+
+ public long getEntries() {
+  return map.size();
+ }
+
+ public long getWeightedBytes() {
+  lock.lock();
+  try {
+   return weightedBytes;
+  } finally {
+   lock.unlock();
+  }
+ }
+
+ public long getMaxEntries() {
+  return maxEntries;
+ }
+
+ public long getMaxBytes() {
+  return maxBytes;
+ }
+
+ public long getTtlMillis() {
+  return ttlMillis;
+ }
+
+ public boolean isClearOnReload() {
+  return clearOnReload;
+ }
+
+ public long getHits() {
+  return hits.get();
+ }
+
+ public long getMisses() {
+  return misses.get();
+ }
+
+ public double getHitRate() {
+  long requests = hits.get() + misses.get();
+  return requests == 0 ? 0 : (double) hits.get() / requests;
+ }
+
+ public long getLoads() {
+  return loads.get();
+ }
+
+ public long getLoadFailures() {
+  return loadFailures.get();
+ }
+
+ public long getLoadWaits() {
+  return loadWaits.get();
+ }
+
+ public double getAverageLoadMillis() {
+  long count = loads.get();
+  return count == 0 ? 0 : loadNanos.get() / 1000000.0 / count;
+ }
+
+ public long getEvictions() {
+  return evictions.get();
+ }
+
+ public long getExpirations() {
+  return expirations.get();
+ }
+
+ /**
+  * Report the cache's settings and stats (as the JMX attributes).
+  */
+ public Map<String, Object> getStats() {
+  Map<String, Object> stats = new LinkedHashMap<String, Object>();
+  stats.put("entries", getEntries());
+  stats.put("weightedBytes", getWeightedBytes());
+  stats.put("maxEntries", maxEntries);
+  stats.put("maxBytes", maxBytes);
+  stats.put("ttlMillis", ttlMillis);
+  stats.put("clearOnReload", clearOnReload);
+  stats.put("hits", getHits());
+  stats.put("misses", getMisses());
+  stats.put("hitRate", getHitRate());
+  stats.put("loads", getLoads());
+  stats.put("loadFailures", getLoadFailures());
+  stats.put("loadWaits", getLoadWaits());
+  stats.put("averageLoadMillis", getAverageLoadMillis());
+  stats.put("evictions", getEvictions());
+  stats.put("expirations", getExpirations());
+  return stats;
+ }
+
+ /**
+  * Estimate the bytes of a value:  strings, numbers, java arrays and
+  * collections, and javascript objects and arrays (walked to a limited
+  * depth).
+  */
+ public static long estimateBytes(Object value) {
+  return estimateBytes(value, 0);
+ }
+
+ private static long estimateBytes(Object value, int depth) {
+  if (value instanceof Wrapper) {
+   value = ((Wrapper) value).unwrap();
+  }
+  if (value == null) {
+   return 0;
+  } else if (value instanceof CharSequence) {
+   return 40 + 2L * ((CharSequence) value).length();
+  } else if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+   return 16;
+  } else if (value instanceof byte[]) {
+   return 16 + ((byte[]) value).length;
+  } else if (depth > 8) {
+   return 64;
+  } else if (value instanceof Scriptable) {
+   Scriptable obj = (Scriptable) value;
+   long bytes = 64;
+   for (Object id : obj.getIds()) {
+    Object property = (id instanceof Integer) ? obj.get(((Integer) id).intValue(), obj) : obj.get(id.toString(), obj);
+    bytes += 32 + estimateBytes(property, depth + 1);
+   }
+   return bytes;
+  } else if (value instanceof Map) {
+   long bytes = 64;
+   for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+    bytes += 32 + estimateBytes(entry.getKey(), depth + 1) + estimateBytes(entry.getValue(), depth + 1);
+   }
+   return bytes;
+  } else if (value instanceof Collection) {
+   long bytes = 64;
+   for (Object element : (Collection<?>) value) {
+    bytes += 8 + estimateBytes(element, depth + 1);
+   }
+   return bytes;
+  } else if (value.getClass().isArray()) {
+   int length = Array.getLength(value);
+   long bytes = 16 + 8L * length;
+   if (!value.getClass().getComponentType().isPrimitive()) {
+    for (int i = 0; i < length; i++) {
+     bytes += estimateBytes(Array.get(value, i), depth + 1);
+    }
+   }
+   return bytes;
+  }
+  return 64;
+ }
+
+ private static class Entry<K, V> {
+  final K key;
+  final V value;
+  final int hash;
+  final long weight;
+  final long expiresAt; // (0 for never)
+  Queue<K, V> queue = null;
+  Entry<K, V> prev = null;
+  Entry<K, V> next = null;
+
+  Entry(K key, V value, long weight, long expiresAt) {
+   this.key = key;
+   this.value = value;
+   this.hash = key.hashCode();
+   this.weight = weight;
+   this.expiresAt = expiresAt;
+  }
+
+  boolean isExpired(long now) {
+   return expiresAt != 0 && now >= expiresAt;
+  }
+ }
+
+ /**
+  * An LRU queue of entries (most recently used at the head).
+  */
+ private static class Queue<K, V> {
+  Entry<K, V> head = null;
+  Entry<K, V> tail = null;
+  int size = 0;
+  long weight = 0;
+
+  void addHead(Entry<K, V> entry) {
+   entry.queue = this;
+   entry.prev = null;
+   entry.next = head;
+   if (head != null) {
+    head.prev = entry;
+   }
+   head = entry;
+   if (tail == null) {
+    tail = entry;
+   }
+   size++;
+   weight += entry.weight;
+  }
+
+  void unlink(Entry<K, V> entry) {
+   if (entry.prev != null) {
+    entry.prev.next = entry.next;
+   } else {
+    head = entry.next;
+   }
+   if (entry.next != null) {
+    entry.next.prev = entry.prev;
+   } else {
+    tail = entry.prev;
+   }
+   entry.prev = entry.next = null;
+   entry.queue = null;
+   size--;
+   weight -= entry.weight;
+  }
+
+  void moveToHead(Entry<K, V> entry) {
+   if (head != entry) {
+    unlink(entry);
+    addHead(entry);
+   }
+  }
+
+  void clear() {
+   for (Entry<K, V> entry = head; entry != null;) {
+    Entry<K, V> next = entry.next;
+    entry.prev = entry.next = null;
+    entry.queue = null;
+    entry = next;
+   }
+   head = tail = null;
+   size = 0;
+   weight = 0;
+  }
+ }
+
+ /**
+  * A count-min sketch of how often keys are used (4 bit counters, halved
+  * periodically so it follows changes in popularity).
+  */
+ private static class FrequencySketch {
+  private static final int[] SEEDS = { 0x97cb3127, 0xb4b82e9d, 0x62b5d1f9, 0x2c8d4e43 };
+
+  private final byte[] counters;
+  private final int mask;
+  private final long sampleSize;
+  private int additions = 0;
+
+  FrequencySketch(long capacity) {
+   int size = Integer.highestOneBit((int) Math.min(Math.max(capacity, 16), 1 << 24) - 1) << 1;
+   counters = new byte[size];
+   mask = size - 1;
+   sampleSize = 10L * size / 4; // (about 10 times the entries)
+  }
+
+  private int index(int hash, int i) {
+   int h = (hash ^ SEEDS[i]) * 0x9e3779b9;
+   return (h ^ (h >>> 16)) & mask;
+  }
+
+  int frequency(int hash) {
+   int frequency = 15;
+   for (int i = 0; i < SEEDS.length; i++) {
+    frequency = Math.min(frequency, counters[index(hash, i)]);
+   }
+   return frequency;
+  }
+
+  void increment(int hash) {
+   for (int i = 0; i < SEEDS.length; i++) {
+    int index = index(hash, i);
+    if (counters[index] < 15) {
+     counters[index]++;
+    }
+   }
+   if (++additions >= sampleSize) {
+    for (int i = 0; i < counters.length; i++) {
+     counters[i] = (byte) (counters[i] >> 1);
+    }
+    additions /= 2;
+   }
+  }
+ }
+
+ /**
+  * A load in progress (remembering the thread running it, to catch a
+  * loader loading its own key).
+  */
+ private static class Loading<V> extends FutureTask<V> {
+  volatile Thread owner = null;
+
+  Loading(Callable<V> callable) {
+   super(callable);
+  }
+
+  @Override
+  public void run() {
+   owner = Thread.currentThread();
+   try {
+    super.run();
+   } finally {
+    owner = null;
+   }
+  }
+ }
+}
@@ -0,0 +1,25 @@
+package org.springo;
+
+/**
+ * The JMX interface of a SpringoCache (registered as
+ * "org.springo:type=SpringoCache,name=...").
+ */
+public interface SpringoCacheMXBean {
+ String getName();
+ long getEntries();
+ long getWeightedBytes();
+ long getMaxEntries();
+ long getMaxBytes();
+ long getTtlMillis();
+ boolean isClearOnReload();
+ long getHits();
+ long getMisses();
+ double getHitRate();
+ long getLoads();
+ long getLoadFailures();
+ long getLoadWaits();
+ double getAverageLoadMillis();
+ long getEvictions();
+ long getExpirations();
+ void clear();
+}
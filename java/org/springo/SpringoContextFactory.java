@@ -0,0 +1,111 @@
+package org.springo;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.WrapFactory;
+import org.ringojs.engine.RhinoEngine;
+
+/**
+ * The Rhino ContextFactory springo enters before calling into a
+ * RhinoEngine (from RingoJsgiFilter and RingoModuleBridge).
+ *
+ * Rhino only reports instruction counts to the ContextFactory that made
+ * the Context, so this factory exists to receive them and hand them to
+ * the ScriptWatchdog (which enforces the per request instruction budget
+ * and wall clock deadline).
+ *
+ * Since Rhino reuses the Context already entered on a thread, the
+ * engine's own (nested) enterContext calls run in our Context.  The
+ * Contexts are set up like the engine's own: the settings and features
+ * are copied from a Context made by the engine's ContextFactory.
+ *
+ * Note:  Rhino only generates the instruction counting code into
+ *   compiled (optlevel >= 0) scripts that are compiled in a Context with
+ *   an instruction observer threshold, which is the case for modules
+ *   first required while handling a request or bridge call.
+ */
+public class SpringoContextFactory extends ContextFactory {
+
+ // How often (in Rhino "instructions") the watchdog gets to check.
+ // Compiled code counts roughly one instruction per branch/call, the
+ // interpreter one per bytecode.
+ public static final int DEFAULT_OBSERVER_THRESHOLD = 100000;
+
+ private final int observerThreshold;
+
+ // The settings copied from the engine's own Contexts:
+ private final boolean[] features = new boolean[32];
+ private final boolean[] knownFeatures = new boolean[32];
+ private final int optimizationLevel;
+ private final int languageVersion;
+ private final WrapFactory wrapFactory;
+ private final ClassLoader applicationClassLoader;
+ private final ErrorReporter errorReporter;
+ private final boolean generatingDebug;
+ private final boolean generatingSource;
+
+ /**
+  * Create the ContextFactory for an engine.
+  *
+  * Note:  this enters (and exits) a Context of the engine's own, so call
+  *   it where no Context is entered yet (e.g. as the engine is created).
+  *
+  * @param observerThreshold how often (in instructions) to check the
+  *   ScriptWatchdog limits
+  */
+ public SpringoContextFactory(RhinoEngine engine, int observerThreshold) {
+  this.observerThreshold = observerThreshold;
+
+  Context template = engine.getContextFactory().enterContext();
+  try {
+   for (int i = 1; i < features.length; i++) {
+    try {
+     features[i] = template.hasFeature(i);
+     knownFeatures[i] = true;
+    } catch (IllegalArgumentException unknownFeature) {
+     // (not a feature in this version of Rhino)
+    }
+   }
+   optimizationLevel = template.getOptimizationLevel();
+   languageVersion = template.getLanguageVersion();
+   wrapFactory = template.getWrapFactory();
+   applicationClassLoader = template.getApplicationClassLoader();
+   errorReporter = template.getErrorReporter();
+   generatingDebug = template.isGeneratingDebug();
+   generatingSource = template.isGeneratingSource();
+  } finally {
+   Context.exit();
+  }
+ }
+
+ @Override
+ protected boolean hasFeature(Context cx, int featureIndex) {
+  if (featureIndex > 0 && featureIndex < features.length && knownFeatures[featureIndex]) {
+   return features[featureIndex];
+  }
+  return super.hasFeature(cx, featureIndex);
+ }
+
+ @Override
+ protected void onContextCreated(Context cx) {
+  super.onContextCreated(cx);
+  cx.setLanguageVersion(languageVersion);
+  cx.setOptimizationLevel(optimizationLevel);
+  cx.setWrapFactory(wrapFactory);
+  if (applicationClassLoader != null) {
+   cx.setApplicationClassLoader(applicationClassLoader);
+  }
+  if (errorReporter != null) {
+   cx.setErrorReporter(errorReporter);
+  }
+  cx.setGeneratingDebug(generatingDebug);
+  cx.setGeneratingSource(generatingSource);
+  cx.setInstructionObserverThreshold(observerThreshold);
+ }
+
+ @Override
+ protected void observeInstructionCount(Context cx, int instructionCount) {
+  ScriptWatchdog.observe(cx, instructionCount);
+ }
+}
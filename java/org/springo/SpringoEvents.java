@@ -0,0 +1,208 @@
+package org.springo;
+
+import javax.servlet.http.HttpServletRequest;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the phases of a springo request.
+ *
+ * Unlike the ringo profiler middleware (which needs optlevel -1) these
+ * can be left in place in production at full optimization: each begin
+ * method returns null (without creating an event) unless a recording
+ * has the event enabled, e.g.:
+ *
+ *   jcmd <pid> JFR.start name=springo settings=profile
+ *
+ * The events are:
+ *
+ *   org.springo.Request - the whole javascript handling of a request in
+ *       RingoJsgiFilter (from engine entry to the stick app returning).
+ *   org.springo.EngineEntry - entering the Rhino context and building the
+ *       JSGI request.
+ *   org.springo.FilterChain - running the servlet filter chain (i.e.
+ *       Spring) from runFilterChain/captureFilterChain.
+ *   org.springo.Middleware - a single stick middleware (see the
+ *       "springoevents" javascript module).  Note these are inclusive of
+ *       the middleware further down the chain.
+ *   org.springo.JsonBody - parsing a JSON request/response body in the
+ *       modifyrequestbody/modifyresponsebody middleware.
+ *   org.springo.ScriptLimit - javascript aborted by the ScriptWatchdog for
+ *       exceeding its instruction budget or time limit.
+ */
+public class SpringoEvents {
+
+ private SpringoEvents() {}
+
+ @Name("org.springo.Request")
+ @Label("Springo Request")
+ @Category("Springo")
+ @Description("Javascript handling of a request by RingoJsgiFilter")
+ @StackTrace(false)
+ public static class RequestEvent extends Event {
+  @Label("Method")
+  public String method;
+
+  @Label("URI")
+  public String uri;
+
+  @Label("Unhandled")
+  @Description("Javascript threw \"unhandled request\" and the servlet chain ran instead")
+  public boolean unhandled;
+ }
+
+ @Name("org.springo.EngineEntry")
+ @Label("Springo Engine Entry")
+ @Category("Springo")
+ @Description("Entering the Rhino context and building the JSGI request")
+ @StackTrace(false)
+ public static class EngineEntryEvent extends Event {
+  @Label("URI")
+  public String uri;
+ }
+
+ @Name("org.springo.FilterChain")
+ @Label("Springo Filter Chain")
+ @Category("Springo")
+ @Description("Running the servlet filter chain (e.g. Spring MVC) from javascript")
+ @StackTrace(false)
+ public static class FilterChainEvent extends Event {
+  @Label("URI")
+  public String uri;
+
+  @Label("Captured")
+  @Description("The output was buffered (captureFilterChain) rather than streamed")
+  public boolean captured;
+ }
+
+ @Name("org.springo.Middleware")
+ @Label("Springo Middleware")
+ @Category("Springo")
+ @Description("A stick middleware (inclusive of the middleware it calls)")
+ @StackTrace(false)
+ public static class MiddlewareEvent extends Event {
+  @Label("Middleware")
+  public String middleware;
+ }
+
+ @Name("org.springo.JsonBody")
+ @Label("Springo JSON Body")
+ @Category("Springo")
+ @Description("Parsing a JSON request or response body")
+ @StackTrace(false)
+ public static class JsonBodyEvent extends Event {
+  @Label("Body")
+  @Description("\"request\" or \"response\"")
+  public String body;
+ }
+
+ @Name("org.springo.ScriptLimit")
+ @Label("Springo Script Limit Exceeded")
+ @Category("Springo")
+ @Description("Javascript aborted for exceeding its instruction budget or time limit")
+ public static class ScriptLimitEvent extends Event {
+  @Label("Route")
+  public String route;
+
+  @Label("Limit")
+  @Description("\"INSTRUCTIONS\" or \"TIME\"")
+  public String limit;
+
+  @Label("Instructions")
+  public long instructions;
+
+  @Label("Elapsed Milliseconds")
+  public long elapsedMillis;
+ }
+
+ private static final EventType requestType = EventType.getEventType(RequestEvent.class);
+ private static final EventType engineEntryType = EventType.getEventType(EngineEntryEvent.class);
+ private static final EventType filterChainType = EventType.getEventType(FilterChainEvent.class);
+ private static final EventType middlewareType = EventType.getEventType(MiddlewareEvent.class);
+ private static final EventType jsonBodyType = EventType.getEventType(JsonBodyEvent.class);
+ private static final EventType scriptLimitType = EventType.getEventType(ScriptLimitEvent.class);
+
+ public static RequestEvent beginRequest(HttpServletRequest request) {
+  if (!requestType.isEnabled()) {
+   return null;
+  }
+  RequestEvent event = new RequestEvent();
+  event.method = request.getMethod();
+  event.uri = request.getRequestURI();
+  event.begin();
+  return event;
+ }
+
+ public static EngineEntryEvent beginEngineEntry(HttpServletRequest request) {
+  if (!engineEntryType.isEnabled()) {
+   return null;
+  }
+  EngineEntryEvent event = new EngineEntryEvent();
+  event.uri = request.getRequestURI();
+  event.begin();
+  return event;
+ }
+
+ public static FilterChainEvent beginFilterChain(HttpServletRequest request, boolean captured) {
+  if (!filterChainType.isEnabled()) {
+   return null;
+  }
+  FilterChainEvent event = new FilterChainEvent();
+  event.uri = request.getRequestURI();
+  event.captured = captured;
+  event.begin();
+  return event;
+ }
+
+ public static MiddlewareEvent beginMiddleware(String middleware) {
+  if (!middlewareType.isEnabled()) {
+   return null;
+  }
+  MiddlewareEvent event = new MiddlewareEvent();
+  event.middleware = middleware;
+  event.begin();
+  return event;
+ }
+
+ public static JsonBodyEvent beginJsonBody(String body) {
+  if (!jsonBodyType.isEnabled()) {
+   return null;
+  }
+  JsonBodyEvent event = new JsonBodyEvent();
+  event.body = body;
+  event.begin();
+  return event;
+ }
+
+ /**
+  * Record javascript being aborted by the ScriptWatchdog (unlike the
+  * others this is a single instant event, with a stack trace).
+  */
+ public static void commitScriptLimit(String route, String limit, long instructions, long elapsedMillis) {
+  if (!scriptLimitType.isEnabled()) {
+   return;
+  }
+  ScriptLimitEvent event = new ScriptLimitEvent();
+  event.route = route;
+  event.limit = limit;
+  event.instructions = instructions;
+  event.elapsedMillis = elapsedMillis;
+  event.commit();
+ }
+
+ /**
+  * End (and commit if it passes the recording's threshold) an event
+  * returned by one of the begin methods.  Null is ignored.
+  */
+ public static void end(Event event) {
+  if (event != null) {
+   event.commit();
+  }
+ }
+}
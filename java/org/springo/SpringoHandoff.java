@@ -0,0 +1,506 @@
+package org.springo;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.Conventions;
+import org.springframework.core.MethodParameter;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.util.ClassUtils;
+import org.springframework.validation.BindingResult;
+import org.springframework.validation.Errors;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.MethodArgumentNotValidException;
+import org.springframework.web.bind.WebDataBinder;
+import org.springframework.web.bind.support.WebDataBinderFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+import org.springframework.web.servlet.mvc.method.annotation.RequestResponseBodyMethodProcessor;
+
+/**
+ * Hands the objects Spring controllers return to the javascript
+ * transforming them (e.g. the "modifyresponsebody" middleware), instead of
+ * Spring serializing them to JSON for the javascript to parse straight back
+ * (then serialize again):  the transform gets a HandoffView of the object,
+ * and the response is only serialized once, by JsonCodec, at the end.
+ *
+ * Declare it in the Spring context (next to the ApplicationContextProvider):
+ *
+ *   <bean class="org.springo.SpringoHandoff"/>
+ *
+ * and it wraps the RequestMappingHandlerAdapter's @ResponseBody handling,
+ * keeping the return value on the request instead of writing it whenever
+ * the javascript's asked for it (see requestResponse) - otherwise, or for
+ * a String, byte[] or Resource, or when the client or the handler method
+ * doesn't do JSON, Spring writes the response as usual.  Without it
+ * declared the javascript just gets Spring's JSON as before.  The view
+ * sees (and the untouched parts are written by) the app's own Jackson
+ * ObjectMapper when there is one, so the JSON's what Spring would have
+ * written.
+ *
+ * It works the other way too (e.g. for the "modifyrequestbody"
+ * middleware):  a request body the javascript has parsed and modified can
+ * be handed to the @RequestBody argument as is (see handOffRequestBody),
+ * converted to the argument's type by the app's Jackson ObjectMapper,
+ * rather than serialized for Spring to parse again.  The body's only
+ * serialized if something else reads it, e.g. a controller taking the
+ * body some other way, or when Jackson isn't there.
+ */
+public class SpringoHandoff implements BeanPostProcessor {
+
+ /**
+  * The request attribute asking for the controller's return value.
+  */
+ public static final String RESPONSE_REQUESTED = "org.springo.handoff.responseRequested";
+
+ /**
+  * The request attribute holding the controller's return value.
+  */
+ public static final String RESPONSE_VALUE = "org.springo.handoff.response";
+
+ // The request attribute holding the HandoffView.Mapper for the value:
+ private static final String RESPONSE_MAPPER = "org.springo.handoff.responseMapper";
+
+ private static final int MAX_DEPTH = 512;
+
+ private static Logger log = Logger.getLogger(SpringoHandoff.class);
+
+ public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+  return bean;
+ }
+
+ public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+  if (bean instanceof RequestMappingHandlerAdapter) {
+   RequestMappingHandlerAdapter adapter = (RequestMappingHandlerAdapter) bean;
+   JacksonConverter converter = ClassUtils.isPresent("com.fasterxml.jackson.databind.ObjectMapper",
+    SpringoHandoff.class.getClassLoader()) ? JacksonConverter.find(adapter.getMessageConverters()) : null;
+
+   List<HandlerMethodReturnValueHandler> handlers = adapter.getReturnValueHandlers();
+   if (handlers != null) {
+    HandoffView.Mapper mapper = (converter != null) ? converter : HandoffView.GETTERS;
+    List<HandlerMethodReturnValueHandler> wrapped = new ArrayList<HandlerMethodReturnValueHandler>(handlers.size());
+    for (HandlerMethodReturnValueHandler handler : handlers) {
+     wrapped.add(handler instanceof RequestResponseBodyMethodProcessor ?
+      new ResponseHandoff(handler, mapper) : handler);
+    }
+    adapter.setReturnValueHandlers(wrapped);
+    log.info("Handing @ResponseBody return values off to javascript (" + beanName + ", " +
+     (converter != null ? "written by Jackson" : "written by their getters") + ")");
+   }
+
+   List<HandlerMethodArgumentResolver> resolvers = adapter.getArgumentResolvers();
+   if (resolvers != null && converter != null) {
+    List<HandlerMethodArgumentResolver> wrapped = new ArrayList<HandlerMethodArgumentResolver>(resolvers.size());
+    for (HandlerMethodArgumentResolver resolver : resolvers) {
+     wrapped.add(resolver instanceof RequestResponseBodyMethodProcessor ?
+      new RequestHandoff(resolver, converter) : resolver);
+    }
+    adapter.setArgumentResolvers(wrapped);
+    log.info("Handing javascript request bodies off to @RequestBody arguments (" + beanName + ")");
+   }
+  }
+  return bean;
+ }
+
+ /**
+  * Hand a (javascript) request body to the @RequestBody argument, in place
+  * of the body bytes.  The value's converted to java Maps, Lists, Strings,
+  * numbers and booleans now, and only serialized (as JSON) if something
+  * reads the body after all.
+  *
+  * The value's kept by the BufferedRequestWrapper as its body (so setting
+  * the body again replaces it), and only the requests wrapping it (e.g. a
+  * forward to Spring, but not a batch's sub-requests) see it.
+  *
+  * @param request the request (a BufferedRequestWrapper)
+  * @param value the body
+  */
+ public static void handOffRequestBody(ServletRequest request, Object value) {
+  if (!(request instanceof BufferedRequestWrapper)) {
+   throw new IllegalArgumentException("Only a BufferedRequestWrapper's body can be handed off");
+  }
+  ((BufferedRequestWrapper) request).setBodyValue(toJava(value, 0));
+ }
+
+ /**
+  * Convert a javascript value to what it'd be as JSON, but in java:
+  * objects to Maps, arrays to Lists, integral numbers to Longs (functions
+  * and undefined are skipped in objects and become null in arrays, and
+  * toJSON() is called as JSON.stringify would, e.g. for Dates).
+  */
+ static Object toJava(Object value, int depth) {
+  if (depth > MAX_DEPTH) {
+   throw new IllegalArgumentException("The handed off body is nested too deeply (or cyclic)");
+  }
+  if (value instanceof Scriptable && !(value instanceof Wrapper)) {
+   value = JsonCodec.JsonWriter.callToJSON((Scriptable) value);
+  }
+  if (value instanceof Wrapper) {
+   value = ((Wrapper) value).unwrap();
+  }
+  if (value == null || value == Undefined.instance || value instanceof Function) {
+   return null;
+  }
+  if (value instanceof CharSequence) {
+   return value.toString();
+  }
+  if (value instanceof Double || value instanceof Float) {
+   double d = ((Number) value).doubleValue();
+   if (d == (long) d && Math.abs(d) < 9007199254740992.0) {
+    return Long.valueOf((long) d);
+   }
+   return (Double.isNaN(d) || Double.isInfinite(d)) ? null : value;
+  }
+  if (!(value instanceof Scriptable)) {
+   return value;
+  }
+  Scriptable obj = (Scriptable) value;
+  if (obj instanceof NativeArray || "Array".equals(obj.getClassName())) {
+   long length = (obj instanceof NativeArray) ? ((NativeArray) obj).getLength() :
+    (long) ScriptRuntime.toNumber(ScriptableObject.getProperty(obj, "length"));
+   List<Object> list = new ArrayList<Object>((int) length);
+   for (int i = 0; i < length; i++) {
+    Object element = ScriptableObject.getProperty(obj, i);
+    list.add(element == Scriptable.NOT_FOUND ? null : toJava(element, depth + 1));
+   }
+   return list;
+  }
+  Map<String, Object> map = new LinkedHashMap<String, Object>();
+  for (Object id : obj.getIds()) {
+   Object element = (id instanceof Integer) ?
+    ScriptableObject.getProperty(obj, ((Integer) id).intValue()) :
+    ScriptableObject.getProperty(obj, id.toString());
+   if (element == Scriptable.NOT_FOUND || element == Undefined.instance || element instanceof Function) {
+    continue;
+   }
+   map.put(id.toString(), toJava(element, depth + 1));
+  }
+  return map;
+ }
+
+ /**
+  * Ask for the controller's return value (rather than its JSON) when the
+  * request's run through Spring.
+  */
+ public static void requestResponse(ServletRequest request) {
+  request.setAttribute(RESPONSE_REQUESTED, Boolean.TRUE);
+ }
+
+ /**
+  * Take the controller's return value as a javascript view (null if it
+  * wasn't handed off, and Spring wrote the response as usual).
+  *
+  * @param scope any javascript object from the scope the view is for
+  */
+ public static Object takeResponse(Scriptable scope, ServletRequest request) {
+  request.removeAttribute(RESPONSE_REQUESTED);
+  Object value = request.getAttribute(RESPONSE_VALUE);
+  if (value == null) {
+   return null;
+  }
+  HandoffView.Mapper mapper = (HandoffView.Mapper) request.getAttribute(RESPONSE_MAPPER);
+  request.removeAttribute(RESPONSE_VALUE);
+  request.removeAttribute(RESPONSE_MAPPER);
+  return HandoffView.wrap(scope, value, mapper != null ? mapper : HandoffView.GETTERS);
+ }
+
+ // Would the handler method and client take JSON (what the javascript
+ // will write)?
+ static boolean acceptsJson(HttpServletRequest request) {
+  Object producible = request.getAttribute(HandlerMapping.PRODUCIBLE_MEDIA_TYPES_ATTRIBUTE);
+  if (producible instanceof Collection && !((Collection<?>) producible).isEmpty()) {
+   boolean json = false;
+   for (Object type : (Collection<?>) producible) {
+    if (type instanceof MediaType && isJson((MediaType) type)) {
+     json = true;
+     break;
+    }
+   }
+   if (!json) {
+    return false;
+   }
+  }
+  String accept = request.getHeader("Accept");
+  if (accept == null || accept.length() == 0) {
+   return true;
+  }
+  for (MediaType type : MediaType.parseMediaTypes(accept)) {
+   if (type.isWildcardType() || isJson(type)) {
+    return true;
+   }
+  }
+  return false;
+ }
+
+ private static boolean isJson(MediaType type) {
+  String subtype = type.getSubtype();
+  return subtype.equals("json") || subtype.endsWith("+json") || type.isWildcardSubtype();
+ }
+
+ // (the objects the javascript would get a view of, not text or bytes)
+ static boolean isHandoffValue(Object value, HandoffView.Mapper mapper) {
+  return value != null && !(value instanceof CharSequence) && !(value instanceof byte[]) &&
+   !(value instanceof Resource) && !(value instanceof Number) && !(value instanceof Boolean) &&
+   (value instanceof Map || value instanceof Collection || value.getClass().isArray() ||
+    mapper.getProperties(value.getClass()) != null);
+ }
+
+ /**
+  * The @ResponseBody handling, keeping the return value on the request
+  * when asked.
+  */
+ static class ResponseHandoff implements HandlerMethodReturnValueHandler {
+
+  private final HandlerMethodReturnValueHandler delegate;
+  private final HandoffView.Mapper mapper;
+
+  ResponseHandoff(HandlerMethodReturnValueHandler delegate, HandoffView.Mapper mapper) {
+   this.delegate = delegate;
+   this.mapper = mapper;
+  }
+
+  public boolean supportsReturnType(MethodParameter returnType) {
+   return delegate.supportsReturnType(returnType);
+  }
+
+  public void handleReturnValue(Object returnValue, MethodParameter returnType,
+   ModelAndViewContainer mavContainer, NativeWebRequest webRequest) throws Exception {
+   HttpServletRequest request = webRequest.getNativeRequest(HttpServletRequest.class);
+   HttpServletResponse response = webRequest.getNativeResponse(HttpServletResponse.class);
+   if (request != null && response != null && request.getAttribute(RESPONSE_REQUESTED) != null &&
+    isHandoffValue(returnValue, mapper) && acceptsJson(request)) {
+    request.setAttribute(RESPONSE_VALUE, returnValue);
+    request.setAttribute(RESPONSE_MAPPER, mapper);
+    response.setContentType("application/json;charset=UTF-8");
+    mavContainer.setRequestHandled(true);
+    return;
+   }
+   delegate.handleReturnValue(returnValue, returnType, mavContainer, webRequest);
+  }
+ }
+
+ /**
+  * The @RequestBody handling, binding the handed off body (when there is
+  * one) with Jackson instead of reading the body.  The argument's still
+  * validated (@Valid or @Validated) as Spring would, but any RequestBodyAdvice
+  * isn't applied.
+  */
+ static class RequestHandoff implements HandlerMethodArgumentResolver {
+
+  private final HandlerMethodArgumentResolver delegate;
+  private final JacksonConverter converter;
+
+  RequestHandoff(HandlerMethodArgumentResolver delegate, JacksonConverter converter) {
+   this.delegate = delegate;
+   this.converter = converter;
+  }
+
+  public boolean supportsParameter(MethodParameter parameter) {
+   return delegate.supportsParameter(parameter);
+  }
+
+  public Object resolveArgument(MethodParameter parameter, ModelAndViewContainer mavContainer,
+   NativeWebRequest webRequest, WebDataBinderFactory binderFactory) throws Exception {
+   // (the body value's on the wrapper, so it's only ever the current body)
+   BufferedRequestWrapper request = webRequest.getNativeRequest(BufferedRequestWrapper.class);
+   Object body = (request != null) ? request.getBodyValue() : null;
+   if (body == null || "java.util.Optional".equals(parameter.getParameterType().getName())) {
+    // (parse the body bytes as usual)
+    return delegate.resolveArgument(parameter, mavContainer, webRequest, binderFactory);
+   }
+
+   Object arg;
+   try {
+    arg = converter.convert(body, parameter);
+   } catch (IllegalArgumentException e) {
+    throw new HttpMessageNotReadableException("Could not bind the handed off request body: " + e.getMessage(), e);
+   }
+
+   if (binderFactory != null) {
+    String name = Conventions.getVariableNameForParameter(parameter);
+    WebDataBinder binder = binderFactory.createBinder(webRequest, arg, name);
+    if (arg != null) {
+     validate(binder, parameter);
+     if (binder.getBindingResult().hasErrors() && !hasErrorsParameter(parameter)) {
+      throw new MethodArgumentNotValidException(parameter, binder.getBindingResult());
+     }
+    }
+    if (mavContainer != null) {
+     mavContainer.addAttribute(BindingResult.MODEL_KEY_PREFIX + name, binder.getBindingResult());
+    }
+   }
+   return arg;
+  }
+
+  // (as AbstractMessageConverterMethodArgumentResolver.validateIfApplicable)
+  private void validate(WebDataBinder binder, MethodParameter parameter) {
+   for (Annotation annotation : parameter.getParameterAnnotations()) {
+    Validated validated = AnnotationUtils.getAnnotation(annotation, Validated.class);
+    if (validated != null || annotation.annotationType().getSimpleName().startsWith("Valid")) {
+     Object hints = (validated != null) ? validated.value() : AnnotationUtils.getValue(annotation);
+     binder.validate(hints instanceof Object[] ? (Object[]) hints : new Object[] { hints });
+     break;
+    }
+   }
+  }
+
+  // (is the argument followed by an Errors/BindingResult one?)
+  private boolean hasErrorsParameter(MethodParameter parameter) {
+   Class<?>[] types = parameter.getMethod().getParameterTypes();
+   int next = parameter.getParameterIndex() + 1;
+   return types.length > next && Errors.class.isAssignableFrom(types[next]);
+  }
+ }
+
+ /**
+  * Converts the handed off bodies with the app's own Jackson ObjectMapper,
+  * and has HandoffViews see and write the controllers' return values the
+  * way it would (kept apart so nothing needs Jackson unless it's there).
+  */
+ static class JacksonConverter implements HandoffView.Mapper {
+
+  private static final HandoffView.Property[] NOT_A_BEAN = new HandoffView.Property[0];
+
+  private final com.fasterxml.jackson.databind.ObjectMapper mapper;
+  private final Map<Class<?>, HandoffView.Property[]> beanProperties =
+   new ConcurrentHashMap<Class<?>, HandoffView.Property[]>();
+
+  private JacksonConverter(com.fasterxml.jackson.databind.ObjectMapper mapper) {
+   this.mapper = mapper;
+  }
+
+  static JacksonConverter find(List<HttpMessageConverter<?>> converters) {
+   if (converters != null) {
+    for (HttpMessageConverter<?> converter : converters) {
+     if (converter instanceof MappingJackson2HttpMessageConverter) {
+      return new JacksonConverter(((MappingJackson2HttpMessageConverter) converter).getObjectMapper());
+     }
+    }
+   }
+   return null;
+  }
+
+  /**
+   * Convert the body to the argument's type (without serializing it to
+   * text, see ObjectMapper.convertValue).
+   */
+  Object convert(Object body, MethodParameter parameter) {
+   com.fasterxml.jackson.databind.JavaType type =
+    mapper.getTypeFactory().constructType(parameter.getGenericParameterType());
+   return mapper.convertValue(body, type);
+  }
+
+  /**
+   * The properties Jackson writes for a class, as it names them (null
+   * unless Jackson writes it as a plain bean, e.g. not for a Date or a
+   * class with type ids, object ids, an any-getter or unwrapped
+   * properties - those are converted or written whole).
+   */
+  public HandoffView.Property[] getProperties(Class<?> type) {
+   HandoffView.Property[] properties = beanProperties.get(type);
+   if (properties == null) {
+    properties = findProperties(type);
+    beanProperties.put(type, properties);
+   }
+   return properties == NOT_A_BEAN ? null : properties;
+  }
+
+  private HandoffView.Property[] findProperties(Class<?> type) {
+   com.fasterxml.jackson.databind.SerializationConfig config = mapper.getSerializationConfig();
+   com.fasterxml.jackson.databind.JavaType javaType = mapper.constructType(type);
+   com.fasterxml.jackson.databind.JsonSerializer<Object> serializer;
+   try {
+    serializer = mapper.getSerializerProviderInstance().findValueSerializer(type);
+    if (serializer.getClass() != com.fasterxml.jackson.databind.ser.BeanSerializer.class ||
+     serializer.usesObjectId() || mapper.getSerializerFactory().createTypeSerializer(config, javaType) != null ||
+     config.introspect(javaType).findAnyGetter() != null) {
+     return NOT_A_BEAN;
+    }
+   } catch (com.fasterxml.jackson.databind.JsonMappingException e) {
+    return NOT_A_BEAN;
+   }
+   List<HandoffView.Property> found = new ArrayList<HandoffView.Property>();
+   for (Iterator<com.fasterxml.jackson.databind.ser.PropertyWriter> it = serializer.properties(); it.hasNext(); ) {
+    com.fasterxml.jackson.databind.ser.PropertyWriter writer = it.next();
+    if (!(writer instanceof com.fasterxml.jackson.databind.ser.BeanPropertyWriter) ||
+     writer instanceof com.fasterxml.jackson.databind.ser.impl.UnwrappingBeanPropertyWriter) {
+     return NOT_A_BEAN;
+    }
+    found.add(new JacksonProperty((com.fasterxml.jackson.databind.ser.BeanPropertyWriter) writer));
+   }
+   return found.toArray(new HandoffView.Property[found.size()]);
+  }
+
+  /**
+   * Convert a value to the Maps, Lists, Strings, numbers and booleans
+   * Jackson would write it as (e.g. a Date as its millis or formatted, as
+   * the ObjectMapper's configured).
+   */
+  public Object toSimple(Object value) {
+   return mapper.convertValue(value, Object.class);
+  }
+
+  public byte[] toJson(Object value) throws IOException {
+   return mapper.writeValueAsBytes(value);
+  }
+ }
+
+ /**
+  * A bean property as Jackson writes it.
+  */
+ private static final class JacksonProperty extends HandoffView.Property {
+
+  private final com.fasterxml.jackson.databind.ser.BeanPropertyWriter writer;
+
+  JacksonProperty(com.fasterxml.jackson.databind.ser.BeanPropertyWriter writer) {
+   super(writer.getName());
+   this.writer = writer;
+  }
+
+  @Override
+  Object get(Object bean) {
+   try {
+    return writer.get(bean);
+   } catch (RuntimeException e) {
+    throw e;
+   } catch (Exception e) {
+    throw new IllegalStateException(e);
+   }
+  }
+
+  @Override
+  boolean isOmitted(Object value) {
+   return value == null && writer.willSuppressNulls();
+  }
+ }
+}
@@ -0,0 +1,513 @@
+package org.springo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.ringojs.util.StringUtils;
+
+/**
+ * Logging for the request path (see also the "springolog" module) that
+ * costs the request thread as little as possible:  a message is only
+ * formatted - its "{}" placeholders replaced by its arguments - by a
+ * background thread that hands it on to log4j, the request thread just
+ * claims an entry in a (lock free) ring buffer and fills it in.
+ *
+ * When the buffer's full messages are dropped and counted rather than
+ * making the request wait.  Each logger can also be sampled (only that
+ * fraction of its debug/info messages logged) and rate limited (at most
+ * that many messages a second), e.g. with the "springo.log-sample-rates"
+ * and "springo.log-rate-limits" context-params ("springoutils=0.01,jsonerror=0.5").
+ * Drops are reported by getStats() and (at most once a minute) logged.
+ *
+ * The buffer and the loggers are shared by all the filters in the JVM
+ * (hence context-params rather than init-params):  the first filter
+ * initialized sizes the buffer (from the "springo.log-buffer-size"
+ * context-param, unless the "springo.log.bufferSize" system property's
+ * set), and its background thread is stopped once the last is destroyed
+ * (see retainShared() and releaseShared()).
+ *
+ * The messages keep the time they were logged at and their thread's name,
+ * but layouts showing the caller's location get the appender thread's.
+ *
+ * Note:  the arguments are formatted later, on another thread, so they
+ *   mustn't be modified after being logged (nor be javascript objects,
+ *   which the "springolog" module converts to strings first).
+ */
+public class SpringoLog {
+
+ public static final int DEFAULT_BUFFER_SIZE = 8192;
+ public static final String BUFFER_SIZE_PROPERTY = "springo.log.bufferSize";
+
+ private static final String FQCN = SpringoLog.class.getName();
+ private static final Object[] NO_ARGS = new Object[0];
+ private static final long DROP_REPORT_MILLIS = 60 * 1000;
+
+ private static Logger log = Logger.getLogger(SpringoLog.class);
+
+ private static final ConcurrentHashMap<String, SpringoLog> loggers = new ConcurrentHashMap<String, SpringoLog>();
+ private static final Map<String, Double> sampleRates = new ConcurrentHashMap<String, Double>();
+ private static final Map<String, Integer> rateLimits = new ConcurrentHashMap<String, Integer>();
+
+ private static volatile Ring ring = new Ring(toCapacity(Integer.getInteger(BUFFER_SIZE_PROPERTY, DEFAULT_BUFFER_SIZE)));
+ private static int sharedUsers = 0;
+
+ private final Logger logger;
+ private volatile double sampleRate = 1;
+ private volatile int rateLimit = 0;
+ private volatile long rateWindow = 0;
+ private final AtomicInteger rateCount = new AtomicInteger();
+
+ private final AtomicLong logged = new AtomicLong();
+ private final AtomicLong sampledOut = new AtomicLong();
+ private final AtomicLong rateLimited = new AtomicLong();
+
+ private SpringoLog(String name) {
+  this.logger = Logger.getLogger(name);
+  Double rate = sampleRates.get(name);
+  if (rate != null) {
+   sampleRate = rate;
+  }
+  Integer limit = rateLimits.get(name);
+  if (limit != null) {
+   rateLimit = limit;
+  }
+ }
+
+ /**
+  * Get the named logger (the log4j logger of the same name does the
+  * actual logging, so it's configured as usual).
+  */
+ public static SpringoLog getLogger(String name) {
+  SpringoLog logger = loggers.get(name);
+  if (logger == null) {
+   SpringoLog created = new SpringoLog(name);
+   logger = loggers.putIfAbsent(name, created);
+   if (logger == null) {
+    logger = created;
+   }
+  }
+  return logger;
+ }
+
+ public static SpringoLog getLogger(Class<?> type) {
+  return getLogger(type.getName());
+ }
+
+ /**
+  * Set the size of the ring buffer (rounded up to a power of 2), draining
+  * the current one first.  Only the first filter to be initialized gets to
+  * size it (the others share it as it is), and not even that one if the
+  * "springo.log.bufferSize" system property's set.
+  */
+ public static synchronized void setBufferSize(int size) {
+  if (sharedUsers > 0 || System.getProperty(BUFFER_SIZE_PROPERTY) != null) {
+   return;
+  }
+  int capacity = toCapacity(size);
+  if (capacity != ring.capacity) {
+   Ring old = ring;
+   ring = new Ring(capacity);
+   old.shutdown();
+  }
+ }
+
+ private static int toCapacity(int size) {
+  return Integer.highestOneBit(Math.max(size, 16) - 1) << 1;
+ }
+
+ /**
+  * Note a filter logging through the buffer (until it calls
+  * releaseShared()), starting a new buffer if the last filter stopped it.
+  */
+ public static synchronized void retainShared() {
+  if (ring.isStopped()) {
+   ring = new Ring(ring.capacity);
+  }
+  sharedUsers++;
+ }
+
+ /**
+  * Note a filter's done logging, shutting the buffer down once none are
+  * using it any more.
+  */
+ public static synchronized void releaseShared() {
+  if (sharedUsers > 0 && --sharedUsers == 0) {
+   ring.shutdown();
+  }
+ }
+
+ /**
+  * Set the sample rates of the loggers from e.g. "springoutils=0.01,
+  * jsonerror=0.5" (including those not created yet).
+  */
+ public static void setSampleRates(String spec) {
+  for (Map.Entry<String, String> entry : parse(spec).entrySet()) {
+   double rate = Double.parseDouble(entry.getValue());
+   sampleRates.put(entry.getKey(), rate);
+   getLogger(entry.getKey()).setSampleRate(rate);
+  }
+ }
+
+ /**
+  * Set the rate limits (messages a second) of the loggers from e.g.
+  * "captureunhandledrequest=100" (including those not created yet).
+  */
+ public static void setRateLimits(String spec) {
+  for (Map.Entry<String, String> entry : parse(spec).entrySet()) {
+   int limit = Integer.parseInt(entry.getValue());
+   rateLimits.put(entry.getKey(), limit);
+   getLogger(entry.getKey()).setRateLimit(limit);
+  }
+ }
+
+ private static Map<String, String> parse(String spec) {
+  Map<String, String> parsed = new LinkedHashMap<String, String>();
+  if (spec != null) {
+   for (String pair : StringUtils.split(spec.replace(" ", ""), ",")) {
+    int eq = pair.indexOf('=');
+    if (eq > 0) {
+     parsed.put(pair.substring(0, eq), pair.substring(eq + 1));
+    }
+   }
+  }
+  return parsed;
+ }
+
+ /**
+  * Log what's in the buffer and stop the background thread for good:  the
+  * messages logged from then on are dropped (until a filter's initialized
+  * again, see retainShared()).
+  */
+ public static synchronized void shutdown() {
+  ring.shutdown();
+ }
+
+ /**
+  * Report the messages logged and dropped:  overall (those dropped
+  * because the buffer was full) and by logger.
+  */
+ public static Map<String, Object> getStats() {
+  Map<String, Object> stats = new LinkedHashMap<String, Object>();
+  Ring current = ring;
+  stats.put("bufferSize", current.capacity);
+  stats.put("queued", current.next.get() - current.consumed);
+  stats.put("dropped", current.dropped.get());
+  Map<String, Object> byLogger = new TreeMap<String, Object>();
+  for (SpringoLog logger : loggers.values()) {
+   Map<String, Object> loggerStats = new LinkedHashMap<String, Object>();
+   loggerStats.put("sampleRate", logger.sampleRate);
+   loggerStats.put("rateLimit", logger.rateLimit);
+   loggerStats.put("logged", logger.logged.get());
+   loggerStats.put("sampledOut", logger.sampledOut.get());
+   loggerStats.put("rateLimited", logger.rateLimited.get());
+   byLogger.put(logger.getName(), loggerStats);
+  }
+  stats.put("loggers", byLogger);
+  return stats;
+ }
+
+ public String getName() {
+  return logger.getName();
+ }
+
+ /**
+  * Log this fraction of the debug/info (and trace) messages (1 logs them
+  * all).
+  */
+ public void setSampleRate(double sampleRate) {
+  this.sampleRate = sampleRate;
+ }
+
+ /**
+  * Log at most this many messages a second (0 for no limit).
+  */
+ public void setRateLimit(int rateLimit) {
+  this.rateLimit = rateLimit;
+ }
+
+ public boolean isEnabled(Level level) {
+  return logger.isEnabledFor(level);
+ }
+
+ public boolean isDebugEnabled() {
+  return logger.isEnabledFor(Level.DEBUG);
+ }
+
+ public boolean isInfoEnabled() {
+  return logger.isEnabledFor(Level.INFO);
+ }
+
+ /**
+  * Should a message at this level be logged (it's enabled, and isn't
+  * sampled out or over the rate limit)?  If so it must be, by append().
+  */
+ public boolean shouldLog(Level level) {
+  if (!logger.isEnabledFor(level)) {
+   return false;
+  }
+  if (sampleRate < 1 && !level.isGreaterOrEqual(Level.WARN) &&
+   ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+   sampledOut.incrementAndGet();
+   return false;
+  }
+  if (rateLimit > 0) {
+   long second = System.currentTimeMillis() / 1000;
+   if (second != rateWindow) {
+    // (racy, but at worst a few more get through as the second changes)
+    rateWindow = second;
+    rateCount.set(0);
+   }
+   if (rateCount.incrementAndGet() > rateLimit) {
+    rateLimited.incrementAndGet();
+    return false;
+   }
+  }
+  return true;
+ }
+
+ /**
+  * Log a message shouldLog() has OK'ed.
+  */
+ public void append(Level level, String pattern, Object[] args, Throwable error) {
+  if (ring.publish(this, level, pattern, args, error)) {
+   logged.incrementAndGet();
+  }
+ }
+
+ public void log(Level level, String pattern, Object... args) {
+  if (shouldLog(level)) {
+   append(level, pattern, args, null);
+  }
+ }
+
+ public void debug(String message) {
+  if (shouldLog(Level.DEBUG)) {
+   append(Level.DEBUG, message, NO_ARGS, null);
+  }
+ }
+
+ public void debug(String pattern, Object... args) {
+  log(Level.DEBUG, pattern, args);
+ }
+
+ public void info(String message) {
+  if (shouldLog(Level.INFO)) {
+   append(Level.INFO, message, NO_ARGS, null);
+  }
+ }
+
+ public void info(String pattern, Object... args) {
+  log(Level.INFO, pattern, args);
+ }
+
+ public void warn(String message) {
+  if (shouldLog(Level.WARN)) {
+   append(Level.WARN, message, NO_ARGS, null);
+  }
+ }
+
+ public void warn(String pattern, Object... args) {
+  log(Level.WARN, pattern, args);
+ }
+
+ public void warn(String message, Throwable error) {
+  if (shouldLog(Level.WARN)) {
+   append(Level.WARN, message, NO_ARGS, error);
+  }
+ }
+
+ public void error(String message, Throwable error) {
+  if (shouldLog(Level.ERROR)) {
+   append(Level.ERROR, message, NO_ARGS, error);
+  }
+ }
+
+ public void error(String pattern, Object... args) {
+  log(Level.ERROR, pattern, args);
+ }
+
+ /**
+  * Replace the "{}"s in the pattern by the arguments (any left over are
+  * appended).
+  */
+ static String format(String pattern, Object[] args) {
+  if (args == null || args.length == 0) {
+   return pattern;
+  }
+  StringBuilder sb = new StringBuilder(pattern.length() + 16 * args.length);
+  int arg = 0;
+  int start = 0;
+  for (int i = pattern.indexOf("{}"); i >= 0 && arg < args.length; i = pattern.indexOf("{}", start)) {
+   sb.append(pattern, start, i).append(args[arg++]);
+   start = i + 2;
+  }
+  sb.append(pattern, start, pattern.length());
+  for (; arg < args.length; arg++) {
+   sb.append(' ').append(args[arg]);
+  }
+  return sb.toString();
+ }
+
+ // A message waiting in the ring (reused once it's been logged):
+ private static final class Entry {
+  volatile long sequence = -1;
+  SpringoLog logger;
+  Level level;
+  long timestamp;
+  String thread;
+  String pattern;
+  Object[] args;
+  Throwable error;
+ }
+
+ /**
+  * The ring buffer:  the request threads claim the next sequence number
+  * (if the consumer's not a whole ring behind) and publish their entry by
+  * setting its sequence, which the appender thread waits for before
+  * logging it and moving on.
+  */
+ private static final class Ring implements Runnable {
+  final int capacity;
+  private final int mask;
+  private final Entry[] entries;
+  final AtomicLong next = new AtomicLong();
+  volatile long consumed = 0;
+  final AtomicLong dropped = new AtomicLong();
+
+  private volatile Thread appender = null;
+  private volatile boolean waiting = false;
+  private volatile boolean stopping = false;
+  private long reportedDropped = 0;
+  private long lastReport = 0;
+
+  Ring(int capacity) {
+   this.capacity = capacity;
+   this.mask = capacity - 1;
+   this.entries = new Entry[capacity];
+   for (int i = 0; i < capacity; i++) {
+    entries[i] = new Entry();
+   }
+  }
+
+  boolean publish(SpringoLog logger, Level level, String pattern, Object[] args, Throwable error) {
+   long sequence;
+   do {
+    sequence = next.get();
+    if (sequence - consumed >= capacity || stopping) {
+     dropped.incrementAndGet();
+     return false;
+    }
+   } while (!next.compareAndSet(sequence, sequence + 1));
+
+   Entry entry = entries[(int) (sequence & mask)];
+   entry.logger = logger;
+   entry.level = level;
+   entry.timestamp = System.currentTimeMillis();
+   entry.thread = Thread.currentThread().getName();
+   entry.pattern = pattern;
+   entry.args = args;
+   entry.error = error;
+   entry.sequence = sequence;
+
+   Thread thread = appender;
+   if (thread == null) {
+    start();
+   } else if (waiting) {
+    LockSupport.unpark(thread);
+   }
+   return true;
+  }
+
+  private synchronized void start() {
+   if (appender == null && !stopping) {
+    Thread thread = new Thread(this, "springo-log-appender");
+    thread.setDaemon(true);
+    appender = thread;
+    thread.start();
+   }
+  }
+
+  public void run() {
+   while (true) {
+    Entry entry = entries[(int) (consumed & mask)];
+    if (entry.sequence != consumed) {
+     if (stopping && next.get() == consumed) {
+      break;
+     }
+     waiting = true;
+     if (entry.sequence != consumed) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(stopping ? 1 : 100));
+     }
+     waiting = false;
+     reportDropped();
+     continue;
+    }
+    try {
+     Logger logger = entry.logger.logger;
+     logger.callAppenders(new LoggingEvent(FQCN, logger, entry.timestamp, entry.level,
+      format(entry.pattern, entry.args), entry.thread,
+      entry.error != null ? new ThrowableInformation(entry.error) : null, null, null, null));
+    } catch (RuntimeException e) {
+     // (a bad argument's toString)
+     log.error("Could not log \"" + entry.pattern + "\": " + e);
+    }
+    entry.logger = null;
+    entry.args = null;
+    entry.error = null;
+    consumed++;
+   }
+   reportDropped();
+  }
+
+  private void reportDropped() {
+   long now = System.currentTimeMillis();
+   if (now - lastReport < DROP_REPORT_MILLIS) {
+    return;
+   }
+   long total = dropped.get();
+   if (total > reportedDropped) {
+    log.warn("Dropped " + (total - reportedDropped) + " log messages, the buffer (of " + capacity +
+     ") was full");
+    reportedDropped = total;
+   }
+   lastReport = now;
+  }
+
+  boolean isStopped() {
+   return stopping;
+  }
+
+  /**
+   * Log what's queued and stop the appender thread (a stopped ring drops
+   * whatever's published to it).
+   */
+  synchronized void shutdown() {
+   stopping = true;
+   Thread thread = appender;
+   if (thread != null) {
+    LockSupport.unpark(thread);
+    try {
+     thread.join(5000);
+    } catch (InterruptedException e) {
+     Thread.currentThread().interrupt();
+    }
+    if (!thread.isAlive()) {
+     appender = null;
+    }
+    // (otherwise it's stuck in an appender, and is left to finish on its
+    // own rather than starting another)
+   }
+  }
+ }
+}
@@ -0,0 +1,248 @@
+package org.springo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tiered compilation for RingoJsgiFilter's engine (the "tiered-compilation"
+ * init-param):  the javascript is first loaded interpreted (optlevel -1),
+ * which starts and reloads quickly, and once it's been invoked enough to
+ * be worth it, an engine compiling it at a high optlevel is built in the
+ * background and swapped in.
+ *
+ * Rhino compiles a module when it's loaded into an engine and the module
+ * objects are shared between the modules requiring them, so rather than
+ * recompiling modules one at a time inside a running engine (which would
+ * re-run them and leave other modules holding the old exports) the whole
+ * engine is promoted at once.  Requests in flight finish on the engine
+ * they started on.
+ *
+ * A deploy (see the filter's "reload-if-modified") drops back to the
+ * interpreted tier so reloads stay fast (an engine still being built for
+ * the old javascript is dropped rather than promoted).
+ *
+ * The invocations are counted by module and function (the filter's app
+ * function per request, the RingoModuleBridge's calls) so the hottest
+ * can be reported along with the tier transitions and the time spent in
+ * each tier (see getStats).
+ */
+public class TieredCompilation {
+
+ public static final int INTERPRETED_OPTLEVEL = -1;
+ public static final int DEFAULT_OPTIMIZED_OPTLEVEL = 9;
+ public static final long DEFAULT_THRESHOLD = 1000;
+
+ private static final int MAX_COUNTED = 256;
+ private static final int TOP_REPORTED = 20;
+
+ public enum Tier {
+  INTERPRETED, COMPILING, OPTIMIZED
+ }
+
+ private static Logger log = Logger.getLogger(TieredCompilation.class);
+
+ private final int optimizedOptLevel;
+ private final long threshold;
+
+ private volatile Tier tier = Tier.INTERPRETED;
+ private long tierStartedAt = System.currentTimeMillis();
+ private final Map<Tier, Long> timeInTier = new LinkedHashMap<Tier, Long>();
+ private final List<Map<String, Object>> transitions = new ArrayList<Map<String, Object>>();
+
+ private final AtomicLong invocations = new AtomicLong();
+ private final AtomicLong invocationsAtTier = new AtomicLong();
+ private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+ private final AtomicBoolean promotionScheduled = new AtomicBoolean(false);
+ // (counts the reloads, so a promotion overtaken by one is known)
+ private final AtomicLong resets = new AtomicLong();
+
+ private final ExecutorService compiler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+  public Thread newThread(Runnable runnable) {
+   Thread thread = new Thread(runnable, "springo-tiered-compiler");
+   thread.setDaemon(true);
+   thread.setPriority(Thread.MIN_PRIORITY);
+   return thread;
+  }
+ });
+
+ /**
+  * @param optimizedOptLevel the optlevel of the promoted engine
+  * @param threshold the invocations (since the interpreted engine was
+  *   loaded) after which it's promoted
+  */
+ public TieredCompilation(int optimizedOptLevel, long threshold) {
+  this.optimizedOptLevel = optimizedOptLevel;
+  this.threshold = threshold;
+  for (Tier each : Tier.values()) {
+   timeInTier.put(each, 0L);
+  }
+ }
+
+ /**
+  * The optlevel the current tier's engine should be built with.
+  */
+ public int getOptLevel() {
+  return tier == Tier.OPTIMIZED ? optimizedOptLevel : INTERPRETED_OPTLEVEL;
+ }
+
+ public int getOptimizedOptLevel() {
+  return optimizedOptLevel;
+ }
+
+ public Tier getTier() {
+  return tier;
+ }
+
+ /**
+  * Count an invocation of a module's function.
+  *
+  * @return true the first time the interpreted tier reaches the
+  *   threshold (the caller should then promote())
+  */
+ public boolean countInvocation(String module, String function) {
+  invocations.incrementAndGet();
+  String name = module + "." + function;
+  AtomicLong count = counts.get(name);
+  if (count == null && counts.size() < MAX_COUNTED) {
+   AtomicLong created = new AtomicLong();
+   count = counts.putIfAbsent(name, created);
+   if (count == null) {
+    count = created;
+   }
+  }
+  if (count != null) {
+   count.incrementAndGet();
+  }
+  return tier == Tier.INTERPRETED && invocationsAtTier.incrementAndGet() >= threshold &&
+   promotionScheduled.compareAndSet(false, true);
+ }
+
+ /**
+  * Build the optimized engine in the background.
+  *
+  * @param promotion builds (at getOptimizedOptLevel()), warms and swaps
+  *   in the optimized engine, returning false if it dropped it instead
+  *   (e.g. the javascript was reloaded while it was being built)
+  */
+ public void promote(final Callable<Boolean> promotion) {
+  transition(Tier.COMPILING, 0);
+  final long resetsAtStart = resets.get();
+  compiler.execute(new Runnable() {
+   public void run() {
+    long start = System.currentTimeMillis();
+    try {
+     if (promotion.call() && resets.get() == resetsAtStart) {
+      transition(Tier.OPTIMIZED, System.currentTimeMillis() - start);
+     } else {
+      transition(Tier.INTERPRETED, System.currentTimeMillis() - start);
+     }
+    } catch (Exception e) {
+     log.error("Failed to build the optimized (optlevel " + optimizedOptLevel + ") engine, staying interpreted", e);
+     transition(Tier.INTERPRETED, System.currentTimeMillis() - start);
+    }
+   }
+  });
+ }
+
+ /**
+  * The engine's being reloaded (new javascript), so start over
+  * interpreted.
+  */
+ public void reset() {
+  if (tier == Tier.OPTIMIZED) {
+   transition(Tier.INTERPRETED, 0);
+  }
+  resets.incrementAndGet();
+  invocationsAtTier.set(0);
+  promotionScheduled.set(tier == Tier.COMPILING);
+ }
+
+ public void shutdown() {
+  compiler.shutdownNow();
+ }
+
+ private synchronized void transition(Tier to, long buildMillis) {
+  long now = System.currentTimeMillis();
+  Tier from = tier;
+  timeInTier.put(from, timeInTier.get(from) + (now - tierStartedAt));
+  tierStartedAt = now;
+
+  Map<String, Object> transition = new LinkedHashMap<String, Object>();
+  transition.put("from", from.name());
+  transition.put("to", to.name());
+  transition.put("at", now);
+  transition.put("invocations", invocations.get());
+  if (to != Tier.COMPILING) {
+   transition.put("buildMillis", buildMillis);
+  }
+  transitions.add(transition);
+  if (transitions.size() > 100) {
+   transitions.remove(0);
+  }
+
+  if (to == Tier.INTERPRETED) {
+   invocationsAtTier.set(0);
+   promotionScheduled.set(false);
+  }
+  tier = to;
+  log.info("Tiered compilation: " + from + " -> " + to + " after " + invocations.get() + " invocations" +
+   (buildMillis > 0 ? " (built in " + buildMillis + "ms)" : ""));
+ }
+
+ /**
+  * Report the tiered compilation:
+  *
+  *   tier - the current tier
+  *   optlevel - the current engine's optlevel
+  *   invocations - the invocations counted (in all tiers)
+  *   threshold - the invocations before promotion
+  *   timeInTierMillis - the time spent in each tier
+  *   transitions - the tier transitions (the latest 100)
+  *   hottest - the most invoked module functions and their counts
+  */
+ public synchronized Map<String, Object> getStats() {
+  Map<String, Object> stats = new LinkedHashMap<String, Object>();
+  stats.put("tier", tier.name());
+  stats.put("optlevel", getOptLevel());
+  stats.put("invocations", invocations.get());
+  stats.put("threshold", threshold);
+
+  Map<String, Long> times = new LinkedHashMap<String, Long>();
+  for (Map.Entry<Tier, Long> entry : timeInTier.entrySet()) {
+   long millis = entry.getValue();
+   if (entry.getKey() == tier) {
+    millis += System.currentTimeMillis() - tierStartedAt;
+   }
+   times.put(entry.getKey().name(), millis);
+  }
+  stats.put("timeInTierMillis", times);
+  stats.put("transitions", new ArrayList<Map<String, Object>>(transitions));
+
+  List<Map.Entry<String, AtomicLong>> sorted = new ArrayList<Map.Entry<String, AtomicLong>>(counts.entrySet());
+  Collections.sort(sorted, new Comparator<Map.Entry<String, AtomicLong>>() {
+   public int compare(Map.Entry<String, AtomicLong> a, Map.Entry<String, AtomicLong> b) {
+    return Long.compare(b.getValue().get(), a.getValue().get());
+   }
+  });
+  Map<String, Long> hottest = new LinkedHashMap<String, Long>();
+  for (Map.Entry<String, AtomicLong> entry : sorted.subList(0, Math.min(TOP_REPORTED, sorted.size()))) {
+   hottest.put(entry.getKey(), entry.getValue().get());
+  }
+  stats.put("hottest", hottest);
+  return stats;
+ }
+}
@@ -0,0 +1,435 @@
+package org.springo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+import org.ringojs.util.StringUtils;
+
+/**
+ * Records a sample of the requests RingoJsgiFilter handles (the
+ * "traffic-record-file" init-param) to a compact binary log:  the method,
+ * uri, headers, body, status and latency of each, so real traffic can be
+ * replayed against new javascript before it's deployed (see the loadtest's
+ * TrafficReplay).
+ *
+ * Recording costs the sampled requests little:  their body is buffered
+ * (see BufferedRequestWrapper) and the record's handed to a background
+ * thread that writes the log, dropping records rather than waiting if it
+ * falls behind.  Recording stops once the log reaches its size cap.
+ *
+ * Bodies over the body cap aren't recorded (no more than the cap's read
+ * to find out), nor are form bodies, the bodies of the requests to the
+ * "traffic-omit-body-paths" (e.g. a login's) or the headers in
+ * "traffic-omit-headers" (by default the credentials:  Authorization,
+ * Proxy-Authorization and Cookie).
+ *
+ * The log's a header ("springo-traffic" and a version) then a record per
+ * request (see Record.write), appended to on restart.  Read it with a
+ * TrafficRecorder.Reader.
+ */
+public class TrafficRecorder {
+
+ public static final double DEFAULT_SAMPLE_RATE = 0.01;
+ public static final int DEFAULT_MAX_BODY_BYTES = 64 * 1024;
+ public static final long DEFAULT_MAX_FILE_BYTES = 256L * 1024 * 1024;
+ public static final String DEFAULT_OMIT_HEADERS = "authorization,proxy-authorization,cookie";
+
+ private static final String MAGIC = "springo-traffic";
+ private static final int VERSION = 1;
+ private static final int MAX_STRING = 16 * 1024;
+
+ private static Logger log = Logger.getLogger(TrafficRecorder.class);
+
+ private final File file;
+ private final double sampleRate;
+ private final int maxBodyBytes;
+ private final long maxFileBytes;
+ private final Set<String> omitHeaders = new HashSet<String>();
+ private final List<String> omitBodyPaths = new ArrayList<String>();
+
+ private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(1024);
+ private final DataOutputStream out;
+ private final Thread writer;
+ private volatile boolean full = false;
+ private volatile boolean closed = false;
+ private long fileBytes;
+
+ private final AtomicLong recorded = new AtomicLong();
+ private final AtomicLong dropped = new AtomicLong();
+ private final AtomicLong bodiesOmitted = new AtomicLong();
+
+ /**
+  * @param path the log file (appended to if it exists)
+  * @param sampleRate the fraction of requests recorded
+  * @param maxBodyBytes bodies larger than this aren't recorded
+  * @param maxFileBytes recording stops when the log's this big
+  * @param omitHeaders the (comma separated) headers not recorded
+  * @param omitBodyPaths the (comma separated) uri prefixes whose request
+  *   bodies aren't recorded (e.g. a login's), null for none
+  */
+ public TrafficRecorder(String path, double sampleRate, int maxBodyBytes, long maxFileBytes,
+  String omitHeaders, String omitBodyPaths) throws IOException {
+  this.file = new File(path);
+  this.sampleRate = sampleRate;
+  this.maxBodyBytes = maxBodyBytes;
+  this.maxFileBytes = maxFileBytes;
+  if (omitHeaders != null) {
+   for (String header : StringUtils.split(omitHeaders.replace(" ", ""), ",")) {
+    if (header.length() > 0) {
+     this.omitHeaders.add(header.toLowerCase(Locale.ENGLISH));
+    }
+   }
+  }
+  if (omitBodyPaths != null) {
+   for (String prefix : StringUtils.split(omitBodyPaths.replace(" ", ""), ",")) {
+    if (prefix.length() > 0) {
+     this.omitBodyPaths.add(prefix);
+    }
+   }
+  }
+
+  boolean append = file.length() > 0;
+  if (append) {
+   // (check it's a traffic log before adding to it)
+   new Reader(file).close();
+  }
+  out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append)));
+  if (!append) {
+   out.writeUTF(MAGIC);
+   out.writeInt(VERSION);
+  }
+  fileBytes = file.length() + out.size();
+
+  writer = new Thread(new Runnable() {
+   public void run() {
+    writeRecords();
+   }
+  }, "springo-traffic-recorder");
+  writer.setDaemon(true);
+  writer.start();
+  log.info("Recording " + (sampleRate * 100) + "% of requests to " + file);
+ }
+
+ /**
+  * Should this request be recorded (sampled, and there's still room)?
+  */
+ public boolean shouldRecord() {
+  return !full && !closed && ThreadLocalRandom.current().nextDouble() < sampleRate;
+ }
+
+ /**
+  * Capture a sampled request before it's handled (since middleware may
+  * modify a BufferedRequestWrapper's headers and body), to be recorded by
+  * finish() once it has been.
+  *
+  * @param request the request (a BufferedRequestWrapper for its body to
+  *   be recorded)
+  */
+ public Record start(HttpServletRequest request) {
+  String uri = request.getRequestURI();
+  if (request.getQueryString() != null) {
+   uri += "?" + request.getQueryString();
+  }
+
+  List<String[]> headers = new ArrayList<String[]>();
+  for (Enumeration<String> names = request.getHeaderNames(); names != null && names.hasMoreElements();) {
+   String name = names.nextElement();
+   if (omitHeaders.contains(name.toLowerCase(Locale.ENGLISH))) {
+    continue;
+   }
+   for (Enumeration<String> values = request.getHeaders(name); values.hasMoreElements();) {
+    headers.add(new String[] { name, values.nextElement() });
+   }
+  }
+
+  byte[] body = null;
+  if (request instanceof BufferedRequestWrapper && shouldRecordBody(request)) {
+   try {
+    // (a longer body, e.g. chunked, is read no further than the cap)
+    body = ((BufferedRequestWrapper) request).getBodyBytes(maxBodyBytes);
+   } catch (IOException e) {
+    body = null;
+   }
+  }
+  if (body == null) {
+   bodiesOmitted.incrementAndGet();
+  }
+  return new Record(System.currentTimeMillis(), request.getMethod(), uri, headers, body, 0, 0);
+ }
+
+ /**
+  * Should the request's body be recorded?  Not a form's (reading it would
+  * keep the container from parsing it for the parameters), nor those of
+  * the "traffic-omit-body-paths" or over the body cap.
+  */
+ public boolean shouldRecordBody(HttpServletRequest request) {
+  if (BufferedRequestWrapper.hasFormBody(request) || request.getContentLengthLong() > maxBodyBytes) {
+   return false;
+  }
+  String uri = request.getRequestURI();
+  for (String path : omitBodyPaths) {
+   if (uri.startsWith(path)) {
+    return false;
+   }
+  }
+  return true;
+ }
+
+ /**
+  * Record a request captured by start() once it's been handled.
+  *
+  * @param status the response status
+  * @param latencyNanos how long it took
+  */
+ public void finish(Record record, int status, long latencyNanos) {
+  record.status = status;
+  record.latencyMicros = latencyNanos / 1000;
+  if (!queue.offer(record)) {
+   dropped.incrementAndGet();
+  }
+ }
+
+ private void writeRecords() {
+  try {
+   while (!closed || !queue.isEmpty()) {
+    Record record = queue.poll(1, TimeUnit.SECONDS);
+    if (record == null) {
+     out.flush();
+     continue;
+    }
+    int before = out.size();
+    record.write(out);
+    fileBytes += out.size() - before;
+    recorded.incrementAndGet();
+    if (queue.isEmpty()) {
+     out.flush();
+    }
+    if (fileBytes >= maxFileBytes && !full) {
+     full = true;
+     log.warn("The traffic log " + file + " is full (" + fileBytes + " bytes), recording stopped");
+    }
+   }
+  } catch (InterruptedException e) {
+   // (closing)
+  } catch (IOException e) {
+   log.error("Failed writing the traffic log " + file + ", recording stopped: " + e.getMessage());
+   full = true;
+  } finally {
+   try {
+    out.close();
+   } catch (IOException e) {
+    // ignore
+   }
+  }
+ }
+
+ /**
+  * Stop recording (writing what's queued).
+  */
+ public void close() {
+  closed = true;
+  try {
+   writer.join(5000);
+  } catch (InterruptedException e) {
+   writer.interrupt();
+  }
+ }
+
+ /**
+  * Report the recording:  the records written and dropped (the writer
+  * fell behind), the bodies not recorded and the log's size.
+  */
+ public Map<String, Object> getStats() {
+  Map<String, Object> stats = new LinkedHashMap<String, Object>();
+  stats.put("file", file.getPath());
+  stats.put("sampleRate", sampleRate);
+  stats.put("recorded", recorded.get());
+  stats.put("dropped", dropped.get());
+  stats.put("bodiesOmitted", bodiesOmitted.get());
+  stats.put("fileBytes", fileBytes);
+  stats.put("full", full);
+  return stats;
+ }
+
+ /**
+  * A recorded request.
+  */
+ public static class Record {
+  private final long timestamp;
+  private final String method;
+  private final String uri;
+  private final List<String[]> headers;
+  private final byte[] body;
+  private int status;
+  private long latencyMicros;
+
+  public Record(long timestamp, String method, String uri, List<String[]> headers, byte[] body,
+   int status, long latencyMicros) {
+   this.timestamp = timestamp;
+   this.method = method;
+   this.uri = uri;
+   this.headers = headers;
+   this.body = body;
+   this.status = status;
+   this.latencyMicros = latencyMicros;
+  }
+
+  public long getTimestamp() {
+   return timestamp;
+  }
+
+  public String getMethod() {
+   return method;
+  }
+
+  /**
+   * The request uri (including the context path) and query string.
+   */
+  public String getUri() {
+   return uri;
+  }
+
+  /**
+   * The headers as name/value pairs (a header with several values has a
+   * pair for each).
+   */
+  public List<String[]> getHeaders() {
+   return Collections.unmodifiableList(headers);
+  }
+
+  /**
+   * The body (null if it wasn't recorded).
+   */
+  public byte[] getBody() {
+   return body;
+  }
+
+  public int getStatus() {
+   return status;
+  }
+
+  public long getLatencyMicros() {
+   return latencyMicros;
+  }
+
+  /**
+   * Write the record:  the timestamp, method, uri, headers (a count then
+   * name/value pairs), status, latency (micros) and body (its length, -1
+   * if it wasn't recorded, then its bytes).
+   */
+  void write(DataOutputStream out) throws IOException {
+   out.writeLong(timestamp);
+   out.writeUTF(method);
+   out.writeUTF(truncate(uri));
+   out.writeShort(Math.min(headers.size(), Short.MAX_VALUE));
+   for (int i = 0; i < headers.size() && i < Short.MAX_VALUE; i++) {
+    out.writeUTF(truncate(headers.get(i)[0]));
+    out.writeUTF(truncate(headers.get(i)[1]));
+   }
+   out.writeShort(status);
+   out.writeLong(latencyMicros);
+   if (body == null) {
+    out.writeInt(-1);
+   } else {
+    out.writeInt(body.length);
+    out.write(body);
+   }
+  }
+
+  static Record read(DataInputStream in) throws IOException {
+   long timestamp = in.readLong();
+   String method = in.readUTF();
+   String uri = in.readUTF();
+   int count = in.readShort();
+   List<String[]> headers = new ArrayList<String[]>(count);
+   for (int i = 0; i < count; i++) {
+    headers.add(new String[] { in.readUTF(), in.readUTF() });
+   }
+   int status = in.readShort();
+   long latencyMicros = in.readLong();
+   int length = in.readInt();
+   byte[] body = null;
+   if (length >= 0) {
+    body = new byte[length];
+    in.readFully(body);
+   }
+   return new Record(timestamp, method, uri, headers, body, status, latencyMicros);
+  }
+
+  // (writeUTF can't write more than 64k bytes)
+  private static String truncate(String s) {
+   return s.length() > MAX_STRING ? s.substring(0, MAX_STRING) : s;
+  }
+ }
+
+ /**
+  * Reads a traffic log.
+  */
+ public static class Reader implements Closeable {
+  private final DataInputStream in;
+
+  public Reader(File file) throws IOException {
+   in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+   try {
+    if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+     throw new IOException("Not a traffic log (or from a different version): " + file);
+    }
+   } catch (IOException e) {
+    in.close();
+    throw (e instanceof EOFException) ? new IOException("Not a traffic log: " + file) : e;
+   }
+  }
+
+  /**
+   * Read the next record (null at the end of the log, including a last
+   * record cut short e.g. by a crash).
+   */
+  public Record next() throws IOException {
+   try {
+    return Record.read(in);
+   } catch (EOFException e) {
+    return null;
+   }
+  }
+
+  /**
+   * Read all the (remaining) records.
+   */
+  public List<Record> readAll() throws IOException {
+   List<Record> records = new ArrayList<Record>();
+   for (Record record = next(); record != null; record = next()) {
+    records.add(record);
+   }
+   return records;
+  }
+
+  public void close() throws IOException {
+   in.close();
+  }
+ }
+}
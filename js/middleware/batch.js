@@ -0,0 +1,172 @@
+/**
+ * @fileOverview Middleware for a batch endpoint:  the client posts a JSON
+ * array of sub-requests and gets back all their responses at once, saving
+ * the round trips (and per request overhead) of making the calls one by one.
+ *
+ * The sub-requests are run through Spring in parallel (see
+ * org.springo.BatchDispatcher), their urls being mapped to Spring the
+ * same way as forwardtospringdispatcher's (the `from` and `to` properties).
+ *
+ * The request body looks like:
+ *
+ *     [
+ *       {"id": "user", "url": "/myapp/api/users/42"},
+ *       {"id": "orders", "url": "/myapp/api/orders?user=42", "dependsOn": ["user"]},
+ *       {"id": "note", "method": "POST", "url": "/myapp/api/notes",
+ *        "headers": {"Content-Type": "application/json"}, "body": {"text": "hi"}}
+ *     ]
+ *
+ * (the "id" defaults to the item's index) and the response:
+ *
+ *     {"responses": [
+ *       {"id": "user", "status": 200, "headers": {...}, "body": {...}},
+ *       ...
+ *     ]}
+ *
+ * where JSON response bodies are included as JSON (others as strings), a
+ * header set more than once (e.g. Set-Cookie) is an array of its values, and
+ * items that failed without a response from Spring (timed out, a failed
+ * dependency etc.) have an "error" instead of a body.
+ *
+ * @example
+ * app.configure("notfound", "error", "jsonerror", "batch", "forwardtospringdispatcher");
+ * app.batch.path = "/myapp/api/batch";
+ * app.batch.maxItems = 10;
+ */
+var utils = require("springoutils");
+var json = require("springojson");
+var {Response} = require('ringo/webapp/response');
+
+importClass(org.springo.BatchDispatcher);
+
+/**
+ * Stick middleware running batched sub-requests through Spring.
+ * @param {Function} next the wrapped middleware chain
+ * @param {Object} app the Stick Application object
+ * @returns {Function} a JSGI middleware function
+ */
+exports.middleware = function batch(next, app) {
+
+	app.batch = {
+		// the batch endpoint (a url, or a regex matching it):
+		path: /\/.*\/api\/batch$/,
+		// how the sub-requests' urls map to Spring:
+		from: /\/.*\/api\//,
+		to: '\/_api\/',
+		maxItems: BatchDispatcher.DEFAULT_MAX_ITEMS,
+		// (ms) for each sub-request:
+		timeout: BatchDispatcher.DEFAULT_ITEM_TIMEOUT_MILLIS
+	};
+
+	return function batch(request) {
+
+		var servletRequest = request.env.servletRequest;
+		if(request.method !== "POST" || !isBatchPath(app.batch.path, servletRequest.requestURI)) {
+			return next(request);
+		}
+
+		var batched = json.parse(servletRequest.inputStream);
+		if(!Array.isArray(batched)) {
+			return badRequest("The batch must be a JSON array of requests");
+		}
+		if(batched.length > app.batch.maxItems) {
+			return badRequest("Too many requests in the batch (the most allowed is " + app.batch.maxItems + ")");
+		}
+
+		var route = utils.springRouteFor(app.batch);
+		var items = new java.util.ArrayList(batched.length);
+		for(var i = 0; i < batched.length; i++) {
+			var sub = batched[i];
+			if(!sub || typeof sub.url !== "string") {
+				return badRequest("Request " + i + " of the batch has no url");
+			}
+			items.add(toItem(sub, i, route));
+		}
+
+		try {
+			BatchDispatcher.getShared().dispatch(servletRequest, request.env.servletResponse, items, app.batch.timeout);
+		} catch(error) {
+			if(error.javaException instanceof BatchDispatcher.BatchException) {
+				return badRequest(error.javaException.message);
+			}
+			throw error;
+		}
+
+		var responses = [];
+		for(var i = 0; i < items.size(); i++) {
+			responses.push(toResult(items.get(i)));
+		}
+		var response = new Response(json.toBinary({responses: responses}));
+		response.contentType = "application/json";
+		return response;
+	};
+};
+
+function isBatchPath(path, uri) {
+	return (typeof path === "string") ? (uri == path) : path.test(uri);
+}
+
+function toItem(sub, index, route) {
+	var url = sub.url;
+	var query = url.indexOf('?');
+	var springPath = route.getTargetPath(query === -1 ? url : url.substring(0, query));
+	var item = new BatchDispatcher.Item(String(sub.id !== undefined ? sub.id : index), sub.method || "GET", url, springPath);
+	var headers = sub.headers || {};
+	for(var name in headers) {
+		item.setHeader(name, String(headers[name]));
+	}
+	if(sub.body !== undefined && sub.body !== null) {
+		if(typeof sub.body === "string") {
+			item.setBody(sub.body);
+		} else {
+			item.setBody(json.toBytes(sub.body));
+			if(!headers["Content-Type"] && !headers["content-type"]) {
+				item.setHeader("Content-Type", "application/json");
+			}
+		}
+	}
+	(sub.dependsOn || []).forEach(function(id) {
+		item.addDependency(String(id));
+	});
+	return item;
+}
+
+function toResult(item) {
+	var result = {id: String(item.id), status: item.status};
+	if(item.error != null) {
+		result.error = String(item.error);
+		return result;
+	}
+	var headers = {};
+	var responseHeaders = item.responseHeaders;
+	for(var it = responseHeaders.entrySet().iterator(); it.hasNext();) {
+		var header = it.next();
+		var values = header.value;
+		// (a header set more than once, e.g. Set-Cookie, gets all its values)
+		if(values.size() == 1) {
+			headers[header.key] = String(values.get(0));
+		} else {
+			headers[header.key] = [];
+			for(var v = 0; v < values.size(); v++) {
+				headers[header.key].push(String(values.get(v)));
+			}
+		}
+	}
+	var contentType = item.contentType;
+	if(contentType != null) {
+		headers["Content-Type"] = String(contentType);
+	}
+	result.headers = headers;
+	if(item.responseBody.length > 0) {
+		result.body = (contentType != null && String(contentType).indexOf("json") !== -1) ?
+			json.parse(item.responseBody) : String(item.responseBodyString);
+	}
+	return result;
+}
+
+function badRequest(message) {
+	var response = new Response(json.toBinary({error: "invalid_batch", message: String(message)}));
+	response.status = 400;
+	response.contentType = "application/json";
+	return response;
+}
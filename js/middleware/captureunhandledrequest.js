@@ -12,7 +12,7 @@
 
 var utils = require("springoutils");
 var {Response} = require('ringo/webapp/response');
-var log = require("ringo/logging").getLogger("captureunhandledrequest");
+var log = require("springolog").getLogger("captureunhandledrequest");
 
 /**
  * Stick middleware forwarding unhandled requests to the Spring request dispatcher.
@@ -35,9 +35,7 @@ exports.middleware = function captureunhandledrequest(next, app) {
 
 		} catch (unhandledReqError if unhandledReqError.notfound === true) {
 
-			var resp = utils.capturefromspringdispatcher(request,
-												app.captureunhandledrequest.from,
-												app.captureunhandledrequest.to);
+			var resp = utils.capturefromspringdispatcher(request, utils.springRouteFor(app.captureunhandledrequest));
 
 			// if we got a response
 			if(resp) {
@@ -32,9 +32,7 @@ exports.middleware = function forwardtospringdispatcher(next, app) {
 
     return function forwardtospringdispatcher(request) {
 
-        var resp = utils.forwardtospringdispatcher(request,
-											app.forwardtospringdispatcher.from,
-											app.forwardtospringdispatcher.to);
+        var resp = utils.forwardtospringdispatcher(request, utils.springRouteFor(app.forwardtospringdispatcher));
         if (resp) {
             return resp;
         } else {
@@ -12,7 +12,7 @@
 
 var utils = require("springoutils");
 var {Response} = require('ringo/webapp/response');
-var log = require("ringo/logging").getLogger("forwardunhandledtospring");
+var log = require("springolog").getLogger("forwardunhandledtospring");
 
 /**
  * Stick middleware forwarding unhandled requests to the Spring request dispatcher.
@@ -35,9 +35,7 @@ exports.middleware = function forwardunhandledrequest(next, app) {
 
 		} catch (unhandledReqError if unhandledReqError.notfound === true) {
 
-			var resp = utils.forwardtospringdispatcher(request,
-												app.forwardunhandledrequest.from,
-												app.forwardunhandledrequest.to);
+			var resp = utils.forwardtospringdispatcher(request, utils.springRouteFor(app.forwardunhandledrequest));
 
 			// if we got a response
 			if(resp) {
@@ -35,7 +35,7 @@
  */
 
 include('ringo/webapp/response');
-var log = require("ringo/logging").getLogger("jsonerror");
+var log = require("springolog").getLogger("jsonerror");
 
 /**
  * Stick middleware to format (thrown) errors as a standard JSON error response.
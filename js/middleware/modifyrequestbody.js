@@ -9,8 +9,9 @@
  *
  * Note:  This is not just modifying the ringo Request,  but the underlying
  * HttpServletRequest as seen by the entire servlet pipeline.  Since
- * HttpServletRequest is read only, this assumes the underlying
- * HttpServletRequest has been wrapped in an HttpServletRequestWrapper.
+ * HttpServletRequest is read only, it's wrapped in an
+ * org.springo.BufferedRequestWrapper (unless RingoJsgiFilter already has,
+ * see the "buffered-request-paths" filter init-param).
  *
  * @example
  * app.configure("notfound", "error", "jsonerror", "modifyrequestbody");
@@ -19,10 +20,20 @@
  *   return json;
  * };
  *
+ * With org.springo.SpringoHandoff declared in the Spring context, setting
+ * app.modifyrequestbodyhandoff to true (or to an array of the path prefixes
+ * to do it for) hands the modified JSON straight to the controller's
+ * @RequestBody argument instead of serializing it for Spring to parse
+ * again (it's still serialized if something else reads the body).
+ *
  * @author darrencruse (https://github.com/darrencruse)
  */
 
  var utils = require("springoutils");
+ var json = require("springojson");
+
+importClass(org.springo.SpringoEvents);
+importClass(org.springo.SpringoHandoff);
 
 /**
  * Stick middleware modifying the JSON request body prior to the Spring controller.
@@ -33,15 +44,20 @@
 exports.middleware = function modifyrequestbody(next, app) {
 
 	app.modifyrequestbody = function(jsonRequest) { return jsonRequest; };
+	app.modifyrequestbodyhandoff = false;
 
   return function modifyrequestbody(request) {
 
-		// Get the servlet request wrapper
-		var requestWrapper = request.env.servletRequest;
+		// Get the servlet request wrapper (wrapping it if need be)
+		var requestWrapper = utils.bufferRequest(request);
 
-		// Get the JSON for the request body
-		var jsonRequestBodyStr = requestWrapper.body;
-		var jsonRequestBody = utils.jsonParse(jsonRequestBodyStr);
+		// Parse the JSON straight from the buffered request body bytes:
+		var event = SpringoEvents.beginJsonBody("request");
+		try {
+			var jsonRequestBody = utils.jsonParse(requestWrapper.bodyInputStream);
+		} finally {
+			SpringoEvents.end(event);
+		}
 
 		if(typeof(app.modifyrequestbody) === 'function') {
 			// modify the request and set it back on the servlet request wrapper
@@ -50,8 +66,12 @@ exports.middleware = function modifyrequestbody(next, app) {
 				// They didn't return anything assume they just modified the original:
 				modifiedJsonRequest = jsonRequestBody;
 			}
-			var modifiedJsonRequestStr = JSON.stringify(modifiedJsonRequest);
-			requestWrapper.setBody(modifiedJsonRequestStr);
+			if(utils.isHandoff(app.modifyrequestbodyhandoff, request)) {
+				SpringoHandoff.handOffRequestBody(requestWrapper, modifiedJsonRequest);
+			}
+			else {
+				requestWrapper.setBodyBytes(json.toBytes(modifiedJsonRequest));
+			}
 		}
 
 		// Okay modified the request - pass it down the chain:
@@ -7,8 +7,10 @@
  *
  * Note:  This is not just modifying the ringo Request,  but the underlying
  * HttpServletRequest as seen by the entire servlet pipeline.  Since
- * HttpServletRequest is read only, this assumes the underlying HttpServletRequest
- * has already been wrapped to provide a setParameter() method.
+ * HttpServletRequest is read only, it's wrapped in an
+ * org.springo.BufferedRequestWrapper (which provides setParameter()) unless
+ * RingoJsgiFilter already has (see the "buffered-request-paths" filter
+ * init-param).
  *
  * @example
  * app.configure("notfound", "error", "jsonerror","modifyrequestparams");
@@ -17,6 +19,8 @@
  * @author darrencruse (https://github.com/darrencruse)
  */
 
+var utils = require("springoutils");
+
 /**
  * Stick middleware modifying request parameter(s) prior to the Spring controller.
  * @param {Function} next the wrapped middleware chain
@@ -29,8 +33,8 @@ exports.middleware = function modifyrequestparams(next, app) {
 
   return function modifyrequestparams(request) {
 
-		// Get the servlet request wrapper
-		var servletRequestWrapper = request.env.servletRequest;
+		// Get the servlet request wrapper (wrapping it if need be)
+		var servletRequestWrapper = utils.bufferRequest(request);
 
 		// In javascript "arguments" is an array of all arguments to this function...
 		for(var prop in app.modifyrequestparams) {
@@ -17,13 +17,23 @@
  *    app.modifyresponsebody = function(json) {
  *        json.someModifiedProperty = true;
  *    };
+ *
+ * With org.springo.SpringoHandoff declared in the Spring context, setting
+ * app.modifyresponsebodyhandoff to true (or to an array of the path
+ * prefixes to do it for) hands the function the object the Spring
+ * controller returned, as a javascript view of it, instead of Spring's
+ * JSON parsed - the response is then only serialized to JSON once, after
+ * the function's modified it (see SpringoHandoff for the caveats).
  */
 
 include('ringo/webapp/response');
 
 importClass(org.springo.BufferedResponseWrapper);
+importClass(org.springo.SpringoEvents);
+importClass(org.springo.SpringoHandoff);
 
 var utils = require("springoutils");
+var json = require("springojson");
 
 /**
  * Stick middleware modifying the JSON response returned by the Spring controller.
@@ -35,6 +45,7 @@ var utils = require("springoutils");
 exports.middleware = function modifyresponsebody(next, app) {
 
 	app.modifyresponsebody = function(jsonRequest) { return jsonRequest; };
+	app.modifyresponsebodyhandoff = false;
 
   return function modifyresponsebody(request) {
 
@@ -46,17 +57,33 @@ exports.middleware = function modifyresponsebody(next, app) {
 		// Go ahead and run the chain to get the (ringo) Response from Spring:
 		// Note:  our response wrapper has buffered the spring response - we
 		//        actually ignore the ringo Response object.
+		// (asking for the controller's return value rather than its JSON)
+		var handoff = utils.isHandoff(app.modifyresponsebodyhandoff, request);
+		if(handoff) {
+			SpringoHandoff.requestResponse(request.env.servletRequest);
+		}
 		var springResponse = next(request);
+		var handedOff = handoff ? SpringoHandoff.takeResponse(exports, request.env.servletRequest) : null;
 
 		// Is this JSON?
-		var response = responseWrapper.body;
 		var contentType = responseWrapper.contentType;
+		var isJson = (contentType && contentType.indexOf('json') != -1);
 		var jsonResponse = "";
-		if(contentType && contentType.indexOf('json') != -1) {
+		if(handedOff != null) {
+			// (Spring wrote nothing, the view's serialized below)
+			jsonResponse = handedOff;
+		}
+		else if(isJson) {
 
 			// Note:  It's important the following variable is named 'jsonResponse' cause that's how we're
 			// telling them to refer to the response body in their config.js (eval'ed) expression
-			jsonResponse = utils.jsonParse(response);
+			// Note:  This parses straight from the buffered bytes (see springojson).
+			var event = SpringoEvents.beginJsonBody("response");
+			try {
+				jsonResponse = json.parseResponseBody(responseWrapper);
+			} finally {
+				SpringoEvents.end(event);
+			}
 		}
 
 		if(typeof(app.modifyresponsebody) === 'function') {
@@ -67,23 +94,28 @@ exports.middleware = function modifyresponsebody(next, app) {
 			}
 		}
 
-		// Convert the modified response back to a string if needed:
-		var modifiedJsonResponseStr = "";
-		if(contentType && contentType.indexOf('json') != -1) {
-			modifiedJsonResponseStr = JSON.stringify(jsonResponse);
+		// Convert the modified response back to (UTF-8) bytes if needed:
+		var modifiedResponseBody;
+		if(isJson) {
+			modifiedResponseBody = json.toBinary(jsonResponse);
 		}
 		else {
 			// the response was not JSON:
-			modifiedJsonResponseStr = response;
+			modifiedResponseBody = responseWrapper.body;
 		}
 
 		// let the response wrapper return our response to the real output stream:
 		responseWrapper.buffering = false;
 
-		// return a ringo Response with our modifications:
-		var modifiedResponse = new Response(modifiedJsonResponseStr);
-		modifiedResponse.status = responseWrapper.status;
-		modifiedResponse.contentType = responseWrapper.contentType;
-		return modifiedResponse;
+		// return a JSGI response with our modifications:
+		var headers = {};
+		if(contentType) {
+			headers["Content-Type"] = contentType;
+		}
+		return {
+			status: responseWrapper.status,
+			headers: headers,
+			body: [modifiedResponseBody]
+		};
   };
 };
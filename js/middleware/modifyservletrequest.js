@@ -9,8 +9,9 @@
  *
  * Note:  This is not just modifying the ringo Request,  but the underlying
  * HttpServletRequest as seen by the entire servlet pipeline.  Since
- * HttpServletRequest is read only, this assumes the underlying
- * HttpServletRequest has been wrapped in an HttpServletRequestWrapper.
+ * HttpServletRequest is read only, the function's passed it wrapped in an
+ * org.springo.BufferedRequestWrapper (unless RingoJsgiFilter already has,
+ * see the "buffered-request-paths" filter init-param).
  *
  * @example
  * app.configure("notfound", "error", "jsonerror","modifyservletrequest");
@@ -22,6 +23,8 @@
  * @author darrencruse (https://github.com/darrencruse)
  */
 
+var utils = require("springoutils");
+
 /**
  * Stick middleware modifying the servlet request prior to the Spring controller.
  * @param {Function} next the wrapped middleware chain
@@ -34,8 +37,8 @@ exports.middleware = function modifyservletrequest(next, app) {
 
   return function modifyservletrequest(request) {
 
-		// Get the servlet request wrapper
-		var requestWrapper = request.env.servletRequest;
+		// Get the servlet request wrapper (wrapping it if need be)
+		var requestWrapper = utils.bufferRequest(request);
 
 		if(typeof(app.modifyservletrequest) === 'function') {
 			// replace ringo's servlet request with the modified version,
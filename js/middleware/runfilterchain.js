@@ -26,7 +26,7 @@
 
 var utils = require("springoutils");
 var {Response} = require('ringo/webapp/response');
-var log = require("ringo/logging").getLogger("runfilterchain");
+var log = require("springolog").getLogger("runfilterchain");
 
 /**
  * Stick middleware forwarding unhandled requests to the Spring request dispatcher.
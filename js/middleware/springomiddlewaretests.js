@@ -16,6 +16,7 @@ var {Application} = require("stick");
 *    //tests.testModifyRequestParams(app);
 *    //tests.testModifyRequestBody(app);
 *    //tests.testModifyServletResponse(app);
+*    //tests.testBatch(app);
 *    tests.testModifyResponseBody(app);
 *
 *    // Default to forwarding everything we haven't intercepted above:
@@ -39,6 +40,7 @@ exports.testModifyRequestParamsChain = getModifyRequestParamsTestChain();
 exports.testModifyRequestBodyChain = getModifyRequestBodyTestChain();
 exports.testModifyServletResponseChain = getModifyServletResponseTestChain();
 exports.testModifyResponseBodyChain = getModifyResponseBodyTestChain();
+exports.testBatchChain = getBatchTestChain();
 
 // Test a simple forward:
 function getSimpleForwardTestChain() {
@@ -111,3 +113,21 @@ function getModifyResponseBodyTestChain() {
 	};
 	return test;
 }
+
+// Run a batch of requests through Spring.
+// e.g. post this to /<app>/api/batch:
+//
+//   [{"id": "a", "url": "/<app>/api/users"},
+//    {"id": "b", "url": "/<app>/api/users?count=2", "dependsOn": ["a"]},
+//    {"id": "c", "url": "/<app>/api/nosuchthing"},
+//    {"id": "d", "url": "/<app>/api/users", "dependsOn": ["c"]}]
+//
+// and "a" and "b" should come back 200 with their users (b after a),
+// "c" 404 and "d" 424 (its dependency failed).
+function getBatchTestChain() {
+	var test = new Application();
+	test.configure("notfound", "error", "jsonerror", "batch", "forwardtospringdispatcher");
+	test.batch.maxItems = 4;
+	test.batch.timeout = 2000;
+	return test;
+}
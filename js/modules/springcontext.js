@@ -53,13 +53,72 @@ exports.inject = function(injectee, beanArgs) {
 		else {
 			varName = beanName = beanSpec;
 		}
-		var bean = ApplicationContextProvider.getBean(beanName);
+		var bean = ApplicationContextProvider.getCachedBean(beanName);
 
 		// inject this bean into the target (typically a module object)
 		injectee[varName] = bean;
 	}
 }
 
+/**
+ * Like "inject" above, but injects bean "adapters" (see "adapter" below),
+ * e.g.:
+ *
+ *   spring.injectAdapters(this, "managePlatformService");
+ *
+ * @Param {Object}  the javascript object to inject the specified adapters into.
+ * @param {String|Array} one or more bean names (or alias/beanName pairs) as arguments.
+ */
+exports.injectAdapters = function(injectee, beanArgs) {
+
+	for(var i=1; i < arguments.length; i++) {
+		var beanSpec = arguments[i];
+		var varName;
+		var beanName;
+		if(beanSpec instanceof Array) {
+			varName = beanSpec[0];
+			beanName = beanSpec[1];
+		}
+		else {
+			varName = beanName = beanSpec;
+		}
+
+		injectee[varName] = exports.adapter(beanName);
+	}
+}
+
+/**
+ * Get an "adapter" for the named bean:  the bean as already wrapped for
+ * javascript, e.g.:
+ *
+ *   var mps = spring.adapter("managePlatformService");
+ *   mps.findPlatforms(userId);
+ *
+ * Rhino wraps a java object each time one's passed to javascript (and
+ * caches the members of each class itself), so keeping the wrapped
+ * singleton beans (by bean name, until the Spring ApplicationContext is
+ * refreshed) saves both the Spring lookup and wrapping the bean again.
+ * Calls go straight to Rhino's java methods as with any bean.
+ *
+ * @param {String} the bean name
+ * @return the bean adapter (otherwise NoSuchBeanException is thrown)
+ */
+exports.adapter = function(beanName) {
+
+	checkGeneration();
+
+	var adapter = adapters[beanName];
+	if(!adapter) {
+		adapter = ApplicationContextProvider.getCachedBean(beanName);
+		if(ApplicationContextProvider.getApplicationContext().isSingleton(beanName)) {
+			// (prototype scoped beans are fetched from Spring on every call)
+			adapters = copyWith(adapters, beanName, adapter);
+		}
+	}
+
+	return adapter;
+}
+
 /**
  * Get a bean from Spring via a "getter" method.
  *
@@ -78,14 +137,56 @@ exports.inject = function(injectee, beanArgs) {
  * a java convention and less like javascript - also note __noSuchMethod__
  * was a Mozilla convention so this would not work e.g. on node.js).
  *
+ * The singleton beans are remembered (by getter name) until the Spring
+ * ApplicationContext is refreshed, so repeat calls skip the lookup
+ * (prototype scoped beans are fetched from Spring on every call).
+ *
  * @return the specified bean (otherwise NoSuchBeanException is thrown)
  */
 
 exports.__noSuchMethod__ = function(name, params) {
 
 	// We're expecting them to do like "get<BeanName>"
-	if(name.indexOf("get") == 0) {
-		var beanName = name[3].toLowerCase() + name.substring(4, name.length);
-		return(ApplicationContextProvider.getBean(beanName));
+	if(name.indexOf("get") == 0 && name.length > 3) {
+		checkGeneration();
+
+		var bean = handles[name];
+		if(!bean) {
+			var beanName = ApplicationContextProvider.getBeanNameForGetter(name);
+			bean = ApplicationContextProvider.getCachedBean(beanName);
+			if(ApplicationContextProvider.getApplicationContext().isSingleton(beanName)) {
+				handles = copyWith(handles, name, bean);
+			}
+		}
+		return bean;
+	}
+}
+
+// Bean handles (by getter name) and bean adapters (by bean name), both
+// the wrapped beans.
+//
+// These are shared by all request threads so they're never modified
+// in place - a copy with the new entry replaces them instead (they
+// only grow until every bean in use has been looked up once).
+var handles = {};
+var adapters = {};
+var beanCacheGeneration = -1;
+
+// Forget the handles and adapters if the Spring context was refreshed.
+function checkGeneration() {
+	var generation = ApplicationContextProvider.getGeneration();
+	if(generation !== beanCacheGeneration) {
+		handles = {};
+		adapters = {};
+		beanCacheGeneration = generation;
+	}
+}
+
+function copyWith(obj, name, value) {
+	var copy = {};
+	for(var prop in obj) {
+		copy[prop] = obj[prop];
 	}
+	copy[name] = value;
+	return copy;
 }
@@ -0,0 +1,137 @@
+/**
+ * @fileOverview Bounded, concurrent caches for javascript modules, in place
+ * of caches hand rolled in module level objects (which grow without limit,
+ * are shared by the request threads without any synchronization and can't
+ * be monitored).
+ *
+ * The caches are org.springo.SpringoCache's:  bounded by entries and/or
+ * estimated bytes (evicting in the W-TinyLFU style, so popular entries
+ * aren't flushed by one-off lookups), with a default or per entry TTL,
+ * loader functions run once per missing key however many requests want it
+ * at once, and stats reported through JMX (and stats() below).
+ *
+ * Caches are named, so creating one in module code (run again by each
+ * engine load) gets the existing cache.  By default a cache is cleared
+ * when the javascript is reloaded, since its values (javascript objects)
+ * would otherwise keep the old engine around - a cache holding only
+ * strings, numbers or java objects can survive reloads instead.  Loads
+ * still running when a cache is cleared don't cache their values.
+ *
+ * @example
+ * var cache = require("springocache");
+ * var products = cache.create("products", {maxEntries: 10000, ttl: 60000});
+ *
+ * var product = products.get(sku, function(sku) {
+ *     return productService.findBySku(sku);
+ * });
+ */
+
+importClass(org.springo.SpringoCache);
+
+/**
+ * Get the named cache, creating it if there isn't one (if there is, the
+ * options are ignored).
+ *
+ * @param {String} name the cache's name (as shown in JMX)
+ * @param {Object} options
+ *   maxEntries - the most entries (default no limit)
+ *   maxBytes - the most (estimated) bytes (default no limit)
+ *   ttl - how long (ms) entries live by default (default no limit)
+ *   clearOnReload - whether it's cleared when the javascript's reloaded
+ *     (default true)
+ * @returns {Cache} the cache
+ */
+exports.create = function(name, options) {
+	options = options || {};
+	if (!options.maxEntries && !options.maxBytes) {
+		throw new Error("The \"" + name + "\" cache needs a maxEntries and/or maxBytes limit");
+	}
+	// (passing our scope so only retiring this engine clears the cache)
+	var cache = SpringoCache.create(name, options.maxEntries || 0, options.maxBytes || 0,
+		options.ttl || 0, options.clearOnReload !== false, null, exports);
+	return new Cache(cache);
+};
+
+/**
+ * Get an existing cache.
+ *
+ * @param {String} name the cache's name
+ * @returns {Cache} the cache, or null if there's none
+ */
+exports.get = function(name) {
+	var cache = SpringoCache.get(name);
+	return cache ? new Cache(cache) : null;
+};
+
+/**
+ * Get every cache's stats by name.
+ * @returns {java.util.Map} the stats
+ */
+exports.stats = function() {
+	return SpringoCache.getAllStats();
+};
+
+/**
+ * A cache (the keys are converted to strings).
+ * @param {org.springo.SpringoCache} the java cache
+ */
+function Cache(cache) {
+
+	/**
+	 * Get a value, loading it if it's missing.
+	 *
+	 * @param {String} key the key
+	 * @param {Function} (optional) loader called with the key to load a
+	 *   missing value (returning null or undefined caches nothing)
+	 * @param {Number} (optional) ttl how long (ms) the loaded value lives
+	 * @returns {Object} the value, or null
+	 */
+	this.get = function(key, loader, ttl) {
+		key = String(key);
+		var value = loader ?
+			cache.get(key, new SpringoCache.Loader({
+				load: function(key) {
+					var loaded = loader(String(key));
+					return (loaded === undefined) ? null : loaded;
+				}
+			}), (ttl === undefined) ? -1 : ttl) :
+			cache.getIfPresent(key);
+		return (value == null) ? null : value;
+	};
+
+	/**
+	 * Cache a value.
+	 *
+	 * @param {String} key the key
+	 * @param {Object} value the value
+	 * @param {Number} (optional) ttl how long (ms) it lives
+	 */
+	this.put = function(key, value, ttl) {
+		cache.put(String(key), value, (ttl === undefined) ? -1 : ttl);
+	};
+
+	this.remove = function(key) {
+		cache.remove(String(key));
+	};
+
+	this.clear = function() {
+		cache.clear();
+	};
+
+	/**
+	 * The number of entries.
+	 */
+	Object.defineProperty(this, "size", {
+		get: function() {
+			return cache.getEntries();
+		}
+	});
+
+	/**
+	 * The cache's settings and stats.
+	 * @returns {java.util.Map} the stats
+	 */
+	this.stats = function() {
+		return cache.getStats();
+	};
+}
@@ -0,0 +1,134 @@
+/**
+ * @fileOverview Read-only reference datasets (product catalogs, code lists
+ * etc.) shared by all the engines and kept across reloads.
+ *
+ * Rather than loading a large table into a module level javascript object
+ * (in every engine, again after every reload) the data's memory mapped by
+ * org.springo.SharedDataStore from a tab separated file (a header line
+ * naming the columns, the first being the key) and looked up through a
+ * lazy, read-only view.  The rows' values are only decoded when they're
+ * read.
+ *
+ * A dataset's reloaded when its file changes (independently of script
+ * deploys), so look it up with dataset(name) per request rather than
+ * holding onto the view in a module level variable.
+ *
+ * The datasets can be registered with the filter's "data-store" init-param
+ * (e.g. "products=/data/products.tsv, countries=/data/countries.tsv") or
+ * with register() below.
+ *
+ * @example
+ * var data = require("springodata");
+ * var product = data.dataset("products").get(sku);
+ * if(product) {
+ *     return {name: product.name, price: product.price};
+ * }
+ */
+
+importClass(org.springo.SharedDataStore);
+
+var scope = this;
+
+/**
+ * Register (and load) a dataset (registering the same name and file again
+ * does nothing, so it's fine in module code run by each engine).
+ *
+ * @param {String} name the dataset's name
+ * @param {String} path the dataset's file
+ * @returns {Dataset} the dataset
+ */
+exports.register = function(name, path) {
+	SharedDataStore.register(name, path);
+	return exports.dataset(name);
+};
+
+/**
+ * Get a dataset.
+ *
+ * @param {String} name the dataset's name
+ * @returns {Dataset} the dataset
+ * @throws if there's no such dataset
+ */
+exports.dataset = function(name) {
+	return new Dataset(SharedDataStore.get(name));
+};
+
+/**
+ * @param {String} name a dataset's name
+ * @returns {Boolean} whether the dataset's registered
+ */
+exports.has = function(name) {
+	return SharedDataStore.has(name);
+};
+
+/**
+ * Get the datasets' stats:  their file, rows, columns, when they were
+ * loaded, the bytes mapped and the (heap) bytes of their index.
+ *
+ * @returns {java.util.Map} the stats by dataset name
+ */
+exports.stats = function() {
+	return SharedDataStore.getStats();
+};
+
+/**
+ * A read-only view of a dataset.
+ * @param {org.springo.SharedDataStore.Dataset} the java dataset
+ */
+function Dataset(dataset) {
+
+	/**
+	 * The dataset's name.
+	 */
+	this.name = String(dataset.getName());
+
+	/**
+	 * The number of rows.
+	 */
+	this.size = dataset.size();
+
+	/**
+	 * The column names (the first is the key).
+	 */
+	this.columns = Array.prototype.map.call(dataset.getColumns(), String);
+
+	/**
+	 * Look up a row by key.
+	 *
+	 * @param {String} key the key
+	 * @returns {Object} a read-only object with a property per column (the
+	 *   values are strings, or numbers for ":number" columns), or null
+	 */
+	this.get = function(key) {
+		return dataset.get(scope, String(key));
+	};
+
+	/**
+	 * Look up a single value.
+	 *
+	 * @param {String} key the key
+	 * @param {String} column the column
+	 * @returns {String|Number} the value, or null if there's no such row or column
+	 */
+	this.value = function(key, column) {
+		var value = dataset.getValue(String(key), column);
+		return (value == null) ? null : (typeof value === "number" || value instanceof java.lang.Number) ?
+			Number(value) : String(value);
+	};
+
+	/**
+	 * @param {String} key the key
+	 * @returns {Boolean} whether there's a row with the key
+	 */
+	this.has = function(key) {
+		return dataset.has(String(key));
+	};
+
+	/**
+	 * Get all the keys (in file order) - note this decodes every key.
+	 * @returns {Array} the keys
+	 */
+	this.keys = function() {
+		return Array.prototype.map.call(dataset.keys().toArray(), String);
+	};
+}
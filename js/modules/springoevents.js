@@ -0,0 +1,83 @@
+/**
+ * @fileOverview Java Flight Recorder events for stick middleware.
+ *
+ * Configure your stick app through this module (instead of calling
+ * app.configure directly) to have an "org.springo.Middleware" JFR event
+ * recorded for each middleware a request passes through.  The events
+ * show where the time went in production without the optlevel -1
+ * requirement of ringo's profiler middleware.
+ *
+ * When no JFR recording has the event enabled the wrapper costs a
+ * single java call per middleware per request.
+ *
+ * Note:  each middleware's event includes the time of the middleware
+ *   it calls (i.e. further down the chain).
+ *
+ * See org.springo.SpringoEvents for the other springo JFR events.
+ *
+ * @example
+ * var events = require("springoevents");
+ * var app = exports.app = new Application();
+ * events.configure(app, "notfound", "error", "jsonerror", "modifyresponsebody", "runfilterchain");
+ */
+
+importClass(org.springo.SpringoEvents);
+
+/**
+ * Configure the stick app with the specified middleware, each wrapped
+ * to record a JFR event.
+ *
+ * @param {Application} the stick app
+ * @param {String|Function} one or more middleware (names or factory functions)
+ * @returns {Application} the stick app
+ */
+exports.configure = function(app) {
+	var middleware = [];
+	for(var i=1; i < arguments.length; i++) {
+		var m = arguments[i];
+		var name = (typeof m === "string") ? m : (m.name || "anonymous");
+		middleware.push(exports.instrument(resolveMiddleware(m), name));
+	}
+	app.configure.apply(app, middleware);
+	return app;
+};
+
+/**
+ * Wrap a stick middleware factory so the middleware it creates records
+ * a JFR event for each request.
+ *
+ * @param {Function} the middleware factory i.e. function(next, app)
+ * @param {String} the name to record the middleware under
+ * @returns {Function} the wrapped middleware factory
+ */
+exports.instrument = function(factory, name) {
+	return function(next, app) {
+		var middleware = factory(next, app);
+		return function(request) {
+			var event = SpringoEvents.beginMiddleware(name);
+			if(event == null) {
+				return middleware(request);
+			}
+			try {
+				return middleware(request);
+			} finally {
+				SpringoEvents.end(event);
+			}
+		};
+	};
+};
+
+// Resolve a middleware name the same way stick does (the stick
+// middleware first, then modules on the module path):
+function resolveMiddleware(m) {
+	if(typeof m === "function") {
+		return m;
+	}
+	var module;
+	try {
+		module = require("stick/middleware/" + m);
+	} catch (error) {
+		module = require(m);
+	}
+	return module.middleware;
+}
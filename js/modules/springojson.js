@@ -0,0 +1,147 @@
+/**
+ * @fileOverview Fast JSON parsing and serialization for Springo, backed
+ * by a streaming java parser/writer (org.springo.JsonCodec).
+ *
+ * Unlike JSON.parse/JSON.stringify this works directly with bytes, e.g.
+ * parsing a JSON request body or buffered (Spring) response body without
+ * first making a javascript String of it, and serializing javascript
+ * objects straight to bytes.
+ *
+ * Parse errors are thrown as {type: "invalid_json", message: "..."}
+ * (the same as springoutils.jsonParse) so the "jsonerror" middleware
+ * can turn them into the standard JSON error response.
+ *
+ * @example
+ * var json = require("springojson");
+ * var obj = json.parse(request.env.servletRequest.inputStream);
+ * var bytes = json.toBytes(obj);
+ */
+
+importClass(org.springo.JsonCodec);
+
+var {ByteString} = require("binary");
+
+/**
+ * Parse JSON into javascript objects/arrays.
+ *
+ * @param {String|java.io.InputStream|byte[]} the JSON (streams and
+ *   byte arrays are read as UTF-8).
+ * @returns {Object} the parsed javascript value
+ */
+exports.parse = function(source) {
+	try {
+		return JsonCodec.parse(exports, source);
+	} catch (error) {
+		throw invalidJson(error);
+	}
+};
+
+/**
+ * Parse the JSON buffered by a BufferedResponseWrapper (e.g. the
+ * JSON response Spring generated).
+ *
+ * @param {BufferedResponseWrapper} the response wrapper
+ * @returns {Object} the parsed javascript value
+ */
+exports.parseResponseBody = function(responseWrapper) {
+	return exports.parse(responseWrapper.bodyInputStream);
+};
+
+/**
+ * Serialize a javascript value to a JSON String.
+ *
+ * @param {Object} the value to serialize
+ * @param {Number} (optional) indent the number of spaces to indent by
+ * @returns {String} the JSON
+ */
+exports.stringify = function(value, indent) {
+	return String(JsonCodec.stringify(value, indent || 0));
+};
+
+/**
+ * Serialize a javascript value to (UTF-8) JSON bytes.
+ *
+ * @param {Object} the value to serialize
+ * @param {Number} (optional) indent the number of spaces to indent by
+ * @returns {byte[]} the JSON as a java byte array
+ */
+exports.toBytes = function(value, indent) {
+	return JsonCodec.toBytes(value, indent || 0);
+};
+
+/**
+ * Serialize a javascript value to (UTF-8) JSON bytes usable as
+ * (part of) a JSGI response body.
+ *
+ * @param {Object} the value to serialize
+ * @param {Number} (optional) indent the number of spaces to indent by
+ * @returns {ByteString} the JSON
+ */
+exports.toBinary = function(value, indent) {
+	return ByteString.wrap(exports.toBytes(value, indent));
+};
+
+/**
+ * Serialize a javascript value as (UTF-8) JSON to a java OutputStream
+ * (e.g. a ServletOutputStream).
+ *
+ * @param {Object} the value to serialize
+ * @param {java.io.OutputStream} the stream to write to
+ * @param {Number} (optional) indent the number of spaces to indent by
+ */
+exports.write = function(value, outputStream, indent) {
+	JsonCodec.write(value, outputStream, indent || 0);
+};
+
+/**
+ * Create a JSGI response whose body is serialized as JSON straight to the
+ * servlet's output stream as it's sent, rather than JSON.stringify'd into
+ * a String first (which for a large response puts the whole document on
+ * the heap two or three times).  The stream is flushed as it goes so a
+ * very large array goes out in chunks.
+ *
+ * The source can be any javascript value, or an iterator (a generator, an
+ * object with an ES6 style next(), or a java Iterator) whose values are
+ * written as an array, so the array never has to be built at all.
+ *
+ * Note:  an error thrown part way through (e.g. by the iterator) can only
+ *   truncate the response since its status has already been sent.
+ *
+ * @example
+ * return json.response(request, rowsGenerator(), {status: 200});
+ *
+ * @param {Object} the JSGI request (the response is written to its
+ *   env.servletResponse)
+ * @param {Object|Iterator} the value or iterator to serialize
+ * @param {Object} (optional) options: status (default 200), headers (the
+ *   Content-Type defaults to application/json), indent (default 0) and
+ *   flushBytes (flush after about this many bytes, default 65536)
+ * @returns {Object} the JSGI response
+ */
+exports.response = function(request, source, options) {
+	options = options || {};
+	var headers = {"Content-Type": "application/json; charset=utf-8"};
+	for (var name in options.headers) {
+		headers[name] = options.headers[name];
+	}
+	var indent = options.indent || 0;
+	var flushBytes = (options.flushBytes !== undefined) ? options.flushBytes : 65536;
+	return {
+		status: options.status || 200,
+		headers: headers,
+		body: {
+			// (the connector's writer is bypassed, the JSON's written
+			// straight to the servlet output stream)
+			forEach: function(write) {
+				var servletResponse = request.env.servletResponse;
+				JsonCodec.stream(source, servletResponse.getOutputStream(), indent, flushBytes);
+			}
+		}
+	};
+};
+
+// Convert a parse failure to our standard invalid_json error.
+function invalidJson(error) {
+	var message = error.javaException ? error.javaException.getMessage() : error.message;
+	return {type: "invalid_json", message: "passed in json is not valid: " + message};
+}
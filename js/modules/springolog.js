@@ -0,0 +1,153 @@
+/**
+ * @fileOverview Logging for the request path, in place of ringo/logging
+ * (which formats and writes each message on the request's thread).
+ *
+ * The loggers are org.springo.SpringoLog's:  a message's "{}" placeholders
+ * are only filled in (and the message handed on to log4j) by a background
+ * thread, messages are dropped and counted rather than waiting when it
+ * falls behind, and each logger can be sampled and rate limited (see the
+ * "springo.log-sample-rates" and "springo.log-rate-limits" context-params, or
+ * setSampleRate() and setRateLimit() below).
+ *
+ * The loggers have the same methods as ringo/logging's, so switching is
+ * just a matter of the require.  Arguments that are javascript objects are
+ * converted to strings (JSON) on the request's thread, but only when the
+ * message is actually going to be logged.
+ *
+ * @example
+ * var log = require("springolog").getLogger(module.id);
+ * log.info("forwarding {} to {}", request.pathInfo, target);
+ */
+
+importClass(org.springo.SpringoLog);
+importClass(org.apache.log4j.Level);
+
+var levels = {
+	trace: Level.TRACE,
+	debug: Level.DEBUG,
+	info: Level.INFO,
+	warn: Level.WARN,
+	error: Level.ERROR
+};
+
+/**
+ * Get the named logger (logging through the log4j logger of that name).
+ *
+ * @param {String} name the logger's name, e.g. module.id
+ * @returns {Logger} the logger
+ */
+exports.getLogger = function(name) {
+	return new Logger(SpringoLog.getLogger(String(name)));
+};
+
+/**
+ * Get the messages logged and dropped, overall and by logger.
+ * @returns {java.util.Map} the stats
+ */
+exports.stats = function() {
+	return SpringoLog.getStats();
+};
+
+/**
+ * A logger.
+ * @param {org.springo.SpringoLog} the java logger
+ */
+function Logger(logger) {
+
+	Object.keys(levels).forEach(function(name) {
+		var level = levels[name];
+		/**
+		 * Log a message, e.g. log.info("took {}ms", millis) (the last
+		 * argument can be an error).
+		 */
+		this[name] = function() {
+			if (logger.shouldLog(level)) {
+				append(logger, level, arguments);
+			}
+		};
+	}, this);
+
+	this.isTraceEnabled = function() {
+		return logger.isEnabled(Level.TRACE);
+	};
+
+	this.isDebugEnabled = function() {
+		return logger.isDebugEnabled();
+	};
+
+	this.isInfoEnabled = function() {
+		return logger.isInfoEnabled();
+	};
+
+	this.isWarnEnabled = function() {
+		return logger.isEnabled(Level.WARN);
+	};
+
+	this.isErrorEnabled = function() {
+		return logger.isEnabled(Level.ERROR);
+	};
+
+	/**
+	 * Log this fraction of the trace/debug/info messages.
+	 * @param {Number} sampleRate e.g. 0.01 (1 logs them all)
+	 */
+	this.setSampleRate = function(sampleRate) {
+		logger.setSampleRate(sampleRate);
+	};
+
+	/**
+	 * Log at most this many messages a second.
+	 * @param {Number} rateLimit the limit (0 for none)
+	 */
+	this.setRateLimit = function(rateLimit) {
+		logger.setRateLimit(rateLimit);
+	};
+}
+
+// Hand a message on to the background thread (converting its arguments
+// to java values it can safely format there):
+function append(logger, level, args) {
+	var pattern = (typeof args[0] === "string") ? args[0] : toJava(args[0]);
+	var params = [];
+	var error = null;
+	for (var i = 1; i < args.length; i++) {
+		var arg = args[i];
+		if (i === args.length - 1 && isError(arg)) {
+			error = toThrowable(arg);
+			if (error == null) {
+				params.push(String(arg) + (arg.stack ? "\n" + arg.stack : ""));
+			}
+		} else {
+			params.push(toJava(arg));
+		}
+	}
+	logger.append(level, String(pattern), params, error);
+}
+
+function toJava(value) {
+	if (value === null || value === undefined) {
+		return String(value);
+	}
+	var type = typeof value;
+	if (type === "string" || type === "number" || type === "boolean" ||
+		value instanceof java.lang.Object) {
+		return value;
+	}
+	try {
+		var json = JSON.stringify(value);
+		return (json === undefined) ? String(value) : json;
+	} catch (e) {
+		return String(value);
+	}
+}
+
+function isError(value) {
+	return value instanceof Error || value instanceof java.lang.Throwable;
+}
+
+function toThrowable(error) {
+	if (error instanceof java.lang.Throwable) {
+		return error;
+	}
+	return error.rhinoException || error.javaException || null;
+}
@@ -4,24 +4,34 @@
  * @author darrencruse (https://github.com/darrencruse)
  */
 
-var log = require('ringo/logging').getLogger(module.id);
+var log = require('springolog').getLogger(module.id);
+var json = require('springojson');
 include('ringo/webapp/response');
 
+importClass(org.springo.BufferedRequestWrapper);
 importClass(org.springo.BufferedResponseWrapper);
 importClass(org.springo.RingoJsgiFilter);
+importClass(org.springo.SpringRoutes);
+importClass(org.springo.AllocationSampler);
+importClass(org.springo.EngineRegistry);
 
 /**
- * Forward the request to the Spring Dispatcher.
+ * Get the (compiled) forwarding rule for a "from"/"to" pair.
  *
- * Note:  This will stream Spring's output straight to the client,
- *        preventing any further modification of the response.
+ * The rules live in a java side table (org.springo.SpringRoutes) so each
+ * distinct rule is compiled just once no matter how many middleware use
+ * it, and the RequestDispatchers for the target urls are cached.
  *
- * @param {Request} the request to be forwarded
- * @param {Regex} (optional) from the url pattern to forward, default is \/.*\/api\/
+ * @param {Regex|String} (optional) from the url pattern to forward (or a
+ *   url prefix as a String), default is \/.*\/api\/
  * @param {String} (optional) to the String to replace for "from", default is \/_api\/
- * @returns {Response} the JSGI Response, or null if the request url did not match "from"
+ * @returns {SpringRoutes.Route} the rule
  */
-exports.forwardtospringdispatcher = function(request, from, to) {
+exports.springRoute = function(from, to) {
+
+	if(!from && !to) {
+		return SpringRoutes.defaultRoute();
+	}
 
 	if(!from) {
 		from =  /\/.*\/api\//;
@@ -31,13 +41,67 @@ exports.forwardtospringdispatcher = function(request, from, to) {
 		 to = '\/_api\/';
 	}
 
-	var originalRequestPath = request.env.servletRequest.requestURI;
-	if(from.test(originalRequestPath)) {
+	if(typeof from === "string") {
+		return SpringRoutes.prefixRoute(from, to);
+	}
+	return SpringRoutes.regexRoute(from.source, from.ignoreCase, to);
+};
+
+/**
+ * Get the (compiled) forwarding rule for a middleware's config object
+ * (i.e. an object with "from" and "to" properties such as
+ * app.forwardtospringdispatcher).
+ *
+ * The rule is remembered on the config object so it's only looked up
+ * again if "from" or "to" are changed.
+ *
+ * @param {Object} the middleware config with "from" and "to"
+ * @returns {SpringRoutes.Route} the rule
+ */
+exports.springRouteFor = function(config) {
+	var cached = config.__springRoute__;
+	if(!cached || cached.from !== config.from || cached.to !== config.to) {
+		cached = {
+			from: config.from,
+			to: config.to,
+			route: exports.springRoute(config.from, config.to)
+		};
+		Object.defineProperty(config, "__springRoute__", {value: cached, writable: true, enumerable: false, configurable: true});
+	}
+	return cached.route;
+};
+
+// Accept either a compiled rule or a "from"/"to" pair:
+function toRoute(from, to) {
+	if(from instanceof SpringRoutes.Route) {
+		return from;
+	}
+	return exports.springRoute(from, to);
+}
+
+/**
+ * Forward the request to the Spring Dispatcher.
+ *
+ * Note:  This will stream Spring's output straight to the client,
+ *        preventing any further modification of the response.
+ *
+ * @param {Request} the request to be forwarded
+ * @param {Regex|String|SpringRoutes.Route} (optional) from the url pattern to forward
+ *   (or a compiled rule from springRoute/springRouteFor), default is \/.*\/api\/
+ * @param {String} (optional) to the String to replace for "from", default is \/_api\/
+ * @returns {Response} the JSGI Response, or null if the request url did not match "from"
+ */
+exports.forwardtospringdispatcher = function(request, from, to) {
+
+	var route = toRoute(from, to);
+
+	var servletRequest = request.env.servletRequest;
+	var springRequestPath = route.getTargetPath(servletRequest.requestURI);
+	if(springRequestPath != null) {
 		// forward this on to the internal Spring url:
-		var springRequestPath = originalRequestPath.replace(from, to);
-		var requestDispatcher = request.env.servletRequest.getRequestDispatcher(springRequestPath);
+		var requestDispatcher = SpringRoutes.getRequestDispatcher(servletRequest, springRequestPath);
 		if(requestDispatcher) {
-			requestDispatcher.forward(request.env.servletRequest,request.env.servletResponse);
+			requestDispatcher.forward(servletRequest,request.env.servletResponse);
 		}
 		else
 		{
@@ -58,44 +122,25 @@ exports.forwardtospringdispatcher = function(request, from, to) {
  *        JSGI Response object.
  *
  * @param {Request} the request to be forwarded
- * @param {Regex} (optional) from the url pattern to forward, default is \/.*\/api\/
+ * @param {Regex|String|SpringRoutes.Route} (optional) from the url pattern to forward
+ *   (or a compiled rule from springRoute/springRouteFor), default is \/.*\/api\/
  * @param {String} (optional) to the String to replace for "from", default is \/_api\/
  * @returns {Response} the JSGI Response, or null if the request url did not match "from"
  */
 exports.capturefromspringdispatcher = function(request, from, to) {
 
-	// capturing of spring's output can be prevented if desired:
-
-	// either through a url parameter
-	var springcapture = request.params["springcapture"];
-	if((typeof springcapture !== "undefined") &&
-		(springcapture === "false" ||
-		springcapture === "no" ||
-		springcapture === "none")
-	) {
-		return exports.forwardtospringdispatcher(request, from, to);
-	}
-
-	// or through a request attribute:
-	springcapture = request.springcapture;
-	if((typeof springcapture !== "undefined") &&
-		!springcapture) {
-		return exports.forwardtospringdispatcher(request, from, to);
-	}
-
-	if(!from) {
-		from =  /\/.*\/api\//;
-	}
+	var route = toRoute(from, to);
 
-	if(!to) {
-		 to = '\/_api\/';
+	// capturing of spring's output can be prevented if desired:
+	if(isCaptureDisabled(request)) {
+		return exports.forwardtospringdispatcher(request, route);
 	}
 
-	var originalRequestPath = request.env.servletRequest.requestURI;
-	if(from.test(originalRequestPath)) {
+	var servletRequest = request.env.servletRequest;
+	var springRequestPath = route.getTargetPath(servletRequest.requestURI);
+	if(springRequestPath != null) {
 		// forward this on to the internal Spring url:
-		var springRequestPath = originalRequestPath.replace(from, to);
-		var requestDispatcher = request.env.servletRequest.getRequestDispatcher(springRequestPath);
+		var requestDispatcher = SpringRoutes.getRequestDispatcher(servletRequest, springRequestPath);
 		if(requestDispatcher) {
 
 			// Wrap the response object so we can capture it's output:
@@ -103,7 +148,7 @@ exports.capturefromspringdispatcher = function(request, from, to) {
 			var responseWrapper = new BufferedResponseWrapper(originalResponseObject);
 			request.env.servletResponse = responseWrapper;
 
-			requestDispatcher.forward(request.env.servletRequest,request.env.servletResponse);
+			requestDispatcher.forward(servletRequest,request.env.servletResponse);
 
 			var responseBody = responseWrapper.body;
 
@@ -126,6 +171,18 @@ exports.capturefromspringdispatcher = function(request, from, to) {
 	}
 };
 
+// Has capturing of spring's output been turned off for this request?
+//
+// either through a url parameter (e.g. "springcapture=false", checked
+// without parsing the request parameters/body)
+// or through a request attribute (request.springcapture = false)
+function isCaptureDisabled(request) {
+	if(SpringRoutes.isCaptureDisabled(request.env.servletRequest)) {
+		return true;
+	}
+	var springcapture = request.springcapture;
+	return (typeof springcapture !== "undefined") && !springcapture;
+}
 
 /**
  * Capture the output of running the servlet filter chain.
@@ -141,24 +198,11 @@ exports.runFilterChain = function(request, capture) {
 
 	// capturing of spring's output can also be prevented
 	// with url param or request attribute:
-
-	var captureParam = request.params["springcapture"];
-	var captureAttr = request.springcapture;
-	if(
-		(typeof capture !== "undefined" && !capture)
-		||
-		((typeof captureParam !== "undefined") &&
-			(captureParam === "false" ||
-			captureParam === "no" ||
-			captureParam === "none"))
-		||
-		((typeof captureAttr !== "undefined") &&
-		!captureAttr)
-	) {
+	if((typeof capture !== "undefined" && !capture) || isCaptureDisabled(request)) {
 		// Delegate the response generation to the filter chain:
-		log.info("running filter chain");
+		log.info("running filter chain for {}", request.pathInfo);
 		runFilter(servletRequest, servletResponse);
-		log.info("running filter chain");
+		log.info("ran filter chain for {}", request.pathInfo);
 
 		// It has streamed it's output directly to the client:
 		response = new Response("");
@@ -189,25 +233,131 @@ function captureFilter(servletRequest, servletResponse) {
 	return RingoJsgiFilter.captureFilterChain(servletRequest, servletResponse);
 }
 
+/**
+ * Is a handoff between Spring and the javascript (see
+ * org.springo.SpringoHandoff) enabled for the request, given a middleware's
+ * handoff setting (e.g. app.modifyresponsebodyhandoff):  true, or an array
+ * of the path prefixes it's enabled for?
+ *
+ * @param {Boolean|Array} the setting
+ * @param {Request} the request
+ * @returns {Boolean} whether it's enabled
+ */
+exports.isHandoff = function(handoff, request) {
+	if(handoff === true) {
+		return true;
+	}
+	if(Array.isArray(handoff)) {
+		var path = request.scriptName + request.pathInfo;
+		return handoff.some(function(prefix) {
+			return path.indexOf(prefix) === 0;
+		});
+	}
+	return false;
+};
+
+/**
+ * Get the request's servlet request as an org.springo.BufferedRequestWrapper
+ * (whose body, parameters and headers can be modified), wrapping it and
+ * passing the wrapper on as request.env.servletRequest if the filter didn't
+ * already (see the "buffered-request-paths" filter init-param).
+ *
+ * @param {Request} request the request
+ * @returns {org.springo.BufferedRequestWrapper} the wrapper
+ */
+exports.bufferRequest = function(request) {
+	var servletRequest = request.env.servletRequest;
+	if(!(servletRequest instanceof BufferedRequestWrapper)) {
+		servletRequest = request.env.filter.bufferRequest(servletRequest);
+		request.env.servletRequest = servletRequest;
+	}
+	return servletRequest;
+};
+
+/**
+ * Override the script watchdog's limits for requests whose url starts
+ * with "prefix", e.g. to give a slow report more time, or a simple
+ * health check much less:
+ *
+ *     utils.limitScripts("/myapp/api/reports/", {millis: 30000});
+ *
+ * Note:  This only has an effect if the watchdog is enabled in web.xml
+ *        (e.g. with the "script-watchdog" filter init-param).
+ *
+ * @param {String} prefix the url prefix
+ * @param {Object} limits with "instructions" (the instruction budget) and/or
+ *   "millis" (the time limit), omitted or 0 meaning unlimited
+ * @param {String} (optional) filterName the filter's name in web.xml, default
+ *   is the filter that initialized last
+ */
+exports.limitScripts = function(prefix, limits, filterName) {
+	var filter = EngineRegistry.getFilter(filterName || null);
+	if (filter) {
+		filter.getScriptWatchdog().setRouteLimits(prefix, limits.instructions || 0, limits.millis || 0);
+	}
+};
+
+/**
+ * Get the per route heap allocation and latency stats gathered by the
+ * filter's allocation sampling (see the "allocation-sample-rate" filter
+ * init-param), e.g. to serve them as JSON from an admin route:
+ *
+ *     return {status: 200, headers: {"Content-Type": "application/json"},
+ *             body: [json.toBinary(utils.routeStats())]};
+ *
+ * @returns {java.util.Map} the stats keyed by route (serializable with springojson)
+ */
+exports.routeStats = function() {
+	return AllocationSampler.getStats();
+};
+
+/**
+ * Get the RhinoEngines shared by the filters and module bridges (see
+ * EngineRegistry) with their holders, builds and build footprints.
+ *
+ * @returns {java.util.List} a map per engine (serializable with springojson)
+ */
+exports.engineFootprints = function() {
+	return EngineRegistry.getFootprints();
+};
+
+/**
+ * Get the engines replaced by reloads that haven't been garbage collected
+ * yet, including those reported as leaked (see the "springo.retired-engine-deadline"
+ * context-param) and what still holds them.
+ *
+ * @returns {java.util.Map} the retired/reclaimed/leaked counts and the pending engines
+ */
+exports.retiredEngines = function() {
+	return EngineRegistry.getRetiredEngines();
+};
+
+/**
+ * Get the tiered compilation stats of a filter (see the "tiered-compilation"
+ * filter init-param):  its current tier, the tier transitions, the time spent
+ * in each tier and the hottest module functions.
+ *
+ * @param {String} (optional) filterName the filter's name in web.xml, default
+ *   is the filter that initialized last
+ * @returns {java.util.Map} the stats, or null if it's not enabled
+ */
+exports.tieredCompilationStats = function(filterName) {
+	var filter = EngineRegistry.getFilter(filterName || null);
+	return filter ? filter.getTieredCompilationStats() : null;
+};
+
 /**
  * Parse the provided json string (otherwise cause the standard 
  * JSON response to be generated if it's invalid JSON).
- * @param {String} a string containing JSON.
+ * @param {String|java.io.InputStream|byte[]} a string (or UTF-8 bytes) containing JSON.
  * @returns {Object} the javascript JSON Object
  */
 exports.jsonParse = function(jsonString) {
 
-	var jsonRequestBody;
-
-	try {
-		jsonRequestBody = JSON.parse(jsonString);
-	} catch (error) {
-		// We throw an error which can/will get caught by the jsonerror middleware
-		// (assuming they've configured it in their middleware chain).
-		throw {type: "invalid_json", message: "passed in json is not valid: " + error.message};
-	}
-
-	return jsonRequestBody;
+	// Note: if it's not valid JSON the springojson module throws an
+	// "invalid_json" error which can/will get caught by the jsonerror
+	// middleware (assuming they've configured it in their middleware chain).
+	return json.parse(jsonString);
 }
 
 /**
@@ -220,8 +370,7 @@ exports.formatJsonIfJson = function(maybeJsonStr) {
 	var formatted = maybeJsonStr;
 	if(maybeJsonStr && maybeJsonStr.indexOf('{') !== -1) {
 		try {
-			var json = JSON.parse(maybeJsonStr);
-			formatted = JSON.stringify(json,null,4);
+			formatted = json.stringify(json.parse(maybeJsonStr), 4);
 		} catch (error) {
 			// this wasn't JSON after all (just return unmodified)
 		}
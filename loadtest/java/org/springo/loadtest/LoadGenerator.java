@@ -0,0 +1,223 @@
+package org.springo.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A simple closed loop load generator: a fixed number of threads each
+ * send a scenario's request, wait for the whole response, and repeat,
+ * for a fixed time (after an untimed warm up).
+ *
+ * It uses HttpURLConnection (with keep-alive, as is its default) so it
+ * needs nothing but the JDK.
+ */
+public class LoadGenerator {
+
+ private final int threads;
+ private final long warmupMillis;
+ private final long durationMillis;
+
+ public LoadGenerator(int threads, long warmupMillis, long durationMillis) {
+  this.threads = threads;
+  this.warmupMillis = warmupMillis;
+  this.durationMillis = durationMillis;
+ }
+
+ /**
+  * A request to send over and over.
+  */
+ public static class Scenario {
+  final String name;
+  final String context;
+  final String method;
+  final String path;
+  final byte[] body;
+
+  public Scenario(String name, String context, String method, String path, byte[] body) {
+   this.name = name;
+   this.context = context;
+   this.method = method;
+   this.path = path;
+   this.body = body;
+  }
+
+  public String getName() {
+   return name;
+  }
+
+  public String getContext() {
+   return context;
+  }
+
+  public String getUrl(String baseUrl) {
+   return baseUrl + "/" + context + path;
+  }
+ }
+
+ /**
+  * The results of running a scenario.
+  */
+ public static class Result {
+  public final String scenario;
+  public final long requests;
+  public final long errors;
+  public final double seconds;
+  public final double throughput;
+  public final double meanMillis;
+  public final double p50Millis;
+  public final double p90Millis;
+  public final double p99Millis;
+  public final double p999Millis;
+  public final double maxMillis;
+
+  Result(String scenario, long[] micros, long errors, double seconds) {
+   this.scenario = scenario;
+   this.requests = micros.length;
+   this.errors = errors;
+   this.seconds = seconds;
+   this.throughput = micros.length / seconds;
+   Arrays.sort(micros);
+   long total = 0;
+   for (long m : micros) {
+    total += m;
+   }
+   this.meanMillis = micros.length == 0 ? 0 : total / (double) micros.length / 1000.0;
+   this.p50Millis = percentile(micros, 0.5);
+   this.p90Millis = percentile(micros, 0.9);
+   this.p99Millis = percentile(micros, 0.99);
+   this.p999Millis = percentile(micros, 0.999);
+   this.maxMillis = micros.length == 0 ? 0 : micros[micros.length - 1] / 1000.0;
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+   if (sorted.length == 0) {
+    return 0;
+   }
+   int index = (int) Math.ceil(sorted.length * fraction) - 1;
+   return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1000.0;
+  }
+ }
+
+ /**
+  * Run a scenario against the server at baseUrl.
+  */
+ public Result run(final Scenario scenario, final String baseUrl) throws InterruptedException {
+  final URL url;
+  try {
+   url = new URL(scenario.getUrl(baseUrl));
+  } catch (IOException e) {
+   throw new IllegalArgumentException(e);
+  }
+
+  final long warmupEnd = System.currentTimeMillis() + warmupMillis;
+  final long end = warmupEnd + durationMillis;
+  final CountDownLatch done = new CountDownLatch(threads);
+  final List<Worker> workers = new ArrayList<Worker>();
+
+  for (int i = 0; i < threads; i++) {
+   Worker worker = new Worker(scenario, url, warmupEnd, end, done);
+   workers.add(worker);
+   Thread thread = new Thread(worker, "loadtest-" + scenario.name + "-" + i);
+   thread.setDaemon(true);
+   thread.start();
+  }
+  done.await();
+
+  int count = 0;
+  long errors = 0;
+  for (Worker worker : workers) {
+   count += worker.count;
+   errors += worker.errors;
+  }
+  long[] micros = new long[count];
+  int offset = 0;
+  for (Worker worker : workers) {
+   System.arraycopy(worker.micros, 0, micros, offset, worker.count);
+   offset += worker.count;
+  }
+  return new Result(scenario.name, micros, errors, durationMillis / 1000.0);
+ }
+
+ private static class Worker implements Runnable {
+  private final Scenario scenario;
+  private final URL url;
+  private final long warmupEnd;
+  private final long end;
+  private final CountDownLatch done;
+  private final byte[] buffer = new byte[8192];
+
+  long[] micros = new long[16384];
+  int count = 0;
+  long errors = 0;
+
+  Worker(Scenario scenario, URL url, long warmupEnd, long end, CountDownLatch done) {
+   this.scenario = scenario;
+   this.url = url;
+   this.warmupEnd = warmupEnd;
+   this.end = end;
+   this.done = done;
+  }
+
+  public void run() {
+   try {
+    long now;
+    while ((now = System.currentTimeMillis()) < end) {
+     boolean measured = now >= warmupEnd;
+     long start = System.nanoTime();
+     boolean ok = send();
+     long elapsed = (System.nanoTime() - start) / 1000;
+     if (measured) {
+      if (!ok) {
+       errors++;
+      }
+      if (count == micros.length) {
+       micros = Arrays.copyOf(micros, micros.length * 2);
+      }
+      micros[count++] = elapsed;
+     }
+    }
+   } finally {
+    done.countDown();
+   }
+  }
+
+  private boolean send() {
+   HttpURLConnection connection = null;
+   try {
+    connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(scenario.method);
+    connection.setRequestProperty("Accept", "application/json");
+    if (scenario.body != null) {
+     connection.setDoOutput(true);
+     connection.setRequestProperty("Content-Type", "application/json");
+     connection.setFixedLengthStreamingMode(scenario.body.length);
+     OutputStream out = connection.getOutputStream();
+     out.write(scenario.body);
+     out.close();
+    }
+    int status = connection.getResponseCode();
+    InputStream in = (status >= 400) ? connection.getErrorStream() : connection.getInputStream();
+    if (in != null) {
+     // read (and so time) the whole response, which also lets the
+     // connection be reused:
+     while (in.read(buffer) != -1) {
+     }
+     in.close();
+    }
+    return status < 400;
+   } catch (IOException e) {
+    if (connection != null) {
+     connection.disconnect();
+    }
+    return false;
+   }
+  }
+ }
+}
@@ -0,0 +1,197 @@
+package org.springo.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Measures what springo costs compared with plain Spring MVC, end to end:
+ * an embedded Jetty (see LoadTestServer) serves the same Spring MVC app
+ * with and without the stick apps of loadtest/js/config.js in front of
+ * it, and a built-in load generator (see LoadGenerator) drives each
+ * scenario in turn, all on localhost.
+ *
+ * The scenarios are:
+ *
+ *   plain-get / plain-post - Spring MVC alone (the baselines).
+ *   trivial - javascript answering the request itself.
+ *   forward - forwardtospringdispatcher (streaming Spring's output).
+ *   passthrough - runfilterchain without capturing.
+ *   modifyresponse - modifyresponsebody + runfilterchain (capturing).
+ *   modifyrequest - modifyrequestbody + runfilterchain (compare with plain-post).
+ *   capture - captureunhandledrequest.
+ *
+ * Usage:
+ *
+ *   java -Dspringo.root=/path/to/springojs -cp <classpath> \
+ *     org.springo.loadtest.LoadTest [scenario-regex] [results-dir]
+ *
+ * with -Dloadtest.threads (default 16), -Dloadtest.seconds (default 30),
+ * -Dloadtest.warmupSeconds (default 10) and -Dloadtest.users (the number
+ * of users in the JSON, default 20).
+ *
+ * The results (throughput and latency percentiles per scenario) are
+ * written as JSON and CSV to loadtest/results by default so runs can be
+ * compared across builds.
+ */
+public class LoadTest {
+
+ public static void main(String[] args) throws Exception {
+
+  Pattern include = Pattern.compile(args.length > 0 ? args[0] : ".*");
+  File resultsDir = args.length > 1 ? new File(args[1]) :
+   new File(LoadTestServer.getSpringoRoot(), "loadtest/results");
+
+  int threads = Integer.getInteger("loadtest.threads", 16);
+  long seconds = Long.getLong("loadtest.seconds", 30);
+  long warmupSeconds = Long.getLong("loadtest.warmupSeconds", 10);
+  int users = Integer.getInteger("loadtest.users", 20);
+
+  List<LoadGenerator.Scenario> scenarios = new ArrayList<LoadGenerator.Scenario>();
+  for (LoadGenerator.Scenario scenario : getScenarios(users)) {
+   if (include.matcher(scenario.getName()).find()) {
+    scenarios.add(scenario);
+   }
+  }
+  if (scenarios.isEmpty()) {
+   System.err.println("No scenarios match: " + include);
+   return;
+  }
+
+  LoadTestServer server = new LoadTestServer();
+  Set<String> contexts = new LinkedHashSet<String>();
+  for (LoadGenerator.Scenario scenario : scenarios) {
+   contexts.add(scenario.getContext());
+  }
+  for (String context : contexts) {
+   if (LoadTestServer.PLAIN_CONTEXT.equals(context)) {
+    server.addPlainContext();
+   } else {
+    server.addSpringoContext(context, getInitParams(context));
+   }
+  }
+  server.start();
+
+  List<LoadGenerator.Result> results = new ArrayList<LoadGenerator.Result>();
+  try {
+   LoadGenerator generator = new LoadGenerator(threads, warmupSeconds * 1000, seconds * 1000);
+   for (LoadGenerator.Scenario scenario : scenarios) {
+    System.out.println("Running " + scenario.getName() + " (" + scenario.getUrl(server.getBaseUrl()) + ")...");
+    LoadGenerator.Result result = generator.run(scenario, server.getBaseUrl());
+    System.out.println(String.format(Locale.US,
+     "  %.1f req/s, p50 %.2fms, p99 %.2fms, max %.2fms, %d errors",
+     result.throughput, result.p50Millis, result.p99Millis, result.maxMillis, result.errors));
+    results.add(result);
+   }
+  } finally {
+   server.stop();
+  }
+
+  resultsDir.mkdirs();
+  String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+  File jsonFile = new File(resultsDir, "loadtest-" + stamp + ".json");
+  File csvFile = new File(resultsDir, "loadtest-" + stamp + ".csv");
+  writeJson(jsonFile, results, threads, seconds);
+  writeCsv(csvFile, results);
+  System.out.println("Load test results written to: " + jsonFile.getPath() + " and " + csvFile.getPath());
+ }
+
+ static List<LoadGenerator.Scenario> getScenarios(int users) {
+  byte[] usersJson = utf8(usersJson(users));
+  String query = "?count=" + users;
+  List<LoadGenerator.Scenario> scenarios = new ArrayList<LoadGenerator.Scenario>();
+  scenarios.add(new LoadGenerator.Scenario("plain-get", "plain", "GET", "/_api/users" + query, null));
+  scenarios.add(new LoadGenerator.Scenario("plain-post", "plain", "POST", "/_api/users/echo", usersJson));
+  scenarios.add(new LoadGenerator.Scenario("trivial", "trivial", "GET", "/js/ping", null));
+  scenarios.add(new LoadGenerator.Scenario("forward", "forward", "GET", "/api/users" + query, null));
+  scenarios.add(new LoadGenerator.Scenario("passthrough", "passthrough", "GET", "/_api/users" + query, null));
+  scenarios.add(new LoadGenerator.Scenario("modifyresponse", "modifyresponse", "GET", "/_api/users" + query, null));
+  scenarios.add(new LoadGenerator.Scenario("modifyrequest", "modifyrequest", "POST", "/_api/users/echo", usersJson));
+  scenarios.add(new LoadGenerator.Scenario("capture", "capture", "GET", "/api/users" + query, null));
+  return scenarios;
+ }
+
+ // The extra filter init-params a scenario's context needs:
+ static Map<String, String> getInitParams(String context) {
+  if ("modifyrequest".equals(context)) {
+   // modifyrequestbody needs the body buffered in a request wrapper:
+   return Collections.singletonMap("nonblocking-body-read", "true");
+  }
+  return null;
+ }
+
+ static String usersJson(int users) {
+  StringBuilder sb = new StringBuilder("{\"users\":[");
+  for (int i = 0; i < users; i++) {
+   if (i > 0) {
+    sb.append(',');
+   }
+   sb.append("{\"id\":").append(i)
+    .append(",\"name\":\"user").append(i)
+    .append("\",\"active\":").append(i % 2 == 0)
+    .append(",\"score\":").append(i * 1.5)
+    .append('}');
+  }
+  return sb.append("],\"count\":").append(users).append('}').toString();
+ }
+
+ private static byte[] utf8(String s) {
+  try {
+   return s.getBytes("UTF-8");
+  } catch (IOException e) {
+   throw new IllegalStateException(e);
+  }
+ }
+
+ private static void writeJson(File file, List<LoadGenerator.Result> results, int threads, long seconds) throws IOException {
+  PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+  try {
+   out.println("{");
+   out.println("  \"threads\": " + threads + ",");
+   out.println("  \"seconds\": " + seconds + ",");
+   out.println("  \"optlevel\": " + System.getProperty("scripting.optlevel", "9") + ",");
+   out.println("  \"java\": \"" + System.getProperty("java.version") + "\",");
+   out.println("  \"results\": [");
+   for (int i = 0; i < results.size(); i++) {
+    LoadGenerator.Result r = results.get(i);
+    out.print(String.format(Locale.US,
+     "    {\"scenario\": \"%s\", \"requests\": %d, \"errors\": %d, \"throughput\": %.2f, " +
+     "\"meanMillis\": %.3f, \"p50Millis\": %.3f, \"p90Millis\": %.3f, \"p99Millis\": %.3f, " +
+     "\"p999Millis\": %.3f, \"maxMillis\": %.3f}",
+     r.scenario, r.requests, r.errors, r.throughput,
+     r.meanMillis, r.p50Millis, r.p90Millis, r.p99Millis, r.p999Millis, r.maxMillis));
+    out.println(i < results.size() - 1 ? "," : "");
+   }
+   out.println("  ]");
+   out.println("}");
+  } finally {
+   out.close();
+  }
+ }
+
+ private static void writeCsv(File file, List<LoadGenerator.Result> results) throws IOException {
+  PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+  try {
+   out.println("scenario,requests,errors,throughput,meanMillis,p50Millis,p90Millis,p99Millis,p999Millis,maxMillis");
+   for (LoadGenerator.Result r : results) {
+    out.println(String.format(Locale.US, "%s,%d,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f",
+     r.scenario, r.requests, r.errors, r.throughput,
+     r.meanMillis, r.p50Millis, r.p90Millis, r.p99Millis, r.p999Millis, r.maxMillis));
+   }
+  } finally {
+   out.close();
+  }
+ }
+}
@@ -0,0 +1,128 @@
+package org.springo.loadtest;
+
+import java.io.File;
+import java.util.EnumSet;
+import java.util.Map;
+
+import javax.servlet.DispatcherType;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springo.RingoJsgiFilter;
+
+/**
+ * An embedded Jetty serving the load test app on localhost.
+ *
+ * Each stick app in loadtest/js/config.js gets its own servlet context
+ * (named for the app, e.g. /modifyresponse) where a RingoJsgiFilter
+ * running that app sits in front of Spring MVC's DispatcherServlet.  The
+ * /plain context is Spring MVC alone, the baseline springo is compared
+ * against.
+ *
+ * The springo checkout is located via the "springo.root" system property
+ * (defaulting to the current directory).
+ */
+public class LoadTestServer {
+
+ public static final String ROOT_PROPERTY = "springo.root";
+ public static final String PLAIN_CONTEXT = "plain";
+
+ private final Server server;
+ private final ServerConnector connector;
+ private final ContextHandlerCollection contexts = new ContextHandlerCollection();
+
+ public LoadTestServer() {
+  server = new Server();
+  connector = new ServerConnector(server);
+  connector.setHost("127.0.0.1");
+  connector.setPort(Integer.getInteger("loadtest.port", 0));
+  server.addConnector(connector);
+  server.setHandler(contexts);
+ }
+
+ public static File getSpringoRoot() {
+  return new File(System.getProperty(ROOT_PROPERTY, ".")).getAbsoluteFile();
+ }
+
+ public static String getRingoHome() {
+  return new File(getSpringoRoot(), "loadtest/js").getAbsolutePath();
+ }
+
+ public static String getModulePath() {
+  File root = getSpringoRoot();
+  return getRingoHome() + "," +
+   new File(root, "js/modules").getAbsolutePath() + "," +
+   new File(root, "js/middleware").getAbsolutePath();
+ }
+
+ /**
+  * Add the plain Spring MVC context (no springo).
+  */
+ public void addPlainContext() {
+  createContext(PLAIN_CONTEXT);
+ }
+
+ /**
+  * Add a context running a stick app from loadtest/js/config.js in
+  * front of Spring MVC.
+  *
+  * @param app the name of the app's export
+  * @param initParams extra RingoJsgiFilter init-params (may be null)
+  */
+ public void addSpringoContext(String app, Map<String, String> initParams) {
+  ServletContextHandler context = createContext(app);
+
+  FilterHolder filter = new FilterHolder(new RingoJsgiFilter());
+  filter.setName("RingoFilter-" + app);
+  filter.setAsyncSupported(true);
+  filter.setInitParameter("ringo-home", getRingoHome());
+  filter.setInitParameter("module-path", getModulePath());
+  filter.setInitParameter("config", "config");
+  filter.setInitParameter("app", app);
+  filter.setInitParameter("production", "true");
+  filter.setInitParameter("optlevel", System.getProperty("scripting.optlevel", "9"));
+  if (initParams != null) {
+   for (Map.Entry<String, String> param : initParams.entrySet()) {
+    filter.setInitParameter(param.getKey(), param.getValue());
+   }
+  }
+  context.addFilter(filter, "/*",
+   EnumSet.of(DispatcherType.REQUEST, DispatcherType.FORWARD, DispatcherType.ASYNC));
+ }
+
+ private ServletContextHandler createContext(String name) {
+  AnnotationConfigWebApplicationContext spring = new AnnotationConfigWebApplicationContext();
+  spring.register(LoadTestWebConfig.class);
+
+  ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+  context.setContextPath("/" + name);
+  ServletHolder dispatcher = new ServletHolder(new DispatcherServlet(spring));
+  dispatcher.setName("dispatcher-" + name);
+  dispatcher.setAsyncSupported(true);
+  dispatcher.setInitOrder(1);
+  context.addServlet(dispatcher, "/*");
+  contexts.addHandler(context);
+  return context;
+ }
+
+ public void start() throws Exception {
+  server.start();
+ }
+
+ public void stop() throws Exception {
+  server.stop();
+ }
+
+ /**
+  * The base url (e.g. http://127.0.0.1:12345) once started.
+  */
+ public String getBaseUrl() {
+  return "http://127.0.0.1:" + connector.getLocalPort();
+ }
+}
@@ -0,0 +1,19 @@
+package org.springo.loadtest;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+
+/**
+ * The Spring MVC configuration of the load test app (Jackson does the
+ * JSON, as @EnableWebMvc registers it when it's on the classpath).
+ */
+@Configuration
+@EnableWebMvc
+public class LoadTestWebConfig {
+
+ @Bean
+ public UsersController usersController() {
+  return new UsersController();
+ }
+}
@@ -0,0 +1,437 @@
+package org.springo.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+import org.springo.RingoJsgiFilter;
+import org.springo.TrafficRecorder;
+
+/**
+ * Replays a traffic log recorded by RingoJsgiFilter (the
+ * "traffic-record-file" init-param, see TrafficRecorder) against the
+ * current javascript and a candidate version of it, in process, and
+ * reports the difference in latency and heap allocated per route - so a
+ * script deploy can be checked for performance regressions against real
+ * traffic before it goes out.
+ *
+ * Each version gets its own RingoJsgiFilter, with a mock filter chain
+ * standing in for Spring (reading the body and writing a canned JSON
+ * response, as the benchmarks' JsonFilterChain does) so what's measured
+ * is the javascript alone.  The recorded requests are replayed a number of
+ * times, the first few as warmup, alternating which version goes first.
+ *
+ * Usage:
+ *
+ *   java -Dspringo.root=/path/to/springojs -cp <classpath> \
+ *     org.springo.loadtest.TrafficReplay <traffic-log> <current-ringo-home> \
+ *     <candidate-ringo-home> [results-dir]
+ *
+ * with -Dreplay.config (the config module, default "config"),
+ * -Dreplay.app (its export, default "app"), -Dreplay.contextPath (the
+ * context path stripped from the recorded uris, default none),
+ * -Dreplay.chainBody (a file holding the mock Spring response, default
+ * "{}"), -Dreplay.iterations (default 5), -Dreplay.warmup (default 2) and
+ * -Dreplay.threshold (the % slower a route may get before it's reported
+ * as a regression, default 10).
+ *
+ * Routes are the request methods and paths with their numeric and uuid
+ * segments replaced by "*" (e.g. "GET /api/users/*").  The report is
+ * printed, and written as JSON and CSV to loadtest/results by default.
+ *
+ * Note:  apps that use Spring beans (see ApplicationContextProvider) can
+ *   only be replayed if they cope with there being no application
+ *   context.
+ */
+public class TrafficReplay {
+
+ private static final Pattern ID_SEGMENT = Pattern.compile(
+  "^([0-9]+|[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12})$");
+
+ public static void main(String[] args) throws Exception {
+  if (args.length < 3) {
+   System.err.println("Usage: TrafficReplay <traffic-log> <current-ringo-home> <candidate-ringo-home> [results-dir]");
+   return;
+  }
+  File log = new File(args[0]);
+  File resultsDir = args.length > 3 ? new File(args[3]) :
+   new File(LoadTestServer.getSpringoRoot(), "loadtest/results");
+
+  int iterations = Integer.getInteger("replay.iterations", 5);
+  int warmup = Integer.getInteger("replay.warmup", 2);
+  double threshold = Double.parseDouble(System.getProperty("replay.threshold", "10"));
+  String chainBodyFile = System.getProperty("replay.chainBody");
+  byte[] chainBody = (chainBodyFile != null) ?
+   Files.readAllBytes(new File(chainBodyFile).toPath()) : utf8("{}");
+
+  List<TrafficRecorder.Record> records;
+  TrafficRecorder.Reader reader = new TrafficRecorder.Reader(log);
+  try {
+   records = reader.readAll();
+  } finally {
+   reader.close();
+  }
+  if (records.isEmpty()) {
+   System.err.println("No requests recorded in " + log);
+   return;
+  }
+  System.out.println("Replaying " + records.size() + " requests from " + log + " " +
+   iterations + " times (" + warmup + " warmup)...");
+
+  RingoJsgiFilter current = createFilter("current", args[1]);
+  RingoJsgiFilter candidate = createFilter("candidate", args[2]);
+  FilterChain chain = new MockSpringChain(chainBody);
+
+  Map<String, Route> routes = new TreeMap<String, Route>();
+  try {
+   for (int i = 0; i < warmup + iterations; i++) {
+    boolean measure = i >= warmup;
+    // (alternate which goes first, so neither always runs on a cooler JVM)
+    boolean currentFirst = i % 2 == 0;
+    for (TrafficRecorder.Record record : records) {
+     Route route = null;
+     if (measure) {
+      String name = getRoute(record);
+      route = routes.get(name);
+      if (route == null) {
+       route = new Route(name);
+       routes.put(name, route);
+      }
+     }
+     if (currentFirst) {
+      replay(current, chain, record, route, false);
+      replay(candidate, chain, record, route, true);
+     } else {
+      replay(candidate, chain, record, route, true);
+      replay(current, chain, record, route, false);
+     }
+    }
+   }
+  } finally {
+   current.destroy();
+   candidate.destroy();
+  }
+
+  List<Route> results = new ArrayList<Route>(routes.values());
+  printReport(results, threshold);
+
+  resultsDir.mkdirs();
+  String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+  File jsonFile = new File(resultsDir, "replay-" + stamp + ".json");
+  File csvFile = new File(resultsDir, "replay-" + stamp + ".csv");
+  writeJson(jsonFile, results, records.size(), iterations, threshold);
+  writeCsv(csvFile, results, threshold);
+  System.out.println("Replay results written to: " + jsonFile.getPath() + " and " + csvFile.getPath());
+ }
+
+ static RingoJsgiFilter createFilter(String name, String ringoHome) throws ServletException {
+  File root = LoadTestServer.getSpringoRoot();
+  MockFilterConfig config = new MockFilterConfig(new MockServletContext(), name);
+  config.addInitParameter("ringo-home", new File(ringoHome).getAbsolutePath());
+  config.addInitParameter("module-path", new File(ringoHome).getAbsolutePath() + "," +
+   new File(root, "js/modules").getAbsolutePath() + "," +
+   new File(root, "js/middleware").getAbsolutePath());
+  config.addInitParameter("config", System.getProperty("replay.config", "config"));
+  config.addInitParameter("app", System.getProperty("replay.app", "app"));
+  config.addInitParameter("production", "true");
+  config.addInitParameter("optlevel", System.getProperty("scripting.optlevel", "9"));
+
+  RingoJsgiFilter filter = new RingoJsgiFilter();
+  filter.init(config);
+  return filter;
+ }
+
+ // Run a recorded request through a filter (measuring it if route isn't null):
+ private static void replay(RingoJsgiFilter filter, FilterChain chain, TrafficRecorder.Record record,
+  Route route, boolean candidate) throws IOException {
+  MockHttpServletRequest request = createRequest(record);
+  MockHttpServletResponse response = new MockHttpServletResponse();
+
+  long allocated = allocatedBytes();
+  long start = System.nanoTime();
+  boolean failed = false;
+  try {
+   filter.doFilter(request, response, chain);
+  } catch (ServletException e) {
+   failed = true;
+  } catch (RuntimeException e) {
+   failed = true;
+  }
+  long nanos = System.nanoTime() - start;
+  allocated = allocatedBytes() - allocated;
+
+  if (route != null) {
+   route.add(candidate, nanos, allocated, failed || response.getStatus() >= 500);
+  }
+ }
+
+ static MockHttpServletRequest createRequest(TrafficRecorder.Record record) throws UnsupportedEncodingException {
+  String uri = record.getUri();
+  String query = null;
+  int q = uri.indexOf('?');
+  if (q >= 0) {
+   query = uri.substring(q + 1);
+   uri = uri.substring(0, q);
+  }
+  String contextPath = System.getProperty("replay.contextPath", "");
+  if (contextPath.length() > 0 && uri.startsWith(contextPath)) {
+   uri = uri.substring(contextPath.length());
+  }
+
+  MockHttpServletRequest request = new MockHttpServletRequest(record.getMethod(), contextPath + uri);
+  request.setContextPath(contextPath);
+  request.setServletPath("");
+  request.setPathInfo(uri);
+  request.setQueryString(query);
+  if (query != null) {
+   for (String pair : query.split("&")) {
+    if (pair.length() == 0) {
+     continue;
+    }
+    int eq = pair.indexOf('=');
+    String name = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, "UTF-8");
+    String value = eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), "UTF-8") : "";
+    request.addParameter(name, value);
+   }
+  }
+  for (String[] header : record.getHeaders()) {
+   request.addHeader(header[0], header[1]);
+   if ("content-type".equalsIgnoreCase(header[0])) {
+    request.setContentType(header[1]);
+   }
+  }
+  if (record.getBody() != null) {
+   request.setContent(record.getBody());
+  }
+  return request;
+ }
+
+ /**
+  * The route a request's reported under:  its method and path with the
+  * numeric and uuid segments replaced by "*".
+  */
+ static String getRoute(TrafficRecorder.Record record) {
+  String path = record.getUri();
+  int q = path.indexOf('?');
+  if (q >= 0) {
+   path = path.substring(0, q);
+  }
+  StringBuilder route = new StringBuilder(record.getMethod()).append(' ');
+  String[] segments = path.split("/", -1);
+  for (int i = 0; i < segments.length; i++) {
+   if (i > 0) {
+    route.append('/');
+   }
+   route.append(ID_SEGMENT.matcher(segments[i]).matches() ? "*" : segments[i]);
+  }
+  return route.toString();
+ }
+
+ // The bytes allocated by this thread so far (-1 if the JVM can't say):
+ private static long allocatedBytes() {
+  java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  if (threads instanceof com.sun.management.ThreadMXBean) {
+   return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+  return -1;
+ }
+
+ private static void printReport(List<Route> routes, double threshold) {
+  System.out.println(String.format(Locale.US, "%-40s %7s %10s %10s %10s %10s %8s %12s %12s",
+   "route", "count", "p50 cur", "p50 cand", "p99 cur", "p99 cand", "delta", "alloc cur", "alloc cand"));
+  for (Route r : routes) {
+   double delta = r.getDeltaPercent();
+   System.out.println(String.format(Locale.US, "%-40s %7d %8.3fms %8.3fms %8.3fms %8.3fms %+7.1f%% %12d %12d%s",
+    r.name, r.getCount(), r.current.percentile(50), r.candidate.percentile(50),
+    r.current.percentile(99), r.candidate.percentile(99), delta,
+    r.current.getMeanAllocated(), r.candidate.getMeanAllocated(),
+    delta > threshold ? "  REGRESSION" : ""));
+   if (r.current.errors > 0 || r.candidate.errors > 0) {
+    System.out.println("  errors: current " + r.current.errors + ", candidate " + r.candidate.errors);
+   }
+  }
+ }
+
+ private static void writeJson(File file, List<Route> routes, int requests, int iterations, double threshold) throws IOException {
+  PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+  try {
+   out.println("{");
+   out.println("  \"requests\": " + requests + ",");
+   out.println("  \"iterations\": " + iterations + ",");
+   out.println("  \"threshold\": " + threshold + ",");
+   out.println("  \"optlevel\": " + System.getProperty("scripting.optlevel", "9") + ",");
+   out.println("  \"java\": \"" + System.getProperty("java.version") + "\",");
+   out.println("  \"routes\": [");
+   for (int i = 0; i < routes.size(); i++) {
+    Route r = routes.get(i);
+    out.print(String.format(Locale.US,
+     "    {\"route\": \"%s\", \"count\": %d, \"regression\": %s, \"deltaPercent\": %.2f, " +
+     "\"current\": %s, \"candidate\": %s}",
+     r.name.replace("\\", "\\\\").replace("\"", "\\\""), r.getCount(), r.getDeltaPercent() > threshold,
+     r.getDeltaPercent(), r.current.toJson(), r.candidate.toJson()));
+    out.println(i < routes.size() - 1 ? "," : "");
+   }
+   out.println("  ]");
+   out.println("}");
+  } finally {
+   out.close();
+  }
+ }
+
+ private static void writeCsv(File file, List<Route> routes, double threshold) throws IOException {
+  PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+  try {
+   out.println("route,count,regression,deltaPercent," +
+    "currentMeanMillis,currentP50Millis,currentP99Millis,currentAllocatedBytes,currentErrors," +
+    "candidateMeanMillis,candidateP50Millis,candidateP99Millis,candidateAllocatedBytes,candidateErrors");
+   for (Route r : routes) {
+    out.println(String.format(Locale.US, "\"%s\",%d,%s,%.2f,%s,%s",
+     r.name.replace("\"", "\"\""), r.getCount(), r.getDeltaPercent() > threshold, r.getDeltaPercent(),
+     r.current.toCsv(), r.candidate.toCsv()));
+   }
+  } finally {
+   out.close();
+  }
+ }
+
+ private static byte[] utf8(String s) {
+  try {
+   return s.getBytes("UTF-8");
+  } catch (IOException e) {
+   throw new IllegalStateException(e);
+  }
+ }
+
+ /**
+  * Stands in for Spring MVC:  drains the request body like a message
+  * converter would, then writes the canned JSON response.
+  */
+ static class MockSpringChain implements FilterChain {
+
+  private final byte[] responseBody;
+
+  MockSpringChain(byte[] responseBody) {
+   this.responseBody = responseBody;
+  }
+
+  public void doFilter(ServletRequest request, ServletResponse response)
+  throws IOException, ServletException {
+   InputStream in = request.getInputStream();
+   if (in != null) {
+    byte[] scratch = new byte[4096];
+    while (in.read(scratch) != -1) {
+     // drain the body
+    }
+   }
+   response.setContentType("application/json;charset=UTF-8");
+   response.getOutputStream().write(responseBody);
+  }
+ }
+
+ /**
+  * A route's measurements for both versions.
+  */
+ static class Route {
+  final String name;
+  final Samples current = new Samples();
+  final Samples candidate = new Samples();
+
+  Route(String name) {
+   this.name = name;
+  }
+
+  void add(boolean isCandidate, long nanos, long allocated, boolean failed) {
+   (isCandidate ? candidate : current).add(nanos, allocated, failed);
+  }
+
+  int getCount() {
+   return current.count;
+  }
+
+  /**
+   * How much slower (+) or faster (-) the candidate's median is, in %.
+   */
+  double getDeltaPercent() {
+   double p50 = current.percentile(50);
+   return p50 > 0 ? (candidate.percentile(50) - p50) * 100 / p50 : 0;
+  }
+ }
+
+ static class Samples {
+  private long[] nanos = new long[64];
+  int count;
+  long totalNanos;
+  long totalAllocated;
+  int errors;
+  private boolean sorted;
+
+  void add(long elapsed, long allocated, boolean failed) {
+   if (count == nanos.length) {
+    nanos = Arrays.copyOf(nanos, count * 2);
+   }
+   nanos[count++] = elapsed;
+   totalNanos += elapsed;
+   totalAllocated += Math.max(allocated, 0);
+   if (failed) {
+    errors++;
+   }
+   sorted = false;
+  }
+
+  double getMeanMillis() {
+   return count > 0 ? totalNanos / (count * 1e6) : 0;
+  }
+
+  long getMeanAllocated() {
+   return count > 0 ? totalAllocated / count : 0;
+  }
+
+  double percentile(double p) {
+   if (count == 0) {
+    return 0;
+   }
+   if (!sorted) {
+    Arrays.sort(nanos, 0, count);
+    sorted = true;
+   }
+   int index = (int) Math.min(count - 1, Math.ceil(p / 100 * count) - 1);
+   return nanos[Math.max(index, 0)] / 1e6;
+  }
+
+  String toJson() {
+   return String.format(Locale.US,
+    "{\"meanMillis\": %.3f, \"p50Millis\": %.3f, \"p99Millis\": %.3f, \"allocatedBytes\": %d, \"errors\": %d}",
+    getMeanMillis(), percentile(50), percentile(99), getMeanAllocated(), errors);
+  }
+
+  String toCsv() {
+   return String.format(Locale.US, "%.3f,%.3f,%.3f,%d,%d",
+    getMeanMillis(), percentile(50), percentile(99), getMeanAllocated(), errors);
+  }
+ }
+}
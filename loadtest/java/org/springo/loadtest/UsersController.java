@@ -0,0 +1,50 @@
+package org.springo.loadtest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * The JSON "RESTful service" behind the load test scenarios.
+ *
+ * It's mapped at /_api/users, the internal url springo's forwarding
+ * middleware forward /api/ urls to by default.  The responses have a
+ * "users" array since that's what the load test's stick apps modify.
+ */
+@Controller
+@RequestMapping("/_api/users")
+public class UsersController {
+
+ @RequestMapping(method = RequestMethod.GET, produces = "application/json")
+ @ResponseBody
+ public Map<String, Object> list(@RequestParam(value = "count", defaultValue = "20") int count) {
+  List<Map<String, Object>> users = new ArrayList<Map<String, Object>>(count);
+  for (int i = 0; i < count; i++) {
+   Map<String, Object> user = new LinkedHashMap<String, Object>();
+   user.put("id", i);
+   user.put("name", "user" + i);
+   user.put("active", i % 2 == 0);
+   user.put("score", i * 1.5);
+   users.add(user);
+  }
+  Map<String, Object> result = new LinkedHashMap<String, Object>();
+  result.put("users", users);
+  result.put("count", count);
+  return result;
+ }
+
+ @RequestMapping(value = "/echo", method = RequestMethod.POST, produces = "application/json")
+ @ResponseBody
+ public Map<String, Object> echo(@RequestBody Map<String, Object> body) {
+  body.put("echoed", true);
+  return body;
+ }
+}
@@ -0,0 +1,56 @@
+/**
+ * @fileOverview The stick apps used by the springo load test.
+ *
+ * Each export is the app for one load test scenario, served from its own
+ * servlet context (see LoadTestServer) in front of the same small Spring
+ * MVC app (see UsersController) the "plain" scenario hits directly.
+ */
+
+var {Application} = require("stick");
+
+// answers every request itself (never touches Spring):
+var trivial = exports.trivial = new Application();
+trivial.configure("route");
+trivial.get("/*", function(request) {
+	return {
+		status: 200,
+		headers: {"Content-Type": "application/json"},
+		body: ['{"ok":true}']
+	};
+});
+
+// forwards /<context>/api/... on to Spring's /_api/... (streaming its output):
+var forward = exports.forward = new Application();
+forward.configure("forwardtospringdispatcher");
+
+// lets the request carry on down the filter chain (streaming Spring's output):
+var passthrough = exports.passthrough = new Application();
+passthrough.configure("runfilterchain");
+passthrough.runfilterchain.capture = false;
+
+// captures Spring's JSON response and modifies it:
+var modifyresponse = exports.modifyresponse = new Application();
+modifyresponse.configure("jsonerror", "modifyresponsebody", "runfilterchain");
+modifyresponse.modifyresponsebody = function(json) {
+	json.users[0].name = "Fred";
+	json.modified = true;
+};
+
+// modifies the JSON request body before Spring sees it:
+var modifyrequest = exports.modifyrequest = new Application();
+modifyrequest.configure("jsonerror", "modifyrequestbody", "runfilterchain");
+modifyrequest.modifyrequestbody = function(json) {
+	json.users[0].name = "Fred";
+	return json;
+};
+
+// captures Spring's output for requests no javascript route handles:
+var capture = exports.capture = new Application();
+capture.configure("jsonerror", "captureunhandledrequest", "route");
+capture.get("/js/ping", function(request) {
+	return {
+		status: 200,
+		headers: {"Content-Type": "application/json"},
+		body: ['{"ok":true}']
+	};
+});